@@ -0,0 +1,160 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * 年齢の集計途中の値（合計、件数、最小値、最大値、二乗和）を保持します。
+ * <p>
+ * 平均値そのものは結合則を満たさないため、 Reducer が平均値を出力する場合は Combiner として利用できません。
+ * このクラスは集計途中の値を保持し、 {@link #merge(AgeStatsWritable)} で何度でも併合出来るため、
+ * Combiner や Mapper 内での集計にそのまま利用出来ます。平均値、最小値、最大値、標準偏差は
+ * 全ての値を併合した後に求めます。
+ * </p>
+ * <p>
+ * シリアライズ形式は固定長（{@code sum}, {@code count}, {@code min}, {@code max}, {@code sumOfSquares}
+ * の順に計32バイト）のため、バイト列から直接各項目を読み出すことが出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class AgeStatsWritable implements Writable {
+
+	private long sum;
+	private long count;
+	private int min;
+	private int max;
+	private long sumOfSquares;
+
+	public AgeStatsWritable() {
+		clear();
+	}
+
+	public void clear() {
+		sum = 0;
+		count = 0;
+		min = Integer.MAX_VALUE;
+		max = Integer.MIN_VALUE;
+		sumOfSquares = 0;
+	}
+
+	/**
+	 * 単一の年齢のみを保持する状態にします。
+	 * 
+	 * @param age 年齢
+	 */
+	public void set(int age) {
+		clear();
+		add(age);
+	}
+
+	/**
+	 * 年齢を1件追加します。
+	 * 
+	 * @param age 年齢
+	 */
+	public void add(int age) {
+		sum += age;
+		count++;
+		min = Math.min(min, age);
+		max = Math.max(max, age);
+		sumOfSquares += (long) age * age;
+	}
+
+	/**
+	 * 他の集計途中の値を併合します。
+	 * 
+	 * @param other 併合する値
+	 */
+	public void merge(AgeStatsWritable other) {
+		sum += other.sum;
+		count += other.count;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		sumOfSquares += other.sumOfSquares;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public int getMin() {
+		return min;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	public long getSumOfSquares() {
+		return sumOfSquares;
+	}
+
+	public double getMean() {
+		return (double) sum / count;
+	}
+
+	/**
+	 * @return 母標準偏差
+	 */
+	public double getStandardDeviation() {
+		double mean = getMean();
+		double variance = (double) sumOfSquares / count - mean * mean;
+		// 丸め誤差で負数になる場合があるため0で下限を設けています
+		return Math.sqrt(Math.max(variance, 0));
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(sum);
+		out.writeLong(count);
+		out.writeInt(min);
+		out.writeInt(max);
+		out.writeLong(sumOfSquares);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		sum = in.readLong();
+		count = in.readLong();
+		min = in.readInt();
+		max = in.readInt();
+		sumOfSquares = in.readLong();
+	}
+
+	@Override
+	public int hashCode() {
+		long hash = sum;
+		hash = hash * 31 + count;
+		hash = hash * 31 + min;
+		hash = hash * 31 + max;
+		hash = hash * 31 + sumOfSquares;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof AgeStatsWritable)) {
+			return false;
+		}
+		AgeStatsWritable other = (AgeStatsWritable) obj;
+		return sum == other.sum && count == other.count && min == other.min && max == other.max
+				&& sumOfSquares == other.sumOfSquares;
+	}
+
+	/**
+	 * 平均値、最小値、最大値、標準偏差をカンマ区切りで返します。
+	 */
+	@Override
+	public String toString() {
+		return getMean() + "," + min + "," + max + "," + getStandardDeviation();
+	}
+
+}
@@ -2,24 +2,26 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -30,54 +32,215 @@ import org.apache.hadoop.util.ToolRunner;
  * そのため、 Reducer 側では values に部門毎の従業員の年齢が入っています。
  * （key が複数あるため、 reduce メソッドは複数回呼び出されます。）
  * </p>
+ * <p>
+ * Mapper は年齢を {@link AgeStatsWritable} として出力し、 Reducer はそれを併合して
+ * 部門ごとの平均値、最小値、最大値、標準偏差を出力します。 {@link AgeStatsWritable} は
+ * 何度でも併合出来るため、 Reducer を Combiner としても利用しています。
+ * また、 {@link #IN_MAPPER_AGGREGATION} を {@code true} に設定すると、
+ * Mapper 内で部門ごとに集計してから出力します。
+ * </p>
+ * <p> {@link HotKeyPartitioner#HOT_KEYS} を設定するか、 {@link HotKeyPartitioner#SAMPLE} を {@code true}
+ * に設定すると、従業員数の多い部門を複数の Reducer に分散させて集計します。この場合、
+ * 集計途中の値を SequenceFile に出力し、2つ目のジョブで部門ごとに併合します。
+ * </p>
+ * <p>
+ * 入力が {@link ConvertToColumnar} で変換したカラムナファイルの場合は、 {@link ColumnarInputFormat} で
+ * {@code departmentId} と {@code employeeAge} の列のみを読み込みます。
+ * </p>
  * 
  * @author n3104
  */
 public class AverageAgeOfDepartment extends Configured implements Tool {
 
-	public static class AverageAgeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, IntWritable> {
+	/**
+	 * Mapper 内で部門ごとに集計してから出力するかどうかの設定名です。デフォルトは {@code false} です。
+	 */
+	public static final String IN_MAPPER_AGGREGATION = "averageage.inmapper.aggregation";
+
+	/**
+	 * 部門ごとの年齢を出力します。 {@link #IN_MAPPER_AGGREGATION} が {@code true} の場合は
+	 * Mapper 内で部門ごとに集計し、 {@link #close()} でまとめて出力します。
+	 */
+	static abstract class AbstractAverageAgeMapper<V> extends MapReduceBase implements
+			Mapper<Object, V, IntWritable, AgeStatsWritable> {
+
+		private IntWritable departmentId = new IntWritable();
+		private AgeStatsWritable stats = new AgeStatsWritable();
+		// 部門数は少ないため、Mapper内での集計には通常のMapを利用しています
+		private Map<Integer, AgeStatsWritable> statsMap;
+		private OutputCollector<IntWritable, AgeStatsWritable> collector;
+		protected TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			if (job.getBoolean(IN_MAPPER_AGGREGATION, false)) {
+				statsMap = new HashMap<Integer, AgeStatsWritable>();
+			}
+		}
+
+		protected void collect(int department, int age,
+				OutputCollector<IntWritable, AgeStatsWritable> output, Reporter reporter)
+				throws IOException {
+			metrics.setReporter(reporter);
+			if (statsMap == null) {
+				departmentId.set(department);
+				stats.set(age);
+				output.collect(departmentId, stats);
+				metrics.emitted();
+				return;
+			}
+			collector = output;
+			AgeStatsWritable departmentStats = statsMap.get(department);
+			if (departmentStats == null) {
+				departmentStats = new AgeStatsWritable();
+				statsMap.put(department, departmentStats);
+			}
+			departmentStats.add(age);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (statsMap != null && collector != null) {
+				for (Map.Entry<Integer, AgeStatsWritable> entry : statsMap.entrySet()) {
+					departmentId.set(entry.getKey());
+					collector.collect(departmentId, entry.getValue());
+					metrics.emitted();
+				}
+			}
+			metrics.flush();
+		}
+	}
+
+	public static class AverageAgeMapper extends AbstractAverageAgeMapper<Text> {
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			quarantine = new Quarantine(job);
+		}
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, IntWritable> output,
-				Reporter reporter) throws IOException {
+		public void map(Object key, Text value,
+				OutputCollector<IntWritable, AgeStatsWritable> output, Reporter reporter)
+				throws IOException {
 			parser.parse(value);
-			output.collect(new IntWritable(parser.getDepartmentId()),
-					new IntWritable(parser.getEmployeeAge()));
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			collect(parser.getDepartmentId(), parser.getEmployeeAge(), output, reporter);
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			quarantine.close();
+		}
+	}
+
+	/**
+	 * {@link ColumnarInputFormat} で {@code departmentId} と {@code employeeAge} のみを読み込んだ従業員を集計します。
+	 * 不正なレコードはカラムナファイルへの変換時に除外されているため、解析は行いません。
+	 */
+	public static class ColumnarAverageAgeMapper extends AbstractAverageAgeMapper<EmployeeWritable> {
+
+		@Override
+		public void map(Object key, EmployeeWritable value,
+				OutputCollector<IntWritable, AgeStatsWritable> output, Reporter reporter)
+				throws IOException {
+			collect(value.getDepartmentId(), value.getEmployeeAge(), output, reporter);
 		}
 	}
 
+	/**
+	 * 集計途中の値を併合します。入力と出力の型が同じであるため、 Combiner としても利用しています。
+	 */
 	public static class AverageAgeReducer extends MapReduceBase implements
-			Reducer<IntWritable, IntWritable, IntWritable, DoubleWritable> {
+			Reducer<IntWritable, AgeStatsWritable, IntWritable, AgeStatsWritable> {
+
+		private AgeStatsWritable result = new AgeStatsWritable();
+		private TaskMetrics metrics;
 
 		@Override
-		public void reduce(IntWritable key, Iterator<IntWritable> values,
-				OutputCollector<IntWritable, DoubleWritable> output, Reporter reporter)
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+		}
+
+		@Override
+		public void reduce(IntWritable key, Iterator<AgeStatsWritable> values,
+				OutputCollector<IntWritable, AgeStatsWritable> output, Reporter reporter)
 				throws IOException {
+			result.clear();
 			int count = 0;
-			int sum = 0;
 			while (values.hasNext()) {
-				sum += values.next().get();
+				result.merge(values.next());
 				count++;
 			}
-			output.collect(key, new DoubleWritable((double) sum / count));
+			output.collect(key, result);
+			metrics.group(reporter, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
 	@Override
 	public int run(String[] args) throws Exception {
 		JobConf conf = new JobConf(getConf(), getClass());
-		conf.setMapperClass(AverageAgeMapper.class);
-		conf.setMapOutputKeyClass(IntWritable.class);
-		conf.setMapOutputValueClass(IntWritable.class);
+		conf.setCombinerClass(AverageAgeReducer.class);
 		conf.setReducerClass(AverageAgeReducer.class);
-		conf.setOutputKeyClass(NullWritable.class);
-		conf.setOutputValueClass(DoubleWritable.class);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(AgeStatsWritable.class);
 		FileInputFormat.addInputPath(conf, new Path(args[0]));
-		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
-		JobClient.runJob(conf);
+		if (ColumnarInputFormat.isColumnar(conf)) {
+			conf.setInputFormat(ColumnarInputFormat.class);
+			ColumnarInputFormat.setColumns(conf, "departmentId", "employeeAge");
+			conf.setMapperClass(ColumnarAverageAgeMapper.class);
+		} else {
+			conf.setMapperClass(AverageAgeMapper.class);
+		}
+		Quarantine.configure(conf);
+		DepartmentSampler.configureHotKeys(conf);
+		if (!HotKeyPartitioner.hasHotKeys(conf)) {
+			FileOutputFormat.setOutputPath(conf, new Path(args[1]));
+			ParallelJobRunner.runJob(conf);
+			return 0;
+		}
+		// 従業員数の多い部門を複数のReducerに分散させ、部門ごとの集計途中の値をSequenceFileに出力します
+		Path partialDir = new Path(args[1] + "_partial");
+		conf.setPartitionerClass(HotKeyPartitioner.IntKey.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+		FileOutputFormat.setOutputPath(conf, partialDir);
+		JobGraph graph = new JobGraph(getClass().getSimpleName());
+		graph.add("Partial", conf);
+		{
+			// 分散させた部門の集計途中の値を併合します
+			JobConf merge = new JobConf(getConf(), getClass());
+			merge.setInputFormat(SequenceFileInputFormat.class);
+			merge.setReducerClass(AverageAgeReducer.class);
+			merge.setOutputKeyClass(IntWritable.class);
+			merge.setOutputValueClass(AgeStatsWritable.class);
+			FileInputFormat.addInputPath(merge, partialDir);
+			FileOutputFormat.setOutputPath(merge, new Path(args[1]));
+			graph.add("Merge", merge);
+		}
+		graph.run();
+		FileSystem fs = partialDir.getFileSystem(conf);
+		Path quarantineDir = new Path(partialDir, Quarantine.DIR_NAME);
+		if (fs.exists(quarantineDir)) {
+			// 不正なレコードは集計途中の値と一緒に削除しないように、最終的な出力先に移動します
+			Path target = new Path(args[1], Quarantine.DIR_NAME);
+			if (!fs.rename(quarantineDir, target)) {
+				throw new IOException("不正なレコードのファイルを移動できませんでした。file=" + quarantineDir);
+			}
+		}
+		fs.delete(partialDir, true);
 		return 0;
 	}
 
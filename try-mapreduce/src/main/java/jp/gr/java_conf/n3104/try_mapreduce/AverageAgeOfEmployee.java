@@ -13,7 +13,6 @@ import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -31,55 +30,150 @@ import org.apache.hadoop.util.ToolRunner;
  * key を単一にしています。そのため、 Reducer 側では単一の values に全従業員の年齢が入っています。
  * （key が単一であるため、 reduce メソッドは1回のみ呼び出されます。）
  * </p>
+ * <p>
+ * ただし、全従業員の年齢をそのまま単一の Reducer に送ると、 Reducer の処理量が入力全体に比例してしまいます。
+ * そのため、 Mapper 内で合計と件数を {@link AgeStatsWritable} に集計しておき、
+ * {@link AbstractAverageAgeMapper#close()} で Mapper ごとに1件だけ出力しています。
+ * Reducer が受け取る values の件数は Mapper の数と同じになります。
+ * </p>
+ * <p>
+ * 入力が {@link ConvertToColumnar} で変換したカラムナファイルの場合は、 {@link ColumnarInputFormat} で
+ * {@code employeeAge} の列のみを読み込みます。
+ * </p>
  * 
  * @author n3104
  */
 public class AverageAgeOfEmployee extends Configured implements Tool {
 
-	public static class AverageAgeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, IntWritable> {
+	/**
+	 * 従業員の年齢を Mapper 内で集計し、 {@link #close()} で Mapper ごとに1件だけ出力します。
+	 */
+	static abstract class AbstractAverageAgeMapper<V> extends MapReduceBase implements
+			Mapper<Object, V, IntWritable, AgeStatsWritable> {
 
 		private static final IntWritable MAP_OUTPUT_KEY = new IntWritable(1);
 
+		private AgeStatsWritable stats = new AgeStatsWritable();
+		private OutputCollector<IntWritable, AgeStatsWritable> collector;
+		protected TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+		}
+
+		protected void collect(int age, OutputCollector<IntWritable, AgeStatsWritable> output,
+				Reporter reporter) {
+			// 1行ずつ出力せずに Mapper 内で集計し、 close メソッドでまとめて出力します
+			collector = output;
+			metrics.setReporter(reporter);
+			stats.add(age);
+		}
+
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, IntWritable> output,
-				Reporter reporter) throws IOException {
-			String[] values = value.toString().split(",");
-			int age = Integer.parseInt(values[2]);
-			output.collect(MAP_OUTPUT_KEY, new IntWritable(age));
+		public void close() throws IOException {
+			if (collector != null) {
+				collector.collect(MAP_OUTPUT_KEY, stats);
+				metrics.emitted();
+			}
+			metrics.flush();
+		}
+	}
+
+	public static class AverageAgeMapper extends AbstractAverageAgeMapper<Text> {
+
+		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			quarantine = new Quarantine(job);
+		}
+
+		@Override
+		public void map(Object key, Text value,
+				OutputCollector<IntWritable, AgeStatsWritable> output, Reporter reporter)
+				throws IOException {
+			parser.parse(value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			collect(parser.getEmployeeAge(), output, reporter);
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			quarantine.close();
+		}
+	}
+
+	/**
+	 * {@link ColumnarInputFormat} で {@code employeeAge} のみを読み込んだ従業員を集計します。
+	 */
+	public static class ColumnarAverageAgeMapper extends AbstractAverageAgeMapper<EmployeeWritable> {
+
+		@Override
+		public void map(Object key, EmployeeWritable value,
+				OutputCollector<IntWritable, AgeStatsWritable> output, Reporter reporter)
+				throws IOException {
+			collect(value.getEmployeeAge(), output, reporter);
 		}
 	}
 
 	public static class AverageAgeReducer extends MapReduceBase implements
-			Reducer<IntWritable, IntWritable, NullWritable, DoubleWritable> {
+			Reducer<IntWritable, AgeStatsWritable, NullWritable, DoubleWritable> {
+
+		private AgeStatsWritable result = new AgeStatsWritable();
+		private TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+		}
 
 		@Override
-		public void reduce(IntWritable key, Iterator<IntWritable> values,
+		public void reduce(IntWritable key, Iterator<AgeStatsWritable> values,
 				OutputCollector<NullWritable, DoubleWritable> output, Reporter reporter)
 				throws IOException {
+			result.clear();
 			int count = 0;
-			int sum = 0;
 			while (values.hasNext()) {
-				sum += values.next().get();
+				result.merge(values.next());
 				count++;
 			}
-			output.collect(NullWritable.get(), new DoubleWritable((double) sum / count));
+			output.collect(NullWritable.get(), new DoubleWritable(result.getMean()));
+			metrics.group(reporter, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
 	@Override
 	public int run(String[] args) throws Exception {
 		JobConf conf = new JobConf(getConf(), getClass());
-		conf.setMapperClass(AverageAgeMapper.class);
 		// ReducerとKeyおよびValueの型が異なる場合はMapperについても型を指定する必要があります。
 		conf.setMapOutputKeyClass(IntWritable.class);
-		conf.setMapOutputValueClass(IntWritable.class);
+		conf.setMapOutputValueClass(AgeStatsWritable.class);
 		conf.setReducerClass(AverageAgeReducer.class);
 		conf.setOutputKeyClass(NullWritable.class);
 		conf.setOutputValueClass(DoubleWritable.class);
 		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		if (ColumnarInputFormat.isColumnar(conf)) {
+			conf.setInputFormat(ColumnarInputFormat.class);
+			ColumnarInputFormat.setColumns(conf, "employeeAge");
+			conf.setMapperClass(ColumnarAverageAgeMapper.class);
+		} else {
+			conf.setMapperClass(AverageAgeMapper.class);
+		}
+		Quarantine.configure(conf);
 		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
-		JobClient.runJob(conf);
+		ParallelJobRunner.runJob(conf);
 		return 0;
 	}
 
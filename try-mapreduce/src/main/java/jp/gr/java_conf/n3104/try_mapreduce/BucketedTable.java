@@ -0,0 +1,207 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * key でソートし、 key の hash 値で一定数のファイル（バケット）に分割したデータセットです。
+ * <p>
+ * Map-Side Join では、ジョインするデータセットを同じ key、同じ {@link org.apache.hadoop.mapred.Partitioner}、
+ * 同じ Reducer の数でソートしておく必要があります。このクラスはソートしたジョブの出力ディレクトリに
+ * メタデータファイル {@link #METADATA_FILE} を作成し、 key、バケット数、 {@link org.apache.hadoop.mapred.Partitioner}
+ * と入力ファイルのフィンガープリントを記録します。次回の実行時に入力ファイルが変更されていなければ、
+ * ソートのジョブを実行せずにデータセットを再利用出来ます。
+ * </p>
+ * <p>
+ * フィンガープリントは入力ファイルの名前、サイズ、更新日時から求めます。ファイルの内容は読み込まないため、
+ * サイズと更新日時を変えずに書き換えた場合は検知できません。
+ * メタデータファイルは名前が {@code _} で始まるため、 {@link org.apache.hadoop.mapred.FileInputFormat}
+ * の入力には含まれません。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class BucketedTable {
+
+	private static final Log log = LogFactory.getLog(BucketedTable.class);
+
+	/**
+	 * バケット数（ソートするジョブの Reducer の数）の設定名です。デフォルトは1です。
+	 */
+	public static final String BUCKETS = "bucketedtable.buckets";
+
+	/**
+	 * メタデータファイルの名前です。
+	 */
+	public static final String METADATA_FILE = "_bucketed";
+
+	private static final String KEY = "key";
+	private static final String NUM_BUCKETS = "buckets";
+	private static final String PARTITIONER = "partitioner";
+	private static final String FINGERPRINT = "fingerprint";
+
+	private final Path path;
+	private final String key;
+	private final int buckets;
+	private final String partitioner;
+	private final String fingerprint;
+
+	private BucketedTable(Path path, String key, int buckets, String partitioner, String fingerprint) {
+		this.path = path;
+		this.key = key;
+		this.buckets = buckets;
+		this.partitioner = partitioner;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * {@link #BUCKETS} の設定を返します。 LocalJobRunner は Reducer を1つしか実行できないため、
+	 * {@link ParallelJobRunner} を利用しないローカル実行では常に1を返します。
+	 * 
+	 * @param conf 設定
+	 * @return バケット数
+	 */
+	public static int getBuckets(JobConf conf) {
+		if ("local".equals(conf.get("mapred.job.tracker", "local"))
+				&& !ParallelJobRunner.isEnabled(conf)) {
+			return 1;
+		}
+		return conf.getInt(BUCKETS, 1);
+	}
+
+	/**
+	 * データセットのメタデータを読み込みます。
+	 * 
+	 * @param conf 設定
+	 * @param path データセットのディレクトリ
+	 * @return データセット。ディレクトリまたはメタデータファイルが存在しない場合は {@code null}
+	 */
+	public static BucketedTable open(JobConf conf, Path path) throws IOException {
+		Path metadataFile = new Path(path, METADATA_FILE);
+		FileSystem fs = metadataFile.getFileSystem(conf);
+		if (!fs.exists(metadataFile)) {
+			return null;
+		}
+		Properties properties = new Properties();
+		InputStream in = fs.open(metadataFile);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return new BucketedTable(path, properties.getProperty(KEY), Integer.parseInt(properties
+				.getProperty(NUM_BUCKETS, "0")), properties.getProperty(PARTITIONER), properties
+				.getProperty(FINGERPRINT));
+	}
+
+	/**
+	 * ソートのジョブが完了したデータセットにメタデータファイルを作成します。
+	 * バケット数は出力されたファイルの数です（LocalJobRunner では Reducer の数によらず1となります）。
+	 * 
+	 * @param job ソートに利用したジョブの設定
+	 * @param path データセットのディレクトリ
+	 * @param key ソートした key の名前
+	 * @param input ソートした入力ファイル
+	 * @return データセット
+	 */
+	public static BucketedTable create(JobConf job, Path path, String key, Path input)
+			throws IOException {
+		FileSystem fs = path.getFileSystem(job);
+		int buckets = fs.listStatus(path, new PathFilter() {
+			@Override
+			public boolean accept(Path file) {
+				return file.getName().startsWith("part-");
+			}
+		}).length;
+		BucketedTable table = new BucketedTable(path, key, buckets, job.getPartitionerClass()
+				.getName(), fingerprint(job, input));
+		Properties properties = new Properties();
+		properties.setProperty(KEY, table.key);
+		properties.setProperty(NUM_BUCKETS, String.valueOf(table.buckets));
+		properties.setProperty(PARTITIONER, table.partitioner);
+		properties.setProperty(FINGERPRINT, table.fingerprint);
+		OutputStream out = fs.create(new Path(path, METADATA_FILE), true);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		return table;
+	}
+
+	/**
+	 * 入力ファイルのフィンガープリントを求めます。
+	 * 
+	 * @param conf 設定
+	 * @param input 入力ファイル、またはそれを含むディレクトリ
+	 * @return 入力ファイルの名前、サイズ、更新日時の MD5
+	 */
+	public static String fingerprint(JobConf conf, Path input) throws IOException {
+		FileSystem fs = input.getFileSystem(conf);
+		// ChecksumFileSystem は存在しないパスに対して空の配列を返すため、事前に存在を確認します
+		if (!fs.exists(input)) {
+			throw new IOException("入力ファイルが存在しません。path=" + input);
+		}
+		FileStatus[] files = fs.listStatus(input);
+		Arrays.sort(files);
+		StringBuilder sb = new StringBuilder();
+		for (FileStatus file : files) {
+			String name = file.getPath().getName();
+			if (file.isDir() || name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+			sb.append(name).append(',').append(file.getLen()).append(',').append(
+					file.getModificationTime()).append('\n');
+		}
+		return MD5Hash.digest(sb.toString()).toString();
+	}
+
+	/**
+	 * @param conf 設定
+	 * @param input 入力ファイル
+	 * @param key ソートする key の名前
+	 * @return 入力ファイルが変更されておらず、同じ key でソートされている場合は {@code true}
+	 */
+	public boolean isUpToDate(JobConf conf, Path input, String key) throws IOException {
+		boolean upToDate = key.equals(this.key) && buckets > 0
+				&& fingerprint(conf, input).equals(fingerprint);
+		if (!upToDate && log.isInfoEnabled()) {
+			log.info("データセットが古いため再作成します。path=" + path);
+		}
+		return upToDate;
+	}
+
+	/**
+	 * @param other データセット
+	 * @return 同じ key、バケット数、 {@link org.apache.hadoop.mapred.Partitioner} で分割されている場合は {@code true}
+	 */
+	public boolean isCompatibleWith(BucketedTable other) {
+		return key.equals(other.key) && buckets == other.buckets
+				&& partitioner.equals(other.partitioner);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int getBuckets() {
+		return buckets;
+	}
+
+}
@@ -0,0 +1,192 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+/**
+ * {@link Text} のバイト列を直接走査して単語に分割します。
+ * <p> {@link java.util.StringTokenizer} を利用すると、 {@link Text#toString()} による UTF-8 のデコードと、
+ * {@link Text#set(String)} による再エンコードが単語ごとに発生します。
+ * このクラスは元のバイト列上の単語の位置のみを返すため、 {@link Text#set(byte[], int, int)}
+ * でそのまま単語を設定することが出来ます。
+ * </p>
+ * <p>
+ * 区切り文字は1バイト目の値で分類した表で判定します。 ASCII の区切り文字は表のみで判定し、
+ * 全角スペース（{@link #IDEOGRAPHIC_SPACE}）のようなマルチバイトの区切り文字は
+ * 先頭バイトが一致した場合のみ後続のバイト列を比較します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ByteTokenizer {
+
+	/**
+	 * 区切り文字の設定名です。デフォルトは {@link #ASCII_WHITESPACE} です。
+	 */
+	public static final String DELIMITERS = "wordcount.tokenizer.delimiters";
+
+	/**
+	 * {@link java.util.StringTokenizer} のデフォルトと同じ区切り文字です。
+	 */
+	public static final String ASCII_WHITESPACE = " \t\n\r\f";
+
+	/**
+	 * 全角スペース（U+3000）です。
+	 */
+	public static final String IDEOGRAPHIC_SPACE = "\u3000";
+
+	private static final byte TOKEN = 0;
+	private static final byte DELIMITER = 1;
+	private static final byte MULTI_BYTE_DELIMITER = 2;
+
+	private final byte[] classes = new byte[256];
+	private final byte[][] multiByteDelimiters;
+
+	private byte[] bytes;
+	private int position;
+	private int end;
+	private int tokenStart;
+	private int tokenLength;
+
+	/**
+	 * @param delimiters 区切り文字
+	 */
+	public ByteTokenizer(String delimiters) {
+		List<byte[]> multiBytes = new ArrayList<byte[]>();
+		for (int i = 0; i < delimiters.length();) {
+			int codePoint = delimiters.codePointAt(i);
+			int charCount = Character.charCount(codePoint);
+			byte[] utf8 = toUtf8(delimiters.substring(i, i + charCount));
+			if (utf8.length == 1) {
+				classes[utf8[0] & 0xff] = DELIMITER;
+			} else {
+				classes[utf8[0] & 0xff] = MULTI_BYTE_DELIMITER;
+				multiBytes.add(utf8);
+			}
+			i += charCount;
+		}
+		multiByteDelimiters = multiBytes.toArray(new byte[multiBytes.size()][]);
+	}
+
+	/**
+	 * 設定に基づいて生成します。
+	 * 
+	 * @param conf 設定
+	 * @return {@link ByteTokenizer}
+	 */
+	public static ByteTokenizer newInstance(Configuration conf) {
+		return new ByteTokenizer(conf.get(DELIMITERS, ASCII_WHITESPACE));
+	}
+
+	public void reset(Text text) {
+		reset(text.getBytes(), 0, text.getLength());
+	}
+
+	public void reset(byte[] bytes, int start, int length) {
+		this.bytes = bytes;
+		this.position = start;
+		this.end = start + length;
+		this.tokenStart = 0;
+		this.tokenLength = 0;
+	}
+
+	/**
+	 * 次の単語に進みます。
+	 * 
+	 * @return 単語が存在する場合は {@code true}
+	 */
+	public boolean next() {
+		int i = skipDelimiters(position);
+		if (i == end) {
+			position = end;
+			return false;
+		}
+		tokenStart = i;
+		while (i < end && delimiterLength(i) == 0) {
+			i++;
+		}
+		tokenLength = i - tokenStart;
+		position = i;
+		return true;
+	}
+
+	/**
+	 * 次の単語に進み、その単語を {@code word} に設定します。
+	 * 
+	 * @param word 単語の設定先
+	 * @return 単語が存在する場合は {@code true}
+	 */
+	public boolean next(Text word) {
+		if (!next()) {
+			return false;
+		}
+		word.set(bytes, tokenStart, tokenLength);
+		return true;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getTokenStart() {
+		return tokenStart;
+	}
+
+	public int getTokenLength() {
+		return tokenLength;
+	}
+
+	private int skipDelimiters(int i) {
+		while (i < end) {
+			int length = delimiterLength(i);
+			if (length == 0) {
+				break;
+			}
+			i += length;
+		}
+		return i;
+	}
+
+	/**
+	 * @return {@code i} の位置が区切り文字の場合はそのバイト数、それ以外は0
+	 */
+	private int delimiterLength(int i) {
+		switch (classes[bytes[i] & 0xff]) {
+		case TOKEN:
+			return 0;
+		case DELIMITER:
+			return 1;
+		default:
+			return multiByteDelimiterLength(i);
+		}
+	}
+
+	private int multiByteDelimiterLength(int i) {
+		for (byte[] delimiter : multiByteDelimiters) {
+			if (i + delimiter.length > end) {
+				continue;
+			}
+			int j = 0;
+			while (j < delimiter.length && bytes[i + j] == delimiter[j]) {
+				j++;
+			}
+			if (j == delimiter.length) {
+				return j;
+			}
+		}
+		return 0;
+	}
+
+	private static byte[] toUtf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
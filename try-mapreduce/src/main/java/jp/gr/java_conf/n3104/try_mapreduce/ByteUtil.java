@@ -0,0 +1,156 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.nio.charset.CharacterCodingException;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * バイト列を直接操作するためのユーティリティです。
+ * <p> {@link Text#toString()} による UTF-8 のデコードや {@link String#split(String)} を経由せずに、
+ * {@link Text#getBytes()} のバイト列をそのまま走査するために利用します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ByteUtil {
+
+	/**
+	 * {@link #tryParseInt(byte[], int, int)} が整数として解析できなかった場合に返す値です。
+	 */
+	public static final long INVALID_INT = Long.MIN_VALUE;
+
+	private ByteUtil() {
+	}
+
+	/**
+	 * 指定された範囲から最初に現れる {@code b} の位置を返します。
+	 * 
+	 * @param bytes バイト列
+	 * @param start 開始位置
+	 * @param end 終了位置（この位置は含みません）
+	 * @param b 検索するバイト
+	 * @return {@code b} の位置。見つからない場合は {@code end}
+	 */
+	public static int indexOf(byte[] bytes, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * 指定された範囲を区切り文字で分割し、各要素の開始位置を {@code bounds} に設定します。
+	 * <p>
+	 * 要素 {@code i} は {@code bounds[i]} から {@code bounds[i + 1] - 1} の手前までになります。
+	 * {@link String#split(String)} と同様に末尾の空要素は無視します。
+	 * 要素数が {@code bounds.length - 1} を超える場合は、その時点で走査を打ち切り
+	 * {@code bounds.length} を返します。
+	 * </p>
+	 * 
+	 * @param bytes バイト列
+	 * @param start 開始位置
+	 * @param end 終了位置（この位置は含みません）
+	 * @param separator 区切り文字
+	 * @param bounds 各要素の開始位置の設定先
+	 * @return 要素数
+	 */
+	public static int split(byte[] bytes, int start, int end, byte separator, int[] bounds) {
+		while (end > start && bytes[end - 1] == separator) {
+			end--;
+		}
+		int count = 0;
+		int pos = start;
+		while (true) {
+			if (count == bounds.length - 1) {
+				return bounds.length;
+			}
+			bounds[count++] = pos;
+			pos = indexOf(bytes, pos, end, separator) + 1;
+			if (pos > end) {
+				bounds[count] = end + 1;
+				return count;
+			}
+		}
+	}
+
+	/**
+	 * 指定された範囲を10進数の整数として解析します。
+	 * <p> {@link Integer#parseInt(String)} と同じく、先頭の符号（{@code +} および {@code -}）のみを許容します。
+	 * </p>
+	 * 
+	 * @param bytes バイト列
+	 * @param start 開始位置
+	 * @param end 終了位置（この位置は含みません）
+	 * @return 解析した整数
+	 * @throws NumberFormatException 整数として解析できない場合
+	 */
+	public static int parseInt(byte[] bytes, int start, int end) {
+		long result = tryParseInt(bytes, start, end);
+		if (result == INVALID_INT) {
+			throw new NumberFormatException("整数として解析できません。value="
+					+ decode(bytes, start, end - start));
+		}
+		return (int) result;
+	}
+
+	/**
+	 * 指定された範囲を10進数の整数として解析します。 {@link #parseInt(byte[], int, int)} と異なり、
+	 * 解析できない場合も例外を生成しないため、不正な値が多い入力でも解析のコストが増えません。
+	 * 
+	 * @param bytes バイト列
+	 * @param start 開始位置
+	 * @param end 終了位置（この位置は含みません）
+	 * @return 解析した整数。空文字列、符号のみ、数字以外の文字を含む場合、または {@code int} の範囲を超える場合は
+	 *         {@link #INVALID_INT}
+	 */
+	public static long tryParseInt(byte[] bytes, int start, int end) {
+		if (start >= end) {
+			return INVALID_INT;
+		}
+		boolean negative = false;
+		int i = start;
+		byte first = bytes[i];
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++i == end) {
+				return INVALID_INT;
+			}
+		}
+		// オーバーフローを判定しやすいように負数で累積しています（Integer#parseIntと同様）
+		int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		int multmin = limit / 10;
+		int result = 0;
+		for (; i < end; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9 || result < multmin) {
+				return INVALID_INT;
+			}
+			result *= 10;
+			if (result < limit + digit) {
+				return INVALID_INT;
+			}
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	/**
+	 * 指定された範囲を UTF-8 としてデコードします。
+	 * 
+	 * @param bytes バイト列
+	 * @param start 開始位置
+	 * @param length 長さ
+	 * @return デコードした文字列
+	 */
+	public static String decode(byte[] bytes, int start, int length) {
+		try {
+			// 不正なバイト列は置換文字に置き換えられるため、例外は発生しません
+			return Text.decode(bytes, start, length);
+		} catch (CharacterCodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
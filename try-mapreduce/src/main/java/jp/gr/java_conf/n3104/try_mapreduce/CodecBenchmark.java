@@ -0,0 +1,339 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * ジョブの出力ファイルの一部をサンプルとして、利用可能なコーデックの圧縮率と圧縮・展開の速度を比較します。
+ * <p>
+ * 出力ディレクトリの隠しファイル以外から {@link #SAMPLE_SIZE} バイトまで読み込み、
+ * {@code io.compression.codecs} に登録された各コーデックで圧縮と展開を繰り返して、圧縮率（元のサイズ / 圧縮後のサイズ）と
+ * 元のサイズあたりの MB/s を求めます。出力ファイルが圧縮されている場合は展開した内容を、 SequenceFile
+ * の場合はレコードの key と value のバイト列をサンプルとします。ネイティブライブラリがないなどの理由で
+ * 利用できないコーデックは結果から除外します。
+ * </p>
+ * <p> {@link #ENABLED} を {@code true} に設定した場合のみ、 {@link ParallelJobRunner} で実行したジョブの完了時に
+ * 結果をログに出力します。計測には時間がかかるため、デフォルトでは比較しません。 {@link #main(String[])}
+ * で既存の出力ディレクトリを対象に実行することも出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class CodecBenchmark extends Configured implements Tool {
+
+	private static final Log log = LogFactory.getLog(CodecBenchmark.class);
+
+	/**
+	 * ジョブの完了時にコーデックを比較するかどうかの設定名です。デフォルトは {@code false}
+	 * で、同名のシステムプロパティでも指定出来ます。
+	 */
+	public static final String ENABLED = "codec.benchmark.enabled";
+
+	/**
+	 * サンプルの最大サイズ（バイト）の設定名です。デフォルトは {@link #DEFAULT_SAMPLE_SIZE} です。
+	 */
+	public static final String SAMPLE_SIZE = "codec.benchmark.sample.size";
+
+	public static final int DEFAULT_SAMPLE_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * 1つのコーデックの圧縮・展開をそれぞれ繰り返す最小の時間（ミリ秒）です。
+	 */
+	private static final long MIN_TIME = 300;
+
+	/**
+	 * コーデックごとの結果です。
+	 */
+	public static class Result {
+
+		private final String codec;
+		private final double ratio;
+		private final double compressMBps;
+		private final double decompressMBps;
+
+		Result(String codec, double ratio, double compressMBps, double decompressMBps) {
+			this.codec = codec;
+			this.ratio = ratio;
+			this.compressMBps = compressMBps;
+			this.decompressMBps = decompressMBps;
+		}
+
+		public String getCodec() {
+			return codec;
+		}
+
+		/**
+		 * @return 元のサイズ / 圧縮後のサイズ
+		 */
+		public double getRatio() {
+			return ratio;
+		}
+
+		public double getCompressMBps() {
+			return compressMBps;
+		}
+
+		public double getDecompressMBps() {
+			return decompressMBps;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-12s ratio=%6.2f compress=%8.1fMB/s decompress=%8.1fMB/s", codec,
+					ratio, compressMBps, decompressMBps);
+		}
+	}
+
+	/**
+	 * ジョブの完了時に {@link #report(Configuration)} を呼び出すリスナーです。
+	 */
+	static final ParallelJobRunner.JobListener LISTENER = new ParallelJobRunner.JobListener() {
+		@Override
+		public void jobCompleted(Configuration conf, String jobName, Counters counters) {
+			report(conf);
+		}
+	};
+
+	/**
+	 * {@link #ENABLED} が {@code true} の場合に、ジョブの出力ディレクトリでコーデックを比較してログに出力します。
+	 * 比較に失敗してもジョブの結果には影響させないため、例外はログに出力するのみとします。
+	 * 
+	 * @param conf ジョブの設定
+	 */
+	static void report(Configuration conf) {
+		String output = conf.get("mapred.output.dir");
+		if (output == null
+				|| !Boolean.parseBoolean(conf.get(ENABLED, System.getProperty(ENABLED)))) {
+			return;
+		}
+		try {
+			Path dir = new Path(output);
+			byte[] sample = sample(conf, dir);
+			String report = getReport(dir, sample.length, run(conf, sample));
+			if (log.isInfoEnabled()) {
+				log.info(report);
+			}
+		} catch (IOException e) {
+			log.warn("コーデックを比較できませんでした。dir=" + output, e);
+		}
+	}
+
+	/**
+	 * ディレクトリの出力ファイルからサンプルを読み込みます。
+	 * 
+	 * @param conf 設定
+	 * @param dir 出力ディレクトリ
+	 * @return サンプル
+	 */
+	public static byte[] sample(Configuration conf, Path dir) throws IOException {
+		int limit = conf.getInt(SAMPLE_SIZE, DEFAULT_SAMPLE_SIZE);
+		FileSystem fs = dir.getFileSystem(conf);
+		CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+		DataOutputBuffer sample = new DataOutputBuffer();
+		FileStatus[] files = fs.listStatus(dir);
+		if (files == null) {
+			throw new IOException("出力ディレクトリが存在しません。dir=" + dir);
+		}
+		for (FileStatus file : files) {
+			String name = file.getPath().getName();
+			if (file.isDir() || name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+			if (sample.getLength() >= limit) {
+				break;
+			}
+			if (isSequenceFile(fs, file.getPath())) {
+				sampleSequenceFile(fs, file.getPath(), conf, sample, limit);
+				continue;
+			}
+			CompressionCodec codec = factory.getCodec(file.getPath());
+			InputStream in = fs.open(file.getPath());
+			try {
+				if (codec != null) {
+					in = codec.createInputStream(in);
+				}
+				byte[] buffer = new byte[64 * 1024];
+				int n;
+				while (sample.getLength() < limit
+						&& (n = in.read(buffer, 0, Math.min(buffer.length, limit
+								- sample.getLength()))) > 0) {
+					sample.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		byte[] result = new byte[sample.getLength()];
+		System.arraycopy(sample.getData(), 0, result, 0, result.length);
+		return result;
+	}
+
+	private static boolean isSequenceFile(FileSystem fs, Path path) throws IOException {
+		FSDataInputStream in = fs.open(path);
+		try {
+			byte[] magic = new byte[3];
+			return in.read(magic) == 3 && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void sampleSequenceFile(FileSystem fs, Path path, Configuration conf,
+			DataOutputBuffer sample, int limit) throws IOException {
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+		try {
+			SequenceFile.ValueBytes value = reader.createValueBytes();
+			while (sample.getLength() < limit && reader.nextRaw(sample, value) >= 0) {
+				value.writeUncompressedBytes(sample);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * 各コーデックでサンプルの圧縮と展開を行います。
+	 * 
+	 * @param conf 設定
+	 * @param sample サンプル
+	 * @return 利用可能なコーデックの結果
+	 */
+	public static List<Result> run(Configuration conf, byte[] sample) {
+		List<Result> results = new ArrayList<Result>();
+		if (sample.length == 0) {
+			return results;
+		}
+		for (Class<? extends CompressionCodec> codecClass : CompressionCodecFactory
+				.getCodecClasses(conf)) {
+			try {
+				results.add(run(ReflectionUtils.newInstance(codecClass, conf), sample));
+			} catch (Exception e) {
+				log.warn("コーデックを利用できません。codec=" + codecClass.getName() + ", cause=" + e);
+			} catch (LinkageError e) {
+				log.warn("コーデックを利用できません。codec=" + codecClass.getName() + ", cause=" + e);
+			}
+		}
+		return results;
+	}
+
+	private static Result run(CompressionCodec codec, byte[] sample) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(sample.length);
+		Compressor compressor = CodecPool.getCompressor(codec);
+		Decompressor decompressor = CodecPool.getDecompressor(codec);
+		try {
+			// 1回目は JIT コンパイルの影響を受けるため計測に含めません
+			compress(codec, compressor, sample, compressed);
+			long start = System.nanoTime();
+			int count = 0;
+			do {
+				compress(codec, compressor, sample, compressed);
+				count++;
+			} while (System.nanoTime() - start < MIN_TIME * 1000000);
+			double compressMBps = getMBps(sample.length, count, System.nanoTime() - start);
+
+			byte[] data = compressed.toByteArray();
+			byte[] buffer = new byte[64 * 1024];
+			decompress(codec, decompressor, data, buffer, sample.length);
+			start = System.nanoTime();
+			count = 0;
+			do {
+				decompress(codec, decompressor, data, buffer, sample.length);
+				count++;
+			} while (System.nanoTime() - start < MIN_TIME * 1000000);
+			double decompressMBps = getMBps(sample.length, count, System.nanoTime() - start);
+			return new Result(codec.getClass().getSimpleName(), (double) sample.length
+					/ data.length, compressMBps, decompressMBps);
+		} finally {
+			CodecPool.returnCompressor(compressor);
+			CodecPool.returnDecompressor(decompressor);
+		}
+	}
+
+	private static void compress(CompressionCodec codec, Compressor compressor, byte[] sample,
+			ByteArrayOutputStream compressed) throws IOException {
+		compressed.reset();
+		if (compressor != null) {
+			compressor.reset();
+		}
+		CompressionOutputStream out = codec.createOutputStream(compressed, compressor);
+		out.write(sample);
+		out.finish();
+	}
+
+	private static void decompress(CompressionCodec codec, Decompressor decompressor, byte[] data,
+			byte[] buffer, int expected) throws IOException {
+		if (decompressor != null) {
+			decompressor.reset();
+		}
+		InputStream in = codec.createInputStream(new ByteArrayInputStream(data), decompressor);
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			total += n;
+		}
+		if (total != expected) {
+			throw new IOException("展開後のサイズが一致しません。expected=" + expected + ", actual=" + total);
+		}
+	}
+
+	private static double getMBps(long bytes, int count, long nanos) {
+		return bytes * count / (1024.0 * 1024.0) / (nanos / 1e9);
+	}
+
+	/**
+	 * @param dir 出力ディレクトリ
+	 * @param sampleSize サンプルのサイズ（バイト）
+	 * @param results コーデックごとの結果
+	 * @return 結果の一覧
+	 */
+	public static String getReport(Path dir, int sampleSize, List<Result> results) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("コーデックの比較: dir=%s, sample=%dbytes", dir, sampleSize));
+		for (Result result : results) {
+			sb.append(String.format("%n  %s", result));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		Configuration conf = getConf();
+		Path dir = new Path(args[0]);
+		byte[] sample = sample(conf, dir);
+		System.out.println(getReport(dir, sample.length, run(conf, sample)));
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		// 引数を固定で設定。事前に JoinWithDeptNameUsingReduceSideJoin を実行しておきます
+		args = new String[] { Util.getJobOutputDirPath(JoinWithDeptNameUsingReduceSideJoin.class) };
+
+		int res = ToolRunner.run(new CodecBenchmark(), args);
+		System.exit(res);
+	}
+}
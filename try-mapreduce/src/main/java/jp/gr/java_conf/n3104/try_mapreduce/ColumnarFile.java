@@ -0,0 +1,1063 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * 従業員と部門のレコードを列ごとに格納するファイル形式です。
+ * <p>
+ * レコードを {@link #ROW_GROUP_SIZE} 件ずつの行グループに分け、行グループ内では列ごとにまとめて格納します。
+ * 各列は値に応じて最も小さくなる符号化（可変長整数、前の値との差分、ランレングス、辞書）を行グループごとに選択し、
+ * 最小値と最大値を記録します。例えば連番の {@code employeeId} は差分、値の種類が少ない {@code departmentId}
+ * は辞書、年齢でソートしたファイルの {@code employeeAge} はランレングスで符号化されます。
+ * </p>
+ * <p> {@link Reader} は必要な列のみを読み込み、その他の列は読み飛ばします。また、 {@link Predicate}
+ * を指定すると最小値と最大値から条件を満たすレコードが存在しない行グループを読み飛ばし、
+ * 読み込んだ行グループも条件を満たすレコードのみを返します。
+ * </p>
+ * <p>
+ * ファイルは以下の形式です。行グループの位置はフッタに記録するため、分割した入力は開始位置が分割の範囲内にある行グループを読み込みます。
+ * <ul>
+ * <li>ヘッダ: マジックナンバー、スキーマ名（{@link Schema#getName()}）
+ * <li>行グループ: 件数、列ごとの符号化・最小値・最大値・データの長さ、列ごとのデータ
+ * <li>フッタ: 行グループの数、行グループごとの位置と件数
+ * <li>末尾: フッタの位置（long）、マジックナンバー
+ * </ul>
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ColumnarFile {
+
+	/**
+	 * 行グループの件数の設定名です。デフォルトは {@link #DEFAULT_ROW_GROUP_SIZE} です。
+	 */
+	public static final String ROW_GROUP_SIZE = "columnar.rowgroup.size";
+
+	public static final int DEFAULT_ROW_GROUP_SIZE = 10000;
+
+	static final int MAGIC = 0x434f4c31; // "COL1"
+
+	private static final int TRAILER_LENGTH = 8 + 4;
+
+	/**
+	 * 辞書の要素数の上限です。超える場合は辞書で符号化しません。
+	 */
+	private static final int MAX_DICTIONARY_SIZE = 4096;
+
+	/**
+	 * 列の型です。
+	 */
+	public enum Type {
+		INT, STRING
+	}
+
+	/**
+	 * 列の符号化です。 {@link #DELTA} と {@link #RLE} は {@link Type#INT} の列のみで利用します。
+	 */
+	enum Encoding {
+		PLAIN, DELTA, RLE, DICTIONARY
+	}
+
+	private ColumnarFile() {
+	}
+
+	/**
+	 * ファイルに格納するレコードの列の定義です。
+	 * 
+	 * @param <T> レコードの型
+	 */
+	public static abstract class Schema<T extends Writable> {
+
+		private final String name;
+		private final Class<T> recordClass;
+		private final String[] columns;
+		private final Type[] types;
+
+		Schema(String name, Class<T> recordClass, String[] columns, Type[] types) {
+			this.name = name;
+			this.recordClass = recordClass;
+			this.columns = columns;
+			this.types = types;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Class<T> getRecordClass() {
+			return recordClass;
+		}
+
+		public int getColumnCount() {
+			return columns.length;
+		}
+
+		public String getColumnName(int column) {
+			return columns[column];
+		}
+
+		public Type getType(int column) {
+			return types[column];
+		}
+
+		/**
+		 * @param column 列名
+		 * @return 列の位置
+		 * @throws IllegalArgumentException 列が存在しない場合
+		 */
+		public int indexOf(String column) {
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i].equals(column)) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("列が存在しません。schema=" + name + ", column=" + column);
+		}
+
+		public T newRecord() {
+			try {
+				return recordClass.newInstance();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		abstract int getInt(T record, int column);
+
+		abstract Text getText(T record, int column);
+
+		/**
+		 * 読み込んだ列の値をレコードに設定します。読み込んでいない列は 0 または空文字になります。
+		 */
+		abstract void set(T record, ColumnData[] columns, int row);
+	}
+
+	/**
+	 * 従業員ファイルの列です。
+	 */
+	public static final Schema<EmployeeWritable> EMPLOYEE = new Schema<EmployeeWritable>(
+			"employee", EmployeeWritable.class, new String[] { "employeeId", "employeeName",
+					"employeeAge", "employeeSalary", "departmentId" }, new Type[] { Type.INT,
+					Type.STRING, Type.INT, Type.INT, Type.INT }) {
+
+		@Override
+		int getInt(EmployeeWritable record, int column) {
+			switch (column) {
+			case 0:
+				return record.getEmployeeId();
+			case 2:
+				return record.getEmployeeAge();
+			case 3:
+				return record.getEmployeeSalary();
+			default:
+				return record.getDepartmentId();
+			}
+		}
+
+		@Override
+		Text getText(EmployeeWritable record, int column) {
+			return record.getEmployeeNameText();
+		}
+
+		@Override
+		void set(EmployeeWritable record, ColumnData[] columns, int row) {
+			record.set(columns[0].getInt(row), columns[1].getText(row), columns[2].getInt(row),
+					columns[3].getInt(row), columns[4].getInt(row));
+		}
+	};
+
+	/**
+	 * 部門ファイルの列です。
+	 */
+	public static final Schema<DepartmentWritable> DEPARTMENT = new Schema<DepartmentWritable>(
+			"department", DepartmentWritable.class,
+			new String[] { "departmentId", "departmentName" }, new Type[] { Type.INT, Type.STRING }) {
+
+		@Override
+		int getInt(DepartmentWritable record, int column) {
+			return record.getDepartmentId();
+		}
+
+		@Override
+		Text getText(DepartmentWritable record, int column) {
+			return record.getDepartmentNameText();
+		}
+
+		@Override
+		void set(DepartmentWritable record, ColumnData[] columns, int row) {
+			record.set(columns[0].getInt(row), columns[1].getText(row));
+		}
+	};
+
+	private static final Schema<?>[] SCHEMAS = { EMPLOYEE, DEPARTMENT };
+
+	/**
+	 * @param name スキーマ名
+	 * @return スキーマ
+	 * @throws IllegalArgumentException スキーマが存在しない場合
+	 */
+	public static Schema<?> getSchema(String name) {
+		for (Schema<?> schema : SCHEMAS) {
+			if (schema.getName().equals(name)) {
+				return schema;
+			}
+		}
+		throw new IllegalArgumentException("スキーマが存在しません。name=" + name);
+	}
+
+	/**
+	 * @param recordClass レコードのクラス
+	 * @return スキーマ
+	 * @throws IllegalArgumentException スキーマが存在しない場合
+	 */
+	public static Schema<?> getSchema(Class<?> recordClass) {
+		for (Schema<?> schema : SCHEMAS) {
+			if (schema.getRecordClass() == recordClass) {
+				return schema;
+			}
+		}
+		throw new IllegalArgumentException("スキーマが存在しません。class=" + recordClass.getName());
+	}
+
+	/**
+	 * @param fs ファイルシステム
+	 * @param file ファイル
+	 * @return ファイルの先頭がマジックナンバーの場合は {@code true}
+	 */
+	public static boolean isColumnarFile(FileSystem fs, Path file) throws IOException {
+		if (fs.getFileStatus(file).getLen() < 4 + TRAILER_LENGTH) {
+			return false;
+		}
+		FSDataInputStream in = fs.open(file);
+		try {
+			return in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 1つの行グループの1つの列を読み込んだ値です。
+	 */
+	static class ColumnData {
+
+		private final Type type;
+		private boolean loaded;
+		private int[] ints = new int[0];
+		private byte[] bytes = new byte[0];
+		private int[] starts = new int[0];
+		private int[] lengths = new int[0];
+		private final Text text = new Text();
+
+		ColumnData(Type type) {
+			this.type = type;
+		}
+
+		int getInt(int row) {
+			return loaded ? ints[row] : 0;
+		}
+
+		/**
+		 * @return 行の値。次の呼び出しまで有効です
+		 */
+		Text getText(int row) {
+			if (loaded) {
+				text.set(bytes, starts[row], lengths[row]);
+			} else {
+				text.clear();
+			}
+			return text;
+		}
+
+		int compare(int row, Text value) {
+			return WritableComparator.compareBytes(bytes, starts[row], lengths[row],
+					value.getBytes(), 0, value.getLength());
+		}
+
+		/**
+		 * 符号化されたデータを読み込みます。
+		 */
+		void load(FSDataInputStream in, Encoding encoding, int length, int rows)
+				throws IOException {
+			if (bytes.length < length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			in.readFully(bytes, 0, length);
+			if (type == Type.INT) {
+				if (ints.length < rows) {
+					ints = new int[Math.max(rows, ints.length * 2)];
+				}
+			} else if (starts.length < rows) {
+				starts = new int[Math.max(rows, starts.length * 2)];
+				lengths = new int[starts.length];
+			}
+			DataInputBuffer data = new DataInputBuffer();
+			data.reset(bytes, length);
+			switch (encoding) {
+			case PLAIN:
+				for (int row = 0; row < rows; row++) {
+					if (type == Type.INT) {
+						ints[row] = WritableUtils.readVInt(data);
+					} else {
+						lengths[row] = WritableUtils.readVInt(data);
+						starts[row] = data.getPosition();
+						data.skip(lengths[row]);
+					}
+				}
+				break;
+			case DELTA:
+				long value = 0;
+				for (int row = 0; row < rows; row++) {
+					value += WritableUtils.readVLong(data);
+					ints[row] = (int) value;
+				}
+				break;
+			case RLE:
+				for (int row = 0; row < rows;) {
+					int runValue = WritableUtils.readVInt(data);
+					int runLength = WritableUtils.readVInt(data);
+					Arrays.fill(ints, row, row + runLength, runValue);
+					row += runLength;
+				}
+				break;
+			case DICTIONARY:
+				int size = WritableUtils.readVInt(data);
+				int[] dictionary = new int[size];
+				int[] dictionaryLengths = type == Type.STRING ? new int[size] : null;
+				for (int i = 0; i < size; i++) {
+					if (type == Type.INT) {
+						dictionary[i] = WritableUtils.readVInt(data);
+					} else {
+						dictionaryLengths[i] = WritableUtils.readVInt(data);
+						dictionary[i] = data.getPosition();
+						data.skip(dictionaryLengths[i]);
+					}
+				}
+				for (int row = 0; row < rows; row++) {
+					int index = WritableUtils.readVInt(data);
+					if (type == Type.INT) {
+						ints[row] = dictionary[index];
+					} else {
+						starts[row] = dictionary[index];
+						lengths[row] = dictionaryLengths[index];
+					}
+				}
+				break;
+			}
+			loaded = true;
+		}
+
+		void unload() {
+			loaded = false;
+		}
+	}
+
+	/**
+	 * 1つの列の行グループ分の値を保持し、符号化して書き込みます。
+	 */
+	private static class ColumnBuffer {
+
+		private final Type type;
+		private int size;
+		private int[] ints = new int[0];
+		private final DataOutputBuffer bytes = new DataOutputBuffer();
+		private int[] starts = new int[0];
+		private int[] lengths = new int[0];
+		private final DataOutputBuffer data = new DataOutputBuffer();
+		private Encoding encoding;
+		private int minInt;
+		private int maxInt;
+		private final Text minText = new Text();
+		private final Text maxText = new Text();
+
+		ColumnBuffer(Type type) {
+			this.type = type;
+		}
+
+		void add(int value) {
+			if (size == ints.length) {
+				ints = Arrays.copyOf(ints, Math.max(16, size * 2));
+			}
+			ints[size++] = value;
+		}
+
+		void add(Text value) throws IOException {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, Math.max(16, size * 2));
+				lengths = Arrays.copyOf(lengths, starts.length);
+			}
+			starts[size] = bytes.getLength();
+			lengths[size] = value.getLength();
+			bytes.write(value.getBytes(), 0, value.getLength());
+			size++;
+		}
+
+		/**
+		 * 最小値と最大値を求め、最も小さくなる符号化で {@link #data} に書き込みます。
+		 */
+		void encode() throws IOException {
+			data.reset();
+			if (type == Type.INT) {
+				encodeInts();
+			} else {
+				encodeTexts();
+			}
+		}
+
+		private void encodeInts() throws IOException {
+			minInt = Integer.MAX_VALUE;
+			maxInt = Integer.MIN_VALUE;
+			long plain = 0;
+			long delta = 0;
+			long rle = 0;
+			long dictionary = 0;
+			Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+			int runStart = 0;
+			for (int i = 0; i < size; i++) {
+				int value = ints[i];
+				minInt = Math.min(minInt, value);
+				maxInt = Math.max(maxInt, value);
+				plain += WritableUtils.getVIntSize(value);
+				delta += WritableUtils.getVIntSize(i == 0 ? value : (long) value - ints[i - 1]);
+				if (i + 1 == size || ints[i + 1] != value) {
+					rle += WritableUtils.getVIntSize(value)
+							+ WritableUtils.getVIntSize(i + 1 - runStart);
+					runStart = i + 1;
+				}
+				if (indexes != null) {
+					Integer index = indexes.get(value);
+					if (index == null) {
+						if (indexes.size() == MAX_DICTIONARY_SIZE) {
+							indexes = null;
+							continue;
+						}
+						index = indexes.size();
+						indexes.put(value, index);
+						dictionary += WritableUtils.getVIntSize(value);
+					}
+					dictionary += WritableUtils.getVIntSize(index);
+				}
+			}
+			encoding = Encoding.PLAIN;
+			long min = plain;
+			if (delta < min) {
+				encoding = Encoding.DELTA;
+				min = delta;
+			}
+			if (rle < min) {
+				encoding = Encoding.RLE;
+				min = rle;
+			}
+			if (indexes != null
+					&& dictionary + WritableUtils.getVIntSize(indexes.size()) < min) {
+				encoding = Encoding.DICTIONARY;
+			}
+			switch (encoding) {
+			case PLAIN:
+				for (int i = 0; i < size; i++) {
+					WritableUtils.writeVInt(data, ints[i]);
+				}
+				break;
+			case DELTA:
+				for (int i = 0; i < size; i++) {
+					WritableUtils.writeVLong(data, i == 0 ? ints[i] : (long) ints[i] - ints[i - 1]);
+				}
+				break;
+			case RLE:
+				for (int i = 0; i < size;) {
+					int end = i + 1;
+					while (end < size && ints[end] == ints[i]) {
+						end++;
+					}
+					WritableUtils.writeVInt(data, ints[i]);
+					WritableUtils.writeVInt(data, end - i);
+					i = end;
+				}
+				break;
+			case DICTIONARY:
+				int[] values = new int[indexes.size()];
+				for (Map.Entry<Integer, Integer> entry : indexes.entrySet()) {
+					values[entry.getValue()] = entry.getKey();
+				}
+				WritableUtils.writeVInt(data, values.length);
+				for (int value : values) {
+					WritableUtils.writeVInt(data, value);
+				}
+				for (int i = 0; i < size; i++) {
+					WritableUtils.writeVInt(data, indexes.get(ints[i]));
+				}
+				break;
+			}
+		}
+
+		private void encodeTexts() throws IOException {
+			byte[] b = bytes.getData();
+			int min = -1;
+			int max = -1;
+			long plain = 0;
+			long dictionary = 0;
+			Map<Text, Integer> indexes = new HashMap<Text, Integer>();
+			int[] rowIndexes = new int[size];
+			Text probe = new Text();
+			for (int i = 0; i < size; i++) {
+				if (min < 0
+						|| WritableComparator.compareBytes(b, starts[i], lengths[i], b, starts[min],
+								lengths[min]) < 0) {
+					min = i;
+				}
+				if (max < 0
+						|| WritableComparator.compareBytes(b, starts[i], lengths[i], b, starts[max],
+								lengths[max]) > 0) {
+					max = i;
+				}
+				int length = WritableUtils.getVIntSize(lengths[i]) + lengths[i];
+				plain += length;
+				if (indexes != null) {
+					probe.set(b, starts[i], lengths[i]);
+					Integer index = indexes.get(probe);
+					if (index == null) {
+						if (indexes.size() == MAX_DICTIONARY_SIZE) {
+							indexes = null;
+							continue;
+						}
+						index = indexes.size();
+						indexes.put(new Text(probe), index);
+						dictionary += length;
+					}
+					rowIndexes[i] = index;
+					dictionary += WritableUtils.getVIntSize(index);
+				}
+			}
+			minText.set(b, starts[min], lengths[min]);
+			maxText.set(b, starts[max], lengths[max]);
+			if (indexes != null && dictionary + WritableUtils.getVIntSize(indexes.size()) < plain) {
+				encoding = Encoding.DICTIONARY;
+				Text[] values = new Text[indexes.size()];
+				for (Map.Entry<Text, Integer> entry : indexes.entrySet()) {
+					values[entry.getValue()] = entry.getKey();
+				}
+				WritableUtils.writeVInt(data, values.length);
+				for (Text value : values) {
+					value.write(data);
+				}
+				for (int i = 0; i < size; i++) {
+					WritableUtils.writeVInt(data, rowIndexes[i]);
+				}
+			} else {
+				encoding = Encoding.PLAIN;
+				for (int i = 0; i < size; i++) {
+					WritableUtils.writeVInt(data, lengths[i]);
+					data.write(b, starts[i], lengths[i]);
+				}
+			}
+		}
+
+		/**
+		 * 行グループのヘッダに符号化、最小値、最大値、データの長さを書き込みます。
+		 */
+		void writeHeader(FSDataOutputStream out) throws IOException {
+			out.writeByte(encoding.ordinal());
+			if (type == Type.INT) {
+				WritableUtils.writeVInt(out, minInt);
+				WritableUtils.writeVInt(out, maxInt);
+			} else {
+				minText.write(out);
+				maxText.write(out);
+			}
+			WritableUtils.writeVInt(out, data.getLength());
+		}
+
+		void writeData(FSDataOutputStream out) throws IOException {
+			out.write(data.getData(), 0, data.getLength());
+		}
+
+		void clear() {
+			size = 0;
+			bytes.reset();
+		}
+	}
+
+	/**
+	 * レコードを書き込みます。
+	 * 
+	 * @param <T> レコードの型
+	 */
+	public static class Writer<T extends Writable> implements Closeable {
+
+		private final FSDataOutputStream out;
+		private final Schema<T> schema;
+		private final int rowGroupSize;
+		private final ColumnBuffer[] buffers;
+		private final List<Long> offsets = new ArrayList<Long>();
+		private final List<Integer> rows = new ArrayList<Integer>();
+		private int size;
+
+		/**
+		 * @param out 出力先。 {@link #close()} で閉じます
+		 * @param schema スキーマ
+		 * @param rowGroupSize 行グループの件数
+		 */
+		public Writer(FSDataOutputStream out, Schema<T> schema, int rowGroupSize)
+				throws IOException {
+			this.out = out;
+			this.schema = schema;
+			this.rowGroupSize = rowGroupSize;
+			this.buffers = new ColumnBuffer[schema.getColumnCount()];
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = new ColumnBuffer(schema.getType(i));
+			}
+			out.writeInt(MAGIC);
+			Text.writeString(out, schema.getName());
+		}
+
+		public void append(T record) throws IOException {
+			for (int i = 0; i < buffers.length; i++) {
+				if (schema.getType(i) == Type.INT) {
+					buffers[i].add(schema.getInt(record, i));
+				} else {
+					buffers[i].add(schema.getText(record, i));
+				}
+			}
+			if (++size == rowGroupSize) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (size == 0) {
+				return;
+			}
+			offsets.add(out.getPos());
+			rows.add(size);
+			WritableUtils.writeVInt(out, size);
+			for (ColumnBuffer buffer : buffers) {
+				buffer.encode();
+				buffer.writeHeader(out);
+			}
+			for (ColumnBuffer buffer : buffers) {
+				buffer.writeData(out);
+				buffer.clear();
+			}
+			size = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+				long footer = out.getPos();
+				WritableUtils.writeVInt(out, offsets.size());
+				for (int i = 0; i < offsets.size(); i++) {
+					WritableUtils.writeVLong(out, offsets.get(i));
+					WritableUtils.writeVInt(out, rows.get(i));
+				}
+				out.writeLong(footer);
+				out.writeInt(MAGIC);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * 必要な列のみを読み込み、条件を満たすレコードを返します。
+	 */
+	public static class Reader implements Closeable {
+
+		private final FSDataInputStream in;
+		private final Schema<?> schema;
+		private final long[] offsets;
+		private final int[] rows;
+		private final long footer;
+		private final ColumnData[] columns;
+		private final Encoding[] encodings;
+		private final int[] lengths;
+		private final int[] minInts;
+		private final int[] maxInts;
+		private final Text[] minTexts;
+		private final Text[] maxTexts;
+		private boolean[] projection;
+		private Predicate predicate;
+		private int firstRowGroup;
+		private int endRowGroup;
+		private int rowGroup;
+		private int row;
+		private int rowCount;
+		private long bytesRead;
+		private long bytesSkipped;
+		private long rowGroupsRead;
+		private long rowGroupsSkipped;
+		private long rowsFiltered;
+
+		/**
+		 * @param fs ファイルシステム
+		 * @param file ファイル
+		 * @throws IOException ファイルの形式が不正な場合
+		 */
+		public Reader(FileSystem fs, Path file) throws IOException {
+			long length = fs.getFileStatus(file).getLen();
+			in = fs.open(file);
+			try {
+				if (length < 4 + TRAILER_LENGTH || in.readInt() != MAGIC) {
+					throw new IOException("カラムナファイルではありません。file=" + file);
+				}
+				schema = ColumnarFile.getSchema(Text.readString(in));
+				in.seek(length - TRAILER_LENGTH);
+				footer = in.readLong();
+				if (in.readInt() != MAGIC) {
+					throw new IOException("カラムナファイルが壊れています。file=" + file);
+				}
+				in.seek(footer);
+				int count = WritableUtils.readVInt(in);
+				offsets = new long[count];
+				rows = new int[count];
+				for (int i = 0; i < count; i++) {
+					offsets[i] = WritableUtils.readVLong(in);
+					rows[i] = WritableUtils.readVInt(in);
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			int n = schema.getColumnCount();
+			columns = new ColumnData[n];
+			for (int i = 0; i < n; i++) {
+				columns[i] = new ColumnData(schema.getType(i));
+			}
+			encodings = new Encoding[n];
+			lengths = new int[n];
+			minInts = new int[n];
+			maxInts = new int[n];
+			minTexts = new Text[n];
+			maxTexts = new Text[n];
+			for (int i = 0; i < n; i++) {
+				minTexts[i] = new Text();
+				maxTexts[i] = new Text();
+			}
+			projection = new boolean[n];
+			Arrays.fill(projection, true);
+			endRowGroup = offsets.length;
+			rowGroup = -1;
+		}
+
+		public Schema<?> getSchema() {
+			return schema;
+		}
+
+		/**
+		 * 開始位置が {@code [start, end)} の範囲にある行グループのみを読み込みます。
+		 */
+		public void setRange(long start, long end) {
+			firstRowGroup = 0;
+			while (firstRowGroup < offsets.length && offsets[firstRowGroup] < start) {
+				firstRowGroup++;
+			}
+			endRowGroup = firstRowGroup;
+			while (endRowGroup < offsets.length && offsets[endRowGroup] < end) {
+				endRowGroup++;
+			}
+		}
+
+		/**
+		 * 読み込む列を指定します。指定しない列はレコードに 0 または空文字を設定します。
+		 * 
+		 * @param columns 列名
+		 */
+		public void setColumns(String... columns) {
+			Arrays.fill(projection, false);
+			for (String column : columns) {
+				projection[schema.indexOf(column)] = true;
+			}
+		}
+
+		public void setPredicate(Predicate predicate) {
+			this.predicate = predicate;
+		}
+
+		/**
+		 * 次の条件を満たすレコードを読み込みます。
+		 * 
+		 * @param record レコード
+		 * @return レコードを読み込んだ場合は {@code true}
+		 */
+		@SuppressWarnings("unchecked")
+		public boolean next(Writable record) throws IOException {
+			while (true) {
+				while (row >= rowCount) {
+					if (!nextRowGroup()) {
+						return false;
+					}
+				}
+				int current = row++;
+				if (predicate == null || predicate.matches(columns, current)) {
+					((Schema<Writable>) schema).set(record, columns, current);
+					return true;
+				}
+				rowsFiltered++;
+			}
+		}
+
+		private boolean nextRowGroup() throws IOException {
+			if (rowGroup < firstRowGroup) {
+				rowGroup = firstRowGroup;
+			} else {
+				rowGroup++;
+			}
+			row = 0;
+			rowCount = 0;
+			if (rowGroup >= endRowGroup) {
+				return false;
+			}
+			long start = offsets[rowGroup];
+			long end = rowGroup + 1 < offsets.length ? offsets[rowGroup + 1] : footer;
+			in.seek(start);
+			int count = WritableUtils.readVInt(in);
+			for (int i = 0; i < columns.length; i++) {
+				encodings[i] = Encoding.values()[in.readByte()];
+				if (schema.getType(i) == Type.INT) {
+					minInts[i] = WritableUtils.readVInt(in);
+					maxInts[i] = WritableUtils.readVInt(in);
+				} else {
+					minTexts[i].readFields(in);
+					maxTexts[i].readFields(in);
+				}
+				lengths[i] = WritableUtils.readVInt(in);
+			}
+			bytesRead += in.getPos() - start;
+			if (predicate != null && !predicate.mightMatch(minInts, maxInts, minTexts, maxTexts)) {
+				rowGroupsSkipped++;
+				bytesSkipped += end - in.getPos();
+				return true;
+			}
+			for (int i = 0; i < columns.length; i++) {
+				if (projection[i] || predicate != null && predicate.uses(i)) {
+					columns[i].load(in, encodings[i], lengths[i], count);
+					bytesRead += lengths[i];
+				} else {
+					columns[i].unload();
+					in.seek(in.getPos() + lengths[i]);
+					bytesSkipped += lengths[i];
+				}
+			}
+			rowGroupsRead++;
+			rowCount = count;
+			return true;
+		}
+
+		/**
+		 * @return 最後に読み込んだ行グループの列の符号化
+		 */
+		Encoding getEncoding(int column) {
+			return encodings[column];
+		}
+
+		/**
+		 * @return 読み込みの終わった行グループの割合
+		 */
+		public float getProgress() {
+			if (endRowGroup == firstRowGroup) {
+				return 1.0f;
+			}
+			int done = Math.max(0, Math.min(rowGroup, endRowGroup) - firstRowGroup);
+			return (float) done / (endRowGroup - firstRowGroup);
+		}
+
+		/**
+		 * @return 読み込んだ行グループのヘッダと列のバイト数
+		 */
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		/**
+		 * @return 読み飛ばした列と行グループのバイト数
+		 */
+		public long getBytesSkipped() {
+			return bytesSkipped;
+		}
+
+		public long getRowGroupsRead() {
+			return rowGroupsRead;
+		}
+
+		public long getRowGroupsSkipped() {
+			return rowGroupsSkipped;
+		}
+
+		/**
+		 * @return 読み込んだ行グループのうち条件を満たさなかったレコードの件数
+		 */
+		public long getRowsFiltered() {
+			return rowsFiltered;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * 列の値の条件です。 {@code "departmentId = 2, employeeAge > 30"} のように、カンマ区切りで指定した全ての条件を満たすレコードを返します。
+	 * <p>
+	 * 演算子は {@code =}、 {@code <}、 {@code <=}、 {@code >}、 {@code >=} を指定出来ます。文字列の列は UTF-8
+	 * のバイト列の順で比較します。
+	 * </p>
+	 */
+	public static class Predicate {
+
+		private static final Pattern CONDITION = Pattern
+				.compile("\\s*(\\w+)\\s*(<=|>=|=|<|>)\\s*(.*?)\\s*");
+
+		private static final String[] OPERATORS = { "=", "<", "<=", ">", ">=" };
+		private static final int EQ = 0;
+		private static final int LT = 1;
+		private static final int LE = 2;
+		private static final int GT = 3;
+
+		private final int[] columns;
+		private final int[] operators;
+		private final int[] ints;
+		private final Text[] texts;
+		private final boolean[] used;
+
+		private Predicate(int[] columns, int[] operators, int[] ints, Text[] texts, int columnCount) {
+			this.columns = columns;
+			this.operators = operators;
+			this.ints = ints;
+			this.texts = texts;
+			this.used = new boolean[columnCount];
+			for (int column : columns) {
+				used[column] = true;
+			}
+		}
+
+		/**
+		 * @param schema スキーマ
+		 * @param expression 条件
+		 * @return 条件
+		 * @throws IllegalArgumentException 条件の形式が不正な場合
+		 */
+		public static Predicate parse(Schema<?> schema, String expression) {
+			String[] conditions = expression.split(",");
+			int[] columns = new int[conditions.length];
+			int[] operators = new int[conditions.length];
+			int[] ints = new int[conditions.length];
+			Text[] texts = new Text[conditions.length];
+			for (int i = 0; i < conditions.length; i++) {
+				Matcher matcher = CONDITION.matcher(conditions[i]);
+				if (!matcher.matches() || matcher.group(3).length() == 0) {
+					throw new IllegalArgumentException("条件の形式が不正です。expression=" + expression);
+				}
+				columns[i] = schema.indexOf(matcher.group(1));
+				operators[i] = Arrays.asList(OPERATORS).indexOf(matcher.group(2));
+				if (schema.getType(columns[i]) == Type.INT) {
+					try {
+						ints[i] = Integer.parseInt(matcher.group(3));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("条件の値が数値ではありません。expression="
+								+ expression);
+					}
+				} else {
+					texts[i] = new Text(matcher.group(3));
+				}
+			}
+			return new Predicate(columns, operators, ints, texts, schema.getColumnCount());
+		}
+
+		boolean uses(int column) {
+			return used[column];
+		}
+
+		/**
+		 * @return 最小値と最大値の範囲に条件を満たす値が存在し得る場合は {@code true}
+		 */
+		boolean mightMatch(int[] minInts, int[] maxInts, Text[] minTexts, Text[] maxTexts) {
+			for (int i = 0; i < columns.length; i++) {
+				int column = columns[i];
+				int compareMin;
+				int compareMax;
+				if (texts[i] == null) {
+					compareMin = compare(minInts[column], ints[i]);
+					compareMax = compare(maxInts[column], ints[i]);
+				} else {
+					compareMin = minTexts[column].compareTo(texts[i]);
+					compareMax = maxTexts[column].compareTo(texts[i]);
+				}
+				// 最小値以上、最大値以下の値のいずれかが条件を満たすかどうかを判定します
+				boolean match;
+				switch (operators[i]) {
+				case EQ:
+					match = compareMin <= 0 && compareMax >= 0;
+					break;
+				case LT:
+				case LE:
+					match = matches(operators[i], compareMin);
+					break;
+				default:
+					match = matches(operators[i], compareMax);
+					break;
+				}
+				if (!match) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean matches(ColumnData[] data, int row) {
+			for (int i = 0; i < columns.length; i++) {
+				ColumnData column = data[columns[i]];
+				int compare = texts[i] == null ? compare(column.getInt(row), ints[i]) : column
+						.compare(row, texts[i]);
+				if (!matches(operators[i], compare)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @param operator 演算子
+		 * @param compare 値と条件の値の比較結果
+		 * @return 値が条件を満たす場合は {@code true}
+		 */
+		private static boolean matches(int operator, int compare) {
+			switch (operator) {
+			case EQ:
+				return compare == 0;
+			case LT:
+				return compare < 0;
+			case LE:
+				return compare <= 0;
+			case GT:
+				return compare > 0;
+			default:
+				return compare >= 0;
+			}
+		}
+
+		private static int compare(int value, int other) {
+			return value < other ? -1 : (value == other ? 0 : 1);
+		}
+	}
+}
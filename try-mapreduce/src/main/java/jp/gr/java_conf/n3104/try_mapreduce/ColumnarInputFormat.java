@@ -0,0 +1,164 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * {@link ColumnarFile} を読み込み、 key=なし, value=レコード（ {@link EmployeeWritable} または
+ * {@link DepartmentWritable} ）を返す {@link FileInputFormat} です。
+ * <p> {@link #COLUMNS} を指定すると指定した列のみを読み込み、 {@link #PREDICATE} を指定すると条件を満たすレコードのみを返します。
+ * 条件を満たすレコードが存在しない行グループはデータを読み込まずに読み飛ばします。読み込んだバイト数と読み飛ばしたバイト数は
+ * {@link Counter} に記録します。
+ * </p>
+ * <p>
+ * 入力ファイルはテキストファイルと混在させることは出来ません。ジョブの入力がカラムナファイルかどうかは
+ * {@link #isColumnar(JobConf)} で判定出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ColumnarInputFormat extends FileInputFormat<NullWritable, Writable> {
+
+	/**
+	 * 読み込む列の設定名です。カンマ区切りで列名を指定します。デフォルトは全ての列です。
+	 */
+	public static final String COLUMNS = "columnar.columns";
+
+	/**
+	 * レコードの条件の設定名です。形式は {@link ColumnarFile.Predicate} を参照してください。デフォルトは条件なしです。
+	 */
+	public static final String PREDICATE = "columnar.predicate";
+
+	public enum Counter {
+		ROW_GROUPS_READ, ROW_GROUPS_SKIPPED, ROWS_FILTERED, BYTES_READ, BYTES_SKIPPED
+	}
+
+	/**
+	 * ジョブの最初の入力ファイルがカラムナファイルかどうかを判定します。
+	 * 
+	 * @param job 入力ファイルを設定したジョブの設定
+	 * @return カラムナファイルの場合は {@code true}
+	 */
+	public static boolean isColumnar(JobConf job) throws IOException {
+		Path[] inputs = getInputPaths(job);
+		if (inputs.length == 0) {
+			return false;
+		}
+		FileSystem fs = inputs[0].getFileSystem(job);
+		FileStatus[] files = fs.globStatus(inputs[0]);
+		if (files == null || files.length == 0) {
+			return false;
+		}
+		FileStatus file = files[0];
+		if (file.isDir()) {
+			file = null;
+			for (FileStatus child : fs.listStatus(files[0].getPath())) {
+				String name = child.getPath().getName();
+				// FileInputFormat と同じく隠しファイルは除外します
+				if (!child.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+					file = child;
+					break;
+				}
+			}
+			if (file == null) {
+				return false;
+			}
+		}
+		return ColumnarFile.isColumnarFile(fs, file.getPath());
+	}
+
+	/**
+	 * 読み込む列を設定します。
+	 * 
+	 * @param job ジョブの設定
+	 * @param columns 列名
+	 */
+	public static void setColumns(JobConf job, String... columns) {
+		job.setStrings(COLUMNS, columns);
+	}
+
+	@Override
+	public RecordReader<NullWritable, Writable> getRecordReader(InputSplit split, JobConf job,
+			Reporter reporter) throws IOException {
+		reporter.setStatus(split.toString());
+		FileSplit fileSplit = (FileSplit) split;
+		Path file = fileSplit.getPath();
+		ColumnarFile.Reader reader = new ColumnarFile.Reader(file.getFileSystem(job), file);
+		try {
+			reader.setRange(fileSplit.getStart(), fileSplit.getStart() + fileSplit.getLength());
+			String[] columns = job.getStrings(COLUMNS);
+			if (columns != null) {
+				reader.setColumns(columns);
+			}
+			String predicate = job.get(PREDICATE);
+			if (predicate != null && predicate.trim().length() > 0) {
+				reader.setPredicate(ColumnarFile.Predicate.parse(reader.getSchema(), predicate));
+			}
+		} catch (RuntimeException e) {
+			reader.close();
+			throw e;
+		}
+		return new ColumnarRecordReader(reader, reporter);
+	}
+
+	/**
+	 * {@link ColumnarFile.Reader} からレコードを読み込みます。
+	 */
+	static class ColumnarRecordReader implements RecordReader<NullWritable, Writable> {
+
+		private final ColumnarFile.Reader reader;
+		private final Reporter reporter;
+
+		ColumnarRecordReader(ColumnarFile.Reader reader, Reporter reporter) {
+			this.reader = reader;
+			this.reporter = reporter;
+		}
+
+		@Override
+		public boolean next(NullWritable key, Writable value) throws IOException {
+			return reader.next(value);
+		}
+
+		@Override
+		public NullWritable createKey() {
+			return NullWritable.get();
+		}
+
+		@Override
+		public Writable createValue() {
+			return reader.getSchema().newRecord();
+		}
+
+		@Override
+		public long getPos() throws IOException {
+			return reader.getBytesRead() + reader.getBytesSkipped();
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reporter.incrCounter(Counter.ROW_GROUPS_READ, reader.getRowGroupsRead());
+			reporter.incrCounter(Counter.ROW_GROUPS_SKIPPED, reader.getRowGroupsSkipped());
+			reporter.incrCounter(Counter.ROWS_FILTERED, reader.getRowsFiltered());
+			reporter.incrCounter(Counter.BYTES_READ, reader.getBytesRead());
+			reporter.incrCounter(Counter.BYTES_SKIPPED, reader.getBytesSkipped());
+			reader.close();
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * value のレコードを {@link ColumnarFile} に出力する {@link FileOutputFormat} です。 key は出力しません。
+ * <p>
+ * スキーマは {@link JobConf#getOutputValueClass()} から決定するため、 {@link EmployeeWritable} または
+ * {@link DepartmentWritable} を指定してください。列ごとに符号化するため、 {@code mapred.output.compress}
+ * による圧縮は行いません。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ColumnarOutputFormat extends FileOutputFormat<Object, Writable> {
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public RecordWriter<Object, Writable> getRecordWriter(FileSystem ignored, JobConf job,
+			String name, Progressable progress) throws IOException {
+		ColumnarFile.Schema<Writable> schema = (ColumnarFile.Schema<Writable>) ColumnarFile
+				.getSchema(job.getOutputValueClass());
+		Path file = FileOutputFormat.getTaskOutputPath(job, name);
+		FileSystem fs = file.getFileSystem(job);
+		final ColumnarFile.Writer<Writable> writer = new ColumnarFile.Writer<Writable>(fs.create(
+				file, progress), schema, job.getInt(ColumnarFile.ROW_GROUP_SIZE,
+				ColumnarFile.DEFAULT_ROW_GROUP_SIZE));
+		return new RecordWriter<Object, Writable>() {
+			@Override
+			public void write(Object key, Writable value) throws IOException {
+				writer.append(value);
+			}
+
+			@Override
+			public void close(Reporter reporter) throws IOException {
+				writer.close();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,197 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * {@link SortSpec} で宣言した項目順に int 値を保持する複合キーです。
+ * <p>
+ * 各項目は符号ビットを反転したビッグエンディアンの4バイトとしてシリアライズし、降順の項目は
+ * さらに全ビットを反転します。そのため、シリアライズされたバイト列を先頭から符号なしで比較するだけで
+ * 宣言した順序になります。 {@link Comparator} はバイト列をそのまま比較するため、デシリアライズは発生しません。
+ * </p>
+ * <p>
+ * 先頭には項目数と降順の項目を表すビット列を書き込みます。同じジョブ内のキーでは常に同じ値になるため比較結果に影響せず、
+ * {@link SortSpec} の設定がなくてもデシリアライズ出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class CompositeKey implements WritableComparable<CompositeKey> {
+
+	private int size;
+	private boolean[] descending = new boolean[0];
+	private int[] values = new int[0];
+
+	public CompositeKey() {
+	}
+
+	/**
+	 * @param descending 項目ごとの降順かどうか
+	 */
+	public CompositeKey(boolean[] descending) {
+		init(descending.length);
+		System.arraycopy(descending, 0, this.descending, 0, size);
+	}
+
+	private void init(int size) {
+		this.size = size;
+		if (values.length != size) {
+			descending = new boolean[size];
+			values = new int[size];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int get(int index) {
+		return values[index];
+	}
+
+	public void set(int index, int value) {
+		values[index] = value;
+	}
+
+	public boolean isDescending(int index) {
+		return descending[index];
+	}
+
+	/**
+	 * 項目数と降順の項目を表すビット列の合計バイト数を返します。
+	 * 
+	 * @param size 項目数
+	 * @return ヘッダのバイト数
+	 */
+	static int headerLength(int size) {
+		return 1 + (size + 7) / 8;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(size);
+		for (int i = 0; i < size; i += 8) {
+			int mask = 0;
+			for (int j = i; j < Math.min(i + 8, size); j++) {
+				if (descending[j]) {
+					mask |= 0x80 >>> (j - i);
+				}
+			}
+			out.writeByte(mask);
+		}
+		for (int i = 0; i < size; i++) {
+			int encoded = values[i] ^ Integer.MIN_VALUE;
+			out.writeInt(descending[i] ? ~encoded : encoded);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		init(in.readUnsignedByte());
+		for (int i = 0; i < size; i += 8) {
+			int mask = in.readUnsignedByte();
+			for (int j = i; j < Math.min(i + 8, size); j++) {
+				descending[j] = (mask & (0x80 >>> (j - i))) != 0;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			int encoded = in.readInt();
+			values[i] = (descending[i] ? ~encoded : encoded) ^ Integer.MIN_VALUE;
+		}
+	}
+
+	@Override
+	public int compareTo(CompositeKey o) {
+		return compareTo(o, Math.max(size, o.size));
+	}
+
+	/**
+	 * 先頭から {@code fields} 個の項目のみを比較します。
+	 * 
+	 * @param o 比較対象
+	 * @param fields 比較する項目数
+	 * @return 比較結果
+	 */
+	public int compareTo(CompositeKey o, int fields) {
+		int n = Math.min(fields, Math.min(size, o.size));
+		for (int i = 0; i < n; i++) {
+			// 降順の項目はビット反転した値、すなわち -(v+1) の昇順と同じです
+			int v1 = descending[i] ? ~values[i] : values[i];
+			int v2 = o.descending[i] ? ~o.values[i] : o.values[i];
+			if (v1 != v2) {
+				return v1 < v2 ? -1 : 1;
+			}
+		}
+		if (n < fields) {
+			return size - o.size;
+		}
+		return 0;
+	}
+
+	/**
+	 * 先頭から {@code fields} 個の項目のハッシュ値を返します。
+	 * 
+	 * @param fields 対象の項目数
+	 * @return ハッシュ値
+	 */
+	public int hashCode(int fields) {
+		int hash = 0;
+		for (int i = 0; i < Math.min(fields, size); i++) {
+			hash = hash * 31 + values[i];
+		}
+		return hash;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode(size);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CompositeKey)) {
+			return false;
+		}
+		CompositeKey other = (CompositeKey) obj;
+		return size == other.size && Arrays.equals(descending, other.descending)
+				&& Arrays.equals(values, other.values);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * シリアライズされたバイト列をそのまま比較する {@link WritableComparator} です。
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(CompositeKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareBytes(b1, s1, l1, b2, s2, l2);
+		}
+	}
+
+	static {
+		WritableComparator.define(CompositeKey.class, new Comparator());
+	}
+
+}
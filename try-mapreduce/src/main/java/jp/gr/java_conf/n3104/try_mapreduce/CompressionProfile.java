@@ -0,0 +1,114 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * 名前付きの圧縮プロファイルをジョブの設定に適用します。
+ * <p> {@link #PROFILES} にカンマ区切りでプロファイル名を指定すると、 {@link ParallelJobRunner}
+ * でジョブを投入する際に以下の設定を行います。 {@link ParallelJobRunner#RUNNER} と同じく、ジョブの設定の他に
+ * {@code -Dcompression.profiles=fast,archival} のようにシステムプロパティでも指定出来ます。
+ * </p>
+ * <dl>
+ * <dt>{@link #FAST}</dt>
+ * <dd>Map の出力（シャッフルするデータ）を圧縮します。</dd>
+ * <dt>{@link #ARCHIVAL}</dt>
+ * <dd>最終的な出力ファイルを圧縮します。 SequenceFile はブロック単位で圧縮します。</dd>
+ * <dt>{@link #INTERMEDIATE}</dt>
+ * <dd>後続のジョブの入力となる出力ファイル（ {@link #INTERMEDIATE_OUTPUT} が {@code true} のジョブ）
+ * を圧縮します。 SequenceFile はブロック単位で圧縮します。</dd>
+ * </dl>
+ * <p>
+ * コーデックは {@code compression.profile.プロファイル名.codec} で変更出来ます（ {@link #getCodecKey(String)} ）。
+ * デフォルトは {@link #ARCHIVAL} のみ圧縮率を優先して {@link BZip2Codec} とし、それ以外は {@link DefaultCodec}
+ * とします。コーデックの選択には{@link CodecBenchmark} の結果を参考にしてください。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class CompressionProfile {
+
+	private static final Log log = LogFactory.getLog(CompressionProfile.class);
+
+	/**
+	 * 適用するプロファイル名の設定名です。デフォルトは空（圧縮しない）です。同名のシステムプロパティでも指定出来ます。
+	 */
+	public static final String PROFILES = "compression.profiles";
+
+	public static final String FAST = "fast";
+
+	public static final String ARCHIVAL = "archival";
+
+	public static final String INTERMEDIATE = "intermediate";
+
+	/**
+	 * ジョブの出力が後続のジョブの入力となるかどうかの設定名です。 {@link JobGraph} が設定します。
+	 */
+	public static final String INTERMEDIATE_OUTPUT = "compression.intermediate.output";
+
+	private static final List<String> NAMES = Arrays.asList(FAST, ARCHIVAL, INTERMEDIATE);
+
+	private CompressionProfile() {
+	}
+
+	/**
+	 * {@link #PROFILES} で指定したプロファイルをジョブの設定に適用します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @throws IllegalArgumentException 不明なプロファイル名を指定した場合
+	 */
+	public static void apply(Configuration conf) {
+		Collection<String> profiles = StringUtils.getStringCollection(conf.get(PROFILES, System
+				.getProperty(PROFILES)));
+		for (String profile : profiles) {
+			if (!NAMES.contains(profile)) {
+				throw new IllegalArgumentException(PROFILES + " が不正です。profile=" + profile);
+			}
+		}
+		if (profiles.contains(FAST)) {
+			conf.setBoolean("mapred.compress.map.output", true);
+			conf.setClass("mapred.map.output.compression.codec", getCodecClass(conf, FAST),
+					CompressionCodec.class);
+		}
+		String output = conf.getBoolean(INTERMEDIATE_OUTPUT, false) ? INTERMEDIATE : ARCHIVAL;
+		if (profiles.contains(output)) {
+			conf.setBoolean("mapred.output.compress", true);
+			conf.setClass("mapred.output.compression.codec", getCodecClass(conf, output),
+					CompressionCodec.class);
+			conf.set("mapred.output.compression.type", "BLOCK");
+		}
+		if (!profiles.isEmpty() && log.isDebugEnabled()) {
+			log.debug(String.format("圧縮プロファイルを適用しました。job=%s, map=%s, output=%s", conf
+					.get("mapred.job.name"), conf.get("mapred.map.output.compression.codec"), conf
+					.get("mapred.output.compression.codec")));
+		}
+	}
+
+	/**
+	 * @param profile プロファイル名
+	 * @return プロファイルのコーデックの設定名
+	 */
+	public static String getCodecKey(String profile) {
+		return "compression.profile." + profile + ".codec";
+	}
+
+	/**
+	 * @param conf ジョブの設定
+	 * @param profile プロファイル名
+	 * @return プロファイルのコーデック
+	 */
+	public static Class<? extends CompressionCodec> getCodecClass(Configuration conf, String profile) {
+		Class<? extends CompressionCodec> defaultCodec = ARCHIVAL.equals(profile) ? BZip2Codec.class
+				: DefaultCodec.class;
+		return conf.getClass(getCodecKey(profile), defaultCodec, CompressionCodec.class);
+	}
+}
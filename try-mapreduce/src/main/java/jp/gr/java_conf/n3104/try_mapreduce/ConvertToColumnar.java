@@ -0,0 +1,187 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * 従業員ファイルまたは部門ファイルを {@link ColumnarFile} に変換します。
+ * <p> {@link #SORT_COLUMN} を指定すると、その列でソートしてから出力します。同じ値のレコードが同じ行グループにまとまるため、
+ * 行グループの最小値と最大値の範囲が狭くなり、 {@link ColumnarInputFormat#PREDICATE} で読み飛ばせる行グループが増えます。
+ * 指定しない場合は Map タスクのみで変換し、入力ファイルと同じ順に出力します。
+ * </p>
+ * <p>
+ * 不正なレコードは変換できないため除外します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ConvertToColumnar extends Configured implements Tool {
+
+	/**
+	 * 入力ファイルの種類（{@link ColumnarFile.Schema#getName()}）の設定名です。デフォルトは {@code employee} です。
+	 */
+	public static final String SCHEMA = "columnar.convert.schema";
+
+	/**
+	 * ソートする列の設定名です。数値の列のみ指定出来ます。デフォルトはソートしません。
+	 */
+	public static final String SORT_COLUMN = "columnar.convert.sort";
+
+	/**
+	 * ソートする列の位置を返します。
+	 */
+	private static int getSortColumn(JobConf job, ColumnarFile.Schema<?> schema) {
+		String column = job.get(SORT_COLUMN);
+		if (column == null) {
+			return -1;
+		}
+		int index = schema.indexOf(column);
+		if (schema.getType(index) != ColumnarFile.Type.INT) {
+			throw new IllegalArgumentException(SORT_COLUMN + " には数値の列を指定してください。column="
+					+ column);
+		}
+		return index;
+	}
+
+	public static class EmployeeMapper extends MapReduceBase implements
+			Mapper<Object, Text, IntWritable, EmployeeWritable> {
+
+		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private IntWritable sortKey = new IntWritable();
+		private EmployeeWritable employee = new EmployeeWritable();
+		private int sortColumn;
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			sortColumn = getSortColumn(job, ColumnarFile.EMPLOYEE);
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
+
+		@Override
+		public void map(Object key, Text value, OutputCollector<IntWritable, EmployeeWritable> output,
+				Reporter reporter) throws IOException {
+			parser.parse(value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			employee.set(parser);
+			if (sortColumn >= 0) {
+				sortKey.set(ColumnarFile.EMPLOYEE.getInt(employee, sortColumn));
+			}
+			output.collect(sortKey, employee);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
+		}
+	}
+
+	public static class DepartmentMapper extends MapReduceBase implements
+			Mapper<Object, Text, IntWritable, DepartmentWritable> {
+
+		private DepartmentRecordParser parser = new DepartmentRecordParser();
+		private IntWritable sortKey = new IntWritable();
+		private DepartmentWritable department = new DepartmentWritable();
+		private int sortColumn;
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			sortColumn = getSortColumn(job, ColumnarFile.DEPARTMENT);
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
+
+		@Override
+		public void map(Object key, Text value,
+				OutputCollector<IntWritable, DepartmentWritable> output, Reporter reporter)
+				throws IOException {
+			parser.parse(value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			department.set(parser);
+			if (sortColumn >= 0) {
+				sortKey.set(ColumnarFile.DEPARTMENT.getInt(department, sortColumn));
+			}
+			output.collect(sortKey, department);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
+		}
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		JobConf conf = new JobConf(getConf(), getClass());
+		ColumnarFile.Schema<?> schema = ColumnarFile.getSchema(conf.get(SCHEMA,
+				ColumnarFile.EMPLOYEE.getName()));
+		conf.setJobName(getClass().getSimpleName() + "." + schema.getName());
+		conf.setMapperClass(schema == ColumnarFile.EMPLOYEE ? EmployeeMapper.class
+				: DepartmentMapper.class);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(schema.getRecordClass());
+		conf.setOutputFormat(ColumnarOutputFormat.class);
+		if (getSortColumn(conf, schema) >= 0) {
+			conf.setReducerClass(IdentityReducer.class);
+		} else {
+			conf.setNumReduceTasks(0);
+		}
+		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		Quarantine.configure(conf);
+		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
+		ParallelJobRunner.runJob(conf);
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		// 引数を固定で設定
+		String out = Util.getJobOutputDirPath(ConvertToColumnar.class);
+		// 出力先のディレクトリが存在するとFileAlreadyExistsExceptionとなるため事前に削除しています
+		FileUtil.fullyDelete(new File(out));
+
+		// 従業員ファイルは部門でソートし、部門を条件とした読み込みで行グループを読み飛ばせるようにします
+		Configuration conf = new Configuration();
+		conf.set(SORT_COLUMN, "departmentId");
+		int res = ToolRunner.run(conf, new ConvertToColumnar(), new String[] { "input/Employee",
+				out + "/Employee" });
+		if (res == 0) {
+			conf = new Configuration();
+			conf.set(SCHEMA, ColumnarFile.DEPARTMENT.getName());
+			res = ToolRunner.run(conf, new ConvertToColumnar(), new String[] { "input/Department",
+					out + "/Department" });
+		}
+		System.exit(res);
+	}
+
+}
@@ -0,0 +1,428 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * 性能検証用の従業員ファイルと部門ファイルを生成します。
+ * <p>
+ * 既存の入力ファイルと同じ形式（従業員は {@code employeeId,employeeName,employeeAge,employeeSalary,departmentId}
+ * 、部門は {@code departmentId,departmentName}）で、従業員ファイルを {@link #EMPLOYEE_SIZE} の大きさまで出力します。
+ * 従業員ファイルは {@link #PARTS} 個のファイルに分割し、 {@link #MODE} に応じて Map タスクのみのジョブ、
+ * またはローカルのスレッドプールで並行して生成します。どちらの場合も同じ設定であれば同じ内容になります。
+ * </p>
+ * <p>
+ * 従業員の部門と年齢は {@link ZipfDistribution} に従って偏らせることが出来ます（ {@link #DEPARTMENT_SKEW}、
+ * {@link #AGE_SKEW} ）。偏らせた場合は部門ID、年齢とも小さい値ほど多く出現します。
+ * また、 {@link #BAD_RECORD_RATIO} の割合で不正なレコード（項目の不足、数値でない年齢、余分な項目、空行）を混入します。
+ * </p>
+ * <p>
+ * 乱数はファイルごとに {@link #SEED} から求めた種で初期化するため、 {@link #SEED} と {@link #PARTS}
+ * が同じであれば何度実行しても同じファイルが生成されます。 employeeId は int の範囲で採番するため、
+ * 1回に生成出来る従業員は約21億件（数十GB）までです。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class DataGenerator extends Configured implements Tool {
+
+	private static final Log log = LogFactory.getLog(DataGenerator.class);
+
+	/**
+	 * 従業員ファイルの合計サイズの設定名です。 {@code 10m} や {@code 100g} のように単位を付けて指定出来ます。デフォルトは
+	 * {@code 10m} です。
+	 */
+	public static final String EMPLOYEE_SIZE = "datagen.employee.size";
+
+	/**
+	 * 部門数の設定名です。デフォルトは100です。
+	 */
+	public static final String DEPARTMENTS = "datagen.departments";
+
+	/**
+	 * 部門の偏り（ Zipf 分布の指数）の設定名です。デフォルトは0（一様分布）です。
+	 */
+	public static final String DEPARTMENT_SKEW = "datagen.department.skew";
+
+	/**
+	 * 年齢の偏り（ Zipf 分布の指数）の設定名です。デフォルトは0（一様分布）です。
+	 */
+	public static final String AGE_SKEW = "datagen.age.skew";
+
+	/**
+	 * 不正なレコードの割合（0から1）の設定名です。デフォルトは0です。
+	 */
+	public static final String BAD_RECORD_RATIO = "datagen.bad.record.ratio";
+
+	/**
+	 * 乱数の種の設定名です。デフォルトは0です。
+	 */
+	public static final String SEED = "datagen.seed";
+
+	/**
+	 * 従業員ファイルの分割数の設定名です。デフォルトは CPU のコア数です。
+	 */
+	public static final String PARTS = "datagen.parts";
+
+	/**
+	 * 生成方法の設定名です。 {@link #LOCAL} または {@link #MAPREDUCE} を指定します。デフォルトは {@link #LOCAL} です。
+	 */
+	public static final String MODE = "datagen.mode";
+
+	public static final String LOCAL = "local";
+	public static final String MAPREDUCE = "mapreduce";
+
+	public static final int MIN_AGE = 20;
+	public static final int MAX_AGE = 65;
+
+	public enum Counter {
+		RECORDS, BAD_RECORDS, BYTES
+	}
+
+	private static final String[] FAMILY_NAMES = { "佐藤", "鈴木", "高橋", "田中", "伊藤", "渡辺", "山本",
+			"中村", "小林", "加藤", "吉田", "山田", "佐々木", "山口", "松本", "井上", "木村", "林", "斎藤", "清水" };
+	private static final String[] GIVEN_NAMES = { "太郎", "花子", "一郎", "美咲", "翔", "陽菜", "大輔", "さくら",
+			"健太", "由美", "拓也", "愛", "直樹", "恵", "隆", "結衣" };
+	private static final String[] DEPARTMENT_NAMES = { "営業", "開発", "総務", "人事", "経理", "企画",
+			"製造", "品質保証" };
+
+	/**
+	 * 1つのファイル分の従業員を生成します。
+	 * 
+	 * @param conf 設定
+	 * @param part ファイルの番号（0から {@link #PARTS} - 1）
+	 * @param output 従業員の出力先。 key は常に {@link NullWritable} です
+	 * @param reporter カウンタの出力先
+	 */
+	public static void generateEmployees(JobConf conf, int part,
+			OutputCollector<NullWritable, Text> output, Reporter reporter) throws IOException {
+		int parts = getParts(conf);
+		long size = getEmployeeSize(conf);
+		long quota = size / parts + (part < size % parts ? 1 : 0);
+		ZipfDistribution departments = new ZipfDistribution(conf.getInt(DEPARTMENTS, 100), conf
+				.getFloat(DEPARTMENT_SKEW, 0));
+		ZipfDistribution ages = new ZipfDistribution(MAX_AGE - MIN_AGE + 1, conf.getFloat(AGE_SKEW,
+				0));
+		float badRecordRatio = conf.getFloat(BAD_RECORD_RATIO, 0);
+		Random random = new Random(conf.getLong(SEED, 0) * 31 + part);
+		Text record = new Text();
+		StringBuilder sb = new StringBuilder();
+		long bytes = 0;
+		for (long row = 0; bytes < quota; row++) {
+			long employeeId = row * parts + part + 1;
+			if (employeeId > Integer.MAX_VALUE) {
+				throw new IOException("employeeId が int の範囲を超えました。" + EMPLOYEE_SIZE
+						+ " を小さくしてください。");
+			}
+			int age = MIN_AGE + ages.sample(random) - 1;
+			sb.setLength(0);
+			sb.append(employeeId).append(',');
+			sb.append(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)]);
+			sb.append(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]).append(',');
+			sb.append(age).append(',');
+			sb.append(180000 + (age - MIN_AGE) * 6000 + random.nextInt(10) * 10000).append(',');
+			sb.append(departments.sample(random));
+			if (badRecordRatio > 0 && random.nextFloat() < badRecordRatio) {
+				corrupt(sb, random.nextInt(4));
+				reporter.incrCounter(Counter.BAD_RECORDS, 1);
+			}
+			record.set(sb.toString());
+			output.collect(NullWritable.get(), record);
+			reporter.incrCounter(Counter.RECORDS, 1);
+			reporter.incrCounter(Counter.BYTES, record.getLength() + 1);
+			bytes += record.getLength() + 1;
+		}
+	}
+
+	private static void corrupt(StringBuilder sb, int type) {
+		switch (type) {
+		case 0:
+			// 項目の不足
+			sb.setLength(sb.lastIndexOf(","));
+			break;
+		case 1:
+			// 数値でない年齢
+			int start = sb.indexOf(",", sb.indexOf(",") + 1) + 1;
+			sb.replace(start, sb.indexOf(",", start), "不明");
+			break;
+		case 2:
+			// 余分な項目
+			sb.append(",");
+			break;
+		default:
+			sb.setLength(0);
+			break;
+		}
+	}
+
+	/**
+	 * 部門ファイルを出力します。
+	 * 
+	 * @param conf 設定
+	 * @param file 出力先のファイル
+	 */
+	public static void writeDepartments(JobConf conf, Path file) throws IOException {
+		int departments = conf.getInt(DEPARTMENTS, 100);
+		OutputStream out = file.getFileSystem(conf).create(file, true);
+		try {
+			for (int i = 0; i < departments; i++) {
+				String record = (i + 1) + "," + DEPARTMENT_NAMES[i % DEPARTMENT_NAMES.length] + "第"
+						+ (i / DEPARTMENT_NAMES.length + 1) + "課\n";
+				out.write(record.getBytes("UTF-8"));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static int getParts(JobConf conf) {
+		return Math.max(1, conf.getInt(PARTS, Runtime.getRuntime().availableProcessors()));
+	}
+
+	static long getEmployeeSize(JobConf conf) {
+		return StringUtils.TraditionalBinaryPrefix.string2long(conf.get(EMPLOYEE_SIZE, "10m"));
+	}
+
+	/**
+	 * 1つの Map タスクで1つの従業員ファイルを生成します。
+	 */
+	public static class GeneratorMapper extends MapReduceBase implements
+			Mapper<IntWritable, NullWritable, NullWritable, Text> {
+
+		private JobConf job;
+
+		@Override
+		public void configure(JobConf job) {
+			this.job = job;
+		}
+
+		@Override
+		public void map(IntWritable key, NullWritable value, OutputCollector<NullWritable, Text> output,
+				Reporter reporter) throws IOException {
+			generateEmployees(job, key.get(), output, reporter);
+		}
+	}
+
+	/**
+	 * 入力ファイルを持たず、 {@link #PARTS} 個の {@link PartSplit} を返す {@link InputFormat} です。
+	 */
+	public static class GeneratorInputFormat implements InputFormat<IntWritable, NullWritable> {
+
+		@Override
+		public InputSplit[] getSplits(JobConf job, int numSplits) {
+			InputSplit[] splits = new InputSplit[getParts(job)];
+			for (int i = 0; i < splits.length; i++) {
+				splits[i] = new PartSplit(i);
+			}
+			return splits;
+		}
+
+		@Override
+		public RecordReader<IntWritable, NullWritable> getRecordReader(InputSplit split,
+				JobConf job, Reporter reporter) {
+			final int part = ((PartSplit) split).part;
+			return new RecordReader<IntWritable, NullWritable>() {
+
+				private boolean done;
+
+				@Override
+				public boolean next(IntWritable key, NullWritable value) {
+					if (done) {
+						return false;
+					}
+					key.set(part);
+					done = true;
+					return true;
+				}
+
+				@Override
+				public IntWritable createKey() {
+					return new IntWritable();
+				}
+
+				@Override
+				public NullWritable createValue() {
+					return NullWritable.get();
+				}
+
+				@Override
+				public long getPos() {
+					return done ? 1 : 0;
+				}
+
+				@Override
+				public float getProgress() {
+					return done ? 1.0f : 0.0f;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * 生成するファイルの番号のみを持つ {@link InputSplit} です。
+	 */
+	public static class PartSplit implements InputSplit {
+
+		private int part;
+
+		public PartSplit() {
+		}
+
+		PartSplit(int part) {
+			this.part = part;
+		}
+
+		@Override
+		public long getLength() {
+			return 0;
+		}
+
+		@Override
+		public String[] getLocations() {
+			return new String[0];
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(part);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			part = in.readInt();
+		}
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		JobConf conf = new JobConf(getConf(), getClass());
+		Path employeeDir = new Path(args[0]);
+		Path departmentDir = new Path(args[1]);
+		writeDepartments(conf, new Path(departmentDir, "Department.txt"));
+		String mode = conf.get(MODE, LOCAL);
+		if (MAPREDUCE.equals(mode)) {
+			conf.setJobName("datagen");
+			conf.setInputFormat(GeneratorInputFormat.class);
+			conf.setMapperClass(GeneratorMapper.class);
+			conf.setNumReduceTasks(0);
+			conf.setOutputFormat(TextOutputFormat.class);
+			conf.setOutputKeyClass(NullWritable.class);
+			conf.setOutputValueClass(Text.class);
+			FileOutputFormat.setOutputPath(conf, employeeDir);
+			ParallelJobRunner.runJob(conf);
+		} else if (LOCAL.equals(mode)) {
+			runLocal(conf, employeeDir);
+		} else {
+			throw new IllegalArgumentException(MODE + " が不正です。mode=" + mode);
+		}
+		return 0;
+	}
+
+	/**
+	 * ファイルごとにスレッドを割り当てて従業員ファイルを生成します。
+	 */
+	private void runLocal(final JobConf conf, final Path employeeDir) throws Exception {
+		final FileSystem fs = employeeDir.getFileSystem(conf);
+		if (fs.exists(employeeDir)) {
+			throw new IOException("出力先のディレクトリが既に存在します。path=" + employeeDir);
+		}
+		fs.mkdirs(employeeDir);
+		int parts = getParts(conf);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parts, Runtime
+				.getRuntime().availableProcessors()));
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (int i = 0; i < parts; i++) {
+				final int part = i;
+				futures.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						final OutputStream out = fs.create(new Path(employeeDir, String.format(
+								"part-%05d", part)));
+						final long[] records = new long[1];
+						try {
+							generateEmployees(conf, part, new OutputCollector<NullWritable, Text>() {
+								@Override
+								public void collect(NullWritable key, Text value) throws IOException {
+									out.write(value.getBytes(), 0, value.getLength());
+									out.write('\n');
+									records[0]++;
+								}
+							}, Reporter.NULL);
+						} finally {
+							out.close();
+						}
+						return records[0];
+					}
+				}));
+			}
+			long records = 0;
+			for (Future<Long> future : futures) {
+				try {
+					records += future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw (Error) e.getCause();
+				}
+			}
+			if (log.isInfoEnabled()) {
+				log.info(String.format("従業員ファイルを生成しました。records=%d, parts=%d, path=%s", records,
+						parts, employeeDir));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		// 引数を固定で設定
+		String out = Util.getJobOutputDirPath(DataGenerator.class);
+		args = new String[] { out + "/Employee", out + "/Department" };
+		// 出力先のディレクトリが存在するとFileAlreadyExistsExceptionとなるため事前に削除しています
+		FileUtil.fullyDelete(new File(out));
+
+		int res = ToolRunner.run(new DataGenerator(), args);
+		System.exit(res);
+	}
+
+}
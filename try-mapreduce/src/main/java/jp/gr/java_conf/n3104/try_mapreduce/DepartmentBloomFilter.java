@@ -0,0 +1,228 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+
+/**
+ * 部門ファイルの {@code departmentId} から作成した {@link BloomFilter} です（Semi Join）。
+ * <p>
+ * 従業員ファイルと部門ファイルを Reducer でジョインする場合、対応する部門が存在しない従業員も shuffle されます。
+ * ジョブの実行前に部門ファイルから {@link BloomFilter} を作成して {@link DistributedCache} で各 Mapper に配布し、
+ * {@link #mightContain(int)} が {@code false} となる従業員を Mapper で除外することで shuffle の量を減らします。
+ * {@link BloomFilter} は偽陽性があるため、除外されなかった従業員が必ずジョインされるとは限りません。
+ * </p>
+ * <p>
+ * フィルタのビット数は {@link #FALSE_POSITIVE_RATE} と部門数から求めます。 {@link #VECTOR_SIZE}
+ * を設定した場合はその値を利用します。除外した件数はカウンタ {@link Counter#PRUNED_RECORDS} で確認出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class DepartmentBloomFilter {
+
+	private static final Log log = LogFactory.getLog(DepartmentBloomFilter.class);
+
+	/**
+	 * Semi Join を有効にするかどうかの設定名です。デフォルトは {@code false} です。
+	 */
+	public static final String ENABLED = "semijoin.bloomfilter";
+
+	/**
+	 * 偽陽性率の設定名です。デフォルトは {@link #DEFAULT_FALSE_POSITIVE_RATE} です。
+	 */
+	public static final String FALSE_POSITIVE_RATE = "semijoin.bloomfilter.false.positive.rate";
+
+	/**
+	 * フィルタのビット数の設定名です。設定した場合は {@link #FALSE_POSITIVE_RATE} より優先します。
+	 */
+	public static final String VECTOR_SIZE = "semijoin.bloomfilter.vector.size";
+
+	/**
+	 * 作成したフィルタのファイルのパスの設定名です。 {@link #configure(JobConf, Path, Path)} で設定します。
+	 */
+	public static final String FILE = "semijoin.bloomfilter.file";
+
+	public static final float DEFAULT_FALSE_POSITIVE_RATE = 0.01f;
+
+	private static final String LINK_NAME = "department.bloom";
+
+	public enum Counter {
+		PRUNED_RECORDS
+	}
+
+	private final BloomFilter filter;
+	private final byte[] bytes = new byte[4];
+	private final Key key = new Key();
+
+	private DepartmentBloomFilter(BloomFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * {@link #ENABLED} が {@code true} の場合に、部門ファイルからフィルタを作成して {@code filterFile} に書き出し、
+	 * {@link DistributedCache} に登録します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @param departmentInput 部門ファイル
+	 * @param filterFile フィルタの出力先
+	 * @return フィルタを作成した場合は {@code true}
+	 */
+	public static boolean configure(JobConf conf, Path departmentInput, Path filterFile)
+			throws IOException {
+		if (!conf.getBoolean(ENABLED, false)) {
+			return false;
+		}
+		Set<Integer> departmentIds = readDepartmentIds(conf, departmentInput);
+		int vectorSize = conf.getInt(VECTOR_SIZE, 0);
+		if (vectorSize <= 0) {
+			vectorSize = optimalVectorSize(departmentIds.size(), conf.getFloat(FALSE_POSITIVE_RATE,
+					DEFAULT_FALSE_POSITIVE_RATE));
+		}
+		int nbHash = optimalNbHash(vectorSize, departmentIds.size());
+		DepartmentBloomFilter filter = new DepartmentBloomFilter(new BloomFilter(vectorSize, nbHash,
+				Hash.MURMUR_HASH));
+		for (int departmentId : departmentIds) {
+			filter.add(departmentId);
+		}
+		FileSystem fs = filterFile.getFileSystem(conf);
+		FSDataOutputStream out = fs.create(filterFile, true);
+		try {
+			filter.filter.write(out);
+		} finally {
+			out.close();
+		}
+		if (log.isInfoEnabled()) {
+			log.info(String.format("部門のフィルタを作成しました。departments=%d, vectorSize=%d, nbHash=%d",
+					departmentIds.size(), vectorSize, nbHash));
+		}
+		filterFile = filterFile.makeQualified(fs);
+		conf.set(FILE, filterFile.toString());
+		try {
+			DistributedCache.addCacheFile(new URI(filterFile.toString() + "#" + LINK_NAME), conf);
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+		DistributedCache.createSymlink(conf);
+		return true;
+	}
+
+	/**
+	 * {@link #configure(JobConf, Path, Path)} で作成したフィルタを読み込みます。
+	 * 
+	 * @param job ジョブの設定
+	 * @return フィルタ。作成していない場合は {@code null}
+	 */
+	public static DepartmentBloomFilter load(JobConf job) throws IOException {
+		String file = job.get(FILE);
+		if (file == null) {
+			return null;
+		}
+		// 分散キャッシュに展開されたファイルを優先し、存在しない場合（LocalJobRunner）は元のファイルを読み込みます
+		Path path = new Path(file);
+		Path[] localFiles = DistributedCache.getLocalCacheFiles(job);
+		if (localFiles != null) {
+			for (Path localFile : localFiles) {
+				if (localFile.getName().equals(path.getName())) {
+					path = localFile;
+					break;
+				}
+			}
+		}
+		BloomFilter filter = new BloomFilter();
+		FSDataInputStream in = path.getFileSystem(job).open(path);
+		try {
+			filter.readFields(in);
+		} finally {
+			in.close();
+		}
+		return new DepartmentBloomFilter(filter);
+	}
+
+	/**
+	 * @param departmentId 部門ID
+	 * @return 部門が存在する可能性がある場合は {@code true}
+	 */
+	public boolean mightContain(int departmentId) {
+		return filter.membershipTest(toKey(departmentId));
+	}
+
+	private void add(int departmentId) {
+		filter.add(toKey(departmentId));
+	}
+
+	private Key toKey(int departmentId) {
+		bytes[0] = (byte) (departmentId >>> 24);
+		bytes[1] = (byte) (departmentId >>> 16);
+		bytes[2] = (byte) (departmentId >>> 8);
+		bytes[3] = (byte) departmentId;
+		key.set(bytes, 1.0);
+		return key;
+	}
+
+	/**
+	 * @return 偽陽性率を満たすビット数（-n ln p / (ln 2)^2）
+	 */
+	static int optimalVectorSize(int entries, float falsePositiveRate) {
+		double size = -Math.max(entries, 1) * Math.log(falsePositiveRate)
+				/ (Math.log(2) * Math.log(2));
+		return (int) Math.max(Math.ceil(size), Byte.SIZE);
+	}
+
+	/**
+	 * @return ビット数と要素数から求めた最適なハッシュ関数の数（m / n ln 2）
+	 */
+	static int optimalNbHash(int vectorSize, int entries) {
+		return (int) Math.max(1, Math.round((double) vectorSize / Math.max(entries, 1) * Math.log(2)));
+	}
+
+	private static Set<Integer> readDepartmentIds(JobConf conf, Path departmentInput)
+			throws IOException {
+		// 部門ファイルは小さいため、ジョブを実行せずにクライアントで全件を読み込みます
+		JobConf readConf = new JobConf(conf);
+		FileInputFormat.setInputPaths(readConf, departmentInput);
+		TextInputFormat inputFormat = new TextInputFormat();
+		inputFormat.configure(readConf);
+		Set<Integer> departmentIds = new HashSet<Integer>();
+		DepartmentRecordParser parser = new DepartmentRecordParser();
+		for (InputSplit split : inputFormat.getSplits(readConf, 1)) {
+			RecordReader<LongWritable, Text> reader = inputFormat.getRecordReader(split, readConf,
+					Reporter.NULL);
+			try {
+				LongWritable key = reader.createKey();
+				Text value = reader.createValue();
+				while (reader.next(key, value)) {
+					parser.parse(value);
+					if (parser.isValid()) {
+						departmentIds.add(parser.getDepartmentId());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return departmentIds;
+	}
+
+}
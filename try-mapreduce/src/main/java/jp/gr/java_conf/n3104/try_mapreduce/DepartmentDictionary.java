@@ -0,0 +1,152 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.io.Text;
+
+/**
+ * {@code departmentId} から {@code departmentName} を引くための辞書です。
+ * <p> {@code HashMap<Integer, String>} は部門ごとに {@link Integer} と {@link String} のオブジェクトを保持し、
+ * 参照のたびに {@code departmentId} のボクシングが発生します。このクラスは {@code departmentId} を
+ * int の配列によるオープンアドレス法のハッシュ表で管理し、 {@code departmentName} は UTF-8
+ * のバイト列のまま単一のバイト配列に格納します。 Map-Side Join のように全ての Mapper
+ * が部門ファイル全体を保持する場合に、使用メモリと参照時のコストを抑えることが出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class DepartmentDictionary implements DepartmentLookup {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] keys = new int[INITIAL_CAPACITY];
+	/** -1 は空きスロットを表します。 */
+	private int[] offsets = newOffsets(INITIAL_CAPACITY);
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int size;
+
+	private byte[] arena = new byte[INITIAL_CAPACITY * 16];
+	private int arenaLength;
+
+	/**
+	 * 部門ファイルを読み込みます。不正なレコードは読み飛ばします。
+	 * 
+	 * @param file 部門ファイル
+	 * @return 辞書
+	 */
+	public static DepartmentDictionary load(File file) throws IOException {
+		byte[] bytes = FileUtils.readFileToByteArray(file);
+		DepartmentDictionary dictionary = new DepartmentDictionary();
+		DepartmentRecordParser parser = new DepartmentRecordParser();
+		Text departmentName = new Text();
+		int start = 0;
+		while (start < bytes.length) {
+			int end = ByteUtil.indexOf(bytes, start, bytes.length, (byte) '\n');
+			int length = end - start;
+			if (length > 0 && bytes[end - 1] == '\r') {
+				length--;
+			}
+			parser.parse(bytes, start, length);
+			if (parser.isValid()) {
+				parser.copyDepartmentNameTo(departmentName);
+				dictionary.put(parser.getDepartmentId(), departmentName.getBytes(), 0,
+						departmentName.getLength());
+			}
+			start = end + 1;
+		}
+		return dictionary;
+	}
+
+	/**
+	 * 部門を追加します。既に存在する場合は上書きします。
+	 * 
+	 * @param departmentId 部門ID
+	 * @param bytes 部門名を含むバイト列
+	 * @param start 部門名の開始位置
+	 * @param length 部門名の長さ
+	 */
+	public void put(int departmentId, byte[] bytes, int start, int length) {
+		if ((size + 1) * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		int slot = slotOf(departmentId);
+		if (offsets[slot] < 0) {
+			size++;
+		}
+		if (arenaLength + length > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+		}
+		System.arraycopy(bytes, start, arena, arenaLength, length);
+		keys[slot] = departmentId;
+		offsets[slot] = arenaLength;
+		lengths[slot] = length;
+		arenaLength += length;
+	}
+
+	@Override
+	public int find(int departmentId) {
+		int slot = slotOf(departmentId);
+		return offsets[slot] < 0 ? -1 : slot;
+	}
+
+	@Override
+	public void appendDepartmentName(int slot, Text target) {
+		target.append(arena, offsets[slot], lengths[slot]);
+	}
+
+	@Override
+	public String getDepartmentName(int departmentId) {
+		int slot = find(departmentId);
+		return slot < 0 ? null : ByteUtil.decode(arena, offsets[slot], lengths[slot]);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return 使用メモリの見積もり（バイト）
+	 */
+	public long getMemoryUsage() {
+		return (long) keys.length * 4 * 3 + arena.length;
+	}
+
+	private int slotOf(int departmentId) {
+		int mask = keys.length - 1;
+		// 連番の部門IDが隣接するスロットに偏らないように、フィボナッチハッシュで分散させます
+		int hash = departmentId * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (offsets[slot] >= 0 && keys[slot] != departmentId) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldOffsets = offsets;
+		int[] oldLengths = lengths;
+		keys = new int[capacity];
+		offsets = newOffsets(capacity);
+		lengths = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldOffsets[i] < 0) {
+				continue;
+			}
+			int slot = slotOf(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			offsets[slot] = oldOffsets[i];
+			lengths[slot] = oldLengths[i];
+		}
+	}
+
+	private static int[] newOffsets(int capacity) {
+		int[] offsets = new int[capacity];
+		Arrays.fill(offsets, -1);
+		return offsets;
+	}
+
+}
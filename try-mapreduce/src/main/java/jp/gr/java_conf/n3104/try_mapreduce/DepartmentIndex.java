@@ -0,0 +1,334 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * 部門ファイルを変換したバイナリ形式の辞書ファイルです。
+ * <p> {@link DepartmentDictionary} は Mapper や Reducer ごとに部門ファイルを解析してヒープに保持します。
+ * このクラスはジョブの実行前に {@link #build(JobConf, Path, Path)} で部門ファイルを辞書ファイルに変換し、
+ * 各タスクは辞書ファイルを {@link FileChannel#map(FileChannel.MapMode, long, long)} で読み取り専用で参照します。
+ * 辞書ファイルの内容はヒープに読み込まず、同じノードで同時に実行されるタスクの間で OS のページキャッシュを共有します。
+ * </p>
+ * <p>
+ * 辞書ファイルは以下の形式です。部門は {@code departmentId} の昇順に並んでいるため、二分探索で参照します。
+ * {@code departmentId} の範囲が部門数に比べて狭い場合は、 {@code departmentId - minDepartmentId}
+ * の位置に部門を格納し（存在しない部門は部門名の位置が -1）、直接参照します。
+ * <ul>
+ * <li>ヘッダ: マジックナンバー、形式（{@link #SORTED} または {@link #DIRECT}）、部門の数、 {@code minDepartmentId}
+ * <li>部門: {@code departmentId}, 部門名の位置, 部門名の長さ（それぞれ int の固定長）
+ * <li>部門名: UTF-8 のバイト列を連結したもの
+ * </ul>
+ * 参照時にヒープの確保は発生しません（{@link #getDepartmentName(int)} を除きます）。
+ * なお、 {@link MappedByteBuffer} の制限により、辞書ファイルは2GBまでです。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class DepartmentIndex implements DepartmentLookup {
+
+	private static final Log log = LogFactory.getLog(DepartmentIndex.class);
+
+	/**
+	 * 辞書ファイルのパスの設定名です。 {@link #configure(JobConf, Path, Path)} で設定します。
+	 */
+	public static final String FILE = "department.index.file";
+
+	static final int MAGIC = 0x44455054; // "DEPT"
+	static final int SORTED = 1;
+	static final int DIRECT = 2;
+
+	private static final int HEADER_LENGTH = 4 * 4;
+	private static final int STRIDE = 4 * 3;
+
+	private final ByteBuffer buffer;
+	private final int format;
+	private final int count;
+	private final int minDepartmentId;
+	private final int namesStart;
+	private byte[] scratch = new byte[64];
+
+	private DepartmentIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("辞書ファイルの形式が不正です。");
+		}
+		this.format = buffer.getInt(4);
+		this.count = buffer.getInt(8);
+		this.minDepartmentId = buffer.getInt(12);
+		this.namesStart = HEADER_LENGTH + count * STRIDE;
+	}
+
+	/**
+	 * 部門ファイルを辞書ファイルに変換し、ジョブの設定と {@link DistributedCache} に登録します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @param departmentInput 部門ファイル、またはそれを含むディレクトリ
+	 * @param indexFile 辞書ファイルの出力先
+	 */
+	public static void configure(JobConf conf, Path departmentInput, Path indexFile)
+			throws IOException {
+		build(conf, departmentInput, indexFile);
+		indexFile = indexFile.makeQualified(indexFile.getFileSystem(conf));
+		conf.set(FILE, indexFile.toString());
+		try {
+			DistributedCache.addCacheFile(new URI(indexFile.toString()), conf);
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * 部門ファイルを辞書ファイルに変換します。同じ {@code departmentId} が複数存在する場合は後の部門を優先します。
+	 * 
+	 * @param conf 設定
+	 * @param departmentInput 部門ファイル、またはそれを含むディレクトリ
+	 * @param indexFile 辞書ファイルの出力先
+	 */
+	public static void build(JobConf conf, Path departmentInput, Path indexFile) throws IOException {
+		// 上位32ビットが departmentId、下位32ビットが読み込んだ順番です
+		long[] entries = new long[16];
+		int[] offsets = new int[16];
+		int[] lengths = new int[16];
+		int size = 0;
+		DataOutputBuffer names = new DataOutputBuffer();
+		DepartmentRecordParser parser = new DepartmentRecordParser();
+		Text departmentName = new Text();
+		FileSystem fs = departmentInput.getFileSystem(conf);
+		for (FileStatus status : listFiles(fs, departmentInput)) {
+			byte[] bytes = readFully(fs, status);
+			int start = 0;
+			while (start < bytes.length) {
+				int end = ByteUtil.indexOf(bytes, start, bytes.length, (byte) '\n');
+				int length = end - start;
+				if (length > 0 && bytes[end - 1] == '\r') {
+					length--;
+				}
+				parser.parse(bytes, start, length);
+				start = end + 1;
+				if (!parser.isValid()) {
+					continue;
+				}
+				if (size == entries.length) {
+					entries = Arrays.copyOf(entries, size * 2);
+					offsets = Arrays.copyOf(offsets, size * 2);
+					lengths = Arrays.copyOf(lengths, size * 2);
+				}
+				parser.copyDepartmentNameTo(departmentName);
+				entries[size] = ((long) parser.getDepartmentId() << 32) | size;
+				offsets[size] = names.getLength();
+				lengths[size] = departmentName.getLength();
+				names.write(departmentName.getBytes(), 0, departmentName.getLength());
+				size++;
+			}
+		}
+		Arrays.sort(entries, 0, size);
+		// 重複した departmentId は最後に読み込んだ部門のみを残します
+		int unique = 0;
+		for (int i = 0; i < size; i++) {
+			if (i + 1 < size && (entries[i] >> 32) == (entries[i + 1] >> 32)) {
+				continue;
+			}
+			entries[unique++] = entries[i];
+		}
+		int minDepartmentId = unique == 0 ? 0 : (int) (entries[0] >> 32);
+		long range = unique == 0 ? 0 : (entries[unique - 1] >> 32) - minDepartmentId + 1;
+		int format = range <= unique * 2L + 16 ? DIRECT : SORTED;
+		int count = format == DIRECT ? (int) range : unique;
+
+		FileSystem indexFs = indexFile.getFileSystem(conf);
+		DataOutputStream out = indexFs.create(indexFile, true);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(format);
+			out.writeInt(count);
+			out.writeInt(minDepartmentId);
+			int next = 0;
+			for (int i = 0; i < count; i++) {
+				int departmentId = format == DIRECT ? minDepartmentId + i : (int) (entries[i] >> 32);
+				if (next < unique && (int) (entries[next] >> 32) == departmentId) {
+					int record = (int) entries[next++];
+					out.writeInt(departmentId);
+					out.writeInt(offsets[record]);
+					out.writeInt(lengths[record]);
+				} else {
+					out.writeInt(departmentId);
+					out.writeInt(-1);
+					out.writeInt(0);
+				}
+			}
+			out.write(names.getData(), 0, names.getLength());
+		} finally {
+			out.close();
+		}
+		if (log.isInfoEnabled()) {
+			log.info(String.format("部門の辞書ファイルを作成しました。departments=%d, format=%s, file=%s",
+					unique, format == DIRECT ? "direct" : "sorted", indexFile));
+		}
+	}
+
+	/**
+	 * {@link #configure(JobConf, Path, Path)} で作成した辞書ファイルを開きます。
+	 * 
+	 * @param job ジョブの設定
+	 * @return 辞書。作成していない場合は {@code null}
+	 */
+	public static DepartmentIndex open(JobConf job) throws IOException {
+		String file = job.get(FILE);
+		if (file == null) {
+			return null;
+		}
+		// 分散キャッシュに展開されたファイルを優先し、存在しない場合（LocalJobRunner）は元のファイルを開きます
+		Path path = new Path(file);
+		Path[] localFiles = DistributedCache.getLocalCacheFiles(job);
+		if (localFiles != null) {
+			for (Path localFile : localFiles) {
+				if (localFile.getName().equals(path.getName())) {
+					path = localFile;
+					break;
+				}
+			}
+		}
+		return open(new File(path.toUri().getPath()));
+	}
+
+	/**
+	 * 辞書ファイルを読み取り専用でメモリにマップします。
+	 * 
+	 * @param file 辞書ファイル
+	 * @return 辞書
+	 */
+	public static DepartmentIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// マップした内容はチャネルを閉じた後も参照出来ます
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+			return new DepartmentIndex(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public int find(int departmentId) {
+		int slot;
+		if (format == DIRECT) {
+			long i = (long) departmentId - minDepartmentId;
+			if (i < 0 || i >= count) {
+				return -1;
+			}
+			slot = (int) i;
+		} else {
+			slot = binarySearch(departmentId);
+			if (slot < 0) {
+				return -1;
+			}
+		}
+		return buffer.getInt(HEADER_LENGTH + slot * STRIDE + 4) < 0 ? -1 : slot;
+	}
+
+	private int binarySearch(int departmentId) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = buffer.getInt(HEADER_LENGTH + mid * STRIDE);
+			if (value < departmentId) {
+				low = mid + 1;
+			} else if (value > departmentId) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public void appendDepartmentName(int slot, Text target) {
+		int length = copyName(slot);
+		target.append(scratch, 0, length);
+	}
+
+	@Override
+	public String getDepartmentName(int departmentId) {
+		int slot = find(departmentId);
+		if (slot < 0) {
+			return null;
+		}
+		int length = copyName(slot);
+		return ByteUtil.decode(scratch, 0, length);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * 部門名を作業用のバイト配列にコピーします。
+	 * 
+	 * @return 部門名の長さ
+	 */
+	private int copyName(int slot) {
+		int entry = HEADER_LENGTH + slot * STRIDE;
+		int offset = buffer.getInt(entry + 4);
+		int length = buffer.getInt(entry + 8);
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = buffer.get(namesStart + offset + i);
+		}
+		return length;
+	}
+
+	private static FileStatus[] listFiles(FileSystem fs, Path path) throws IOException {
+		FileStatus status = fs.getFileStatus(path);
+		if (!status.isDir()) {
+			return new FileStatus[] { status };
+		}
+		FileStatus[] children = fs.listStatus(path);
+		int n = 0;
+		for (FileStatus child : children) {
+			String name = child.getPath().getName();
+			// FileInputFormat と同じく隠しファイルは除外します
+			if (!child.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+				children[n++] = child;
+			}
+		}
+		return Arrays.copyOf(children, n);
+	}
+
+	private static byte[] readFully(FileSystem fs, FileStatus status) throws IOException {
+		byte[] bytes = new byte[(int) status.getLen()];
+		FSDataInputStream in = fs.open(status.getPath());
+		try {
+			IOUtils.readFully(in, bytes, 0, bytes.length);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,32 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * {@code departmentId} から {@code departmentName} を引くための辞書です。
+ * 
+ * @author n3104
+ */
+public interface DepartmentLookup {
+
+	/**
+	 * @param departmentId 部門ID
+	 * @return 部門の位置。存在しない場合は -1
+	 */
+	int find(int departmentId);
+
+	/**
+	 * {@link #find(int)} で取得した位置の部門名を {@code target} の末尾に追加します。
+	 * 
+	 * @param slot 部門の位置
+	 * @param target 追加先
+	 */
+	void appendDepartmentName(int slot, Text target);
+
+	/**
+	 * @param departmentId 部門ID
+	 * @return 部門名。存在しない場合は {@code null}
+	 */
+	String getDepartmentName(int departmentId);
+
+}
@@ -6,6 +6,9 @@ import org.apache.hadoop.io.Text;
 
 /**
  * 部門ファイルを解析します。
+ * <p> {@link EmployeeRecordParser} と同様に {@link Text} のバイト列を直接走査して解析し、
+ * {@code departmentName} は {@link #getDepartmentName()} が呼び出されるまで文字列に変換しません。
+ * </p>
  * 
  * @author n3104
  */
@@ -13,35 +16,62 @@ public class DepartmentRecordParser {
 
 	private static final Log log = LogFactory.getLog(DepartmentRecordParser.class);
 
+	private static final int FIELD_COUNT = 2;
+	private static final byte SEPARATOR = ',';
+
+	private final Text buffer = new Text();
+	private final int[] bounds = new int[FIELD_COUNT + 1];
+
 	private int departmentId;
+	private byte[] bytes;
+	private int departmentNameStart;
+	private int departmentNameLength;
 	private String departmentName;
 	private boolean isValid;
+	private TaskMetrics.InvalidReason invalidReason;
 
 	public void parse(String record) {
-		init();
-		try {
-			String[] values = record.split(",");
-			if (values.length != 2) {
-				log.debug(String.format("要素数が不正です。values.length=%d", values.length));
-				return;
-			}
-			int i = 0;
-			departmentId = Integer.parseInt(values[i++]);
-			departmentName = values[i++];
-			isValid = true;
-		} catch (Exception e) {
-			log.debug("解析に失敗しました。", e);
-		}
+		buffer.set(record);
+		parse(buffer);
 	}
 
 	public void parse(Text record) {
-		parse(record.toString());
+		parse(record.getBytes(), 0, record.getLength());
+	}
+
+	public void parse(byte[] bytes, int start, int length) {
+		init();
+		int count = ByteUtil.split(bytes, start, start + length, SEPARATOR, bounds);
+		if (count != FIELD_COUNT) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("要素数が不正です。values.length=%d", count));
+			}
+			invalidReason = TaskMetrics.InvalidReason.FIELD_COUNT;
+			return;
+		}
+		long id = ByteUtil.tryParseInt(bytes, bounds[0], bounds[1] - 1);
+		if (id == ByteUtil.INVALID_INT) {
+			if (log.isDebugEnabled()) {
+				log.debug("数値項目が不正です。record=" + ByteUtil.decode(bytes, start, length));
+			}
+			invalidReason = TaskMetrics.InvalidReason.NUMBER_FORMAT;
+			return;
+		}
+		departmentId = (int) id;
+		this.bytes = bytes;
+		departmentNameStart = bounds[1];
+		departmentNameLength = bounds[2] - 1 - bounds[1];
+		isValid = true;
 	}
 
 	private void init() {
 		departmentId = 0;
+		bytes = null;
+		departmentNameStart = 0;
+		departmentNameLength = 0;
 		departmentName = null;
 		isValid = false;
+		invalidReason = null;
 	}
 
 	public int getDepartmentId() {
@@ -49,10 +79,33 @@ public class DepartmentRecordParser {
 	}
 
 	public String getDepartmentName() {
+		if (departmentName == null && bytes != null) {
+			departmentName = ByteUtil.decode(bytes, departmentNameStart, departmentNameLength);
+		}
 		return departmentName;
 	}
 
+	/**
+	 * {@code departmentName} を文字列に変換せずに、バイト列のまま {@code target} に設定します。
+	 * 
+	 * @param target 設定先
+	 */
+	public void copyDepartmentNameTo(Text target) {
+		if (bytes == null) {
+			target.clear();
+			return;
+		}
+		target.set(bytes, departmentNameStart, departmentNameLength);
+	}
+
 	public boolean isValid() {
 		return isValid;
 	}
+
+	/**
+	 * @return レコードが不正な理由。正常な場合は {@code null}
+	 */
+	public TaskMetrics.InvalidReason getInvalidReason() {
+		return invalidReason;
+	}
 }
@@ -0,0 +1,134 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TextInputFormat;
+
+/**
+ * 従業員ファイルをサンプリングして、部門ごとの従業員数を推定します。
+ * <p> {@link org.apache.hadoop.mapred.lib.InputSampler.SplitSampler} と同じく、
+ * 入力ファイルの分割ごとに先頭から指定件数を読み込みます。ジョブを実行せずにクライアントで読み込むため、
+ * 読み込む件数は全体の一部に留めてください。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class DepartmentSampler {
+
+	public static final int DEFAULT_RECORDS_PER_SPLIT = 10000;
+	public static final int DEFAULT_MAX_SPLITS = 10;
+
+	private DepartmentSampler() {
+	}
+
+	/**
+	 * ジョブの入力ファイルをサンプリングします。
+	 * 
+	 * @param job 入力ファイルを設定したジョブの設定
+	 * @param recordsPerSplit 分割ごとに読み込む件数
+	 * @param maxSplits 読み込む分割数の上限
+	 * @return key: {@code departmentId}, value: サンプル中の従業員数
+	 */
+	public static SortedMap<Integer, Long> sample(JobConf job, int recordsPerSplit, int maxSplits)
+			throws IOException {
+		if (ColumnarInputFormat.isColumnar(job)) {
+			return sampleColumnar(job, recordsPerSplit, maxSplits);
+		}
+		TextInputFormat inputFormat = new TextInputFormat();
+		inputFormat.configure(job);
+		InputSplit[] splits = inputFormat.getSplits(job, job.getNumMapTasks());
+		// 分割数が多い場合は偏りを避けるため間隔を空けて読み込みます
+		int step = Math.max(1, splits.length / maxSplits);
+		SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		for (int i = 0; i < splits.length; i += step) {
+			RecordReader<LongWritable, Text> reader = inputFormat.getRecordReader(splits[i], job,
+					Reporter.NULL);
+			try {
+				LongWritable key = reader.createKey();
+				Text value = reader.createValue();
+				for (int n = 0; n < recordsPerSplit && reader.next(key, value); n++) {
+					parser.parse(value);
+					if (!parser.isValid()) {
+						continue;
+					}
+					Long count = histogram.get(parser.getDepartmentId());
+					histogram.put(parser.getDepartmentId(), (count == null ? 0 : count) + 1);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * カラムナファイルの {@code departmentId} の列のみを読み込んでサンプリングします。
+	 */
+	private static SortedMap<Integer, Long> sampleColumnar(JobConf job, int recordsPerSplit,
+			int maxSplits) throws IOException {
+		JobConf sampleConf = new JobConf(job);
+		ColumnarInputFormat.setColumns(sampleConf, "departmentId");
+		ColumnarInputFormat inputFormat = new ColumnarInputFormat();
+		InputSplit[] splits = inputFormat.getSplits(sampleConf, sampleConf.getNumMapTasks());
+		int step = Math.max(1, splits.length / maxSplits);
+		SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+		for (int i = 0; i < splits.length; i += step) {
+			RecordReader<NullWritable, Writable> reader = inputFormat.getRecordReader(splits[i],
+					sampleConf, Reporter.NULL);
+			try {
+				NullWritable key = reader.createKey();
+				EmployeeWritable value = (EmployeeWritable) reader.createValue();
+				for (int n = 0; n < recordsPerSplit && reader.next(key, value); n++) {
+					Long count = histogram.get(value.getDepartmentId());
+					histogram.put(value.getDepartmentId(), (count == null ? 0 : count) + 1);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * {@link HotKeyPartitioner#SAMPLE} が {@code true} で、ホットキーが設定されていない場合に、
+	 * サンプリング結果からホットキーを選択して設定します。
+	 * 
+	 * @param job 入力ファイルと Reducer の数を設定したジョブの設定
+	 */
+	public static void configureHotKeys(JobConf job) throws IOException {
+		configureHotKeys(job, FileInputFormat.getInputPaths(job));
+	}
+
+	/**
+	 * {@link #configureHotKeys(JobConf)} と同じですが、ジョブの入力ファイルではなく {@code employeeInputs}
+	 * をサンプリングします。 {@link org.apache.hadoop.mapred.lib.MultipleInputs} を利用するジョブで利用してください。
+	 * 
+	 * @param job Reducer の数を設定したジョブの設定
+	 * @param employeeInputs 従業員ファイル
+	 */
+	public static void configureHotKeys(JobConf job, Path... employeeInputs) throws IOException {
+		if (!job.getBoolean(HotKeyPartitioner.SAMPLE, false) || HotKeyPartitioner.hasHotKeys(job)) {
+			return;
+		}
+		JobConf sampleConf = new JobConf(job);
+		FileInputFormat.setInputPaths(sampleConf, employeeInputs);
+		SortedMap<Integer, Long> histogram = sample(sampleConf, DEFAULT_RECORDS_PER_SPLIT,
+				DEFAULT_MAX_SPLITS);
+		HotKeyPartitioner.setHotKeys(job, HotKeyPartitioner.selectHotKeys(histogram,
+				job.getNumReduceTasks()));
+	}
+
+}
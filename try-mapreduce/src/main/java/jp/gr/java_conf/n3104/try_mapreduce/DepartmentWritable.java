@@ -0,0 +1,142 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * 部門レコードのバイナリ表現です。
+ * <p> {@link EmployeeWritable} と同様に、 {@code departmentId} を可変長整数、
+ * {@code departmentName} を長さ付きの UTF-8 としてシリアライズします。
+ * 比較は {@code departmentId}, {@code departmentName} の順に行います。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class DepartmentWritable implements WritableComparable<DepartmentWritable> {
+
+	private int departmentId;
+	private final Text departmentName = new Text();
+
+	public void set(int departmentId, String departmentName) {
+		this.departmentId = departmentId;
+		this.departmentName.set(departmentName);
+	}
+
+	/**
+	 * {@code departmentName} を文字列に変換せずに設定します。
+	 */
+	public void set(int departmentId, Text departmentName) {
+		this.departmentId = departmentId;
+		this.departmentName.set(departmentName);
+	}
+
+	/**
+	 * 解析済みの部門レコードを設定します。
+	 * <p> {@code departmentName} は文字列に変換せずにバイト列のまま設定します。
+	 * </p>
+	 * 
+	 * @param parser 解析済みの {@link DepartmentRecordParser}
+	 */
+	public void set(DepartmentRecordParser parser) {
+		departmentId = parser.getDepartmentId();
+		parser.copyDepartmentNameTo(departmentName);
+	}
+
+	public void set(DepartmentWritable other) {
+		departmentId = other.departmentId;
+		departmentName.set(other.departmentName);
+	}
+
+	public int getDepartmentId() {
+		return departmentId;
+	}
+
+	public String getDepartmentName() {
+		return departmentName.toString();
+	}
+
+	/**
+	 * {@code departmentName} を UTF-8 のバイト列のまま返します。
+	 * 
+	 * @return {@code departmentName}
+	 */
+	public Text getDepartmentNameText() {
+		return departmentName;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, departmentId);
+		departmentName.write(out);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		departmentId = WritableUtils.readVInt(in);
+		departmentName.readFields(in);
+	}
+
+	@Override
+	public int compareTo(DepartmentWritable o) {
+		if (departmentId != o.departmentId) {
+			return departmentId < o.departmentId ? -1 : 1;
+		}
+		return departmentName.compareTo(o.departmentName);
+	}
+
+	@Override
+	public int hashCode() {
+		return departmentId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof DepartmentWritable)) {
+			return false;
+		}
+		return compareTo((DepartmentWritable) obj) == 0;
+	}
+
+	@Override
+	public String toString() {
+		return departmentId + "," + departmentName;
+	}
+
+	/**
+	 * シリアライズされたバイト列のまま比較する {@link WritableComparator} です。
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(DepartmentWritable.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int c = EmployeeWritable.Comparator.compareVInt(b1, s1, b2, s2);
+				if (c != 0) {
+					return c;
+				}
+				s1 += WritableUtils.decodeVIntSize(b1[s1]);
+				s2 += WritableUtils.decodeVIntSize(b2[s2]);
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				return compareBytes(b1, s1 + n1, readVInt(b1, s1), b2, s2 + n2, readVInt(b2, s2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	static {
+		WritableComparator.define(DepartmentWritable.class, new Comparator());
+	}
+
+}
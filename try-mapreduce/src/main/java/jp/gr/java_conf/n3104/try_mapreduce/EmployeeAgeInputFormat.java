@@ -0,0 +1,116 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+import org.apache.hadoop.mapred.LineRecordReader;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * 従業員ファイルを読み込み、 key=年齢, value=従業員 のレコードを返す {@link FileInputFormat} です。
+ * <p> {@link org.apache.hadoop.mapred.TextInputFormat} の key はファイルのバイトオフセットのため、
+ * {@link org.apache.hadoop.mapred.lib.InputSampler} で年齢をサンプリングするには
+ * 事前に key を年齢とするファイルを作成する必要があります。この {@link FileInputFormat} は
+ * 読み込み時に年齢を取り出すため、テキストファイルをそのままサンプリングやソートの入力に利用出来ます。
+ * </p>
+ * <p>
+ * 不正なレコードは {@link EmployeeWritable} に変換できないため読み飛ばします。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class EmployeeAgeInputFormat extends FileInputFormat<IntWritable, EmployeeWritable>
+		implements JobConfigurable {
+
+	private CompressionCodecFactory compressionCodecs;
+
+	@Override
+	public void configure(JobConf conf) {
+		compressionCodecs = new CompressionCodecFactory(conf);
+	}
+
+	@Override
+	protected boolean isSplitable(FileSystem fs, Path file) {
+		return compressionCodecs.getCodec(file) == null;
+	}
+
+	@Override
+	public RecordReader<IntWritable, EmployeeWritable> getRecordReader(InputSplit split,
+			JobConf job, Reporter reporter) throws IOException {
+		reporter.setStatus(split.toString());
+		return new EmployeeAgeRecordReader(new LineRecordReader(job, (FileSplit) split),
+				new TaskMetrics(job, getClass()), reporter);
+	}
+
+	/**
+	 * {@link LineRecordReader} が返す1行を解析して、年齢と従業員に変換します。
+	 */
+	static class EmployeeAgeRecordReader implements RecordReader<IntWritable, EmployeeWritable> {
+
+		private final LineRecordReader reader;
+		private final LongWritable offset;
+		private final Text line;
+		private final EmployeeRecordParser parser = new EmployeeRecordParser();
+		private final TaskMetrics metrics;
+		private final Reporter reporter;
+
+		EmployeeAgeRecordReader(LineRecordReader reader, TaskMetrics metrics, Reporter reporter) {
+			this.reader = reader;
+			this.metrics = metrics;
+			this.reporter = reporter;
+			this.offset = reader.createKey();
+			this.line = reader.createValue();
+		}
+
+		@Override
+		public boolean next(IntWritable key, EmployeeWritable value) throws IOException {
+			while (reader.next(offset, line)) {
+				parser.parse(line);
+				if (metrics.parsed(reporter, parser, line.getLength())) {
+					key.set(parser.getEmployeeAge());
+					value.set(parser);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public IntWritable createKey() {
+			return new IntWritable();
+		}
+
+		@Override
+		public EmployeeWritable createValue() {
+			return new EmployeeWritable();
+		}
+
+		@Override
+		public long getPos() throws IOException {
+			return reader.getPos();
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			reader.close();
+		}
+	}
+
+}
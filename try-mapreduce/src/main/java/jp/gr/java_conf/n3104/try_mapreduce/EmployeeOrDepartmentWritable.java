@@ -0,0 +1,84 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.GenericWritable;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * {@link EmployeeWritable} と {@link DepartmentWritable} のどちらか一方を保持します。
+ * <p> {@link org.apache.hadoop.mapred.lib.MultipleInputs} を利用して従業員ファイルと部門ファイルを
+ * 同時に処理する場合、 Mapper の出力する value の型を揃える必要があるため、このクラスを利用します。
+ * {@link GenericWritable} と同様に先頭1バイトで型を判別しますが、
+ * {@link #readFields(DataInput)} のたびにインスタンスを生成しないようにしています。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class EmployeeOrDepartmentWritable implements Writable {
+
+	private static final byte EMPLOYEE = 1;
+	private static final byte DEPARTMENT = 2;
+
+	private byte type;
+	private final EmployeeWritable employee = new EmployeeWritable();
+	private final DepartmentWritable department = new DepartmentWritable();
+
+	public void set(EmployeeRecordParser parser) {
+		type = EMPLOYEE;
+		employee.set(parser);
+	}
+
+	public void set(DepartmentRecordParser parser) {
+		type = DEPARTMENT;
+		department.set(parser);
+	}
+
+	public boolean isEmployee() {
+		return type == EMPLOYEE;
+	}
+
+	public boolean isDepartment() {
+		return type == DEPARTMENT;
+	}
+
+	public EmployeeWritable getEmployee() {
+		return employee;
+	}
+
+	public DepartmentWritable getDepartment() {
+		return department;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(type);
+		if (isEmployee()) {
+			employee.write(out);
+		} else if (isDepartment()) {
+			department.write(out);
+		} else {
+			throw new IOException("値が設定されていません。");
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		type = in.readByte();
+		if (isEmployee()) {
+			employee.readFields(in);
+		} else if (isDepartment()) {
+			department.readFields(in);
+		} else {
+			throw new IOException(String.format("不正な型です。type=%d", type));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return isEmployee() ? employee.toString() : department.toString();
+	}
+
+}
@@ -6,6 +6,11 @@ import org.apache.hadoop.io.Text;
 
 /**
  * 従業員ファイルを解析します。
+ * <p> {@link #parse(Text)} は {@link Text} のバイト列を直接走査して解析します。
+ * 数値項目はその場でデコードし、 {@code employeeName} は {@link #getEmployeeName()} が呼び出されるまで
+ * 文字列に変換しません。そのため、解析後に元の {@link Text} を変更した場合、
+ * {@code employeeName} の取得結果は保証されません。
+ * </p>
  * 
  * @author n3104
  */
@@ -13,44 +18,80 @@ public class EmployeeRecordParser {
 
 	private static final Log log = LogFactory.getLog(EmployeeRecordParser.class);
 
+	private static final int FIELD_COUNT = 5;
+	private static final byte SEPARATOR = ',';
+
+	private final Text buffer = new Text();
+	private final int[] bounds = new int[FIELD_COUNT + 1];
+
 	private int employeeId;
+	private byte[] bytes;
+	private int employeeNameStart;
+	private int employeeNameLength;
 	private String employeeName;
 	private int employeeAge;
 	private int employeeSalary;
 	private int departmentId;
 	private boolean isValid;
+	private TaskMetrics.InvalidReason invalidReason;
 
 	public void parse(String record) {
+		buffer.set(record);
+		parse(buffer);
+	}
+
+	public void parse(Text record) {
+		parse(record.getBytes(), 0, record.getLength());
+	}
+
+	public void parse(byte[] bytes, int start, int length) {
 		init();
-		try {
-			String[] values = record.split(",");
-			if (values.length != 5) {
-				log.debug(String.format("要素数が不正です。values.length=%d", values.length));
-				return;
+		int count = ByteUtil.split(bytes, start, start + length, SEPARATOR, bounds);
+		if (count != FIELD_COUNT) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("要素数が不正です。values.length=%d", count));
+			}
+			invalidReason = TaskMetrics.InvalidReason.FIELD_COUNT;
+			return;
+		}
+		// 不正なレコードが多い入力でも例外を生成しないように、解析できない数値項目は ByteUtil.INVALID_INT で判定します
+		long id = parseInt(bytes, 0);
+		long age = parseInt(bytes, 2);
+		long salary = parseInt(bytes, 3);
+		long department = parseInt(bytes, 4);
+		if (id == ByteUtil.INVALID_INT || age == ByteUtil.INVALID_INT
+				|| salary == ByteUtil.INVALID_INT || department == ByteUtil.INVALID_INT) {
+			if (log.isDebugEnabled()) {
+				log.debug("数値項目が不正です。record=" + ByteUtil.decode(bytes, start, length));
 			}
-			int i = 0;
-			employeeId = Integer.parseInt(values[i++]);
-			employeeName = values[i++];
-			employeeAge = Integer.parseInt(values[i++]);
-			employeeSalary = Integer.parseInt(values[i++]);
-			departmentId = Integer.parseInt(values[i++]);
-			isValid = true;
-		} catch (Exception e) {
-			log.debug("解析に失敗しました。", e);
+			invalidReason = TaskMetrics.InvalidReason.NUMBER_FORMAT;
+			return;
 		}
+		employeeId = (int) id;
+		this.bytes = bytes;
+		employeeNameStart = bounds[1];
+		employeeNameLength = bounds[2] - 1 - bounds[1];
+		employeeAge = (int) age;
+		employeeSalary = (int) salary;
+		departmentId = (int) department;
+		isValid = true;
 	}
 
-	public void parse(Text record) {
-		parse(record.toString());
+	private long parseInt(byte[] bytes, int i) {
+		return ByteUtil.tryParseInt(bytes, bounds[i], bounds[i + 1] - 1);
 	}
 
 	private void init() {
 		employeeId = 0;
+		bytes = null;
+		employeeNameStart = 0;
+		employeeNameLength = 0;
 		employeeName = null;
 		employeeAge = 0;
 		employeeSalary = 0;
 		departmentId = 0;
 		isValid = false;
+		invalidReason = null;
 	}
 
 	public int getEmployeeId() {
@@ -58,9 +99,25 @@ public class EmployeeRecordParser {
 	}
 
 	public String getEmployeeName() {
+		if (employeeName == null && bytes != null) {
+			employeeName = ByteUtil.decode(bytes, employeeNameStart, employeeNameLength);
+		}
 		return employeeName;
 	}
 
+	/**
+	 * {@code employeeName} を文字列に変換せずに、バイト列のまま {@code target} に設定します。
+	 * 
+	 * @param target 設定先
+	 */
+	public void copyEmployeeNameTo(Text target) {
+		if (bytes == null) {
+			target.clear();
+			return;
+		}
+		target.set(bytes, employeeNameStart, employeeNameLength);
+	}
+
 	public int getEmployeeAge() {
 		return employeeAge;
 	}
@@ -76,4 +133,11 @@ public class EmployeeRecordParser {
 	public boolean isValid() {
 		return isValid;
 	}
+
+	/**
+	 * @return レコードが不正な理由。正常な場合は {@code null}
+	 */
+	public TaskMetrics.InvalidReason getInvalidReason() {
+		return invalidReason;
+	}
 }
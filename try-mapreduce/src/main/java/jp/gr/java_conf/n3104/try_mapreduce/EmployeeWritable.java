@@ -0,0 +1,224 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * 従業員レコードのバイナリ表現です。
+ * <p>
+ * 従業員ファイルの1行を {@link Text} のまま shuffle すると、 Reducer 側で再度解析する必要があり、
+ * 数値項目も文字列のまま転送されます。このクラスは数値項目を可変長整数、
+ * {@code employeeName} を長さ付きの UTF-8 としてシリアライズするため、転送量を抑えつつ
+ * Reducer 側で解析せずに各項目を参照出来ます。
+ * </p>
+ * <p> {@link #toString()} は従業員ファイルと同じ形式の文字列を返すため、
+ * {@link org.apache.hadoop.mapred.TextOutputFormat} の出力結果は {@link Text} を利用した場合と変わりません。
+ * </p>
+ * <p>
+ * 比較はシリアライズ順（{@code employeeId}, {@code employeeName}, {@code employeeAge},
+ * {@code employeeSalary}, {@code departmentId}）に行います。 {@link Comparator} を登録しているため、
+ * key として利用した場合もデシリアライズせずにソートされます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class EmployeeWritable implements WritableComparable<EmployeeWritable> {
+
+	private int employeeId;
+	private final Text employeeName = new Text();
+	private int employeeAge;
+	private int employeeSalary;
+	private int departmentId;
+
+	public void set(int employeeId, String employeeName, int employeeAge, int employeeSalary,
+			int departmentId) {
+		this.employeeId = employeeId;
+		this.employeeName.set(employeeName);
+		this.employeeAge = employeeAge;
+		this.employeeSalary = employeeSalary;
+		this.departmentId = departmentId;
+	}
+
+	/**
+	 * {@code employeeName} を文字列に変換せずに設定します。
+	 */
+	public void set(int employeeId, Text employeeName, int employeeAge, int employeeSalary,
+			int departmentId) {
+		this.employeeId = employeeId;
+		this.employeeName.set(employeeName);
+		this.employeeAge = employeeAge;
+		this.employeeSalary = employeeSalary;
+		this.departmentId = departmentId;
+	}
+
+	/**
+	 * 解析済みの従業員レコードを設定します。
+	 * <p> {@code employeeName} は文字列に変換せずにバイト列のまま設定します。
+	 * </p>
+	 * 
+	 * @param parser 解析済みの {@link EmployeeRecordParser}
+	 */
+	public void set(EmployeeRecordParser parser) {
+		employeeId = parser.getEmployeeId();
+		parser.copyEmployeeNameTo(employeeName);
+		employeeAge = parser.getEmployeeAge();
+		employeeSalary = parser.getEmployeeSalary();
+		departmentId = parser.getDepartmentId();
+	}
+
+	public void set(EmployeeWritable other) {
+		employeeId = other.employeeId;
+		employeeName.set(other.employeeName);
+		employeeAge = other.employeeAge;
+		employeeSalary = other.employeeSalary;
+		departmentId = other.departmentId;
+	}
+
+	public int getEmployeeId() {
+		return employeeId;
+	}
+
+	public String getEmployeeName() {
+		return employeeName.toString();
+	}
+
+	/**
+	 * {@code employeeName} を UTF-8 のバイト列のまま返します。
+	 * 
+	 * @return {@code employeeName}
+	 */
+	public Text getEmployeeNameText() {
+		return employeeName;
+	}
+
+	public int getEmployeeAge() {
+		return employeeAge;
+	}
+
+	public int getEmployeeSalary() {
+		return employeeSalary;
+	}
+
+	public int getDepartmentId() {
+		return departmentId;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, employeeId);
+		employeeName.write(out);
+		WritableUtils.writeVInt(out, employeeAge);
+		WritableUtils.writeVInt(out, employeeSalary);
+		WritableUtils.writeVInt(out, departmentId);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		employeeId = WritableUtils.readVInt(in);
+		employeeName.readFields(in);
+		employeeAge = WritableUtils.readVInt(in);
+		employeeSalary = WritableUtils.readVInt(in);
+		departmentId = WritableUtils.readVInt(in);
+	}
+
+	@Override
+	public int compareTo(EmployeeWritable o) {
+		if (employeeId != o.employeeId) {
+			return employeeId < o.employeeId ? -1 : 1;
+		}
+		int c = employeeName.compareTo(o.employeeName);
+		if (c != 0) {
+			return c;
+		}
+		if (employeeAge != o.employeeAge) {
+			return employeeAge < o.employeeAge ? -1 : 1;
+		}
+		if (employeeSalary != o.employeeSalary) {
+			return employeeSalary < o.employeeSalary ? -1 : 1;
+		}
+		if (departmentId != o.departmentId) {
+			return departmentId < o.departmentId ? -1 : 1;
+		}
+		return 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return employeeId * 163 + departmentId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof EmployeeWritable)) {
+			return false;
+		}
+		return compareTo((EmployeeWritable) obj) == 0;
+	}
+
+	@Override
+	public String toString() {
+		return employeeId + "," + employeeName + "," + employeeAge + "," + employeeSalary + ","
+				+ departmentId;
+	}
+
+	/**
+	 * シリアライズされたバイト列のまま比較する {@link WritableComparator} です。
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(EmployeeWritable.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int c = compareVInt(b1, s1, b2, s2);
+				if (c != 0) {
+					return c;
+				}
+				s1 += WritableUtils.decodeVIntSize(b1[s1]);
+				s2 += WritableUtils.decodeVIntSize(b2[s2]);
+				// employeeName は Text と同じく長さ＋UTF-8のバイト列
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				int len1 = readVInt(b1, s1);
+				int len2 = readVInt(b2, s2);
+				c = compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+				if (c != 0) {
+					return c;
+				}
+				s1 += n1 + len1;
+				s2 += n2 + len2;
+				for (int i = 0; i < 3; i++) {
+					c = compareVInt(b1, s1, b2, s2);
+					if (c != 0) {
+						return c;
+					}
+					s1 += WritableUtils.decodeVIntSize(b1[s1]);
+					s2 += WritableUtils.decodeVIntSize(b2[s2]);
+				}
+				return 0;
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		static int compareVInt(byte[] b1, int s1, byte[] b2, int s2) throws IOException {
+			int v1 = readVInt(b1, s1);
+			int v2 = readVInt(b2, s2);
+			return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+		}
+	}
+
+	static {
+		WritableComparator.define(EmployeeWritable.class, new Comparator());
+	}
+
+}
@@ -0,0 +1,270 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * int のソートキーを持つレコードを、メモリの上限を超えた場合はローカルディスクに退避しながらソートするバッファです。
+ * <p>
+ * Reducer 内で values をソートする場合、全ての values をオブジェクトのままリストに保持すると、
+ * values の件数が多い key でヒープが不足します。このバッファはレコードをシリアライズして単一のバイト配列に格納し、
+ * ソートキーと格納位置のみを long の配列で管理します。ソートキーは追加時に1回だけ取り出すため、
+ * 比較のたびにレコードを参照することはありません。
+ * </p>
+ * <p>
+ * 使用メモリの見積もりが {@link #MEMORY_LIMIT} を超えた場合は、その時点の内容をソートして
+ * ローカルディスク（{@code mapred.local.dir}）に書き出します。 {@link #sort()} の呼び出し時に書き出したファイルが存在する場合は、
+ * 各ファイルをマージしながら読み出します。同じソートキーのレコードは追加した順に返します。
+ * </p>
+ * <p>
+ * {@link #clear()} を呼び出すと書き出したファイルを削除し、バッファを再利用出来ます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ExternalSortBuffer<V extends Writable> {
+
+	private static final Log log = LogFactory.getLog(ExternalSortBuffer.class);
+
+	/**
+	 * バッファの使用メモリの上限（バイト）の設定名です。
+	 */
+	public static final String MEMORY_LIMIT = "sortbuffer.memory.limit";
+
+	public static final long DEFAULT_MEMORY_LIMIT = 64 * 1024 * 1024;
+
+	/**
+	 * レコード1件あたりの管理領域の見積もりです（ソート用の long と格納位置の int）。
+	 */
+	private static final int ENTRY_OVERHEAD = 8 + 4;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final Configuration conf;
+	private final long memoryLimit;
+	private final LocalDirAllocator allocator = new LocalDirAllocator("mapred.local.dir");
+
+	/** 上位32ビットがソートキー、下位32ビットがレコードの番号です。 */
+	private long[] entries = new long[INITIAL_CAPACITY];
+	private int[] offsets = new int[INITIAL_CAPACITY + 1];
+	private int size;
+	private final DataOutputBuffer arena = new DataOutputBuffer();
+
+	private final List<File> runs = new ArrayList<File>();
+
+	// 読み出し時の状態
+	private final DataInputBuffer in = new DataInputBuffer();
+	private int position = -1;
+	private PriorityQueue<Run> queue;
+	private int key;
+
+	public ExternalSortBuffer(Configuration conf) {
+		this(conf, conf.getLong(MEMORY_LIMIT, DEFAULT_MEMORY_LIMIT));
+	}
+
+	public ExternalSortBuffer(Configuration conf, long memoryLimit) {
+		this.conf = conf;
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * レコードを追加します。
+	 * 
+	 * @param key ソートキー
+	 * @param value レコード。シリアライズして格納するため、呼び出し後に再利用して構いません。
+	 */
+	public void add(int key, V value) throws IOException {
+		if (size == entries.length) {
+			entries = Arrays.copyOf(entries, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2 + 1);
+		}
+		offsets[size] = arena.getLength();
+		value.write(arena);
+		entries[size] = ((long) key << 32) | size;
+		size++;
+		offsets[size] = arena.getLength();
+		if (getMemoryUsage() > memoryLimit) {
+			spill();
+		}
+	}
+
+	private long getMemoryUsage() {
+		return (long) arena.getLength() + (long) size * ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * 追加したレコードをソートし、読み出せる状態にします。
+	 */
+	public void sort() throws IOException {
+		Arrays.sort(entries, 0, size);
+		position = -1;
+		if (runs.isEmpty()) {
+			return;
+		}
+		// 一部をディスクに書き出している場合は、残りも書き出してからマージします
+		if (size > 0) {
+			spill();
+		}
+		queue = new PriorityQueue<Run>(runs.size());
+		for (int i = 0; i < runs.size(); i++) {
+			Run run = new Run(runs.get(i), i);
+			if (run.next()) {
+				queue.add(run);
+			} else {
+				run.close();
+			}
+		}
+	}
+
+	/**
+	 * ソート順で次のレコードを読み出します。
+	 * 
+	 * @param value 読み出し先
+	 * @return レコードが存在する場合は {@code true}
+	 */
+	public boolean next(V value) throws IOException {
+		if (queue == null) {
+			if (++position >= size) {
+				return false;
+			}
+			key = (int) (entries[position] >> 32);
+			int record = (int) entries[position];
+			in.reset(arena.getData(), offsets[record], offsets[record + 1] - offsets[record]);
+			value.readFields(in);
+			return true;
+		}
+		Run run = queue.poll();
+		if (run == null) {
+			return false;
+		}
+		key = run.key;
+		in.reset(run.record, run.length);
+		value.readFields(in);
+		if (run.next()) {
+			queue.add(run);
+		} else {
+			run.close();
+		}
+		return true;
+	}
+
+	/**
+	 * @return 直前に {@link #next(Writable)} で読み出したレコードのソートキー
+	 */
+	public int getKey() {
+		return key;
+	}
+
+	/**
+	 * バッファを空にして、書き出したファイルを削除します。
+	 */
+	public void clear() throws IOException {
+		if (queue != null) {
+			for (Run run : queue) {
+				run.close();
+			}
+			queue = null;
+		}
+		for (File run : runs) {
+			if (!run.delete()) {
+				log.warn("一時ファイルの削除に失敗しました。file=" + run);
+			}
+		}
+		runs.clear();
+		size = 0;
+		position = -1;
+		arena.reset();
+	}
+
+	private void spill() throws IOException {
+		Arrays.sort(entries, 0, size);
+		File file = allocator.createTmpFileForWrite("sortbuffer", getMemoryUsage(), conf);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+				file)));
+		try {
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				int record = (int) entries[i];
+				int length = offsets[record + 1] - offsets[record];
+				out.writeInt((int) (entries[i] >> 32));
+				WritableUtils.writeVInt(out, length);
+				out.write(arena.getData(), offsets[record], length);
+			}
+		} finally {
+			out.close();
+		}
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("ソート済みのレコードを書き出しました。records=%d, bytes=%d, file=%s", size,
+					arena.getLength(), file));
+		}
+		runs.add(file);
+		size = 0;
+		arena.reset();
+	}
+
+	/**
+	 * ディスクに書き出したソート済みのレコード列です。
+	 */
+	private static class Run implements Comparable<Run> {
+
+		private final DataInputStream in;
+		private final int index;
+		private int remaining;
+		private int key;
+		private byte[] record = new byte[64];
+		private int length;
+
+		Run(File file, int index) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			this.index = index;
+			this.remaining = in.readInt();
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			key = in.readInt();
+			length = WritableUtils.readVInt(in);
+			if (record.length < length) {
+				record = new byte[Math.max(length, record.length * 2)];
+			}
+			in.readFully(record, 0, length);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			if (key != o.key) {
+				return key < o.key ? -1 : 1;
+			}
+			// 同じソートキーの場合は先に書き出したファイルのレコードを優先して、追加した順を保ちます
+			return index - o.index;
+		}
+	}
+
+}
@@ -0,0 +1,204 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * key の正確な出現頻度（ヒストグラム）に基づいて範囲分割を行う {@link Partitioner} です。
+ * <p> {@link org.apache.hadoop.mapred.lib.TotalOrderPartitioner} は {@link org.apache.hadoop.mapred.lib.InputSampler}
+ * によるサンプリング結果から分割点を推定するため、年齢のように値の種類が少なく、
+ * 同じ値が大量に存在する key では各 Reducer の担当件数が偏りやすくなります。
+ * このクラスは事前に集計した key ごとの件数から、各 Reducer の担当件数が均等になるように範囲を決定します。
+ * </p>
+ * <p> {@link #setSplitKeys(JobConf, boolean)} で分割を許可した場合、1つの key の件数が
+ * Reducer 1つ分を超えると、その key を複数の Reducer に振り分けます。同じ key の values が
+ * 単一の reduce メソッドに渡らなくなるため、 Reducer が key ごとに集計する場合は分割を許可しないでください。
+ * 分割しても、 Reducer の出力を順番に連結した結果は key でソートされた状態になります。
+ * </p>
+ * <p>
+ * 範囲の情報は {@link #configure(JobConf, SortedMap, int)} でジョブの設定に格納します。
+ * {@link #getPartition(IntWritable, Object, int)} は key の値の範囲が狭い場合は配列の直接参照、
+ * それ以外は二分探索で範囲を特定します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class HistogramPartitioner<V> implements Partitioner<IntWritable, V> {
+
+	/**
+	 * ヒストグラムの集計に利用するカウンタのグループ名です。
+	 */
+	public static final String COUNTER_GROUP = "KeyHistogram";
+
+	public static final String SPLIT_KEYS = "histogram.partitioner.split.keys";
+	public static final String START_KEYS = "histogram.partitioner.start.keys";
+	public static final String FIRST_PARTITIONS = "histogram.partitioner.first.partitions";
+	public static final String LAST_PARTITIONS = "histogram.partitioner.last.partitions";
+
+	/**
+	 * 直接参照用の配列を作成する key の値の範囲の上限です。
+	 */
+	private static final int MAX_DIRECT_TABLE_SIZE = 1 << 16;
+
+	private int[] startKeys;
+	private int[] firstPartitions;
+	private int[] lastPartitions;
+	private int[] directTable;
+
+	/**
+	 * カウンタのグループからヒストグラムを作成します。カウンタ名は key の値である必要があります。
+	 * 
+	 * @param group {@link #COUNTER_GROUP} のカウンタグループ
+	 * @param histogram 格納先
+	 */
+	public static void readHistogram(Counters.Group group, SortedMap<Integer, Long> histogram) {
+		for (Counters.Counter counter : group) {
+			Integer key = Integer.valueOf(counter.getName());
+			Long count = histogram.get(key);
+			histogram.put(key, (count == null ? 0 : count) + counter.getCounter());
+		}
+	}
+
+	public static void setSplitKeys(JobConf conf, boolean splitKeys) {
+		conf.setBoolean(SPLIT_KEYS, splitKeys);
+	}
+
+	/**
+	 * ヒストグラムから各 Reducer の担当範囲を決定し、ジョブの設定に格納します。
+	 * <p>
+	 * key の累積件数を Reducer 数で等分した位置を境界とします。分割が許可されていない場合、
+	 * key は累積件数の中央が含まれる Reducer に割り当てます。
+	 * </p>
+	 * 
+	 * @param conf ジョブの設定
+	 * @param histogram key ごとの件数
+	 * @param numPartitions Reducer の数
+	 */
+	public static void configure(JobConf conf, SortedMap<Integer, Long> histogram,
+			int numPartitions) {
+		boolean splitKeys = conf.getBoolean(SPLIT_KEYS, false);
+		long total = 0;
+		for (long count : histogram.values()) {
+			total += count;
+		}
+		List<int[]> ranges = new ArrayList<int[]>();
+		long cumulative = 0;
+		for (Map.Entry<Integer, Long> entry : histogram.entrySet()) {
+			long start = cumulative;
+			cumulative += entry.getValue();
+			int first;
+			int last;
+			if (splitKeys) {
+				first = toPartition(start, total, numPartitions);
+				last = toPartition(Math.max(start, cumulative - 1), total, numPartitions);
+			} else {
+				first = toPartition((start + cumulative) / 2, total, numPartitions);
+				last = first;
+			}
+			int[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (previous != null && previous[1] == first && previous[2] == last && first == last) {
+				// 同じ Reducer に割り当てられる key は1つの範囲にまとめます
+				continue;
+			}
+			if (previous != null && previous[0] == entry.getKey()) {
+				// 直前に分割した key の直後の範囲を置き換えます
+				ranges.remove(ranges.size() - 1);
+			}
+			ranges.add(new int[] { entry.getKey(), first, last });
+			if (first != last && entry.getKey() != Integer.MAX_VALUE) {
+				// 分割した key の直後から次の範囲を始めて、分割した key のみを複数の Reducer に割り当てます
+				ranges.add(new int[] { entry.getKey() + 1, last, last });
+			}
+		}
+		if (ranges.isEmpty()) {
+			ranges.add(new int[] { Integer.MIN_VALUE, 0, 0 });
+		}
+		String[] startKeys = new String[ranges.size()];
+		String[] firstPartitions = new String[ranges.size()];
+		String[] lastPartitions = new String[ranges.size()];
+		for (int i = 0; i < ranges.size(); i++) {
+			int[] range = ranges.get(i);
+			startKeys[i] = String.valueOf(range[0]);
+			firstPartitions[i] = String.valueOf(range[1]);
+			lastPartitions[i] = String.valueOf(range[2]);
+		}
+		conf.setStrings(START_KEYS, startKeys);
+		conf.setStrings(FIRST_PARTITIONS, firstPartitions);
+		conf.setStrings(LAST_PARTITIONS, lastPartitions);
+		conf.setNumReduceTasks(numPartitions);
+	}
+
+	private static int toPartition(long position, long total, int numPartitions) {
+		if (total == 0) {
+			return 0;
+		}
+		return (int) Math.min(position * numPartitions / total, numPartitions - 1);
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		startKeys = toInts(job.getStrings(START_KEYS));
+		firstPartitions = toInts(job.getStrings(FIRST_PARTITIONS));
+		lastPartitions = toInts(job.getStrings(LAST_PARTITIONS));
+		if (startKeys.length == 0) {
+			throw new IllegalStateException(START_KEYS + " が設定されていません。");
+		}
+		long width = (long) startKeys[startKeys.length - 1] - startKeys[0] + 1;
+		if (width <= MAX_DIRECT_TABLE_SIZE) {
+			directTable = new int[(int) width];
+			int range = 0;
+			for (int i = 0; i < directTable.length; i++) {
+				while (range + 1 < startKeys.length && startKeys[range + 1] <= startKeys[0] + i) {
+					range++;
+				}
+				directTable[i] = range;
+			}
+		}
+	}
+
+	@Override
+	public int getPartition(IntWritable key, V value, int numPartitions) {
+		int range = findRange(key.get());
+		int first = firstPartitions[range];
+		int span = lastPartitions[range] - first + 1;
+		int partition = first;
+		if (span > 1) {
+			partition += (value.hashCode() & Integer.MAX_VALUE) % span;
+		}
+		// 設定時と Reducer の数が異なる場合でも範囲外にならないようにしています
+		return Math.min(partition, numPartitions - 1);
+	}
+
+	private int findRange(int key) {
+		if (key <= startKeys[0]) {
+			return 0;
+		}
+		if (directTable != null) {
+			long offset = (long) key - startKeys[0];
+			return offset < directTable.length ? directTable[(int) offset] : startKeys.length - 1;
+		}
+		int i = Arrays.binarySearch(startKeys, key);
+		// 見つからない場合は key 以下で最大の開始位置を持つ範囲
+		return i >= 0 ? i : -i - 2;
+	}
+
+	private static int[] toInts(String[] values) {
+		if (values == null) {
+			return new int[0];
+		}
+		int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ints[i] = Integer.parseInt(values[i]);
+		}
+		return ints;
+	}
+
+}
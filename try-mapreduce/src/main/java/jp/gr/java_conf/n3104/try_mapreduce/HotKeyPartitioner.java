@@ -0,0 +1,204 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * 件数の多い key（ホットキー）を複数の Reducer に分散させる {@link Partitioner} です。
+ * <p>
+ * key の hash 値で Reducer を決定すると、一部の部門に従業員が集中している場合に
+ * その部門を担当する Reducer の処理時間が突出します。このクラスは {@link #HOT_KEYS}
+ * で指定したホットキーのレコードを、 hash 値で決まる Reducer から連続する指定数の Reducer に value の hash 値で振り分けます。
+ * 振り分け先はレコードのみから決まるため、 Map タスクの数や処理順、再実行に関わらず同じ Reducer に振り分けられます。
+ * ホットキー以外は {@link org.apache.hadoop.mapred.lib.HashPartitioner} と同様に hash 値で振り分けます。
+ * </p>
+ * <p>
+ * ホットキーは複数の Reducer で処理されるため、 Reducer の出力を結合する必要があります。
+ * 集計の場合は各 Reducer の出力を併合する後続の処理が必要です。ソートの場合は
+ * 各 Reducer の出力がそれぞれソートされた状態になります。
+ * </p>
+ * <p>
+ * ホットキーは {@link #selectHotKeys(SortedMap, int)} で key ごとの件数から選択します。
+ * 件数は {@link DepartmentSampler} によるサンプリングや、前回実行したジョブのカウンタ
+ * （{@link HistogramPartitioner#readHistogram(org.apache.hadoop.mapred.Counters.Group, SortedMap)}）
+ * から取得してください。
+ * </p>
+ * 
+ * @author n3104
+ */
+public abstract class HotKeyPartitioner<K, V> implements Partitioner<K, V> {
+
+	/**
+	 * ホットキーと分散させる Reducer の数の設定名です。 {@code "key:数,key:数"} の形式で指定します。
+	 */
+	public static final String HOT_KEYS = "hotkey.partitioner.keys";
+
+	/**
+	 * ホットキーをサンプリングで決定するかどうかの設定名です。デフォルトは {@code false} です。
+	 */
+	public static final String SAMPLE = "hotkey.partitioner.sample";
+
+	/**
+	 * key: ホットキー, value: 分散させる Reducer の数
+	 */
+	private Map<Integer, Integer> hotKeys;
+
+	/**
+	 * key ごとの件数から、1つの Reducer の担当件数の平均を超える key をホットキーとして選択します。
+	 * 分散させる Reducer の数は、件数を平均で割った値（切り上げ）です。
+	 * 
+	 * @param histogram key ごとの件数
+	 * @param numPartitions Reducer の数
+	 * @return key: ホットキー, value: 分散させる Reducer の数
+	 */
+	public static Map<Integer, Integer> selectHotKeys(SortedMap<Integer, Long> histogram,
+			int numPartitions) {
+		long total = 0;
+		for (long count : histogram.values()) {
+			total += count;
+		}
+		Map<Integer, Integer> hotKeys = new LinkedHashMap<Integer, Integer>();
+		double share = (double) total / numPartitions;
+		for (Map.Entry<Integer, Long> entry : histogram.entrySet()) {
+			int shards = (int) Math.min(numPartitions, Math.ceil(entry.getValue() / share));
+			if (shards > 1) {
+				hotKeys.put(entry.getKey(), shards);
+			}
+		}
+		return hotKeys;
+	}
+
+	public static void setHotKeys(JobConf conf, Map<Integer, Integer> hotKeys) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, Integer> entry : hotKeys.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(entry.getKey()).append(':').append(entry.getValue());
+		}
+		conf.set(HOT_KEYS, sb.toString());
+	}
+
+	/**
+	 * @param conf ジョブの設定
+	 * @return ホットキーが設定されている場合は {@code true}
+	 */
+	public static boolean hasHotKeys(JobConf conf) {
+		String value = conf.get(HOT_KEYS);
+		return value != null && value.trim().length() > 0;
+	}
+
+	/**
+	 * {@link #HOT_KEYS} の設定を解析します。分散させる Reducer の数が1以下の key は除外します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @return key: ホットキー, value: 分散させる Reducer の数
+	 */
+	public static Map<Integer, Integer> getHotKeys(JobConf conf) {
+		Map<Integer, Integer> hotKeys = new LinkedHashMap<Integer, Integer>();
+		for (String hotKey : conf.getStrings(HOT_KEYS, new String[0])) {
+			String[] values = hotKey.trim().split(":");
+			if (values.length != 2) {
+				throw new IllegalArgumentException(HOT_KEYS + " の形式が不正です。value=" + hotKey);
+			}
+			int shards = Integer.parseInt(values[1]);
+			if (shards > 1) {
+				hotKeys.put(Integer.valueOf(values[0]), shards);
+			}
+		}
+		return hotKeys;
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		hotKeys = new HashMap<Integer, Integer>(getHotKeys(job));
+	}
+
+	@Override
+	public int getPartition(K key, V value, int numPartitions) {
+		int partition = (hashCode(key) & Integer.MAX_VALUE) % numPartitions;
+		Integer shards = hotKeys.isEmpty() ? null : hotKeys.get(getHotKey(key));
+		if (shards == null) {
+			return partition;
+		}
+		// 並列に実行される Map タスクでも同じ結果になるように、状態を持たずに value から振り分け先を決定します
+		int shard = (mix(shardHashCode(value)) & Integer.MAX_VALUE) % shards;
+		return (partition + shard) % numPartitions;
+	}
+
+	/**
+	 * 連続する値の hash 値が連続する振り分け先に偏らないように、ビットを攪拌します。
+	 */
+	static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @return ホットキーと照合する値
+	 */
+	protected abstract int getHotKey(K key);
+
+	/**
+	 * @return ホットキー以外の振り分けに利用する hash 値
+	 */
+	protected abstract int hashCode(K key);
+
+	/**
+	 * @return ホットキーを分散させる Reducer の決定に利用する hash 値
+	 */
+	protected int shardHashCode(V value) {
+		return value.hashCode();
+	}
+
+	/**
+	 * {@link IntWritable} の key を振り分けます。
+	 */
+	public static class IntKey<V> extends HotKeyPartitioner<IntWritable, V> {
+
+		@Override
+		protected int getHotKey(IntWritable key) {
+			return key.get();
+		}
+
+		@Override
+		protected int hashCode(IntWritable key) {
+			return key.hashCode();
+		}
+	}
+
+	/**
+	 * {@link CompositeKey} の key を先頭の項目で振り分けます。ホットキー以外は
+	 * {@link SortSpec.KeyPartitioner} と同じく {@link SortSpec#GROUPING_FIELDS} の項目の hash 値で振り分けます。
+	 */
+	public static class CompositeKeyPrefix<V> extends HotKeyPartitioner<CompositeKey, V> {
+
+		private int groupingFields;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			groupingFields = job.getInt(SortSpec.GROUPING_FIELDS, 1);
+		}
+
+		@Override
+		protected int getHotKey(CompositeKey key) {
+			return key.get(0);
+		}
+
+		@Override
+		protected int hashCode(CompositeKey key) {
+			return key.hashCode(groupingFields);
+		}
+	}
+
+}
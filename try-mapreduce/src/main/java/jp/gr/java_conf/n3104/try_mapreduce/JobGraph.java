@@ -0,0 +1,289 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+
+/**
+ * 依存関係のある複数の MapReduce ジョブを並行して実行します。
+ * <p> {@link org.apache.hadoop.mapred.JobClient#runJob(JobConf)} はジョブの完了を待つため、複数のジョブを順番に呼び出すと
+ * 互いに依存しないジョブも1つずつ実行されます。このクラスは {@link #add(String, JobConf, Stage...)}
+ * で登録したジョブ（ステージ）のうち、依存するステージが全て完了したものを
+ * {@link ParallelJobRunner#submitJob(JobConf)} で順次投入し、依存関係のないステージを同時に実行します。
+ * </p>
+ * <p>
+ * 依存関係は、ステージの入力ディレクトリ（ {@link FileInputFormat#getInputPaths(JobConf)} ）が
+ * 他のステージの出力ディレクトリ（ {@link FileOutputFormat#getOutputPath(JobConf)} ）と同じか、
+ * その配下である場合に自動的に設定します。カウンタなどファイル以外に依存する場合は明示的に指定してください。
+ * 出力が他のステージの入力となるステージには {@link CompressionProfile#INTERMEDIATE_OUTPUT} を設定します。
+ * ジョブの設定を前のステージの結果から決める場合は、 {@link Stage#configure(JobConf)} をオーバーライドします。
+ * </p>
+ * <p>
+ * {@link org.apache.hadoop.mapred.jobcontrol.JobControl} と異なり、完了の確認間隔を
+ * {@link #POLL_INTERVAL} で指定出来ます。全てのステージが完了すると、ステージごとの開始時刻と処理時間をログに出力します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class JobGraph {
+
+	private static final Log log = LogFactory.getLog(JobGraph.class);
+
+	/**
+	 * ジョブの完了を確認する間隔（ミリ秒）の設定名です。デフォルトは {@link #DEFAULT_POLL_INTERVAL} です。
+	 */
+	public static final String POLL_INTERVAL = "jobgraph.poll.interval";
+
+	public static final long DEFAULT_POLL_INTERVAL = 500;
+
+	private final String name;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private long startTime;
+	private long finishTime;
+
+	public JobGraph(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * ステージを登録します。
+	 * 
+	 * @param name ステージ名
+	 * @param conf ジョブの設定
+	 * @param dependencies 入出力ディレクトリ以外で依存するステージ
+	 * @return 登録したステージ
+	 */
+	public Stage add(String name, JobConf conf, Stage... dependencies) {
+		return add(new Stage(name, conf, dependencies));
+	}
+
+	/**
+	 * ステージを登録します。ジョブ名が設定されていない場合は {@code グラフ名.ステージ名} をジョブ名とします。
+	 * 
+	 * @param stage ステージ
+	 * @return 登録したステージ
+	 */
+	public Stage add(Stage stage) {
+		for (Stage other : stages) {
+			if (other.isUpstreamOf(stage)) {
+				other.conf.setBoolean(CompressionProfile.INTERMEDIATE_OUTPUT, true);
+				if (!stage.dependencies.contains(other)) {
+					stage.dependencies.add(other);
+				}
+			}
+		}
+		if (stage.conf.getJobName().length() == 0) {
+			stage.conf.setJobName(name + "." + stage.name);
+		}
+		stages.add(stage);
+		return stage;
+	}
+
+	/**
+	 * 全てのステージを実行し、完了を待ちます。
+	 * 
+	 * @throws IOException ステージが失敗した場合。実行中の他のステージは中断します
+	 */
+	public void run() throws IOException {
+		startTime = System.currentTimeMillis();
+		List<Stage> pending = new ArrayList<Stage>(stages);
+		List<Stage> running = new ArrayList<Stage>();
+		try {
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				for (int i = 0; i < pending.size();) {
+					Stage stage = pending.get(i);
+					if (stage.isReady()) {
+						stage.submit();
+						running.add(stage);
+						pending.remove(i);
+					} else {
+						i++;
+					}
+				}
+				if (running.isEmpty()) {
+					throw new IOException("依存関係を解決できないステージがあります。stages=" + pending);
+				}
+				sleep(stages.get(0).conf.getLong(POLL_INTERVAL, DEFAULT_POLL_INTERVAL));
+				for (int i = 0; i < running.size();) {
+					Stage stage = running.get(i);
+					if (stage.poll()) {
+						running.remove(i);
+					} else {
+						i++;
+					}
+				}
+			}
+		} finally {
+			for (Stage stage : running) {
+				stage.kill();
+			}
+			finishTime = System.currentTimeMillis();
+		}
+		if (log.isInfoEnabled()) {
+			log.info(getReport());
+		}
+	}
+
+	/**
+	 * @return ステージごとの開始時刻（グラフの開始からの経過時間）と処理時間
+	 */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s: %dms", name, finishTime - startTime));
+		for (Stage stage : stages) {
+			sb.append(String.format("%n  %-16s %-24s start=%6dms elapsed=%6dms", stage.name,
+					stage.job == null ? "-" : stage.job.getID(), stage.submitTime - startTime, stage
+							.getElapsedTime()));
+		}
+		return sb.toString();
+	}
+
+	public List<Stage> getStages() {
+		return Collections.unmodifiableList(stages);
+	}
+
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("中断されました。");
+		}
+	}
+
+	/**
+	 * グラフに登録するジョブです。
+	 */
+	public static class Stage {
+
+		private final String name;
+		private final JobConf conf;
+		private final List<Stage> dependencies;
+		private RunningJob job;
+		private long submitTime;
+		private long finishTime;
+
+		public Stage(String name, JobConf conf, Stage... dependencies) {
+			this.name = name;
+			this.conf = conf;
+			this.dependencies = new ArrayList<Stage>(Arrays.asList(dependencies));
+		}
+
+		/**
+		 * ジョブを投入する直前に呼び出されます。依存するステージは全て完了しています。
+		 * 
+		 * @param conf ジョブの設定
+		 */
+		protected void configure(JobConf conf) throws IOException {
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return 依存するステージ。入出力ディレクトリから設定したものを含みます
+		 */
+		public List<Stage> getDependencies() {
+			return Collections.unmodifiableList(dependencies);
+		}
+
+		/**
+		 * @return 完了したジョブ。投入前は {@code null}
+		 */
+		public RunningJob getRunningJob() {
+			return job;
+		}
+
+		/**
+		 * @return 投入から完了までの時間（ミリ秒）
+		 */
+		public long getElapsedTime() {
+			return finishTime - submitTime;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		private boolean isUpstreamOf(Stage stage) {
+			Path output = FileOutputFormat.getOutputPath(conf);
+			if (output == null) {
+				return false;
+			}
+			String prefix = qualify(output, conf) + Path.SEPARATOR;
+			for (Path input : FileInputFormat.getInputPaths(stage.conf)) {
+				if ((qualify(input, stage.conf) + Path.SEPARATOR).startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean isReady() {
+			for (Stage dependency : dependencies) {
+				if (dependency.finishTime == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void submit() throws IOException {
+			configure(conf);
+			submitTime = System.currentTimeMillis();
+			job = ParallelJobRunner.submitJob(conf);
+			if (log.isInfoEnabled()) {
+				log.info(String.format("ステージを開始しました。stage=%s, job=%s", name, job.getID()));
+			}
+		}
+
+		/**
+		 * @return ジョブが完了した場合は {@code true}
+		 * @throws IOException ジョブが失敗した場合
+		 */
+		private boolean poll() throws IOException {
+			if (!job.isComplete()) {
+				return false;
+			}
+			finishTime = System.currentTimeMillis();
+			if (!job.isSuccessful()) {
+				throw new IOException("ステージが失敗しました。stage=" + name + ", job=" + job.getID());
+			}
+			if (log.isInfoEnabled()) {
+				log.info(String.format("ステージが完了しました。stage=%s, job=%s", name, job.getID()));
+				job.getCounters().log(log);
+			}
+			ParallelJobRunner.fireJobCompleted(conf, conf.getJobName(), job.getCounters());
+			return true;
+		}
+
+		private void kill() {
+			try {
+				job.killJob();
+			} catch (IOException e) {
+				log.warn("ステージを中断できませんでした。stage=" + name, e);
+			}
+		}
+
+		private static String qualify(Path path, JobConf conf) {
+			try {
+				return path.makeQualified(path.getFileSystem(conf)).toString();
+			} catch (IOException e) {
+				return path.toString();
+			}
+		}
+	}
+
+}
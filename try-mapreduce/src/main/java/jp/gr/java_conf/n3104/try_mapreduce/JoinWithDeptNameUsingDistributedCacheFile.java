@@ -2,19 +2,17 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -26,67 +24,238 @@ import org.apache.hadoop.util.ToolRunner;
 
 /**
  * 分散キャッシュファイルを利用して、従業員ファイルに部門名をジョインします。
+ * <p>
+ * 部門ファイルは全ての Mapper に配布されるため、 Mapper で {@link DepartmentDictionary}
+ * に読み込んで部門名をジョインし、 Reducer を利用せずに出力します（Broadcast Join）。
+ * 従業員レコードの shuffle が発生しないため、ジョインの処理は Map のみで完了します。
+ * </p>
+ * <p>
+ * 部門ファイルのサイズが {@link #MAX_DICTIONARY_BYTES} を超える場合は、各 Mapper のヒープに収まらない可能性があるため、
+ * 従業員レコードを {@code departmentId} で shuffle し、 Reducer で部門名をジョインします。
+ * </p>
+ * <p> {@link #DEPARTMENT_INDEX} が {@code true} の場合は、ジョブの実行前に部門ファイルを {@link DepartmentIndex}
+ * の辞書ファイルに変換して配布します。各タスクは部門ファイルを解析せずに辞書ファイルをメモリにマップして参照するため、
+ * 部門ファイルのサイズに関わらず Mapper のみでジョインします。
+ * </p>
+ * <p>
+ * いずれの方法でも、部門ファイルに存在しない部門の従業員は出力しません（内部結合）。
+ * 出力しなかった従業員の数は {@link TaskMetrics.Counter#JOIN_MISSES} に記録します。
+ * </p>
  * 
  * @author n3104
  */
 public class JoinWithDeptNameUsingDistributedCacheFile extends Configured implements Tool {
 
-	public static class EmployeeMapper extends MapReduceBase implements
+	/**
+	 * Mapper で部門名をジョインする部門ファイルのサイズの上限（バイト）の設定名です。
+	 * デフォルトは {@link #DEFAULT_MAX_DICTIONARY_BYTES} です。
+	 */
+	public static final String MAX_DICTIONARY_BYTES = "broadcastjoin.dictionary.max.bytes";
+
+	public static final long DEFAULT_MAX_DICTIONARY_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * 部門ファイルを {@link DepartmentIndex} の辞書ファイルに変換して配布するかどうかの設定名です。デフォルトは {@code false} です。
+	 */
+	public static final String DEPARTMENT_INDEX = "broadcastjoin.department.index";
+
+	/**
+	 * 分散キャッシュファイルとして配布する部門ファイルの名前です。
+	 */
+	static final String DEPARTMENT_FILE = "Department.txt";
+
+	private static final byte[] SEPARATOR = { ',' };
+
+	/**
+	 * 部門名をジョインして出力します。不正なレコードと部門が存在しない従業員は出力しません。
+	 */
+	public static class BroadcastJoinMapper extends MapReduceBase implements
 			Mapper<Object, Text, IntWritable, Text> {
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private DepartmentLookup dictionary;
+		private IntWritable departmentId = new IntWritable();
+		private Text outValue = new Text();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			dictionary = loadDepartments(job);
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
 
 		@Override
 		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
 				Reporter reporter) throws IOException {
 			parser.parse(value);
-			output.collect(new IntWritable(parser.getDepartmentId()), value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			int slot = dictionary.find(parser.getDepartmentId());
+			metrics.joined(slot >= 0);
+			if (slot < 0) {
+				return;
+			}
+			// 部門名と従業員レコードをバイト列のまま連結します
+			departmentId.set(parser.getDepartmentId());
+			outValue.clear();
+			dictionary.appendDepartmentName(slot, outValue);
+			outValue.append(SEPARATOR, 0, SEPARATOR.length);
+			outValue.append(value.getBytes(), 0, value.getLength());
+			output.collect(departmentId, outValue);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
-	public static class JoinWithDepartmentNameReducer extends MapReduceBase implements
-			Reducer<IntWritable, Text, IntWritable, Text> {
+	public static class EmployeeMapper extends MapReduceBase implements
+			Mapper<Object, Text, IntWritable, EmployeeWritable> {
 
-		private Map<Integer, String> departmentMap = new HashMap<Integer, String>();
+		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private EmployeeWritable employee = new EmployeeWritable();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
 
 		@Override
 		public void configure(JobConf job) {
-			try {
-				String departmentFile = "Department.txt";
-				DepartmentRecordParser parser = new DepartmentRecordParser();
-				for (String record : FileUtils.readLines(new File(departmentFile), "UTF-8")) {
-					parser.parse(record);
-					departmentMap.put(parser.getDepartmentId(), parser.getDepartmentName());
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
+
+		@Override
+		public void map(Object key, Text value, OutputCollector<IntWritable, EmployeeWritable> output,
+				Reporter reporter) throws IOException {
+			parser.parse(value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				// 不正なレコードは EmployeeWritable に変換できないため除外します
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
 			}
+			employee.set(parser);
+			output.collect(new IntWritable(parser.getDepartmentId()), employee);
+			metrics.emitted();
 		}
 
 		@Override
-		public void reduce(IntWritable key, Iterator<Text> values,
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
+		}
+	}
+
+	public static class JoinWithDepartmentNameReducer extends MapReduceBase implements
+			Reducer<IntWritable, EmployeeWritable, IntWritable, Text> {
+
+		private DepartmentLookup dictionary;
+		private TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			dictionary = loadDepartments(job);
+			metrics = new TaskMetrics(job, getClass());
+		}
+
+		@Override
+		public void reduce(IntWritable key, Iterator<EmployeeWritable> values,
 				OutputCollector<IntWritable, Text> output, Reporter reporter) throws IOException {
-			String departmentName = departmentMap.get(key.get());
+			String departmentName = dictionary.getDepartmentName(key.get());
+			int count = 0;
 			while (values.hasNext()) {
-				Text outValue = new Text(departmentName + "," + values.next().toString());
-				output.collect(key, outValue);
+				EmployeeWritable employee = values.next();
+				count++;
+				metrics.joined(departmentName != null);
+				// BroadcastJoinMapper と同じく、部門が存在しない従業員は出力しません
+				if (departmentName != null) {
+					output.collect(key, new Text(departmentName + "," + employee.toString()));
+				}
 			}
+			metrics.group(reporter, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
 	@Override
 	public int run(String[] args) throws Exception {
 		JobConf conf = new JobConf(getConf(), getClass());
-		conf.setMapperClass(EmployeeMapper.class);
-		conf.setReducerClass(JoinWithDepartmentNameReducer.class);
+		Path departmentFile = getDepartmentFile(conf);
+		Path indexDir = new Path(args[1] + "_index");
+		boolean useIndex = departmentFile != null && conf.getBoolean(DEPARTMENT_INDEX, false);
+		if (useIndex) {
+			// 辞書ファイルはヒープに読み込まないため、部門ファイルのサイズに関わらずMapperのみでジョインします
+			DepartmentIndex.configure(conf, departmentFile, new Path(indexDir, "department.index"));
+			conf.setMapperClass(BroadcastJoinMapper.class);
+			conf.setNumReduceTasks(0);
+		} else if (departmentFile != null
+				&& departmentFile.getFileSystem(conf).getFileStatus(departmentFile).getLen() <= conf
+						.getLong(MAX_DICTIONARY_BYTES, DEFAULT_MAX_DICTIONARY_BYTES)) {
+			// Mapperのみでジョインします
+			conf.setMapperClass(BroadcastJoinMapper.class);
+			conf.setNumReduceTasks(0);
+		} else {
+			// 部門ファイルが大きい場合はReducerでジョインします
+			conf.setMapperClass(EmployeeMapper.class);
+			conf.setMapOutputValueClass(EmployeeWritable.class);
+			conf.setReducerClass(JoinWithDepartmentNameReducer.class);
+		}
 		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(Text.class);
 		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		Quarantine.configure(conf);
 		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
-		JobClient.runJob(conf);
+		try {
+			ParallelJobRunner.runJob(conf);
+		} finally {
+			if (useIndex) {
+				FileSystem fs = indexDir.getFileSystem(conf);
+				fs.delete(indexDir, true);
+			}
+		}
 		return 0;
 	}
 
+	/**
+	 * 部門名の辞書を読み込みます。辞書ファイルが配布されている場合はそれを、そうでない場合は部門ファイルを読み込みます。
+	 * 
+	 * @param job ジョブの設定
+	 * @return 部門名の辞書
+	 */
+	static DepartmentLookup loadDepartments(JobConf job) {
+		try {
+			DepartmentLookup index = DepartmentIndex.open(job);
+			return index != null ? index : DepartmentDictionary.load(new File(DEPARTMENT_FILE));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * -files オプションで指定された部門ファイルを返します。
+	 * 
+	 * @return 部門ファイル。部門ファイルが指定されていない場合は {@code null}
+	 */
+	private static Path getDepartmentFile(JobConf conf) {
+		// GenericOptionsParser は -files オプションの値を tmpfiles に設定します
+		for (String file : conf.getStrings("tmpfiles", new String[0])) {
+			Path path = new Path(file);
+			if (path.getName().equals(DEPARTMENT_FILE)) {
+				return path;
+			}
+		}
+		return null;
+	}
+
 	public static void main(String[] args) throws Exception {
 		// 引数を固定で設定
 		String files = "-files";
@@ -10,7 +10,6 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.KeyValueTextInputFormat;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -30,22 +29,53 @@ import org.apache.hadoop.util.ToolRunner;
  * なお、このプログラムでは事前準備を行うため、ジョイン用のジョブの他に、
  * 従業員ファイルと部門ファイルを {@code departmentId} でソートするジョブを実行しています。
  * そのため、単一のプログラム内で3つの MapReduce ジョブを実行しています。
+ * 2つのソートのジョブは互いに依存しないため、 {@link JobGraph} で同時に実行します。
+ * </p>
+ * <p>
+ * ソートしたファイルは {@link BucketedTable} として保存し、入力ファイルが変更されていなければ次回の実行時に再利用します。
+ * {@link #BUCKETED_DIR} で出力ディレクトリの外に保存先を指定すると、2回目以降はジョイン用のジョブのみを実行します。
  * </p>
  * 
  * @author n3104
  */
 public class JoinWithDeptNameUsingMapSideJoin extends Configured implements Tool {
 
+	/**
+	 * ソートしたファイルの保存先の設定名です。デフォルトは出力ディレクトリです。
+	 */
+	public static final String BUCKETED_DIR = "mapsidejoin.bucketed.dir";
+
+	private static final String KEY = "departmentId";
+
 	public static class EmployeeMapper extends MapReduceBase implements
 			Mapper<Object, Text, IntWritable, Text> {
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
 
 		@Override
 		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
 				Reporter reporter) throws IOException {
 			parser.parse(value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
 			output.collect(new IntWritable(parser.getDepartmentId()), value);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
@@ -53,40 +83,56 @@ public class JoinWithDeptNameUsingMapSideJoin extends Configured implements Tool
 			Mapper<Object, Text, IntWritable, Text> {
 
 		private DepartmentRecordParser parser = new DepartmentRecordParser();
+		private Text departmentName = new Text();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
 
 		@Override
 		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
 				Reporter reporter) throws IOException {
 			parser.parse(value);
-			output.collect(new IntWritable(parser.getDepartmentId()),
-					new Text(parser.getDepartmentName()));
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			parser.copyDepartmentNameTo(departmentName);
+			output.collect(new IntWritable(parser.getDepartmentId()), departmentName);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	@Override
 	public int run(String[] args) throws Exception {
-		Path sortedEmployeeFileDir = new Path(args[2] + "/Employee");
-		Path sortedDepartmentFileDir = new Path(args[2] + "/Department");
+		Path employeeInput = new Path(args[0]);
+		Path departmentInput = new Path(args[1]);
+		Path bucketedDir = new Path(getConf().get(BUCKETED_DIR, args[2]));
+		Path sortedEmployeeFileDir = new Path(bucketedDir, "Employee");
+		Path sortedDepartmentFileDir = new Path(bucketedDir, "Department");
 		Path outputDir = new Path(args[2] + "/Result");
-		{
-			// 従業員ファイルを部門でソート
-			JobConf conf = new JobConf(getConf(), getClass());
-			conf.setMapperClass(EmployeeMapper.class);
-			conf.setOutputKeyClass(IntWritable.class);
-			conf.setOutputValueClass(Text.class);
-			FileInputFormat.addInputPath(conf, new Path(args[0]));
-			FileOutputFormat.setOutputPath(conf, sortedEmployeeFileDir);
-			JobClient.runJob(conf);
+		int buckets = BucketedTable.getBuckets(new JobConf(getConf(), getClass()));
+		JobGraph graph = new JobGraph(getClass().getSimpleName());
+		// 従業員ファイルと部門ファイルを部門でソート。2つのジョブは互いに依存しないため同時に実行します
+		JobConf sortEmployees = prepare(EmployeeMapper.class, employeeInput, sortedEmployeeFileDir,
+				buckets);
+		if (sortEmployees != null) {
+			graph.add("Employee", sortEmployees);
 		}
-		{
-			// 部門ファイルを部門でソート
-			JobConf conf = new JobConf(getConf(), getClass());
-			conf.setMapperClass(DepartmentMapper.class);
-			conf.setOutputKeyClass(IntWritable.class);
-			conf.setOutputValueClass(Text.class);
-			FileInputFormat.addInputPath(conf, new Path(args[1]));
-			FileOutputFormat.setOutputPath(conf, sortedDepartmentFileDir);
-			JobClient.runJob(conf);
+		JobConf sortDepartments = prepare(DepartmentMapper.class, departmentInput,
+				sortedDepartmentFileDir, buckets);
+		if (sortDepartments != null) {
+			graph.add("Department", sortDepartments);
 		}
 		{
 			// ソートされた従業員ファイルと部門ファイルをジョイン
@@ -99,11 +145,45 @@ public class JoinWithDeptNameUsingMapSideJoin extends Configured implements Tool
 			conf.setOutputKeyClass(Text.class);
 			conf.setOutputValueClass(TupleWritable.class);
 			FileOutputFormat.setOutputPath(conf, outputDir);
-			JobClient.runJob(conf);
+			graph.add("Join", conf);
+		}
+		graph.run();
+		if (sortEmployees != null) {
+			BucketedTable.create(sortEmployees, sortedEmployeeFileDir, KEY, employeeInput);
+		}
+		if (sortDepartments != null) {
+			BucketedTable.create(sortDepartments, sortedDepartmentFileDir, KEY, departmentInput);
 		}
 		return 0;
 	}
 
+	/**
+	 * 入力ファイルを部門でソートするジョブの設定を返します。
+	 * 
+	 * @param mapperClass ソートに利用する Mapper
+	 * @param input 入力ファイル
+	 * @param path データセットのディレクトリ
+	 * @param buckets バケット数
+	 * @return ジョブの設定。最新のデータセットが存在する場合は {@code null}
+	 */
+	private JobConf prepare(Class<? extends Mapper<?, ?, ?, ?>> mapperClass, Path input,
+			Path path, int buckets) throws IOException {
+		JobConf conf = new JobConf(getConf(), getClass());
+		BucketedTable table = BucketedTable.open(conf, path);
+		if (table != null && table.isUpToDate(conf, input, KEY) && table.getBuckets() == buckets) {
+			return null;
+		}
+		path.getFileSystem(conf).delete(path, true);
+		conf.setMapperClass(mapperClass);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(Text.class);
+		conf.setNumReduceTasks(buckets);
+		FileInputFormat.addInputPath(conf, input);
+		Quarantine.configure(conf);
+		FileOutputFormat.setOutputPath(conf, path);
+		return conf;
+	}
+
 	public static void main(String[] args) throws Exception {
 		// 引数を固定で設定
 		String employee = "input/Employee";
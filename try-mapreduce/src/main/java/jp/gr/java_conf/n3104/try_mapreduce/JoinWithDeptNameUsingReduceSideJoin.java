@@ -2,23 +2,21 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
-
-import jp.gr.java_conf.n3104.try_mapreduce.SortByDeptAndAgeUsingSecondarySort.FirstPartitioner;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.examples.SecondarySort.FirstGroupingComparator;
-import org.apache.hadoop.examples.SecondarySort.IntPair;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.TextInputFormat;
@@ -34,58 +32,233 @@ import org.apache.hadoop.util.ToolRunner;
  * Secondary Sort を利用して Reducer で受け取るデータの順番を制御します。
  * このプログラムの場合は、 Reducer で受け取る values の先頭に部門名が来るようにして、
  * それ以降の値は従業員レコードになるようにしています。
+ * 複合キーのソート順は {@link SortSpec} で {@link #SORT_SPEC} のように宣言しています。
+ * </p>
+ * <p>
+ * 部門ファイルに存在しない部門の従業員は部門名をジョインできないため出力しません（内部結合）。
+ * 出力しなかった従業員の数は {@link TaskMetrics.Counter#JOIN_MISSES} に記録します。
+ * </p>
+ * <p>
+ * 従業員数の多い部門は単一の reduce メソッドの呼び出しで全ての従業員を処理することになるため、
+ * ジョイン全体の処理時間がその部門を担当する Reducer に左右されます。
+ * {@link HotKeyPartitioner#HOT_KEYS} を設定するか、 {@link HotKeyPartitioner#SAMPLE} を {@code true} に設定すると、
+ * ホットキーの部門の従業員レコードに {@code salt} を付与して指定数のグループに分割し、
+ * 部門レコードは全ての {@code salt} に複製して出力します（{@link #SKEW_SORT_SPEC}）。
+ * 各グループの先頭には引き続き部門レコードが来るため、 Reducer の処理は変わらず、ジョインの結果も変わりません。
+ * {@code salt} は {@code employeeId} から決定し、各グループは {@link SaltPartitioner} で別々の Reducer に振り分けます。
+ * </p>
+ * <p> {@link DepartmentBloomFilter#ENABLED} を {@code true} に設定すると、部門ファイルから作成した
+ * {@link DepartmentBloomFilter} を利用して、部門が存在しない従業員を Mapper で除外します。
  * </p>
  * 
  * @author n3104
  */
 public class JoinWithDeptNameUsingReduceSideJoin extends Configured implements Tool {
 
+	/**
+	 * 複合キーのソート順です。 {@code recordType} は部門レコードが従業員レコードより先になるように設定します。
+	 */
+	public static final String SORT_SPEC = "departmentId asc, recordType asc";
+
+	/**
+	 * ホットキーを分割する場合の複合キーのソート順です。 {@code departmentId} と {@code salt} でグルーピングします。
+	 */
+	public static final String SKEW_SORT_SPEC = "departmentId asc, salt asc, recordType asc";
+
 	public static class EmployeeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntPair, Text> {
+			Mapper<Object, Text, CompositeKey, EmployeeOrDepartmentWritable> {
 
 		private static final int EMPLOYEE_KEY = 2;
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private EmployeeOrDepartmentWritable employee = new EmployeeOrDepartmentWritable();
+		private CompositeKey compositeKey;
+		private int recordTypeIndex;
+		private int saltIndex = -1;
+		// key: ホットキーの部門, value: salt の数
+		private Map<Integer, Integer> salts = new HashMap<Integer, Integer>();
+		private DepartmentBloomFilter departmentFilter;
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+			try {
+				departmentFilter = DepartmentBloomFilter.load(job);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			SortSpec spec = SortSpec.get(job);
+			compositeKey = spec.newKey();
+			recordTypeIndex = spec.indexOf("recordType");
+			if (spec.size() > 2) {
+				saltIndex = spec.indexOf("salt");
+				salts = HotKeyPartitioner.getHotKeys(job);
+			}
+		}
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntPair, Text> output,
-				Reporter reporter) throws IOException {
+		public void map(Object key, Text value,
+				OutputCollector<CompositeKey, EmployeeOrDepartmentWritable> output, Reporter reporter)
+				throws IOException {
 			parser.parse(value);
-			IntPair intPair = new IntPair();
-			intPair.set(parser.getDepartmentId(), EMPLOYEE_KEY);
-			output.collect(intPair, value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				// 不正なレコードは EmployeeWritable に変換できないため除外します
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			if (departmentFilter != null && !departmentFilter.mightContain(parser.getDepartmentId())) {
+				// 部門が存在しない従業員はジョインされないため shuffle せずに除外します
+				reporter.incrCounter(DepartmentBloomFilter.Counter.PRUNED_RECORDS, 1);
+				metrics.joined(false);
+				return;
+			}
+			compositeKey.set(0, parser.getDepartmentId());
+			compositeKey.set(recordTypeIndex, EMPLOYEE_KEY);
+			if (saltIndex >= 0) {
+				// ホットキーの部門の従業員には employeeId から決めた salt を付与して分割します
+				Integer count = salts.get(parser.getDepartmentId());
+				int salt = 0;
+				if (count != null) {
+					salt = (HotKeyPartitioner.mix(parser.getEmployeeId()) & Integer.MAX_VALUE) % count;
+				}
+				compositeKey.set(saltIndex, salt);
+			}
+			employee.set(parser);
+			output.collect(compositeKey, employee);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	public static class DepartmentMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntPair, Text> {
+			Mapper<Object, Text, CompositeKey, EmployeeOrDepartmentWritable> {
 
 		private static final int DEPARTMENT_KEY = 1;
 
 		private DepartmentRecordParser parser = new DepartmentRecordParser();
+		private EmployeeOrDepartmentWritable department = new EmployeeOrDepartmentWritable();
+		private CompositeKey compositeKey;
+		private int recordTypeIndex;
+		private int saltIndex = -1;
+		private Map<Integer, Integer> hotKeys = new HashMap<Integer, Integer>();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntPair, Text> output,
-				Reporter reporter) throws IOException {
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+			SortSpec spec = SortSpec.get(job);
+			compositeKey = spec.newKey();
+			recordTypeIndex = spec.indexOf("recordType");
+			if (spec.size() > 2) {
+				saltIndex = spec.indexOf("salt");
+				hotKeys = HotKeyPartitioner.getHotKeys(job);
+			}
+		}
+
+		@Override
+		public void map(Object key, Text value,
+				OutputCollector<CompositeKey, EmployeeOrDepartmentWritable> output, Reporter reporter)
+				throws IOException {
 			parser.parse(value);
-			IntPair intPair = new IntPair();
-			intPair.set(parser.getDepartmentId(), DEPARTMENT_KEY);
-			output.collect(intPair, new Text(parser.getDepartmentName()));
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			compositeKey.set(0, parser.getDepartmentId());
+			compositeKey.set(recordTypeIndex, DEPARTMENT_KEY);
+			department.set(parser);
+			if (saltIndex < 0) {
+				output.collect(compositeKey, department);
+				metrics.emitted();
+				return;
+			}
+			// ホットキーの部門は全ての salt に複製して、分割した各グループの先頭に部門レコードが来るようにします
+			Integer salts = hotKeys.get(parser.getDepartmentId());
+			for (int salt = 0; salt < (salts == null ? 1 : salts); salt++) {
+				compositeKey.set(saltIndex, salt);
+				output.collect(compositeKey, department);
+				metrics.emitted();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
+		}
+	}
+
+	/**
+	 * {@code departmentId} の hash 値で決まる Reducer から {@code salt} の分だけずらした Reducer に振り分けます。
+	 * {@code departmentId} と {@code salt} の hash 値で振り分けると、同じ部門の異なる {@code salt}
+	 * が同じ Reducer に集まる場合があるため、 {@code salt} は Reducer の位置に直接対応させています。
+	 */
+	public static class SaltPartitioner<V> implements Partitioner<CompositeKey, V> {
+
+		private int saltIndex;
+
+		@Override
+		public void configure(JobConf job) {
+			saltIndex = SortSpec.get(job).indexOf("salt");
+		}
+
+		@Override
+		public int getPartition(CompositeKey key, V value, int numPartitions) {
+			int partition = (key.hashCode(1) & Integer.MAX_VALUE) % numPartitions;
+			return (partition + key.get(saltIndex)) % numPartitions;
 		}
 	}
 
 	public static class JoinWithDepartmentNameReducer extends MapReduceBase implements
-			Reducer<IntPair, Text, IntWritable, Text> {
+			Reducer<CompositeKey, EmployeeOrDepartmentWritable, IntWritable, Text> {
+
+		private Text outValue = new Text();
+		private TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+		}
 
 		@Override
-		public void reduce(IntPair key, Iterator<Text> values,
+		public void reduce(CompositeKey key, Iterator<EmployeeOrDepartmentWritable> values,
 				OutputCollector<IntWritable, Text> output, Reporter reporter) throws IOException {
-			IntWritable departmentId = new IntWritable(key.getFirst());
-			String departmentName = values.next().toString();
+			IntWritable departmentId = new IntWritable(key.get(0));
+			EmployeeOrDepartmentWritable first = values.next();
+			int count = 1;
+			if (!first.isDepartment()) {
+				// 部門レコードが存在しない従業員はジョインできないため出力しません
+				metrics.joined(false);
+				for (; values.hasNext(); values.next()) {
+					metrics.joined(false);
+					count++;
+				}
+				metrics.group(reporter, count);
+				return;
+			}
+			String departmentName = first.getDepartment().getDepartmentName();
 			while (values.hasNext()) {
-				Text outValue = new Text(departmentName + "," + values.next().toString());
+				outValue.set(departmentName + "," + values.next().getEmployee());
 				output.collect(departmentId, outValue);
+				metrics.joined(true);
+				count++;
 			}
+			metrics.group(reporter, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
@@ -97,17 +270,34 @@ public class JoinWithDeptNameUsingReduceSideJoin extends Configured implements T
 				EmployeeMapper.class);
 		MultipleInputs.addInputPath(conf, new Path(args[1]), TextInputFormat.class,
 				DepartmentMapper.class);
+		Quarantine.configure(conf);
 		FileOutputFormat.setOutputPath(conf, new Path(args[2]));
 
-		conf.setMapOutputKeyClass(IntPair.class);
-		conf.setPartitionerClass(FirstPartitioner.class);
-		conf.setOutputValueGroupingComparator(FirstGroupingComparator.class);
+		DepartmentSampler.configureHotKeys(conf, new Path(args[0]));
+		// 部門が存在しない従業員をMapperで除外するためのフィルタを作成します
+		Path filterFile = new Path(args[2] + "_semijoin", "department.bloom");
+		boolean semiJoin = DepartmentBloomFilter.configure(conf, new Path(args[1]), filterFile);
+		if (HotKeyPartitioner.hasHotKeys(conf)) {
+			// departmentId と salt でグルーピングし、salt ごとに異なる Reducer に振り分けます
+			SortSpec.parse(SKEW_SORT_SPEC).configure(conf, 2);
+			conf.setPartitionerClass(SaltPartitioner.class);
+		} else {
+			SortSpec.parse(SORT_SPEC).configure(conf, 1);
+		}
+		conf.setMapOutputValueClass(EmployeeOrDepartmentWritable.class);
 
 		conf.setReducerClass(JoinWithDepartmentNameReducer.class);
 		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(Text.class);
 
-		JobClient.runJob(conf);
+		try {
+			ParallelJobRunner.runJob(conf);
+		} finally {
+			// ジョブが失敗した場合もフィルタのファイルを残さないように削除します
+			if (semiJoin) {
+				filterFile.getFileSystem(conf).delete(filterFile.getParent(), true);
+			}
+		}
 		return 0;
 	}
 
@@ -0,0 +1,438 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * {@link ParallelJobRunner} の Map タスクの出力を、パーティションと key の順にソートしてローカルディスクに書き出すバッファです。
+ * <p>
+ * 出力されたレコードはシリアライズして単一のバイト配列に格納し、パーティション番号と格納位置のみを int の配列で管理します。
+ * バイト配列と管理領域の合計が {@code memoryLimit} を超えた場合と {@link #flush()} の呼び出し時に、
+ * レコードを {@link JobConf#getOutputKeyComparator()} でソートしてファイル（スピル）に書き出します。
+ * ソートは安定ソートのため、同じ key のレコードは出力された順に並びます。 Combiner を指定した場合は、
+ * 書き出す前にパーティションごとに Combiner を適用します。
+ * </p>
+ * <p>
+ * スピルはパーティションの順にレコードを並べ、パーティションの終わりに長さ -1 の終端を書き込んだファイルです。
+ * 各パーティションの開始位置は {@link Spill#getOffset(int)} で取得し、 {@link SpillMerger} で読み込みます。
+ * {@code mapred.compress.map.output} が {@code true} の場合は、パーティションごとに
+ * {@code mapred.map.output.compression.codec} で圧縮します（終端も圧縮の対象です）。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class MapOutputBuffer implements OutputCollector<Object, Object> {
+
+	/**
+	 * スピルを書き出す前に適用する Combiner です。
+	 */
+	public interface Combiner {
+
+		/**
+		 * @param input ソート済みのレコード
+		 * @param output 出力先
+		 */
+		void combine(RawKeyValueIterator input, OutputCollector<Object, Object> output)
+				throws IOException;
+	}
+
+	/**
+	 * パーティション番号を決定します。
+	 */
+	public interface Partitioner {
+
+		int getPartition(Object key, Object value, int numPartitions);
+	}
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * レコード1件あたりの管理領域（パーティション番号、 key と value の開始位置、ソート用の番号2つ）です。
+	 */
+	private static final int ENTRY_OVERHEAD = 4 * 5;
+
+	private final JobConf conf;
+	private final Reporter reporter;
+	private final int numPartitions;
+	private final Partitioner partitioner;
+	private final Combiner combiner;
+	private final RawComparator<?> comparator;
+	private final CompressionCodec codec;
+	private final long memoryLimit;
+	private final LocalDirAllocator allocator = new LocalDirAllocator("mapred.local.dir");
+
+	private final Class<?> keyClass;
+	private final Class<?> valueClass;
+	private final Serializer<Object> keySerializer;
+	private final Serializer<Object> valueSerializer;
+
+	private final DataOutputBuffer data = new DataOutputBuffer();
+	private int[] partitions = new int[INITIAL_CAPACITY];
+	private int[] keyStarts = new int[INITIAL_CAPACITY];
+	private int[] valueStarts = new int[INITIAL_CAPACITY];
+	private int size;
+
+	private final List<Spill> spills = new ArrayList<Spill>();
+
+	/**
+	 * @param conf タスクの設定
+	 * @param reporter カウンタの出力先
+	 * @param numPartitions パーティション数
+	 * @param partitioner パーティション番号を決定する {@link Partitioner}
+	 * @param combiner Combiner。適用しない場合は {@code null}
+	 * @param memoryLimit スピルを書き出すまでにバッファに格納するバイト数
+	 */
+	@SuppressWarnings("unchecked")
+	public MapOutputBuffer(JobConf conf, Reporter reporter, int numPartitions,
+			Partitioner partitioner, Combiner combiner, long memoryLimit) throws IOException {
+		this.conf = conf;
+		this.reporter = reporter;
+		this.numPartitions = numPartitions;
+		this.partitioner = partitioner;
+		this.combiner = combiner;
+		this.comparator = conf.getOutputKeyComparator();
+		this.codec = conf.getCompressMapOutput() ? ReflectionUtils.newInstance(conf
+				.getMapOutputCompressorClass(DefaultCodec.class), conf) : null;
+		this.memoryLimit = memoryLimit;
+		this.keyClass = conf.getMapOutputKeyClass();
+		this.valueClass = conf.getMapOutputValueClass();
+		SerializationFactory factory = new SerializationFactory(conf);
+		this.keySerializer = (Serializer<Object>) factory.getSerializer(keyClass);
+		this.valueSerializer = (Serializer<Object>) factory.getSerializer(valueClass);
+		keySerializer.open(data);
+		valueSerializer.open(data);
+	}
+
+	@Override
+	public void collect(Object key, Object value) throws IOException {
+		if (key.getClass() != keyClass) {
+			throw new IOException("Type mismatch in key from map: expected " + keyClass.getName()
+					+ ", recieved " + key.getClass().getName());
+		}
+		if (value.getClass() != valueClass) {
+			throw new IOException("Type mismatch in value from map: expected "
+					+ valueClass.getName() + ", recieved " + value.getClass().getName());
+		}
+		int partition = partitioner.getPartition(key, value, numPartitions);
+		if (partition < 0 || partition >= numPartitions) {
+			throw new IOException("Illegal partition for " + key + " (" + partition + ")");
+		}
+		if (size == partitions.length) {
+			partitions = Arrays.copyOf(partitions, size * 2);
+			keyStarts = Arrays.copyOf(keyStarts, size * 2);
+			valueStarts = Arrays.copyOf(valueStarts, size * 2);
+		}
+		int start = data.getLength();
+		partitions[size] = partition;
+		keyStarts[size] = start;
+		keySerializer.serialize(key);
+		valueStarts[size] = data.getLength();
+		valueSerializer.serialize(value);
+		size++;
+		reporter.incrCounter(ParallelJobRunner.TASK_COUNTER_GROUP, "MAP_OUTPUT_RECORDS", 1);
+		reporter.incrCounter(ParallelJobRunner.TASK_COUNTER_GROUP, "MAP_OUTPUT_BYTES", data.getLength() - start);
+		if (data.getLength() + (long) size * ENTRY_OVERHEAD >= memoryLimit) {
+			spill();
+		}
+	}
+
+	/**
+	 * バッファに残っているレコードを書き出します。
+	 * 
+	 * @return 書き出した全てのスピル
+	 */
+	public List<Spill> flush() throws IOException {
+		if (size > 0 || spills.isEmpty()) {
+			spill();
+		}
+		return spills;
+	}
+
+	/**
+	 * @return これまでに書き出したスピル。タスクが失敗した場合の削除に利用します
+	 */
+	public List<Spill> getSpills() {
+		return spills;
+	}
+
+	private void spill() throws IOException {
+		int[] order = sort();
+		File file = allocator.createTmpFileForWrite("spill", data.getLength(), conf);
+		long[] offsets = new long[numPartitions];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+				file)));
+		Compressor compressor = codec != null ? CodecPool.getCompressor(codec) : null;
+		boolean written = false;
+		try {
+			SpillWriter writer = new SpillWriter(out, compressor);
+			int next = 0;
+			for (int partition = 0; partition < numPartitions; partition++) {
+				offsets[partition] = out.size();
+				writer.start();
+				int end = next;
+				while (end < size && partitions[order[end]] == partition) {
+					end++;
+				}
+				if (combiner != null && end > next) {
+					combiner.combine(new BufferIterator(order, next, end), writer);
+				} else {
+					for (int i = next; i < end; i++) {
+						writer.write(order[i]);
+					}
+				}
+				writer.finish();
+				next = end;
+			}
+			written = true;
+		} finally {
+			CodecPool.returnCompressor(compressor);
+			out.close();
+			if (!written) {
+				file.delete();
+			}
+		}
+		spills.add(new Spill(file, offsets, codec));
+		size = 0;
+		data.reset();
+	}
+
+	/**
+	 * @return パーティションと key の順に並べたレコードの番号
+	 */
+	private int[] sort() {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		mergeSort(order.clone(), order, 0, size);
+		return order;
+	}
+
+	/**
+	 * {@code src} の {@code [from, to)} をソートして {@code dest} に格納します（安定ソート）。
+	 */
+	private void mergeSort(int[] src, int[] dest, int from, int to) {
+		if (to - from < 7) {
+			for (int i = from; i < to; i++) {
+				for (int j = i; j > from && compare(dest[j - 1], dest[j]) > 0; j--) {
+					int tmp = dest[j];
+					dest[j] = dest[j - 1];
+					dest[j - 1] = tmp;
+				}
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(dest, src, from, mid);
+		mergeSort(dest, src, mid, to);
+		if (compare(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, from, dest, from, to - from);
+			return;
+		}
+		for (int i = from, p = from, q = mid; i < to; i++) {
+			if (q >= to || p < mid && compare(src[p], src[q]) <= 0) {
+				dest[i] = src[p++];
+			} else {
+				dest[i] = src[q++];
+			}
+		}
+	}
+
+	private int compare(int i, int j) {
+		if (partitions[i] != partitions[j]) {
+			return partitions[i] < partitions[j] ? -1 : 1;
+		}
+		byte[] bytes = data.getData();
+		return comparator.compare(bytes, keyStarts[i], valueStarts[i] - keyStarts[i], bytes,
+				keyStarts[j], valueStarts[j] - keyStarts[j]);
+	}
+
+	private int recordEnd(int record) {
+		return record + 1 < size ? keyStarts[record + 1] : data.getLength();
+	}
+
+	/**
+	 * スピルにレコードを書き込みます。 Combiner の出力はシリアライズしてから書き込みます。
+	 * パーティションごとに {@link #start()} と {@link #finish()} を呼び出します。
+	 */
+	private class SpillWriter implements OutputCollector<Object, Object> {
+
+		private final DataOutputStream file;
+		private final Compressor compressor;
+		private final DataOutputBuffer buffer = new DataOutputBuffer();
+		private final Serializer<Object> keySerializer;
+		private final Serializer<Object> valueSerializer;
+		private CompressionOutputStream compressed;
+		private DataOutputStream out;
+
+		@SuppressWarnings("unchecked")
+		SpillWriter(DataOutputStream file, Compressor compressor) throws IOException {
+			this.file = file;
+			this.compressor = compressor;
+			SerializationFactory factory = new SerializationFactory(conf);
+			this.keySerializer = (Serializer<Object>) factory.getSerializer(keyClass);
+			this.valueSerializer = (Serializer<Object>) factory.getSerializer(valueClass);
+			keySerializer.open(buffer);
+			valueSerializer.open(buffer);
+		}
+
+		/**
+		 * パーティションの書き込みを開始します。圧縮する場合は、パーティションごとに独立して読み込めるように
+		 * 新しい圧縮ストリームを作成します。
+		 */
+		void start() throws IOException {
+			if (codec == null) {
+				out = file;
+				return;
+			}
+			if (compressor != null) {
+				compressor.reset();
+			}
+			compressed = codec.createOutputStream(file, compressor);
+			out = new DataOutputStream(compressed);
+		}
+
+		/**
+		 * パーティションの終端を書き込みます。スピルのファイルは閉じません。
+		 */
+		void finish() throws IOException {
+			WritableUtils.writeVInt(out, -1);
+			if (compressed != null) {
+				out.flush();
+				compressed.finish();
+				compressed = null;
+			}
+		}
+
+		void write(int record) throws IOException {
+			byte[] bytes = data.getData();
+			int keyLength = valueStarts[record] - keyStarts[record];
+			int valueLength = recordEnd(record) - valueStarts[record];
+			WritableUtils.writeVInt(out, keyLength);
+			WritableUtils.writeVInt(out, valueLength);
+			out.write(bytes, keyStarts[record], keyLength);
+			out.write(bytes, valueStarts[record], valueLength);
+			reporter.incrCounter(ParallelJobRunner.TASK_COUNTER_GROUP, "SPILLED_RECORDS", 1);
+		}
+
+		@Override
+		public void collect(Object key, Object value) throws IOException {
+			buffer.reset();
+			keySerializer.serialize(key);
+			int keyLength = buffer.getLength();
+			valueSerializer.serialize(value);
+			WritableUtils.writeVInt(out, keyLength);
+			WritableUtils.writeVInt(out, buffer.getLength() - keyLength);
+			out.write(buffer.getData(), 0, buffer.getLength());
+			reporter.incrCounter(ParallelJobRunner.TASK_COUNTER_GROUP, "COMBINE_OUTPUT_RECORDS", 1);
+			reporter.incrCounter(ParallelJobRunner.TASK_COUNTER_GROUP, "SPILLED_RECORDS", 1);
+		}
+	}
+
+	/**
+	 * バッファ内のソート済みのレコードを順に返します。
+	 */
+	private class BufferIterator implements RawKeyValueIterator {
+
+		private final int[] order;
+		private final int end;
+		private int position;
+		private final DataInputBuffer key = new DataInputBuffer();
+		private final DataInputBuffer value = new DataInputBuffer();
+		private final Progress progress = new Progress();
+
+		BufferIterator(int[] order, int start, int end) {
+			this.order = order;
+			this.position = start - 1;
+			this.end = end;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (++position >= end) {
+				return false;
+			}
+			int record = order[position];
+			byte[] bytes = data.getData();
+			key.reset(bytes, keyStarts[record], valueStarts[record] - keyStarts[record]);
+			value.reset(bytes, valueStarts[record], recordEnd(record) - valueStarts[record]);
+			return true;
+		}
+
+		@Override
+		public DataInputBuffer getKey() throws IOException {
+			return key;
+		}
+
+		@Override
+		public DataInputBuffer getValue() throws IOException {
+			return value;
+		}
+
+		@Override
+		public Progress getProgress() {
+			return progress;
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+	}
+
+	/**
+	 * 書き出したスピルのファイルと、各パーティションの開始位置です。
+	 */
+	public static class Spill {
+
+		private final File file;
+		private final long[] offsets;
+		private final CompressionCodec codec;
+
+		Spill(File file, long[] offsets, CompressionCodec codec) {
+			this.file = file;
+			this.offsets = offsets;
+			this.codec = codec;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getOffset(int partition) {
+			return offsets[partition];
+		}
+
+		/**
+		 * @return パーティションの圧縮に使用したコーデック。圧縮していない場合は {@code null}
+		 */
+		public CompressionCodec getCodec() {
+			return codec;
+		}
+	}
+
+}
@@ -10,7 +10,6 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -28,47 +27,129 @@ import org.apache.hadoop.util.ToolRunner;
  * 単一の MapReduce プログラムで同時に複数の種類の Mapper を利用する {@link MultipleInputs} のサンプルです。
  * 複数の種類の Mapper の出力をキーでまとめて単一の種類の Reducer で処理することが出来ます。
  * </p>
+ * <p> {@link DepartmentBloomFilter#ENABLED} を {@code true} に設定すると、部門ファイルから作成した
+ * {@link DepartmentBloomFilter} を利用して、部門が存在しない従業員を Mapper で除外します。
+ * この場合、部門が存在しない従業員は出力されません。
+ * </p>
  * 
  * @author n3104
  */
 public class MergeByDepartmentUsingMultipleInputs extends Configured implements Tool {
 
 	public static class EmployeeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, Text> {
+			Mapper<Object, Text, IntWritable, EmployeeOrDepartmentWritable> {
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private EmployeeOrDepartmentWritable employee = new EmployeeOrDepartmentWritable();
+		private DepartmentBloomFilter departmentFilter;
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
-				Reporter reporter) throws IOException {
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+			try {
+				departmentFilter = DepartmentBloomFilter.load(job);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void map(Object key, Text value,
+				OutputCollector<IntWritable, EmployeeOrDepartmentWritable> output, Reporter reporter)
+				throws IOException {
 			parser.parse(value);
-			output.collect(new IntWritable(parser.getDepartmentId()), value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				// 不正なレコードは EmployeeWritable に変換できないため除外します
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			if (departmentFilter != null && !departmentFilter.mightContain(parser.getDepartmentId())) {
+				// 部門が存在しない従業員は shuffle せずに除外します
+				reporter.incrCounter(DepartmentBloomFilter.Counter.PRUNED_RECORDS, 1);
+				return;
+			}
+			employee.set(parser);
+			output.collect(new IntWritable(parser.getDepartmentId()), employee);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	public static class DepartmentMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, Text> {
+			Mapper<Object, Text, IntWritable, EmployeeOrDepartmentWritable> {
 
 		private DepartmentRecordParser parser = new DepartmentRecordParser();
+		private EmployeeOrDepartmentWritable department = new EmployeeOrDepartmentWritable();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
-				Reporter reporter) throws IOException {
+		public void map(Object key, Text value,
+				OutputCollector<IntWritable, EmployeeOrDepartmentWritable> output, Reporter reporter)
+				throws IOException {
 			parser.parse(value);
-			output.collect(new IntWritable(parser.getDepartmentId()),
-					new Text(parser.getDepartmentName()));
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			department.set(parser);
+			output.collect(new IntWritable(parser.getDepartmentId()), department);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	public static class MergeByDepartmentReducer extends MapReduceBase implements
-			Reducer<IntWritable, Text, IntWritable, Text> {
+			Reducer<IntWritable, EmployeeOrDepartmentWritable, IntWritable, Text> {
+
+		private Text outValue = new Text();
+		private TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+		}
 
 		@Override
-		public void reduce(IntWritable key, Iterator<Text> values,
+		public void reduce(IntWritable key, Iterator<EmployeeOrDepartmentWritable> values,
 				OutputCollector<IntWritable, Text> output, Reporter reporter) throws IOException {
+			int count = 0;
 			while (values.hasNext()) {
-				output.collect(key, values.next());
+				count++;
+				EmployeeOrDepartmentWritable value = values.next();
+				if (value.isDepartment()) {
+					// 部門は部門名のみを出力します
+					outValue.set(value.getDepartment().getDepartmentNameText());
+				} else {
+					outValue.set(value.getEmployee().toString());
+				}
+				output.collect(key, outValue);
 			}
+			metrics.group(reporter, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
@@ -80,13 +161,21 @@ public class MergeByDepartmentUsingMultipleInputs extends Configured implements
 				EmployeeMapper.class);
 		MultipleInputs.addInputPath(conf, new Path(args[1]), TextInputFormat.class,
 				DepartmentMapper.class);
+		Quarantine.configure(conf);
 		FileOutputFormat.setOutputPath(conf, new Path(args[2]));
+		// 部門が存在しない従業員をMapperで除外するためのフィルタを作成します
+		Path filterFile = new Path(args[2] + "_semijoin", "department.bloom");
+		boolean semiJoin = DepartmentBloomFilter.configure(conf, new Path(args[1]), filterFile);
 
+		conf.setMapOutputValueClass(EmployeeOrDepartmentWritable.class);
 		conf.setReducerClass(MergeByDepartmentReducer.class);
 		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(Text.class);
 
-		JobClient.runJob(conf);
+		ParallelJobRunner.runJob(conf);
+		if (semiJoin) {
+			filterFile.getFileSystem(conf).delete(filterFile.getParent(), true);
+		}
 		return 0;
 	}
 
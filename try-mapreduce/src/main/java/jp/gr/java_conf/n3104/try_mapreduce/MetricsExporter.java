@@ -0,0 +1,164 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
+
+/**
+ * 完了したジョブのカウンタを Prometheus のテキスト形式でファイルに出力します。
+ * <p>
+ * {@link #EXPORT_DIR} を設定した場合のみ、 {@link ParallelJobRunner} で実行したジョブが成功すると
+ * そのディレクトリに {@code ジョブ名.prom} という名前で出力します。デフォルトでは出力しません。ファイルは一時ファイルに書き込んでから名前を変更するため、
+ * node_exporter の textfile collector などから書き込み途中の内容が読み込まれることはありません。
+ * </p>
+ * <p> {@link TaskMetrics} のカウンタは個別のメトリクスとして、その他のカウンタは
+ * {@code mapreduce_counter} の {@code group} と {@code counter} ラベルで区別して出力します。
+ * {@link TaskMetrics#MAX_GROUP_SIZE_GROUP} は Reduce タスクごとの値の最大値をゲージとして出力します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class MetricsExporter {
+
+	private static final Log log = LogFactory.getLog(MetricsExporter.class);
+
+	/**
+	 * メトリクスファイルの出力先のディレクトリの設定名です。ローカルファイルシステムに出力します。
+	 * 同名のシステムプロパティでも指定出来ます（例： {@code -Dmetrics.export.dir=target/metrics} ）。
+	 * デフォルトは未設定で、未設定または空文字の場合は出力しません。
+	 */
+	public static final String EXPORT_DIR = "metrics.export.dir";
+
+	private static final String PREFIX = "mapreduce_";
+
+	/**
+	 * ジョブの完了時に {@link #export(Configuration, String, Counters)} を呼び出すリスナーです。
+	 */
+	static final ParallelJobRunner.JobListener LISTENER = new ParallelJobRunner.JobListener() {
+		@Override
+		public void jobCompleted(Configuration conf, String jobName, Counters counters) {
+			export(conf, jobName, counters);
+		}
+	};
+
+	private MetricsExporter() {
+	}
+
+	/**
+	 * ジョブのカウンタをメトリクスファイルに出力します。出力に失敗してもジョブの結果には影響させないため、
+	 * 例外はログに出力するのみとします。
+	 * 
+	 * @param conf ジョブの設定
+	 * @param jobName ジョブ名
+	 * @param counters ジョブのカウンタ
+	 */
+	public static void export(Configuration conf, String jobName, Counters counters) {
+		String dir = conf.get(EXPORT_DIR, System.getProperty(EXPORT_DIR));
+		if (dir == null || dir.length() == 0) {
+			return;
+		}
+		String name = getName(conf, jobName);
+		try {
+			// チェックサムファイルを作成しないように RawLocalFileSystem を利用します
+			FileSystem fs = FileSystem.getLocal(conf).getRawFileSystem();
+			Path file = new Path(dir, name.replaceAll("[^A-Za-z0-9_.-]", "_") + ".prom");
+			Path tmp = new Path(dir, "." + file.getName() + ".tmp");
+			Writer writer = new OutputStreamWriter(fs.create(tmp, true), "UTF-8");
+			try {
+				write(writer, name, counters, System.currentTimeMillis());
+			} finally {
+				writer.close();
+			}
+			fs.delete(file, false);
+			if (!fs.rename(tmp, file)) {
+				throw new IOException("メトリクスファイルの名前を変更できませんでした。file=" + file);
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("メトリクスを出力しました。file=" + file);
+			}
+		} catch (IOException e) {
+			log.warn("メトリクスを出力できませんでした。job=" + name, e);
+		}
+	}
+
+	/**
+	 * ジョブのカウンタを Prometheus のテキスト形式で出力します。
+	 * 
+	 * @param writer 出力先
+	 * @param jobName {@code job} ラベルの値
+	 * @param counters ジョブのカウンタ
+	 * @param timestamp ジョブの完了時刻（ミリ秒）。秒に切り捨てて出力します
+	 */
+	static void write(Writer writer, String jobName, Counters counters, long timestamp)
+			throws IOException {
+		String job = "job=\"" + escape(jobName) + "\"";
+		for (TaskMetrics.Counter counter : TaskMetrics.Counter.values()) {
+			String metric = PREFIX + counter.name().toLowerCase() + "_total";
+			type(writer, metric, "counter");
+			sample(writer, metric, job, counters.getCounter(counter));
+		}
+		String metric = PREFIX + "invalid_records_by_reason_total";
+		type(writer, metric, "counter");
+		for (TaskMetrics.InvalidReason reason : TaskMetrics.InvalidReason.values()) {
+			sample(writer, metric, job + ",reason=\"" + reason.name().toLowerCase() + "\"",
+					counters.getCounter(reason));
+		}
+		metric = PREFIX + "records_emitted_by_mapper_total";
+		type(writer, metric, "counter");
+		Counters.Group emitted = counters.getGroup(TaskMetrics.RECORDS_EMITTED_GROUP);
+		for (Counters.Counter counter : emitted) {
+			sample(writer, metric, job + ",mapper=\"" + escape(counter.getName()) + "\"",
+					counter.getCounter());
+		}
+		long maxGroupSize = 0;
+		for (Counters.Counter counter : counters.getGroup(TaskMetrics.MAX_GROUP_SIZE_GROUP)) {
+			maxGroupSize = Math.max(maxGroupSize, counter.getCounter());
+		}
+		metric = PREFIX + "max_group_size";
+		type(writer, metric, "gauge");
+		sample(writer, metric, job, maxGroupSize);
+		metric = PREFIX + "counter";
+		type(writer, metric, "untyped");
+		for (Counters.Group group : counters) {
+			if (group.getName().startsWith(TaskMetrics.class.getName())) {
+				continue;
+			}
+			for (Counters.Counter counter : group) {
+				sample(writer, metric, job + ",group=\"" + escape(group.getName()) + "\",counter=\""
+						+ escape(counter.getName()) + "\"", counter.getCounter());
+			}
+		}
+		metric = PREFIX + "job_completion_time_seconds";
+		type(writer, metric, "gauge");
+		sample(writer, metric, job, timestamp / 1000);
+	}
+
+	private static String getName(Configuration conf, String jobName) {
+		if (jobName != null && jobName.length() > 0) {
+			return jobName;
+		}
+		// ジョブ名を設定していないジョブは出力先のディレクトリ名で区別します
+		String output = conf.get("mapred.output.dir");
+		return output != null ? new Path(output).getName() : "job";
+	}
+
+	private static void type(Writer writer, String metric, String type) throws IOException {
+		writer.write("# TYPE " + metric + " " + type + "\n");
+	}
+
+	private static void sample(Writer writer, String metric, String labels, long value)
+			throws IOException {
+		writer.write(metric + "{" + labels + "} " + value + "\n");
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
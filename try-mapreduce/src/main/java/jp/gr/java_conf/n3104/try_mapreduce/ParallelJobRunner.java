@@ -0,0 +1,1129 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.JobStatus;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.OutputFormat;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.TaskCompletionEvent;
+import org.apache.hadoop.mapred.TaskID;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Map タスクと Reduce タスクをスレッドプールで並行して実行する、プロセス内のジョブ実行エンジンです。
+ * <p>
+ * Hadoop 0.20.2 の {@code LocalJobRunner} は Map タスクを1つずつ実行し、 Reducer も1つしか実行できません。
+ * {@link #RUNNER} に {@link #PARALLEL} を設定すると、このクラスは Map タスクを {@link #MAP_THREADS}
+ * 個のスレッドで並行して実行し、 {@link JobConf#getNumReduceTasks()} 個の Reduce タスクを
+ * {@link #REDUCE_THREADS} 個のスレッドで実行します。 Map タスクの出力は {@link MapOutputBuffer}
+ * でソートしてローカルディスクに書き出し、 Reduce タスクが {@link SpillMerger} でマージして読み込みます。
+ * 全ての Map タスクは同じヒープを共有するため、 {@code io.sort.mb} は同時に実行する Map タスク全体の上限として扱い、
+ * スレッド数で分割します（ヒープの半分を超える場合はヒープの半分を上限とします）。
+ * 設定しない場合は {@link JobClient} に委譲します。
+ * </p>
+ * <p>
+ * {@code mapred} パッケージの API のジョブは {@link #runJob(JobConf)} または {@link #submitJob(JobConf)} で、
+ * {@code mapreduce} パッケージの API のジョブは {@link #waitForCompletion(Job)} で実行します。
+ * {@link #RUNNER} はジョブの設定の他に、同名のシステムプロパティでも指定出来ます。
+ * いずれの場合も、ジョブの投入前に {@link CompressionProfile#apply(Configuration)} で圧縮の設定を行います。
+ * </p>
+ * <p>
+ * 制限事項として、タスクの再実行と投機的実行は行いません。 {@code mapred} パッケージの API のジョブは
+ * {@link org.apache.hadoop.mapred.FileOutputCommitter} と同じディレクトリ構成で出力しますが、
+ * 独自の {@link org.apache.hadoop.mapred.OutputCommitter} は呼び出しません。
+ * 分散キャッシュのファイルはローカルに展開しないため、タスクは元のパスを参照してください。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ParallelJobRunner {
+
+	private static final Log log = LogFactory.getLog(ParallelJobRunner.class);
+
+	/**
+	 * ジョブの実行エンジンの設定名です。 {@link #PARALLEL} 以外の場合は {@link JobClient} でジョブを実行します。
+	 */
+	public static final String RUNNER = "job.runner";
+
+	public static final String PARALLEL = "parallel";
+
+	/**
+	 * Map タスクを実行するスレッド数の設定名です。デフォルトは CPU のコア数です。
+	 */
+	public static final String MAP_THREADS = "job.runner.parallel.map.threads";
+
+	/**
+	 * Reduce タスクを実行するスレッド数の設定名です。デフォルトは CPU のコア数です。
+	 */
+	public static final String REDUCE_THREADS = "job.runner.parallel.reduce.threads";
+
+	/**
+	 * Hadoop の組み込みのカウンタ（Map input records など）のグループ名です。
+	 */
+	static final String TASK_COUNTER_GROUP = "org.apache.hadoop.mapred.Task$Counter";
+
+	private static final String TEMP_DIR_NAME = "_temporary";
+
+	private static final AtomicInteger jobIds = new AtomicInteger();
+
+	private static final List<JobListener> listeners = new CopyOnWriteArrayList<JobListener>();
+	static {
+		// ジョブの出力とカウンタを扱う組み込みのリスナーです。不正なレコードのファイルを移動してから出力を参照します
+		listeners.add(Quarantine.LISTENER);
+		listeners.add(MetricsExporter.LISTENER);
+		listeners.add(CodecBenchmark.LISTENER);
+	}
+
+	private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance();
+	static {
+		NUMBER_FORMAT.setMinimumIntegerDigits(5);
+		NUMBER_FORMAT.setGroupingUsed(false);
+	}
+
+	private ParallelJobRunner() {
+	}
+
+	/**
+	 * @param conf ジョブの設定
+	 * @return {@link #RUNNER} が {@link #PARALLEL} の場合は {@code true}
+	 */
+	public static boolean isEnabled(Configuration conf) {
+		return PARALLEL.equals(conf.get(RUNNER, System.getProperty(RUNNER)));
+	}
+
+	/**
+	 * ジョブを実行し、完了を待ちます。 {@link JobClient#runJob(JobConf)} と同じく、ジョブが失敗した場合は例外となります。
+	 * 
+	 * @param conf ジョブの設定
+	 * @return 完了したジョブ
+	 */
+	public static RunningJob runJob(JobConf conf) throws IOException {
+		if (!isEnabled(conf)) {
+			CompressionProfile.apply(conf);
+			RunningJob job = JobClient.runJob(conf);
+			fireJobCompleted(conf, conf.getJobName(), job.getCounters());
+			return job;
+		}
+		RunningJob job = submitJob(conf);
+		job.waitForCompletion();
+		if (!job.isSuccessful()) {
+			throw new IOException("Job failed!");
+		}
+		job.getCounters().log(log);
+		fireJobCompleted(conf, conf.getJobName(), job.getCounters());
+		return job;
+	}
+
+	/**
+	 * ジョブを投入し、完了を待たずに返します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @return 実行中のジョブ
+	 */
+	public static RunningJob submitJob(JobConf conf) throws IOException {
+		CompressionProfile.apply(conf);
+		if (!isEnabled(conf)) {
+			return new JobClient(conf).submitJob(conf);
+		}
+		return new ParallelJob(new JobConf(conf), false).start();
+	}
+
+	/**
+	 * {@code mapreduce} パッケージの API のジョブを実行し、完了を待ちます。
+	 * 
+	 * @param job ジョブ
+	 * @return ジョブが成功した場合は {@code true}
+	 */
+	public static boolean waitForCompletion(Job job) throws IOException, InterruptedException,
+			ClassNotFoundException {
+		CompressionProfile.apply(job.getConfiguration());
+		if (!isEnabled(job.getConfiguration())) {
+			boolean successful = job.waitForCompletion(true);
+			if (successful) {
+				Counters counters = new Counters();
+				for (CounterGroup group : job.getCounters()) {
+					for (org.apache.hadoop.mapreduce.Counter counter : group) {
+						counters.incrCounter(group.getName(), counter.getName(), counter.getValue());
+					}
+				}
+				fireJobCompleted(job.getConfiguration(), job.getJobName(), counters);
+			}
+			return successful;
+		}
+		RunningJob running = new ParallelJob(new JobConf(job.getConfiguration()), true).start();
+		running.waitForCompletion();
+		running.getCounters().log(log);
+		if (running.isSuccessful()) {
+			fireJobCompleted(job.getConfiguration(), job.getJobName(), running.getCounters());
+		}
+		return running.isSuccessful();
+	}
+
+	/**
+	 * Map タスクごとのソート用バッファの上限を返します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @param numMaps Map タスクの数
+	 * @param maxMemory ヒープの最大サイズ
+	 * @return {@code io.sort.mb} とヒープの半分の小さい方を、同時に実行する Map タスクの数で割ったバイト数
+	 */
+	static long getSortMemoryLimit(JobConf conf, int numMaps, long maxMemory) {
+		int threads = Math.max(1, Math.min(conf.getInt(MAP_THREADS, Runtime.getRuntime()
+				.availableProcessors()), numMaps));
+		long budget = Math.min(conf.getInt("io.sort.mb", 100) * 1024L * 1024L, maxMemory / 2);
+		return Math.max(1, budget / threads);
+	}
+
+	/**
+	 * 完了したジョブの設定とカウンタを受け取ります。
+	 */
+	public interface JobListener {
+
+		/**
+		 * @param conf ジョブの設定
+		 * @param jobName ジョブ名
+		 * @param counters ジョブのカウンタ
+		 * @throws IOException ジョブの後処理に失敗した場合。ジョブの失敗として扱います
+		 */
+		void jobCompleted(Configuration conf, String jobName, Counters counters)
+				throws IOException;
+	}
+
+	/**
+	 * {@link #runJob(JobConf)}、 {@link #waitForCompletion(Job)}、 {@link JobGraph}
+	 * で実行したジョブが成功した際に通知を受け取ります。 {@link #RUNNER} の設定によらず通知します。
+	 * {@link Quarantine}、 {@link MetricsExporter}、 {@link CodecBenchmark} のリスナーは登録済みで、
+	 * 追加したリスナーはその後に呼び出します。
+	 * 
+	 * @param listener リスナー
+	 */
+	public static void addJobListener(JobListener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeJobListener(JobListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * 登録された順にリスナーに通知します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @param jobName ジョブ名
+	 * @param counters ジョブのカウンタ
+	 */
+	static void fireJobCompleted(Configuration conf, String jobName, Counters counters)
+			throws IOException {
+		for (JobListener listener : listeners) {
+			listener.jobCompleted(conf, jobName, counters);
+		}
+	}
+
+	/**
+	 * 実行中のジョブです。
+	 */
+	private static class ParallelJob implements RunningJob, Runnable {
+
+		private final JobConf conf;
+		private final boolean newApi;
+		private final JobID jobId;
+		private final Counters counters = new Counters();
+		private final List<MapOutputBuffer.Spill> spillFiles = new ArrayList<MapOutputBuffer.Spill>();
+		private boolean spillsDeleted;
+		private final Thread thread;
+		private volatile int state = JobStatus.PREP;
+		private volatile boolean killed;
+		private volatile int completedMaps;
+		private volatile int numMaps = -1;
+		private volatile int completedReduces;
+		private ExecutorService executor;
+
+		ParallelJob(JobConf conf, boolean newApi) {
+			this.conf = conf;
+			this.newApi = newApi;
+			this.jobId = new JobID(PARALLEL, jobIds.incrementAndGet());
+			this.thread = new Thread(this, jobId.toString());
+		}
+
+		ParallelJob start() {
+			if (log.isInfoEnabled()) {
+				log.info("Running job: " + jobId);
+			}
+			state = JobStatus.RUNNING;
+			thread.start();
+			return this;
+		}
+
+		@Override
+		public void run() {
+			int result = JobStatus.FAILED;
+			try {
+				if (newApi) {
+					runNewApi();
+				} else {
+					runOldApi();
+				}
+				result = JobStatus.SUCCEEDED;
+				if (log.isInfoEnabled()) {
+					log.info("Job complete: " + jobId);
+				}
+			} catch (Throwable e) {
+				if (killed) {
+					result = JobStatus.KILLED;
+				}
+				log.warn("Job failed: " + jobId, e);
+			} finally {
+				// 失敗した Map タスクと、完了したが Reduce タスクで読み込まれなかった Map タスクのスピルも削除します。
+				// ジョブの完了はスピルを削除した後に通知します
+				deleteSpills();
+				state = result;
+			}
+		}
+
+		private void runOldApi() throws Exception {
+			final InputFormat<?, ?> inputFormat = conf.getInputFormat();
+			InputSplit[] splits = inputFormat.getSplits(conf, conf.getNumMapTasks());
+			final int numReduces = conf.getNumReduceTasks();
+			final Path outputPath = FileOutputFormat.getOutputPath(conf);
+			FileSystem fs = FileSystem.get(conf);
+			conf.getOutputFormat().checkOutputSpecs(fs, conf);
+			if (outputPath != null) {
+				outputPath.getFileSystem(conf).mkdirs(new Path(outputPath, TEMP_DIR_NAME));
+			}
+			numMaps = splits.length;
+			List<Callable<List<MapOutputBuffer.Spill>>> maps = new ArrayList<Callable<List<MapOutputBuffer.Spill>>>();
+			for (int i = 0; i < splits.length; i++) {
+				final int partition = i;
+				final InputSplit split = splits[i];
+				maps.add(new Callable<List<MapOutputBuffer.Spill>>() {
+					@Override
+					public List<MapOutputBuffer.Spill> call() throws Exception {
+						return runOldMapper(partition, split, inputFormat, numReduces);
+					}
+				});
+			}
+			final List<List<MapOutputBuffer.Spill>> spills = runTasks(maps, MAP_THREADS, true);
+			if (numReduces > 0) {
+				List<Callable<Void>> reduces = new ArrayList<Callable<Void>>();
+				for (int i = 0; i < numReduces; i++) {
+					final int partition = i;
+					reduces.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							runOldReducer(partition, spills);
+							return null;
+						}
+					});
+				}
+				runTasks(reduces, REDUCE_THREADS, false);
+			}
+			if (outputPath != null) {
+				outputPath.getFileSystem(conf).delete(new Path(outputPath, TEMP_DIR_NAME), true);
+			}
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private List<MapOutputBuffer.Spill> runOldMapper(int partition, InputSplit split,
+				InputFormat inputFormat, int numReduces) throws IOException {
+			final JobConf taskConf = newTaskConf(partition, true);
+			if (split instanceof FileSplit) {
+				FileSplit fileSplit = (FileSplit) split;
+				taskConf.set("map.input.file", fileSplit.getPath().toString());
+				taskConf.setLong("map.input.start", fileSplit.getStart());
+				taskConf.setLong("map.input.length", fileSplit.getLength());
+			}
+			final TaskReporter reporter = new TaskReporter(split);
+			RecordReader reader = new CountingRecordReader(inputFormat.getRecordReader(split,
+					taskConf, reporter), reporter);
+			MapRunnable runner = ReflectionUtils.newInstance(taskConf.getMapRunnerClass(), taskConf);
+			MapOutputBuffer buffer = null;
+			try {
+				if (numReduces == 0) {
+					RecordWriter writer = taskConf.getOutputFormat().getRecordWriter(
+							FileSystem.get(taskConf), taskConf, getOutputName(partition), reporter);
+					try {
+						runner.run(reader, new DirectOutputCollector(writer, reporter), reporter);
+					} finally {
+						writer.close(reporter);
+					}
+					commitOldTask(taskConf);
+					return null;
+				}
+				final Partitioner partitioner = ReflectionUtils.newInstance(taskConf
+						.getPartitionerClass(), taskConf);
+				MapOutputBuffer.Combiner combiner = null;
+				final Class<? extends Reducer> combinerClass = taskConf.getCombinerClass();
+				if (combinerClass != null) {
+					combiner = new MapOutputBuffer.Combiner() {
+						@Override
+						public void combine(RawKeyValueIterator input,
+								OutputCollector<Object, Object> output) throws IOException {
+							Reducer reducer = ReflectionUtils.newInstance(combinerClass, taskConf);
+							try {
+								reduce(reducer, taskConf, input, taskConf.getOutputKeyComparator(),
+										output, reporter, null);
+							} finally {
+								reducer.close();
+							}
+						}
+					};
+				}
+				buffer = new MapOutputBuffer(taskConf, reporter, numReduces,
+						new MapOutputBuffer.Partitioner() {
+							@Override
+							public int getPartition(Object key, Object value, int numPartitions) {
+								return partitioner.getPartition(key, value, numPartitions);
+							}
+						}, combiner, getSortMemoryLimit(conf, numMaps, Runtime.getRuntime()
+								.maxMemory()));
+				runner.run(reader, buffer, reporter);
+				List<MapOutputBuffer.Spill> spills = buffer.flush();
+				// MultipleOutputs などで Mapper が直接出力したファイルを出力ディレクトリに移動します
+				commitOldTask(taskConf);
+				return spills;
+			} finally {
+				if (buffer != null) {
+					addSpills(buffer.getSpills());
+				}
+				reader.close();
+				addCounters(reporter);
+			}
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private void runOldReducer(int partition, List<List<MapOutputBuffer.Spill>> spills)
+				throws IOException {
+			JobConf taskConf = newTaskConf(partition, false);
+			final TaskReporter reporter = new TaskReporter(null);
+			Reducer reducer = ReflectionUtils.newInstance(taskConf.getReducerClass(), taskConf);
+			final RecordWriter writer = taskConf.getOutputFormat().getRecordWriter(
+					FileSystem.get(taskConf), taskConf, getOutputName(partition), reporter);
+			RawKeyValueIterator input = new SpillMerger(taskConf, flatten(spills), partition,
+					taskConf.getOutputKeyComparator());
+			try {
+				reduce(reducer, taskConf, input, taskConf.getOutputValueGroupingComparator(),
+						new OutputCollector() {
+							@Override
+							public void collect(Object key, Object value) throws IOException {
+								writer.write(key, value);
+								reporter.incrCounter(TASK_COUNTER_GROUP, "REDUCE_OUTPUT_RECORDS", 1);
+							}
+						}, reporter, reporter.getCounter(TASK_COUNTER_GROUP, "REDUCE_INPUT_GROUPS"));
+				reducer.close();
+			} finally {
+				input.close();
+				writer.close(reporter);
+				addCounters(reporter);
+			}
+			commitOldTask(taskConf);
+		}
+
+		/**
+		 * タスクの作業ディレクトリのファイルを出力ディレクトリに移動します。
+		 * {@link org.apache.hadoop.mapred.FileOutputCommitter#commitTask} と同じ処理ですが、
+		 * 引数の {@link org.apache.hadoop.mapred.TaskAttemptContext} を生成できないため自前で行います。
+		 */
+		private void commitOldTask(JobConf taskConf) throws IOException {
+			Path outputPath = FileOutputFormat.getOutputPath(taskConf);
+			Path workPath = FileOutputFormat.getWorkOutputPath(taskConf);
+			if (outputPath == null || workPath == null) {
+				return;
+			}
+			FileSystem fs = workPath.getFileSystem(taskConf);
+			if (fs.exists(workPath)) {
+				moveTaskOutputs(fs, fs.makeQualified(outputPath), workPath, workPath);
+				fs.delete(workPath, true);
+			}
+		}
+
+		private void moveTaskOutputs(FileSystem fs, Path outputPath, Path workPath, Path file)
+				throws IOException {
+			String relative = file.toUri().getPath().substring(workPath.toUri().getPath().length());
+			Path target = relative.length() == 0 ? outputPath : new Path(outputPath, relative
+					.substring(1));
+			if (fs.isFile(file)) {
+				if (!fs.rename(file, target)) {
+					throw new IOException("タスクの出力を移動できませんでした。file=" + file);
+				}
+			} else {
+				fs.mkdirs(target);
+				for (FileStatus child : fs.listStatus(file)) {
+					moveTaskOutputs(fs, outputPath, workPath, child.getPath());
+				}
+			}
+		}
+
+		/**
+		 * key ごとに {@code reducer} を呼び出します。 key のグループ化と values の反復には {@link ReduceContext} を利用します。
+		 */
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private void reduce(Reducer reducer, JobConf taskConf, RawKeyValueIterator input,
+				RawComparator comparator, OutputCollector output, TaskReporter reporter,
+				Counters.Counter groupCounter) throws IOException {
+			try {
+				ReduceContext context = new ReduceContext(taskConf, TaskAttemptID.forName(taskConf
+						.get("mapred.task.id")), input, groupCounter != null ? groupCounter
+						: new Counters().findCounter(getClass().getName(), "groups"), reporter
+						.getCounter(TASK_COUNTER_GROUP, groupCounter != null ? "REDUCE_INPUT_RECORDS"
+								: "COMBINE_INPUT_RECORDS"), null, null, reporter,
+						comparator, taskConf.getMapOutputKeyClass(), taskConf
+								.getMapOutputValueClass());
+				while (context.nextKey()) {
+					reducer.reduce(context.getCurrentKey(), context.getValues().iterator(), output,
+							reporter);
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void runNewApi() throws Exception {
+			final JobContext jobContext = new JobContext(conf, jobId);
+			final int numReduces = conf.getNumReduceTasks();
+			final org.apache.hadoop.mapreduce.InputFormat<?, ?> inputFormat = ReflectionUtils
+					.newInstance(jobContext.getInputFormatClass(), conf);
+			List<org.apache.hadoop.mapreduce.InputSplit> splits = inputFormat.getSplits(jobContext);
+			org.apache.hadoop.mapreduce.OutputFormat<?, ?> outputFormat = ReflectionUtils
+					.newInstance(jobContext.getOutputFormatClass(), conf);
+			outputFormat.checkOutputSpecs(jobContext);
+			OutputCommitter committer = outputFormat.getOutputCommitter(new TaskAttemptContext(
+					conf, new TaskAttemptID(new TaskID(jobId, true, 0), 0)));
+			committer.setupJob(jobContext);
+			numMaps = splits.size();
+			List<Callable<List<MapOutputBuffer.Spill>>> maps = new ArrayList<Callable<List<MapOutputBuffer.Spill>>>();
+			for (int i = 0; i < splits.size(); i++) {
+				final int partition = i;
+				final org.apache.hadoop.mapreduce.InputSplit split = splits.get(i);
+				maps.add(new Callable<List<MapOutputBuffer.Spill>>() {
+					@Override
+					public List<MapOutputBuffer.Spill> call() throws Exception {
+						return runNewMapper(partition, split, jobContext, numReduces);
+					}
+				});
+			}
+			final List<List<MapOutputBuffer.Spill>> spills = runTasks(maps, MAP_THREADS, true);
+			if (numReduces > 0) {
+				List<Callable<Void>> reduces = new ArrayList<Callable<Void>>();
+				for (int i = 0; i < numReduces; i++) {
+					final int partition = i;
+					reduces.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							runNewReducer(partition, spills, jobContext);
+							return null;
+						}
+					});
+				}
+				runTasks(reduces, REDUCE_THREADS, false);
+			}
+			committer.cleanupJob(jobContext);
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private List<MapOutputBuffer.Spill> runNewMapper(int partition,
+				org.apache.hadoop.mapreduce.InputSplit split, JobContext jobContext, int numReduces)
+				throws Exception {
+			final JobConf taskConf = newTaskConf(partition, true);
+			final TaskAttemptID attemptId = TaskAttemptID.forName(taskConf.get("mapred.task.id"));
+			TaskAttemptContext taskContext = new TaskAttemptContext(taskConf, attemptId);
+			final TaskReporter reporter = new TaskReporter(null);
+			org.apache.hadoop.mapreduce.InputFormat inputFormat = ReflectionUtils.newInstance(
+					jobContext.getInputFormatClass(), taskConf);
+			org.apache.hadoop.mapreduce.RecordReader reader = new CountingNewRecordReader(
+					inputFormat.createRecordReader(split, taskContext), reporter);
+			org.apache.hadoop.mapreduce.Mapper mapper = ReflectionUtils.newInstance(jobContext
+					.getMapperClass(), taskConf);
+			MapOutputBuffer buffer = null;
+			try {
+				if (numReduces == 0) {
+					org.apache.hadoop.mapreduce.OutputFormat outputFormat = ReflectionUtils
+							.newInstance(jobContext.getOutputFormatClass(), taskConf);
+					OutputCommitter committer = outputFormat.getOutputCommitter(taskContext);
+					committer.setupTask(taskContext);
+					org.apache.hadoop.mapreduce.RecordWriter writer = outputFormat
+							.getRecordWriter(taskContext);
+					org.apache.hadoop.mapreduce.Mapper.Context context = mapper.new Context(taskConf,
+							attemptId, reader, writer, committer, reporter, split);
+					reader.initialize(split, context);
+					mapper.run(context);
+					writer.close(context);
+					if (committer.needsTaskCommit(taskContext)) {
+						committer.commitTask(taskContext);
+					}
+					return null;
+				}
+				final org.apache.hadoop.mapreduce.Partitioner partitioner = ReflectionUtils
+						.newInstance(jobContext.getPartitionerClass(), taskConf);
+				MapOutputBuffer.Combiner combiner = null;
+				final Class<? extends org.apache.hadoop.mapreduce.Reducer> combinerClass = jobContext
+						.getCombinerClass();
+				if (combinerClass != null) {
+					combiner = new MapOutputBuffer.Combiner() {
+						@Override
+						public void combine(RawKeyValueIterator input,
+								OutputCollector<Object, Object> output) throws IOException {
+							org.apache.hadoop.mapreduce.Reducer reducer = ReflectionUtils
+									.newInstance(combinerClass, taskConf);
+							runNewReducer(reducer, taskConf, attemptId, input,
+									new Counters().findCounter(getClass().getName(), "groups"),
+									reporter.getCounter(TASK_COUNTER_GROUP, "COMBINE_INPUT_RECORDS"),
+									new CollectorWriter(output), null, reporter, taskConf
+											.getOutputKeyComparator());
+						}
+					};
+				}
+				buffer = new MapOutputBuffer(taskConf, reporter, numReduces,
+						new MapOutputBuffer.Partitioner() {
+							@Override
+							public int getPartition(Object key, Object value, int numPartitions) {
+								return partitioner.getPartition(key, value, numPartitions);
+							}
+						}, combiner, getSortMemoryLimit(conf, numMaps, Runtime.getRuntime()
+								.maxMemory()));
+				org.apache.hadoop.mapreduce.Mapper.Context context = mapper.new Context(taskConf,
+						attemptId, reader, new CollectorWriter(buffer), null, reporter, split);
+				reader.initialize(split, context);
+				mapper.run(context);
+				return buffer.flush();
+			} finally {
+				if (buffer != null) {
+					addSpills(buffer.getSpills());
+				}
+				reader.close();
+				addCounters(reporter);
+			}
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private void runNewReducer(int partition, List<List<MapOutputBuffer.Spill>> spills,
+				JobContext jobContext) throws Exception {
+			JobConf taskConf = newTaskConf(partition, false);
+			TaskAttemptID attemptId = TaskAttemptID.forName(taskConf.get("mapred.task.id"));
+			TaskAttemptContext taskContext = new TaskAttemptContext(taskConf, attemptId);
+			final TaskReporter reporter = new TaskReporter(null);
+			org.apache.hadoop.mapreduce.Reducer reducer = ReflectionUtils.newInstance(jobContext
+					.getReducerClass(), taskConf);
+			org.apache.hadoop.mapreduce.OutputFormat outputFormat = ReflectionUtils.newInstance(
+					jobContext.getOutputFormatClass(), taskConf);
+			OutputCommitter committer = outputFormat.getOutputCommitter(taskContext);
+			committer.setupTask(taskContext);
+			final org.apache.hadoop.mapreduce.RecordWriter writer = outputFormat
+					.getRecordWriter(taskContext);
+			RawKeyValueIterator input = new SpillMerger(taskConf, flatten(spills), partition,
+					jobContext.getSortComparator());
+			try {
+				runNewReducer(reducer, taskConf, attemptId, input, reporter
+						.getCounter(TASK_COUNTER_GROUP, "REDUCE_INPUT_GROUPS"), reporter
+						.getCounter(TASK_COUNTER_GROUP, "REDUCE_INPUT_RECORDS"),
+						new org.apache.hadoop.mapreduce.RecordWriter() {
+							@Override
+							public void write(Object key, Object value) throws IOException,
+									InterruptedException {
+								writer.write(key, value);
+								reporter.incrCounter(TASK_COUNTER_GROUP, "REDUCE_OUTPUT_RECORDS", 1);
+							}
+
+							@Override
+							public void close(TaskAttemptContext context) {
+							}
+						}, committer, reporter, jobContext.getGroupingComparator());
+			} finally {
+				input.close();
+				writer.close(taskContext);
+				addCounters(reporter);
+			}
+			if (committer.needsTaskCommit(taskContext)) {
+				committer.commitTask(taskContext);
+			}
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private void runNewReducer(org.apache.hadoop.mapreduce.Reducer reducer, JobConf taskConf,
+				TaskAttemptID attemptId, RawKeyValueIterator input,
+				org.apache.hadoop.mapreduce.Counter groupCounter,
+				org.apache.hadoop.mapreduce.Counter recordCounter,
+				org.apache.hadoop.mapreduce.RecordWriter writer, OutputCommitter committer,
+				TaskReporter reporter, RawComparator comparator) throws IOException {
+			try {
+				org.apache.hadoop.mapreduce.Reducer.Context context = reducer.new Context(taskConf,
+						attemptId, input, groupCounter, recordCounter, writer, committer, reporter,
+						comparator, taskConf.getMapOutputKeyClass(), taskConf.getMapOutputValueClass());
+				reducer.run(context);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * タスクをスレッドプールで実行し、全てのタスクの完了を待ちます。いずれかのタスクが失敗した場合は残りのタスクを中断します。
+		 * 
+		 * @return タスクの結果（タスクの順）
+		 */
+		private <T> List<T> runTasks(List<Callable<T>> tasks, String threadsName, boolean map)
+				throws Exception {
+			int threads = conf.getInt(threadsName, Runtime.getRuntime().availableProcessors());
+			synchronized (this) {
+				if (killed) {
+					throw new InterruptedException("Job killed: " + jobId);
+				}
+				executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks
+						.size())));
+			}
+			try {
+				List<Future<T>> futures = new ArrayList<Future<T>>();
+				for (Callable<T> task : tasks) {
+					futures.add(executor.submit(task));
+				}
+				List<T> results = new ArrayList<T>();
+				for (Future<T> future : futures) {
+					try {
+						results.add(future.get());
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof Exception) {
+							throw (Exception) e.getCause();
+						}
+						throw (Error) e.getCause();
+					}
+					if (map) {
+						completedMaps++;
+					} else {
+						completedReduces++;
+					}
+				}
+				return results;
+			} finally {
+				executor.shutdownNow();
+				// 中断したタスクがジョブの完了後にスピルや出力を書き込まないように、終了を待ちます
+				awaitTermination(executor);
+			}
+		}
+
+		/**
+		 * スレッドプールの全てのタスクが終了するまで待ちます。待機中に割り込まれても待ち続け、終了後に割り込み状態を戻します。
+		 */
+		private void awaitTermination(ExecutorService executor) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					if (executor.awaitTermination(10, TimeUnit.SECONDS)) {
+						break;
+					}
+					log.warn("中断したタスクの終了を待っています。job=" + jobId);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private JobConf newTaskConf(int partition, boolean isMap) {
+			JobConf taskConf = new JobConf(conf);
+			TaskAttemptID attemptId = new TaskAttemptID(new TaskID(jobId, isMap, partition), 0);
+			taskConf.set("mapred.job.id", jobId.toString());
+			taskConf.set("mapred.tip.id", attemptId.getTaskID().toString());
+			taskConf.set("mapred.task.id", attemptId.toString());
+			taskConf.setBoolean("mapred.task.is.map", isMap);
+			taskConf.setInt("mapred.task.partition", partition);
+			Path outputPath = FileOutputFormat.getOutputPath(conf);
+			if (outputPath != null && !newApi) {
+				// FileOutputCommitter と同じくタスクごとの作業ディレクトリに書き込み、完了時に移動します
+				taskConf.set("mapred.work.output.dir", new Path(new Path(conf.getWorkingDirectory(),
+						outputPath), TEMP_DIR_NAME + Path.SEPARATOR + "_" + attemptId).toString());
+			}
+			return taskConf;
+		}
+
+		private synchronized void addCounters(TaskReporter reporter) {
+			counters.incrAllCounters(reporter.counters);
+		}
+
+		private synchronized void addSpills(List<MapOutputBuffer.Spill> spills) {
+			spillFiles.addAll(spills);
+			if (spillsDeleted) {
+				// ジョブの失敗後も中断されずに完了した Map タスクのスピルです
+				deleteSpills();
+			}
+		}
+
+		private synchronized void deleteSpills() {
+			for (MapOutputBuffer.Spill spill : spillFiles) {
+				if (spill.getFile().exists() && !spill.getFile().delete()) {
+					log.warn("スピルを削除できませんでした。file=" + spill.getFile());
+				}
+			}
+			spillFiles.clear();
+			spillsDeleted = true;
+		}
+
+		private static List<MapOutputBuffer.Spill> flatten(List<List<MapOutputBuffer.Spill>> spills) {
+			List<MapOutputBuffer.Spill> result = new ArrayList<MapOutputBuffer.Spill>();
+			for (List<MapOutputBuffer.Spill> list : spills) {
+				if (list != null) {
+					result.addAll(list);
+				}
+			}
+			return result;
+		}
+
+		private static String getOutputName(int partition) {
+			return "part-" + NUMBER_FORMAT.format(partition);
+		}
+
+		@Override
+		public JobID getID() {
+			return jobId;
+		}
+
+		@Override
+		@Deprecated
+		public String getJobID() {
+			return jobId.toString();
+		}
+
+		@Override
+		public String getJobName() {
+			return conf.getJobName();
+		}
+
+		@Override
+		public String getJobFile() {
+			return null;
+		}
+
+		@Override
+		public String getTrackingURL() {
+			return null;
+		}
+
+		@Override
+		public float mapProgress() {
+			return numMaps <= 0 ? 0.0f : (float) completedMaps / numMaps;
+		}
+
+		@Override
+		public float reduceProgress() {
+			int numReduces = conf.getNumReduceTasks();
+			return numReduces == 0 ? 0.0f : (float) completedReduces / numReduces;
+		}
+
+		@Override
+		public float cleanupProgress() {
+			return isComplete() ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public float setupProgress() {
+			return 1.0f;
+		}
+
+		@Override
+		public boolean isComplete() {
+			return state == JobStatus.SUCCEEDED || state == JobStatus.FAILED
+					|| state == JobStatus.KILLED;
+		}
+
+		@Override
+		public boolean isSuccessful() {
+			return state == JobStatus.SUCCEEDED;
+		}
+
+		@Override
+		public void waitForCompletion() throws IOException {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("中断されました。");
+			}
+		}
+
+		@Override
+		public int getJobState() {
+			return state;
+		}
+
+		/**
+		 * ジョブを中断し、実行中のタスクの終了とスピルの削除を待ちます。
+		 */
+		@Override
+		public void killJob() throws IOException {
+			synchronized (this) {
+				if (isComplete()) {
+					return;
+				}
+				killed = true;
+				if (executor != null) {
+					executor.shutdownNow();
+				}
+				thread.interrupt();
+			}
+			// タスクは addSpills でこのオブジェクトのロックを取得するため、ロックを解放してから待ちます
+			waitForCompletion();
+		}
+
+		@Override
+		public void setJobPriority(String priority) {
+		}
+
+		@Override
+		public TaskCompletionEvent[] getTaskCompletionEvents(int startFrom) {
+			return new TaskCompletionEvent[0];
+		}
+
+		@Override
+		public void killTask(TaskAttemptID taskId, boolean shouldFail) {
+		}
+
+		@Override
+		@Deprecated
+		public void killTask(String taskId, boolean shouldFail) {
+		}
+
+		@Override
+		public synchronized Counters getCounters() {
+			Counters copy = new Counters();
+			copy.incrAllCounters(counters);
+			return copy;
+		}
+
+		@Override
+		public String[] getTaskDiagnostics(TaskAttemptID taskId) {
+			return new String[0];
+		}
+	}
+
+	/**
+	 * タスクごとのカウンタを保持する {@link Reporter} です。 {@code mapreduce} パッケージの API の
+	 * {@link StatusReporter} を兼ねます。
+	 */
+	private static class TaskReporter extends StatusReporter implements Reporter {
+
+		private final Counters counters = new Counters();
+		private final InputSplit split;
+
+		TaskReporter(InputSplit split) {
+			this.split = split;
+		}
+
+		@Override
+		public Counters.Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counters.Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void incrCounter(Enum<?> key, long amount) {
+			counters.incrCounter(key, amount);
+		}
+
+		@Override
+		public void incrCounter(String group, String counter, long amount) {
+			counters.incrCounter(group, counter, amount);
+		}
+
+		@Override
+		public InputSplit getInputSplit() {
+			if (split == null) {
+				throw new UnsupportedOperationException("Input only available on map");
+			}
+			return split;
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+
+	/**
+	 * 読み込んだレコード数を {@code MAP_INPUT_RECORDS} に加算します。
+	 */
+	private static class CountingRecordReader<K, V> implements RecordReader<K, V> {
+
+		private final RecordReader<K, V> reader;
+		private final Reporter reporter;
+
+		CountingRecordReader(RecordReader<K, V> reader, Reporter reporter) {
+			this.reader = reader;
+			this.reporter = reporter;
+		}
+
+		@Override
+		public boolean next(K key, V value) throws IOException {
+			boolean next = reader.next(key, value);
+			if (next) {
+				reporter.incrCounter(TASK_COUNTER_GROUP, "MAP_INPUT_RECORDS", 1);
+			}
+			return next;
+		}
+
+		@Override
+		public K createKey() {
+			return reader.createKey();
+		}
+
+		@Override
+		public V createValue() {
+			return reader.createValue();
+		}
+
+		@Override
+		public long getPos() throws IOException {
+			return reader.getPos();
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/**
+	 * {@link CountingRecordReader} の {@code mapreduce} パッケージの API 版です。
+	 */
+	private static class CountingNewRecordReader<K, V> extends
+			org.apache.hadoop.mapreduce.RecordReader<K, V> {
+
+		private final org.apache.hadoop.mapreduce.RecordReader<K, V> reader;
+		private final Reporter reporter;
+
+		CountingNewRecordReader(org.apache.hadoop.mapreduce.RecordReader<K, V> reader,
+				Reporter reporter) {
+			this.reader = reader;
+			this.reporter = reporter;
+		}
+
+		@Override
+		public void initialize(org.apache.hadoop.mapreduce.InputSplit split,
+				TaskAttemptContext context) throws IOException, InterruptedException {
+			reader.initialize(split, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			boolean next = reader.nextKeyValue();
+			if (next) {
+				reporter.incrCounter(TASK_COUNTER_GROUP, "MAP_INPUT_RECORDS", 1);
+			}
+			return next;
+		}
+
+		@Override
+		public K getCurrentKey() throws IOException, InterruptedException {
+			return reader.getCurrentKey();
+		}
+
+		@Override
+		public V getCurrentValue() throws IOException, InterruptedException {
+			return reader.getCurrentValue();
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reducer を利用しないジョブで、 Mapper の出力を {@link OutputFormat} に直接書き込みます。
+	 */
+	private static class DirectOutputCollector<K, V> implements OutputCollector<K, V> {
+
+		private final RecordWriter<K, V> writer;
+		private final Reporter reporter;
+
+		DirectOutputCollector(RecordWriter<K, V> writer, Reporter reporter) {
+			this.writer = writer;
+			this.reporter = reporter;
+		}
+
+		@Override
+		public void collect(K key, V value) throws IOException {
+			writer.write(key, value);
+			reporter.incrCounter(TASK_COUNTER_GROUP, "MAP_OUTPUT_RECORDS", 1);
+		}
+	}
+
+	/**
+	 * {@link OutputCollector} を {@code mapreduce} パッケージの API の RecordWriter として利用します。
+	 */
+	private static class CollectorWriter extends org.apache.hadoop.mapreduce.RecordWriter<Object, Object> {
+
+		private final OutputCollector<Object, Object> collector;
+
+		CollectorWriter(OutputCollector<Object, Object> collector) {
+			this.collector = collector;
+		}
+
+		@Override
+		public void write(Object key, Object value) throws IOException {
+			collector.collect(key, value);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) {
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+
+/**
+ * Mapper で解析できなかったレコードを {@link MultipleOutputs} で別のファイルに出力します。
+ * <p> {@link #ENABLED} を {@code true} に設定してジョブの投入前に {@link #configure(JobConf)} を呼び出すと、
+ * {@link #add(Text, TaskMetrics.InvalidReason, Reporter)} に渡したレコードを
+ * key=不正な理由, value=元のレコード として出力します。出力したファイルはジョブの完了後に
+ * 出力ディレクトリの {@link #DIR_NAME} に移動するため、後続のジョブの入力には含まれません。
+ * </p>
+ * <p>
+ * 正常なレコードの処理には影響しません。ファイルは最初に不正なレコードを出力する際に作成するため、
+ * 不正なレコードがない場合は何も出力しません。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class Quarantine {
+
+	private static final Log log = LogFactory.getLog(Quarantine.class);
+
+	/**
+	 * 不正なレコードを出力するかどうかの設定名です。デフォルトは {@code false} です。
+	 */
+	public static final String ENABLED = "quarantine.enabled";
+
+	/**
+	 * {@link MultipleOutputs} の出力名です。
+	 */
+	public static final String NAMED_OUTPUT = "quarantine";
+
+	/**
+	 * 不正なレコードを移動する、出力ディレクトリ配下のディレクトリ名です。
+	 */
+	public static final String DIR_NAME = "_quarantine";
+
+	private final MultipleOutputs outputs;
+	private final Text reasonText = new Text();
+
+	/**
+	 * @param job ジョブの設定
+	 */
+	public Quarantine(JobConf job) {
+		outputs = isConfigured(job) ? new MultipleOutputs(job) : null;
+	}
+
+	/**
+	 * {@link #ENABLED} が {@code true} の場合に、不正なレコードの出力先を設定します。
+	 * 
+	 * @param conf ジョブの設定
+	 */
+	public static void configure(JobConf conf) {
+		if (conf.getBoolean(ENABLED, false) && !isConfigured(conf)) {
+			MultipleOutputs.addNamedOutput(conf, NAMED_OUTPUT, TextOutputFormat.class, Text.class,
+					Text.class);
+		}
+	}
+
+	private static boolean isConfigured(JobConf conf) {
+		return MultipleOutputs.getNamedOutputsList(conf).contains(NAMED_OUTPUT);
+	}
+
+	/**
+	 * 不正なレコードを出力します。出力先が設定されていない場合は何もしません。
+	 * 
+	 * @param record 元のレコード
+	 * @param reason 不正な理由
+	 * @param reporter レポーター
+	 */
+	@SuppressWarnings("unchecked")
+	public void add(Text record, TaskMetrics.InvalidReason reason, Reporter reporter)
+			throws IOException {
+		if (outputs == null) {
+			return;
+		}
+		reasonText.set(reason.name());
+		OutputCollector<Text, Text> collector = outputs.getCollector(NAMED_OUTPUT, reporter);
+		collector.collect(reasonText, record);
+	}
+
+	public void close() throws IOException {
+		if (outputs != null) {
+			outputs.close();
+		}
+	}
+
+	/**
+	 * ジョブの完了時に {@link #commit(Configuration)} を呼び出すリスナーです。
+	 */
+	static final ParallelJobRunner.JobListener LISTENER = new ParallelJobRunner.JobListener() {
+		@Override
+		public void jobCompleted(Configuration conf, String jobName, Counters counters)
+				throws IOException {
+			commit(conf);
+		}
+	};
+
+	/**
+	 * 出力ディレクトリに出力された不正なレコードのファイルを {@link #DIR_NAME} に移動します。
+	 * 
+	 * @param conf ジョブの設定
+	 */
+	static void commit(Configuration conf) throws IOException {
+		String output = conf.get("mapred.output.dir");
+		if (output == null || !isConfigured(new JobConf(conf))) {
+			return;
+		}
+		Path outputDir = new Path(output);
+		FileSystem fs = outputDir.getFileSystem(conf);
+		FileStatus[] files = fs.listStatus(outputDir, new PathFilter() {
+			@Override
+			public boolean accept(Path path) {
+				return path.getName().startsWith(NAMED_OUTPUT + "-");
+			}
+		});
+		if (files == null || files.length == 0) {
+			return;
+		}
+		Path quarantineDir = new Path(outputDir, DIR_NAME);
+		fs.mkdirs(quarantineDir);
+		for (FileStatus file : files) {
+			Path target = new Path(quarantineDir, file.getPath().getName());
+			if (!fs.rename(file.getPath(), target)) {
+				throw new IOException("不正なレコードのファイルを移動できませんでした。file=" + file.getPath());
+			}
+		}
+		if (log.isInfoEnabled()) {
+			log.info(String.format("不正なレコードを出力しました。dir=%s, files=%d", quarantineDir,
+					files.length));
+		}
+	}
+}
@@ -14,7 +14,6 @@ import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -53,26 +52,67 @@ import org.apache.hadoop.util.ToolRunner;
 public class SortByAgeUsingHashPartitioner extends Configured implements Tool {
 
 	public static class SortByAgeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, Text> {
+			Mapper<Object, Text, IntWritable, EmployeeWritable> {
+
+		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private IntWritable age = new IntWritable();
+		private EmployeeWritable employee = new EmployeeWritable();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
+		public void map(Object key, Text value, OutputCollector<IntWritable, EmployeeWritable> output,
 				Reporter reporter) throws IOException {
-			String[] values = value.toString().split(",");
-			int age = Integer.parseInt(values[2]);
-			output.collect(new IntWritable(age), value);
+			parser.parse(value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				// 不正なレコードは EmployeeWritable に変換できないため除外します
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			age.set(parser.getEmployeeAge());
+			employee.set(parser);
+			output.collect(age, employee);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	public static class SortByAgeReducer extends MapReduceBase implements
-			Reducer<IntWritable, Text, IntWritable, Text> {
+			Reducer<IntWritable, EmployeeWritable, IntWritable, EmployeeWritable> {
+
+		private TaskMetrics metrics;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+		}
 
 		@Override
-		public void reduce(IntWritable key, Iterator<Text> values,
-				OutputCollector<IntWritable, Text> output, Reporter reporter) throws IOException {
+		public void reduce(IntWritable key, Iterator<EmployeeWritable> values,
+				OutputCollector<IntWritable, EmployeeWritable> output, Reporter reporter)
+				throws IOException {
+			int count = 0;
 			while (values.hasNext()) {
 				output.collect(key, values.next());
+				count++;
 			}
+			metrics.group(reporter, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
@@ -103,12 +143,13 @@ public class SortByAgeUsingHashPartitioner extends Configured implements Tool {
 		// conf.setOutputKeyComparatorClass(DescendingKeyComparator.class);
 		conf.setReducerClass(SortByAgeReducer.class);
 		conf.setOutputKeyClass(IntWritable.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(EmployeeWritable.class);
 		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		Quarantine.configure(conf);
 		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
 		// HashPartitionerを利用
 		conf.setPartitionerClass(HashPartitioner.class);
-		JobClient.runJob(conf);
+		ParallelJobRunner.runJob(conf);
 		return 0;
 	}
 
@@ -3,25 +3,27 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapred.SequenceFileInputFormat;
-import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.lib.HashPartitioner;
 import org.apache.hadoop.mapred.lib.InputSampler;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.mapred.lib.TotalOrderPartitioner;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -49,74 +51,125 @@ import org.apache.hadoop.util.ToolRunner;
  * </p>
  * <p> {@link InputSampler} は入力ファイルの key をサンプリングしてパーティション情報を作成します。
  * そのため、 {@link InputSampler} を利用するジョブの入力ファイルの key は年齢である必要があります。
- * 従業員ファイルをそのまま入力ファイルとした場合、 key にはファイルのバイトオフセットが設定されるため、
- * 年齢によるソート用のパーティション情報を作成することが出来ません。
- * そのため、事前に従業員ファイルを元に key を年齢とする SequenceFile を作成するジョブを実行しています。
+ * 従業員ファイルを {@link org.apache.hadoop.mapred.TextInputFormat} で読み込んだ場合、
+ * key にはファイルのバイトオフセットが設定されるため、年齢によるソート用のパーティション情報を作成することが出来ません。
+ * そのため、読み込み時に key を年齢とする {@link EmployeeAgeInputFormat} を利用し、
+ * サンプリングと全体ソートを単一のジョブで行っています。
  * </p>
  * <p> {@link InputSampler} 利用して作成したパーティション情報は Hadoop クラスタ上の
  * 全 Mapper に転送される必要があります。その転送処理に利用するのが {@link DistributedCache} です。 {@link DistributedCache}
  * を利用することで Hadoop クラスタ上の各タスクノードに
  * 任意のファイルを転送することが出来ます。
  * </p>
+ * <p>
+ * なお、年齢のように値の種類が少ない key ではサンプリングによる分割点の推定が偏りやすいため、
+ * {@link #USE_HISTOGRAM} を {@code true} に設定すると、事前に出力を伴わない Map のみのジョブのカウンタで
+ * 年齢ごとの件数を集計し、 {@link HistogramPartitioner} を利用して全体ソートを行います。
+ * </p>
  * 
  * @author n3104
  */
 public class SortByAgeUsingTotalOrderPartitioner extends Configured implements Tool {
 
-	public static class SortByAgeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, Text> {
+	/**
+	 * {@link InputSampler} の代わりに {@link HistogramPartitioner} を利用するかどうかの設定名です。
+	 * デフォルトは {@code false} です。
+	 */
+	public static final String USE_HISTOGRAM = "sortbyage.histogram.partitioner";
+
+	/**
+	 * 年齢ごとの件数をカウンタに集計します。出力は行いません。
+	 */
+	public static class AgeHistogramMapper extends MapReduceBase implements
+			Mapper<IntWritable, EmployeeWritable, NullWritable, NullWritable> {
+
+		// 年齢ごとの件数。カウンタの更新回数を抑えるため、Mapper内で集計してから close メソッドで反映します
+		private Map<Integer, long[]> histogram = new HashMap<Integer, long[]>();
+		private Reporter reporter;
+
+		@Override
+		public void map(IntWritable key, EmployeeWritable value,
+				OutputCollector<NullWritable, NullWritable> output, Reporter reporter)
+				throws IOException {
+			this.reporter = reporter;
+			long[] count = histogram.get(key.get());
+			if (count == null) {
+				count = new long[1];
+				histogram.put(key.get(), count);
+			}
+			count[0]++;
+		}
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
-				Reporter reporter) throws IOException {
-			String[] values = value.toString().split(",");
-			int age = Integer.parseInt(values[2]);
-			output.collect(new IntWritable(age), value);
+		public void close() throws IOException {
+			if (reporter == null) {
+				return;
+			}
+			for (Map.Entry<Integer, long[]> entry : histogram.entrySet()) {
+				reporter.incrCounter(HistogramPartitioner.COUNTER_GROUP, entry.getKey().toString(),
+						entry.getValue()[0]);
+			}
 		}
 	}
 
 	@Override
 	public int run(String[] args) throws Exception {
-		Path keyValuedFileDir = new Path(args[1] + "/KeyValue");
 		Path outputDir = new Path(args[1] + "/Result");
-		{
-			// 従業員ファイルから key=年齢, value=1行 のSequenceFileを作成
-			JobConf conf = new JobConf(getConf(), getClass());
-			conf.setMapperClass(SortByAgeMapper.class);
-			conf.setOutputKeyClass(IntWritable.class);
-			conf.setOutputValueClass(Text.class);
-			conf.setOutputFormat(SequenceFileOutputFormat.class);
-			FileInputFormat.addInputPath(conf, new Path(args[0]));
-			FileOutputFormat.setOutputPath(conf, keyValuedFileDir);
-			JobClient.runJob(conf);
-		}
-		{
-			// TotalOrderPartitionerを利用してソート
-			JobConf conf = new JobConf(getConf(), getClass());
-			conf.setOutputKeyClass(IntWritable.class);
-			conf.setOutputValueClass(Text.class);
-			conf.setInputFormat(SequenceFileInputFormat.class);
-			FileInputFormat.addInputPath(conf, keyValuedFileDir);
-			FileOutputFormat.setOutputPath(conf, outputDir);
-			// TotalOrderPartitionerを利用して全体ソートを行います。
-			conf.setPartitionerClass(TotalOrderPartitioner.class);
-			// InputSamplerを利用してパーティション情報を生成します。
-			InputSampler.Sampler<IntWritable, Text> sampler = new InputSampler.RandomSampler<IntWritable, Text>(
-					0.1, 10000, 10);
-			Path input = FileInputFormat.getInputPaths(conf)[0];
-			input = input.makeQualified(input.getFileSystem(conf));
-			Path partitionFile = new Path(input, "_partitions");
-			TotalOrderPartitioner.setPartitionFile(conf, partitionFile);
-			InputSampler.writePartitionFile(conf, sampler);
-			// DistributedCacheを利用してパーティション情報をクラスタ全体に転送します。
-			URI partitionUri = new URI(partitionFile.toString() + "#_partitions");
-			DistributedCache.addCacheFile(partitionUri, conf);
-			DistributedCache.createSymlink(conf);
-			JobClient.runJob(conf);
+		// 従業員ファイルを key=年齢, value=従業員 として読み込みます
+		JobConf conf = new JobConf(getConf(), getClass());
+		conf.setInputFormat(EmployeeAgeInputFormat.class);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(EmployeeWritable.class);
+		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		FileOutputFormat.setOutputPath(conf, outputDir);
+		if (conf.getBoolean(USE_HISTOGRAM, false)) {
+			// 年齢ごとの正確な件数から範囲を決定します。
+			// Reducerは値をそのまま出力するだけであるため、件数の多い年齢を複数のReducerに分割しても問題ありません。
+			JobGraph graph = new JobGraph(getClass().getSimpleName());
+			final JobGraph.Stage countAges = graph.add("CountAges", countAges(args[0]));
+			graph.add(new JobGraph.Stage("Sort", conf, countAges) {
+				@Override
+				protected void configure(JobConf conf) throws IOException {
+					SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+					HistogramPartitioner.readHistogram(countAges.getRunningJob().getCounters()
+							.getGroup(HistogramPartitioner.COUNTER_GROUP), histogram);
+					conf.setPartitionerClass(HistogramPartitioner.class);
+					HistogramPartitioner.setSplitKeys(conf, true);
+					HistogramPartitioner.configure(conf, histogram, conf.getNumReduceTasks());
+				}
+			});
+			graph.run();
+			return 0;
 		}
+		// TotalOrderPartitionerを利用して全体ソートを行います。
+		conf.setPartitionerClass(TotalOrderPartitioner.class);
+		// InputSamplerを利用してパーティション情報を生成します。
+		InputSampler.Sampler<IntWritable, EmployeeWritable> sampler = new InputSampler.RandomSampler<IntWritable, EmployeeWritable>(
+				0.1, 10000, 10);
+		// 入力ディレクトリに書き込まないように、パーティション情報は出力先と同じディレクトリに作成します
+		Path partitionFile = new Path(args[1], "_partitions");
+		partitionFile = partitionFile.makeQualified(partitionFile.getFileSystem(conf));
+		TotalOrderPartitioner.setPartitionFile(conf, partitionFile);
+		InputSampler.writePartitionFile(conf, sampler);
+		// DistributedCacheを利用してパーティション情報をクラスタ全体に転送します。
+		URI partitionUri = new URI(partitionFile.toString() + "#_partitions");
+		DistributedCache.addCacheFile(partitionUri, conf);
+		DistributedCache.createSymlink(conf);
+		conf.setJobName(getClass().getSimpleName());
+		ParallelJobRunner.runJob(conf);
 		return 0;
 	}
 
+	private JobConf countAges(String input) {
+		JobConf conf = new JobConf(getConf(), getClass());
+		conf.setInputFormat(EmployeeAgeInputFormat.class);
+		conf.setMapperClass(AgeHistogramMapper.class);
+		conf.setNumReduceTasks(0);
+		conf.setOutputFormat(NullOutputFormat.class);
+		FileInputFormat.addInputPath(conf, new Path(input));
+		return conf;
+	}
+
 	public static void main(String[] args) throws Exception {
 		// 引数を固定で設定
 		String in = "input/Employee";
@@ -2,11 +2,7 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.List;
 
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileUtil;
@@ -15,7 +11,6 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -29,7 +24,9 @@ import org.apache.hadoop.util.ToolRunner;
  * 従業員ファイルを部門と年齢でソートします。
  * <p>
  * Mapper のキーを {@code demartmentId} にして部門単位でまずソートし、
- * Reducer 内で {@link Comparator} を利用して年齢でソートしています。
+ * Reducer 内で年齢でソートしています。
+ * Reducer 内のソートには {@link ExternalSortBuffer} を利用しているため、
+ * 部門の従業員数がメモリに収まらない場合もソートすることが出来ます。
  * </p>
  * 
  * @author n3104
@@ -37,47 +34,83 @@ import org.apache.hadoop.util.ToolRunner;
 public class SortByDeptAndAgeUsingComparator extends Configured implements Tool {
 
 	public static class SortByDepartmentAndAgeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntWritable, Text> {
+			Mapper<Object, Text, IntWritable, EmployeeWritable> {
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private IntWritable departmentId = new IntWritable();
+		private EmployeeWritable employee = new EmployeeWritable();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntWritable, Text> output,
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+		}
+
+		@Override
+		public void map(Object key, Text value, OutputCollector<IntWritable, EmployeeWritable> output,
 				Reporter reporter) throws IOException {
 			parser.parse(value);
-			output.collect(new IntWritable(parser.getDepartmentId()), value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				// 不正なレコードは EmployeeWritable に変換できないため除外します
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			departmentId.set(parser.getDepartmentId());
+			employee.set(parser);
+			output.collect(departmentId, employee);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	public static class SortByDepartmentAndAgeReducer extends MapReduceBase implements
-			Reducer<IntWritable, Text, IntWritable, Text> {
+			Reducer<IntWritable, EmployeeWritable, IntWritable, EmployeeWritable> {
 
-		@Override
-		public void reduce(IntWritable key, Iterator<Text> values,
-				OutputCollector<IntWritable, Text> output, Reporter reporter) throws IOException {
-			List<Text> list = new ArrayList<Text>();
-			while (values.hasNext()) {
-				// Iteratorの要素は参照が再利用される実装であるため、別途Textをnewする必要がある。
-				list.add(new Text(values.next()));
-			}
-			// ageでソート
-			Collections.sort(list, new Comparator<Text>() {
+		private ExternalSortBuffer<EmployeeWritable> buffer;
+		private EmployeeWritable employee = new EmployeeWritable();
+		private TaskMetrics metrics;
 
-				private EmployeeRecordParser parser1 = new EmployeeRecordParser();
-				private EmployeeRecordParser parser2 = new EmployeeRecordParser();
+		@Override
+		public void configure(JobConf job) {
+			buffer = new ExternalSortBuffer<EmployeeWritable>(job);
+			metrics = new TaskMetrics(job, getClass());
+		}
 
-				@Override
-				public int compare(Text o1, Text o2) {
-					parser1.parse(o1);
-					parser2.parse(o2);
-					return Integer.valueOf(parser1.getEmployeeAge()).compareTo(parser2.getEmployeeAge());
+		@Override
+		public void reduce(IntWritable key, Iterator<EmployeeWritable> values,
+				OutputCollector<IntWritable, EmployeeWritable> output, Reporter reporter)
+				throws IOException {
+			// ageをソートキーとしてバッファに格納します。
+			// value は解析済みであるため、比較の度に解析する必要はありません。
+			// また、部門の従業員数がメモリに収まらない場合はディスクに退避しながらソートします。
+			try {
+				int count = 0;
+				while (values.hasNext()) {
+					EmployeeWritable value = values.next();
+					buffer.add(value.getEmployeeAge(), value);
+					count++;
 				}
-
-			});
-			for (Text value : list) {
-				output.collect(key, value);
+				metrics.group(reporter, count);
+				buffer.sort();
+				while (buffer.next(employee)) {
+					output.collect(key, employee);
+				}
+			} finally {
+				buffer.clear();
 			}
 		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+		}
 	}
 
 	@Override
@@ -86,10 +119,16 @@ public class SortByDeptAndAgeUsingComparator extends Configured implements Tool
 		conf.setMapperClass(SortByDepartmentAndAgeMapper.class);
 		conf.setReducerClass(SortByDepartmentAndAgeReducer.class);
 		conf.setOutputKeyClass(IntWritable.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(EmployeeWritable.class);
 		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		Quarantine.configure(conf);
+		DepartmentSampler.configureHotKeys(conf);
+		if (HotKeyPartitioner.hasHotKeys(conf)) {
+			// 従業員数の多い部門は複数のReducerに分散させます。各Reducerの出力はそれぞれ部門と年齢でソートされています。
+			conf.setPartitionerClass(HotKeyPartitioner.IntKey.class);
+		}
 		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
-		JobClient.runJob(conf);
+		ParallelJobRunner.runJob(conf);
 		return 0;
 	}
 
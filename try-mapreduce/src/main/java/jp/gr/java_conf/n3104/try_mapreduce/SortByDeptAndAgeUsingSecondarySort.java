@@ -5,8 +5,6 @@ import java.io.IOException;
 import java.util.Iterator;
 
 import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.examples.SecondarySort.FirstGroupingComparator;
-import org.apache.hadoop.examples.SecondarySort.IntPair;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
@@ -15,7 +13,6 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -39,52 +36,96 @@ import org.apache.hadoop.util.ToolRunner;
  * <li>複合キーの先頭のキーのみでパーティショニングを行うための {@link Partitioner} クラス
  * <li>複合キーの先頭のキーのみでグルーピングするための {@link RawComparator} クラス
  * </ul>
+ * このプログラムでは {@link SortSpec} を利用して、ソート順の宣言からこれらのクラスを設定しています。
+ * </p>
+ * <p>
+ * なお、ホットキーを設定した場合は {@link HotKeyPartitioner} を利用して従業員数の多い部門を
+ * 複数の Reducer に分散させます（{@link AverageAgeOfDepartment} を参照してください）。
  * </p>
  * 
  * @author n3104
  */
 public class SortByDeptAndAgeUsingSecondarySort extends Configured implements Tool {
 
+	/**
+	 * 複合キーのソート順です。
+	 */
+	public static final String SORT_SPEC = "departmentId asc, employeeAge asc";
+
 	public static class SortByDepartmentAndAgeMapper extends MapReduceBase implements
-			Mapper<Object, Text, IntPair, Text> {
+			Mapper<Object, Text, CompositeKey, EmployeeWritable> {
 
 		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private CompositeKey compositeKey;
+		private int departmentIdIndex;
+		private int employeeAgeIndex;
+		private EmployeeWritable employee = new EmployeeWritable();
+		private TaskMetrics metrics;
+		private Quarantine quarantine;
+
+		@Override
+		public void configure(JobConf job) {
+			metrics = new TaskMetrics(job, getClass());
+			quarantine = new Quarantine(job);
+			SortSpec spec = SortSpec.get(job);
+			compositeKey = spec.newKey();
+			departmentIdIndex = spec.indexOf("departmentId");
+			employeeAgeIndex = spec.indexOf("employeeAge");
+		}
 
 		@Override
-		public void map(Object key, Text value, OutputCollector<IntPair, Text> output,
+		public void map(Object key, Text value, OutputCollector<CompositeKey, EmployeeWritable> output,
 				Reporter reporter) throws IOException {
 			parser.parse(value);
-			IntPair intPair = new IntPair();
-			intPair.set(parser.getDepartmentId(), parser.getEmployeeAge());
-			output.collect(intPair, value);
+			if (!metrics.parsed(reporter, parser, value.getLength())) {
+				// 不正なレコードは EmployeeWritable に変換できないため除外します
+				quarantine.add(value, parser.getInvalidReason(), reporter);
+				return;
+			}
+			compositeKey.set(departmentIdIndex, parser.getDepartmentId());
+			compositeKey.set(employeeAgeIndex, parser.getEmployeeAge());
+			employee.set(parser);
+			output.collect(compositeKey, employee);
+			metrics.emitted();
+		}
+
+		@Override
+		public void close() throws IOException {
+			metrics.flush();
+			quarantine.close();
 		}
 	}
 
 	public static class SortByDepartmentAndAgeReducer extends MapReduceBase implements
-			Reducer<IntPair, Text, IntWritable, Text> {
+			Reducer<CompositeKey, EmployeeWritable, IntWritable, EmployeeWritable> {
 
-		private EmployeeRecordParser parser = new EmployeeRecordParser();
+		private IntWritable departmentId = new IntWritable();
+		private int departmentIdIndex;
+		private TaskMetrics metrics;
 
 		@Override
-		public void reduce(IntPair key, Iterator<Text> values,
-				OutputCollector<IntWritable, Text> output, Reporter reporter) throws IOException {
-			while (values.hasNext()) {
-				Text value = values.next();
-				parser.parse(value);
-				output.collect(new IntWritable(parser.getDepartmentId()), value);
-			}
+		public void configure(JobConf job) {
+			departmentIdIndex = SortSpec.get(job).indexOf("departmentId");
+			metrics = new TaskMetrics(job, getClass());
 		}
-	}
-
-	public static class FirstPartitioner implements Partitioner<IntPair, Text> {
 
 		@Override
-		public void configure(JobConf job) {
+		public void reduce(CompositeKey key, Iterator<EmployeeWritable> values,
+				OutputCollector<IntWritable, EmployeeWritable> output, Reporter reporter)
+				throws IOException {
+			// value が解析済みであるため、再度解析する必要はありません
+			departmentId.set(key.get(departmentIdIndex));
+			int count = 0;
+			while (values.hasNext()) {
+				output.collect(departmentId, values.next());
+				count++;
+			}
+			metrics.group(reporter, count);
 		}
 
 		@Override
-		public int getPartition(IntPair key, Text value, int numPartitions) {
-			return Math.abs(key.getFirst() * 127) % numPartitions;
+		public void close() throws IOException {
+			metrics.flush();
 		}
 	}
 
@@ -92,17 +133,22 @@ public class SortByDeptAndAgeUsingSecondarySort extends Configured implements To
 	public int run(String[] args) throws Exception {
 		JobConf conf = new JobConf(getConf(), getClass());
 		conf.setMapperClass(SortByDepartmentAndAgeMapper.class);
-		conf.setMapOutputKeyClass(IntPair.class);
-		conf.setPartitionerClass(FirstPartitioner.class);
-		conf.setOutputValueGroupingComparator(FirstGroupingComparator.class);
+		// 複合キーのクラス、Partitioner、グルーピング用のComparatorを設定します
+		SortSpec.parse(SORT_SPEC).configure(conf, 1);
+		FileInputFormat.addInputPath(conf, new Path(args[0]));
+		Quarantine.configure(conf);
+		DepartmentSampler.configureHotKeys(conf);
+		if (HotKeyPartitioner.hasHotKeys(conf)) {
+			// 従業員数の多い部門は複数のReducerに分散させます。各Reducerの出力はそれぞれ部門と年齢でソートされています。
+			conf.setPartitionerClass(HotKeyPartitioner.CompositeKeyPrefix.class);
+		}
 
 		conf.setReducerClass(SortByDepartmentAndAgeReducer.class);
 		conf.setOutputKeyClass(IntWritable.class);
-		conf.setOutputValueClass(Text.class);
+		conf.setOutputValueClass(EmployeeWritable.class);
 
-		FileInputFormat.addInputPath(conf, new Path(args[0]));
 		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
-		JobClient.runJob(conf);
+		ParallelJobRunner.runJob(conf);
 		return 0;
 	}
 
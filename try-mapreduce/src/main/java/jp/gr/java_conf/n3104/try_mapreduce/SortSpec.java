@@ -0,0 +1,214 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Secondary Sort で利用する複合キーのソート順を宣言的に定義します。
+ * <p>
+ * Secondary Sort を利用する際は、複合キーの {@link WritableComparable} クラスの他に、
+ * 先頭のキーのみでパーティショニングを行う {@link Partitioner} クラスと、
+ * 先頭のキーのみでグルーピングする {@link org.apache.hadoop.io.RawComparator} クラスを用意する必要があります。
+ * このクラスは {@code "departmentId asc, employeeAge desc"} のような文字列からソート順を定義し、
+ * {@link #configure(JobConf, int)} でこれらのクラスをまとめてジョブに設定します。
+ * </p>
+ * <p>
+ * キーには {@link CompositeKey} を利用します。ソート、グルーピングはいずれもシリアライズされたバイト列の比較のみで行うため、
+ * 降順の場合も {@link SortByAgeUsingHashPartitioner.DescendingKeyComparator} のようなクラスを作成する必要はありません。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class SortSpec {
+
+	/**
+	 * ソート順の設定名です。
+	 */
+	public static final String FIELDS = "sortspec.fields";
+
+	/**
+	 * パーティショニングとグルーピングに利用する先頭の項目数の設定名です。
+	 */
+	public static final String GROUPING_FIELDS = "sortspec.grouping.fields";
+
+	private static final String ASC = "asc";
+	private static final String DESC = "desc";
+
+	private final String[] names;
+	private final boolean[] descending;
+
+	private SortSpec(String[] names, boolean[] descending) {
+		this.names = names;
+		this.descending = descending;
+	}
+
+	/**
+	 * {@code "項目名 [asc|desc], ..."} 形式の文字列を解析します。順序を省略した場合は昇順です。
+	 * 
+	 * @param spec ソート順
+	 * @return {@link SortSpec}
+	 * @throws IllegalArgumentException ソート順の形式が不正な場合
+	 */
+	public static SortSpec parse(String spec) {
+		List<String> names = new ArrayList<String>();
+		List<Boolean> descending = new ArrayList<Boolean>();
+		for (String field : spec.split(",")) {
+			String[] tokens = field.trim().split("\\s+");
+			if (tokens[0].length() == 0 || tokens.length > 2) {
+				throw new IllegalArgumentException("ソート順の形式が不正です。spec=" + spec);
+			}
+			if (tokens.length == 2 && !ASC.equalsIgnoreCase(tokens[1])
+					&& !DESC.equalsIgnoreCase(tokens[1])) {
+				throw new IllegalArgumentException("ソート順は asc か desc を指定してください。spec=" + spec);
+			}
+			if (names.contains(tokens[0])) {
+				throw new IllegalArgumentException("項目名が重複しています。spec=" + spec);
+			}
+			names.add(tokens[0]);
+			descending.add(tokens.length == 2 && DESC.equalsIgnoreCase(tokens[1]));
+		}
+		if (names.size() > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("項目数が多すぎます。spec=" + spec);
+		}
+		boolean[] array = new boolean[descending.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = descending.get(i);
+		}
+		return new SortSpec(names.toArray(new String[names.size()]), array);
+	}
+
+	/**
+	 * {@link #configure(JobConf, int)} で設定したソート順を返します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @return {@link SortSpec}
+	 */
+	public static SortSpec get(Configuration conf) {
+		String spec = conf.get(FIELDS);
+		if (spec == null) {
+			throw new IllegalStateException(FIELDS + " が設定されていません。");
+		}
+		return parse(spec);
+	}
+
+	/**
+	 * ソート順と、複合キーの比較、グルーピング、パーティショニングに利用するクラスをジョブに設定します。
+	 * 
+	 * @param conf ジョブの設定
+	 * @param groupingFields パーティショニングとグルーピングに利用する先頭の項目数
+	 */
+	public void configure(JobConf conf, int groupingFields) {
+		if (groupingFields < 1 || groupingFields > names.length) {
+			throw new IllegalArgumentException("groupingFields が不正です。groupingFields="
+					+ groupingFields);
+		}
+		conf.set(FIELDS, toString());
+		conf.setInt(GROUPING_FIELDS, groupingFields);
+		conf.setMapOutputKeyClass(CompositeKey.class);
+		conf.setOutputKeyComparatorClass(CompositeKey.Comparator.class);
+		conf.setOutputValueGroupingComparator(GroupingComparator.class);
+		conf.setPartitionerClass(KeyPartitioner.class);
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * @param name 項目名
+	 * @return 項目の位置
+	 * @throws IllegalArgumentException 項目が存在しない場合
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("項目が存在しません。name=" + name);
+	}
+
+	/**
+	 * @return このソート順の {@link CompositeKey}
+	 */
+	public CompositeKey newKey() {
+		return new CompositeKey(descending);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(names[i]).append(' ').append(descending[i] ? DESC : ASC);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * {@link #GROUPING_FIELDS} で指定した先頭の項目のみでグルーピングする {@link WritableComparator} です。
+	 * シリアライズされたバイト列の先頭の項目の範囲のみを比較します。
+	 */
+	public static class GroupingComparator extends WritableComparator implements Configurable {
+
+		private Configuration conf;
+		private int groupingFields;
+
+		public GroupingComparator() {
+			super(CompositeKey.class, true);
+		}
+
+		@Override
+		public void setConf(Configuration conf) {
+			this.conf = conf;
+			this.groupingFields = conf.getInt(GROUPING_FIELDS, 1);
+		}
+
+		@Override
+		public Configuration getConf() {
+			return conf;
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			// ヘッダは同じジョブ内のキーでは常に同じため比較しません
+			int header = CompositeKey.headerLength(b1[s1] & 0xff);
+			int length = Math.min(groupingFields * 4, l1 - header);
+			return compareBytes(b1, s1 + header, length, b2, s2 + header, length);
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public int compare(WritableComparable a, WritableComparable b) {
+			return ((CompositeKey) a).compareTo((CompositeKey) b, groupingFields);
+		}
+	}
+
+	/**
+	 * {@link #GROUPING_FIELDS} で指定した先頭の項目のみでパーティショニングを行う {@link Partitioner} です。
+	 */
+	public static class KeyPartitioner<V> implements Partitioner<CompositeKey, V> {
+
+		private int groupingFields;
+
+		@Override
+		public void configure(JobConf job) {
+			groupingFields = job.getInt(GROUPING_FIELDS, 1);
+		}
+
+		@Override
+		public int getPartition(CompositeKey key, V value, int numPartitions) {
+			return (key.hashCode(groupingFields) & Integer.MAX_VALUE) % numPartitions;
+		}
+	}
+
+}
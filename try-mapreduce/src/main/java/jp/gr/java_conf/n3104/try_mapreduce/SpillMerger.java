@@ -0,0 +1,274 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * {@link MapOutputBuffer} が書き出した各スピルから1つのパーティションを読み込み、 key の順にマージします。
+ * <p>
+ * 同時に開くスピルは {@code io.sort.factor} 個（デフォルトは10）までです。スピルがそれより多い場合は、
+ * 連続する {@code io.sort.factor} 個ずつを中間ファイルにマージし、数が {@code io.sort.factor} 以下になるまで繰り返します。
+ * 中間ファイルは圧縮せずに {@code mapred.local.dir} に書き出し、読み込み終えた時点で削除します。
+ * 同じ key のレコードは {@code spills} の順（ Map タスクの順、スピルを書き出した順）に返します。
+ * 圧縮されたスピルは {@link MapOutputBuffer.Spill#getCodec()} で展開します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class SpillMerger implements RawKeyValueIterator {
+
+	private final RawComparator<?> comparator;
+	private final PriorityQueue<Segment> queue;
+	private final DataInputBuffer key = new DataInputBuffer();
+	private final DataInputBuffer value = new DataInputBuffer();
+	private final Progress progress = new Progress();
+	private Segment current;
+
+	/**
+	 * @param conf タスクの設定
+	 * @param spills 全ての Map タスクのスピル
+	 * @param partition 読み込むパーティション
+	 * @param comparator key の比較に利用する {@link RawComparator}
+	 */
+	public SpillMerger(JobConf conf, List<MapOutputBuffer.Spill> spills, int partition,
+			RawComparator<?> comparator) throws IOException {
+		this(merge(conf, spills, partition, comparator), partition, comparator);
+	}
+
+	/**
+	 * 全てのスピルを同時に開きます。
+	 */
+	private SpillMerger(List<MapOutputBuffer.Spill> spills, int partition,
+			RawComparator<?> comparator) throws IOException {
+		this.comparator = comparator;
+		this.queue = new PriorityQueue<Segment>(Math.max(1, spills.size()));
+		try {
+			for (int i = 0; i < spills.size(); i++) {
+				Segment segment = new Segment(spills.get(i), partition, i);
+				if (segment.next()) {
+					queue.add(segment);
+				} else {
+					segment.close();
+				}
+			}
+		} catch (IOException e) {
+			close();
+			deleteIntermediates(spills);
+			throw e;
+		}
+	}
+
+	/**
+	 * スピルの数が {@code io.sort.factor} 以下になるまで中間ファイルにマージします。
+	 * 
+	 * @return 最後のマージで読み込むスピル
+	 */
+	private static List<MapOutputBuffer.Spill> merge(JobConf conf,
+			List<MapOutputBuffer.Spill> spills, int partition, RawComparator<?> comparator)
+			throws IOException {
+		int factor = Math.max(2, conf.getInt("io.sort.factor", 10));
+		LocalDirAllocator allocator = new LocalDirAllocator("mapred.local.dir");
+		List<MapOutputBuffer.Spill> inputs = spills;
+		while (inputs.size() > factor) {
+			List<MapOutputBuffer.Spill> outputs = new ArrayList<MapOutputBuffer.Spill>();
+			try {
+				for (int i = 0; i < inputs.size(); i += factor) {
+					List<MapOutputBuffer.Spill> group = inputs.subList(i, Math.min(i + factor,
+							inputs.size()));
+					if (group.size() == 1) {
+						outputs.add(group.get(0));
+					} else {
+						outputs.add(write(conf, allocator, new SpillMerger(group, partition,
+								comparator), partition));
+					}
+				}
+			} catch (IOException e) {
+				deleteIntermediates(inputs);
+				deleteIntermediates(outputs);
+				throw e;
+			}
+			inputs = outputs;
+		}
+		return inputs;
+	}
+
+	/**
+	 * マージしたレコードを中間ファイルに書き出します。読み込んだ中間ファイルは削除されます。
+	 */
+	private static Intermediate write(JobConf conf, LocalDirAllocator allocator,
+			SpillMerger merger, int partition) throws IOException {
+		File file = allocator.createTmpFileForWrite("merge", -1, conf);
+		boolean written = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			try {
+				while (merger.next()) {
+					WritableUtils.writeVInt(out, merger.key.getLength());
+					WritableUtils.writeVInt(out, merger.value.getLength());
+					out.write(merger.key.getData(), 0, merger.key.getLength());
+					out.write(merger.value.getData(), 0, merger.value.getLength());
+				}
+				WritableUtils.writeVInt(out, -1);
+			} finally {
+				out.close();
+			}
+			written = true;
+		} finally {
+			merger.close();
+			if (!written) {
+				file.delete();
+			}
+		}
+		return new Intermediate(file, partition);
+	}
+
+	private static void deleteIntermediates(List<MapOutputBuffer.Spill> spills) {
+		for (MapOutputBuffer.Spill spill : spills) {
+			if (spill instanceof Intermediate) {
+				spill.getFile().delete();
+			}
+		}
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (current != null) {
+			if (current.next()) {
+				queue.add(current);
+			} else {
+				current.close();
+			}
+		}
+		current = queue.poll();
+		if (current == null) {
+			return false;
+		}
+		key.reset(current.key, current.keyLength);
+		value.reset(current.value, current.valueLength);
+		return true;
+	}
+
+	@Override
+	public DataInputBuffer getKey() throws IOException {
+		return key;
+	}
+
+	@Override
+	public DataInputBuffer getValue() throws IOException {
+		return value;
+	}
+
+	@Override
+	public Progress getProgress() {
+		return progress;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		for (Segment segment : queue) {
+			segment.close();
+		}
+		queue.clear();
+	}
+
+	/**
+	 * 1つのパーティションのみを格納した、圧縮していない中間ファイルです。
+	 */
+	private static class Intermediate extends MapOutputBuffer.Spill {
+
+		Intermediate(File file, int partition) {
+			super(file, new long[partition + 1], null);
+		}
+	}
+
+	/**
+	 * 1つのスピルの1つのパーティションです。
+	 */
+	private class Segment implements Comparable<Segment> {
+
+		private final MapOutputBuffer.Spill spill;
+		private final DataInputStream in;
+		private final int index;
+		private Decompressor decompressor;
+		private byte[] key = new byte[64];
+		private int keyLength;
+		private byte[] value = new byte[64];
+		private int valueLength;
+
+		Segment(MapOutputBuffer.Spill spill, int partition, int index) throws IOException {
+			FileInputStream file = new FileInputStream(spill.getFile());
+			file.getChannel().position(spill.getOffset(partition));
+			InputStream in = new BufferedInputStream(file);
+			CompressionCodec codec = spill.getCodec();
+			if (codec != null) {
+				decompressor = CodecPool.getDecompressor(codec);
+				in = codec.createInputStream(in, decompressor);
+			}
+			this.spill = spill;
+			this.in = new DataInputStream(in);
+			this.index = index;
+		}
+
+		boolean next() throws IOException {
+			keyLength = WritableUtils.readVInt(in);
+			if (keyLength < 0) {
+				return false;
+			}
+			valueLength = WritableUtils.readVInt(in);
+			if (key.length < keyLength) {
+				key = new byte[Math.max(keyLength, key.length * 2)];
+			}
+			if (value.length < valueLength) {
+				value = new byte[Math.max(valueLength, value.length * 2)];
+			}
+			in.readFully(key, 0, keyLength);
+			in.readFully(value, 0, valueLength);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+			if (decompressor != null) {
+				CodecPool.returnDecompressor(decompressor);
+				decompressor = null;
+			}
+			if (spill instanceof Intermediate) {
+				spill.getFile().delete();
+			}
+		}
+
+		@Override
+		public int compareTo(Segment o) {
+			int result = comparator.compare(key, 0, keyLength, o.key, 0, o.keyLength);
+			// 同じ key の場合は先の Map タスクのレコードを優先します
+			return result != 0 ? result : index - o.index;
+		}
+	}
+
+}
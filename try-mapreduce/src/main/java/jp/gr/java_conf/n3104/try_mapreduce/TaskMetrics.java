@@ -0,0 +1,178 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Mapper と Reducer の処理状況をカウンタとして集計します。
+ * <p>
+ * 解析したレコードの正常・異常（異常の場合はその理由）とバイト数、 Mapper ごとの出力レコード数、結合の成否、
+ * Reduce のキーごとの値の数を記録します。レコードごとにカウンタを更新するとロックの取得が増えるため、
+ * タスク内で集計しておき、 {@link #flush()} でまとめて {@link Reporter} に反映します。
+ * {@link org.apache.hadoop.mapred.Mapper#close()} などで必ず {@link #flush()} を呼び出してください。
+ * </p>
+ * <p>
+ * キーごとの値の数の最大値はカウンタのように合計できないため、 {@link #MAX_GROUP_SIZE_GROUP}
+ * に Reduce タスクごとのカウンタとして記録し、 {@link MetricsExporter} がその最大値を出力します。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class TaskMetrics {
+
+	public enum Counter {
+		VALID_RECORDS, INVALID_RECORDS, BYTES_PARSED, RECORDS_EMITTED, JOIN_MATCHES, JOIN_MISSES,
+		REDUCE_GROUPS, REDUCE_VALUES
+	}
+
+	/**
+	 * レコードが不正な理由です。
+	 */
+	public enum InvalidReason {
+		/** 要素数が不正 */
+		FIELD_COUNT,
+		/** 数値項目が数値ではない */
+		NUMBER_FORMAT
+	}
+
+	/**
+	 * Mapper のクラスごとの出力レコード数を記録するカウンタのグループ名です。
+	 */
+	public static final String RECORDS_EMITTED_GROUP = TaskMetrics.class.getName() + "$RecordsEmitted";
+
+	/**
+	 * Reduce タスクごとのキーあたりの値の数の最大値を記録するカウンタのグループ名です。
+	 */
+	public static final String MAX_GROUP_SIZE_GROUP = TaskMetrics.class.getName() + "$MaxGroupSize";
+
+	private static final Counter[] COUNTERS = Counter.values();
+	private static final InvalidReason[] INVALID_REASONS = InvalidReason.values();
+
+	private final String taskName;
+	private final String partitionName;
+	private final boolean isMap;
+	private final long[] counts = new long[COUNTERS.length];
+	private final long[] invalidCounts = new long[INVALID_REASONS.length];
+	private long emitted;
+	private long maxGroupSize;
+	private Reporter reporter = Reporter.NULL;
+
+	/**
+	 * @param job ジョブの設定
+	 * @param taskClass 出力レコード数の集計に使用する Mapper のクラス
+	 */
+	public TaskMetrics(JobConf job, Class<?> taskClass) {
+		taskName = taskClass.getSimpleName();
+		partitionName = String.format("reduce-%05d", job.getInt("mapred.task.partition", 0));
+		isMap = job.getBoolean("mapred.task.is.map", false);
+	}
+
+	/**
+	 * 従業員ファイルの解析結果を記録します。
+	 * 
+	 * @param reporter レポーター
+	 * @param parser 解析済みのパーサー
+	 * @param bytes 解析したバイト数
+	 * @return レコードが正常な場合は {@code true}
+	 */
+	public boolean parsed(Reporter reporter, EmployeeRecordParser parser, int bytes) {
+		return parsed(reporter, parser.isValid(), parser.getInvalidReason(), bytes);
+	}
+
+	/**
+	 * 部門ファイルの解析結果を記録します。
+	 * 
+	 * @param reporter レポーター
+	 * @param parser 解析済みのパーサー
+	 * @param bytes 解析したバイト数
+	 * @return レコードが正常な場合は {@code true}
+	 */
+	public boolean parsed(Reporter reporter, DepartmentRecordParser parser, int bytes) {
+		return parsed(reporter, parser.isValid(), parser.getInvalidReason(), bytes);
+	}
+
+	private boolean parsed(Reporter reporter, boolean isValid, InvalidReason reason, int bytes) {
+		this.reporter = reporter;
+		counts[Counter.BYTES_PARSED.ordinal()] += bytes;
+		if (isValid) {
+			counts[Counter.VALID_RECORDS.ordinal()]++;
+		} else {
+			counts[Counter.INVALID_RECORDS.ordinal()]++;
+			invalidCounts[reason.ordinal()]++;
+		}
+		return isValid;
+	}
+
+	/**
+	 * {@link #flush()} でカウンタを反映する {@link Reporter} を設定します。レコードを解析せずに
+	 * {@link #parsed(Reporter, EmployeeRecordParser, int)} を呼び出さない Mapper で使用します。
+	 * 
+	 * @param reporter レポーター
+	 */
+	public void setReporter(Reporter reporter) {
+		this.reporter = reporter;
+	}
+
+	/**
+	 * Mapper がレコードを1件出力したことを記録します。
+	 */
+	public void emitted() {
+		counts[Counter.RECORDS_EMITTED.ordinal()]++;
+		emitted++;
+	}
+
+	/**
+	 * 結合の成否を記録します。部門名のジョインでは結合先が見つからないレコードは出力しないため、
+	 * {@link Counter#JOIN_MISSES} は出力しなかったレコードの数となります。
+	 * 
+	 * @param matched 結合先が見つかった場合は {@code true}
+	 */
+	public void joined(boolean matched) {
+		counts[(matched ? Counter.JOIN_MATCHES : Counter.JOIN_MISSES).ordinal()]++;
+	}
+
+	/**
+	 * Reduce のキーごとの値の数を記録します。 Combiner として Map タスク内で呼び出された場合は記録しません。
+	 * 
+	 * @param reporter レポーター
+	 * @param values キーに対応する値の数
+	 */
+	public void group(Reporter reporter, long values) {
+		this.reporter = reporter;
+		if (isMap) {
+			return;
+		}
+		counts[Counter.REDUCE_GROUPS.ordinal()]++;
+		counts[Counter.REDUCE_VALUES.ordinal()] += values;
+		maxGroupSize = Math.max(maxGroupSize, values);
+	}
+
+	/**
+	 * 集計した値を最後に受け取った {@link Reporter} のカウンタに反映します。
+	 */
+	public void flush() {
+		for (int i = 0; i < COUNTERS.length; i++) {
+			if (counts[i] != 0) {
+				reporter.incrCounter(COUNTERS[i], counts[i]);
+				counts[i] = 0;
+			}
+		}
+		for (int i = 0; i < INVALID_REASONS.length; i++) {
+			if (invalidCounts[i] != 0) {
+				reporter.incrCounter(INVALID_REASONS[i], invalidCounts[i]);
+				invalidCounts[i] = 0;
+			}
+		}
+		if (emitted != 0) {
+			reporter.incrCounter(RECORDS_EMITTED_GROUP, taskName, emitted);
+			emitted = 0;
+		}
+		if (maxGroupSize != 0) {
+			Counters.Counter counter = reporter.getCounter(MAX_GROUP_SIZE_GROUP, partitionName);
+			if (counter != null && counter.getCounter() < maxGroupSize) {
+				counter.increment(maxGroupSize - counter.getCounter());
+			}
+		}
+	}
+}
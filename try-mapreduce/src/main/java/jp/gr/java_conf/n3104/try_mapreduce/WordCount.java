@@ -2,7 +2,6 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.StringTokenizer;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileUtil;
@@ -24,6 +23,14 @@ import org.apache.hadoop.util.GenericOptionsParser;
  * 「target/output/WordCount」に「part-r-00000」というファイルが出力されていれば動作確認完了になります。
  * 「part-r-00000」は「input/WordCount」フォルダ内の「text1.txt」と「text2.txt」に含まれる単語数を集計したファイルです。
  * </p>
+ * <p>
+ * なお、 {@link WordCountBuffer#ENABLED} を {@code true} に設定すると、
+ * {@link WordCountBuffer} を利用して Mapper 内で単語数を集計してから出力します（In-Mapper Combining）。
+ * </p>
+ * <p>
+ * また、単語の分割には {@link java.util.StringTokenizer} の代わりに {@link ByteTokenizer} を利用しています。
+ * 区切り文字は {@link ByteTokenizer#DELIMITERS} で変更出来ます。
+ * </p>
  * 
  * @author n3104
  */
@@ -33,13 +40,39 @@ public class WordCount {
 
 		private final static IntWritable one = new IntWritable(1);
 		private Text word = new Text();
+		private ByteTokenizer tokenizer;
+		private WordCountBuffer buffer;
+		private WordCountBuffer.Output bufferOutput;
+
+		@Override
+		protected void setup(final Context context) throws IOException, InterruptedException {
+			tokenizer = ByteTokenizer.newInstance(context.getConfiguration());
+			buffer = WordCountBuffer.newInstance(context.getConfiguration());
+			bufferOutput = new WordCountBuffer.Output() {
+				@Override
+				public void write(Text word, IntWritable count) throws IOException,
+						InterruptedException {
+					context.write(word, count);
+				}
+			};
+		}
 
 		public void map(Object key, Text value, Context context) throws IOException,
 				InterruptedException {
-			StringTokenizer itr = new StringTokenizer(value.toString());
-			while (itr.hasMoreTokens()) {
-				word.set(itr.nextToken());
-				context.write(word, one);
+			tokenizer.reset(value);
+			while (tokenizer.next(word)) {
+				if (buffer != null) {
+					buffer.add(word.getBytes(), 0, word.getLength(), bufferOutput);
+				} else {
+					context.write(word, one);
+				}
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (buffer != null) {
+				buffer.flush(bufferOutput);
 			}
 		}
 	}
@@ -72,6 +105,19 @@ public class WordCount {
 			System.err.println("Usage: wordcount <in> <out>");
 			System.exit(2);
 		}
+		Job job = createJob(conf, otherArgs[0], otherArgs[1]);
+		System.exit(ParallelJobRunner.waitForCompletion(job) ? 0 : 1);
+	}
+
+	/**
+	 * ジョブを生成します。 {@link #main(String[])} 以外から入出力ディレクトリを指定して実行する場合に利用します。
+	 * 
+	 * @param conf 設定
+	 * @param in 入力ディレクトリ
+	 * @param out 出力ディレクトリ
+	 * @return ジョブ
+	 */
+	public static Job createJob(Configuration conf, String in, String out) throws IOException {
 		Job job = new Job(conf, "word count");
 		job.setJarByClass(WordCount.class);
 		job.setMapperClass(TokenizerMapper.class);
@@ -79,8 +125,8 @@ public class WordCount {
 		job.setReducerClass(IntSumReducer.class);
 		job.setOutputKeyClass(Text.class);
 		job.setOutputValueClass(IntWritable.class);
-		FileInputFormat.addInputPath(job, new Path(otherArgs[0]));
-		FileOutputFormat.setOutputPath(job, new Path(otherArgs[1]));
-		System.exit(job.waitForCompletion(true) ? 0 : 1);
+		FileInputFormat.addInputPath(job, new Path(in));
+		FileOutputFormat.setOutputPath(job, new Path(out));
+		return job;
 	}
 }
@@ -0,0 +1,244 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Mapper 内で単語数を集計するためのバッファです（In-Mapper Combining）。
+ * <p>
+ * Combiner を利用しても、 Mapper の出力は一度シリアライズされ、ソートおよびスピルされた後に集計されます。
+ * このバッファを利用すると、 Mapper 内で単語ごとの件数を集計してから出力するため、
+ * shuffle に渡るレコード数を単語の種類数まで減らすことが出来ます。
+ * </p>
+ * <p>
+ * 単語は UTF-8 のバイト列のまま単一のバイト配列に格納し、オープンアドレス法のハッシュ表で管理します。
+ * 使用メモリの見積もりが {@link #MEMORY_LIMIT} を超えた場合は、出現回数の少ない単語から順に
+ * 約半数を出力してバッファから取り除きます。残りの単語は {@link #flush(Output)} で出力してください。
+ * </p>
+ *
+ * @author n3104
+ */
+public class WordCountBuffer {
+
+	/**
+	 * In-Mapper Combining を有効にするかどうかの設定名です。デフォルトは {@code false} です。
+	 */
+	public static final String ENABLED = "wordcount.inmapper.combining";
+
+	/**
+	 * バッファの使用メモリの上限（バイト）の設定名です。
+	 */
+	public static final String MEMORY_LIMIT = "wordcount.inmapper.memory.limit";
+
+	public static final int DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+	/**
+	 * 単語1件あたりの管理領域の見積もりです（エントリの配列4つとハッシュ表のスロット2つ分）。
+	 */
+	private static final int ENTRY_OVERHEAD = 4 * 4 + 2 * 4;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * バッファの内容を出力する先です。
+	 */
+	public interface Output {
+		void write(Text word, IntWritable count) throws IOException, InterruptedException;
+	}
+
+	private final long memoryLimit;
+
+	/** エントリの番号 + 1 を保持します。 0 は空きスロットを表します。 */
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	private int[] offsets = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int[] counts = new int[INITIAL_CAPACITY];
+	private int size;
+
+	private byte[] arena = new byte[INITIAL_CAPACITY * 8];
+	private int arenaLength;
+
+	private final Text word = new Text();
+	private final IntWritable count = new IntWritable();
+
+	public WordCountBuffer(long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * 設定に基づいてバッファを生成します。
+	 *
+	 * @param conf 設定
+	 * @return バッファ。 In-Mapper Combining が無効な場合は {@code null}
+	 */
+	public static WordCountBuffer newInstance(Configuration conf) {
+		if (!conf.getBoolean(ENABLED, false)) {
+			return null;
+		}
+		return new WordCountBuffer(conf.getLong(MEMORY_LIMIT, DEFAULT_MEMORY_LIMIT));
+	}
+
+	/**
+	 * 単語の件数を1加算します。
+	 * <p>
+	 * 使用メモリの見積もりが上限を超えた場合は、出現回数の少ない単語を {@code output} に出力します。
+	 * </p>
+	 *
+	 * @param bytes 単語を含むバイト列
+	 * @param start 単語の開始位置
+	 * @param length 単語の長さ
+	 * @param output 溢れた単語の出力先
+	 */
+	public void add(byte[] bytes, int start, int length, Output output) throws IOException,
+			InterruptedException {
+		int hash = hash(bytes, start, length);
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (true) {
+			int entry = slots[slot] - 1;
+			if (entry < 0) {
+				break;
+			}
+			if (hashes[entry] == hash && equals(entry, bytes, start, length)) {
+				counts[entry]++;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		int entry = append(hash, bytes, start, length);
+		slots[slot] = entry + 1;
+		if (size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		if (getMemoryUsage() > memoryLimit) {
+			evict(output);
+		}
+	}
+
+	/**
+	 * バッファ内の全ての単語を出力して、バッファを空にします。
+	 *
+	 * @param output 出力先
+	 */
+	public void flush(Output output) throws IOException, InterruptedException {
+		for (int i = 0; i < size; i++) {
+			write(i, output);
+		}
+		size = 0;
+		arenaLength = 0;
+		Arrays.fill(slots, 0);
+	}
+
+	/**
+	 * @return バッファ内の単語の種類数
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return 使用メモリの見積もり（バイト）
+	 */
+	public long getMemoryUsage() {
+		return (long) arenaLength + (long) size * ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * 出現回数が中央値以下の単語を出力し、残りの単語でバッファを詰め直します。
+	 */
+	private void evict(Output output) throws IOException, InterruptedException {
+		int[] sorted = Arrays.copyOf(counts, size);
+		Arrays.sort(sorted);
+		int threshold = sorted[size / 2];
+		int kept = 0;
+		int newArenaLength = 0;
+		for (int i = 0; i < size; i++) {
+			if (counts[i] <= threshold) {
+				write(i, output);
+				continue;
+			}
+			// 前方に詰めるだけなので、コピー元を上書きすることはありません
+			System.arraycopy(arena, offsets[i], arena, newArenaLength, lengths[i]);
+			hashes[kept] = hashes[i];
+			offsets[kept] = newArenaLength;
+			lengths[kept] = lengths[i];
+			counts[kept] = counts[i];
+			newArenaLength += lengths[i];
+			kept++;
+		}
+		size = kept;
+		arenaLength = newArenaLength;
+		rehash(slots.length);
+	}
+
+	private void write(int entry, Output output) throws IOException, InterruptedException {
+		word.set(arena, offsets[entry], lengths[entry]);
+		count.set(counts[entry]);
+		output.write(word, count);
+	}
+
+	private int append(int hash, byte[] bytes, int start, int length) {
+		if (size == counts.length) {
+			int capacity = size * 2;
+			hashes = Arrays.copyOf(hashes, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		if (arenaLength + length > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+		}
+		System.arraycopy(bytes, start, arena, arenaLength, length);
+		int entry = size++;
+		hashes[entry] = hash;
+		offsets[entry] = arenaLength;
+		lengths[entry] = length;
+		counts[entry] = 1;
+		arenaLength += length;
+		return entry;
+	}
+
+	private void rehash(int capacity) {
+		if (slots.length != capacity) {
+			slots = new int[capacity];
+		} else {
+			Arrays.fill(slots, 0);
+		}
+		int mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hashes[i] & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = i + 1;
+		}
+	}
+
+	private boolean equals(int entry, byte[] bytes, int start, int length) {
+		if (lengths[entry] != length) {
+			return false;
+		}
+		int offset = offsets[entry];
+		for (int i = 0; i < length; i++) {
+			if (arena[offset + i] != bytes[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes, int start, int length) {
+		int hash = 1;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + bytes[i];
+		}
+		// 下位ビットのみでスロットを決めるため、上位ビットを混ぜ込みます
+		return hash ^ (hash >>> 16);
+	}
+
+}
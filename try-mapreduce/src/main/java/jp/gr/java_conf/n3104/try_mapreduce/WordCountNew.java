@@ -2,7 +2,6 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.StringTokenizer;
 
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileUtil;
@@ -34,14 +33,40 @@ public class WordCountNew extends Configured implements Tool {
 
 		private final static IntWritable one = new IntWritable(1);
 		private Text word = new Text();
+		private ByteTokenizer tokenizer;
+		private WordCountBuffer buffer;
+		private WordCountBuffer.Output bufferOutput;
+
+		@Override
+		protected void setup(final Context context) throws IOException, InterruptedException {
+			tokenizer = ByteTokenizer.newInstance(context.getConfiguration());
+			buffer = WordCountBuffer.newInstance(context.getConfiguration());
+			bufferOutput = new WordCountBuffer.Output() {
+				@Override
+				public void write(Text word, IntWritable count) throws IOException,
+						InterruptedException {
+					context.write(word, count);
+				}
+			};
+		}
 
 		@Override
 		protected void map(Object key, Text value, Context context) throws IOException,
 				InterruptedException {
-			StringTokenizer itr = new StringTokenizer(value.toString());
-			while (itr.hasMoreTokens()) {
-				word.set(itr.nextToken());
-				context.write(word, one);
+			tokenizer.reset(value);
+			while (tokenizer.next(word)) {
+				if (buffer != null) {
+					buffer.add(word.getBytes(), 0, word.getLength(), bufferOutput);
+				} else {
+					context.write(word, one);
+				}
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (buffer != null) {
+				buffer.flush(bufferOutput);
 			}
 		}
 	}
@@ -76,7 +101,7 @@ public class WordCountNew extends Configured implements Tool {
 		job.setOutputValueClass(IntWritable.class);
 		FileInputFormat.addInputPath(job, new Path(args[0]));
 		FileOutputFormat.setOutputPath(job, new Path(args[1]));
-		return job.waitForCompletion(true) ? 0 : 1;
+		return ParallelJobRunner.waitForCompletion(job) ? 0 : 1;
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -3,7 +3,6 @@ package jp.gr.java_conf.n3104.try_mapreduce;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.StringTokenizer;
 
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileUtil;
@@ -12,7 +11,6 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
-import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
@@ -34,14 +32,53 @@ public class WordCountOld extends Configured implements Tool {
 
 		private final static IntWritable one = new IntWritable(1);
 		private Text word = new Text();
+		private ByteTokenizer tokenizer;
+		private WordCountBuffer buffer;
+		// 旧APIでは close メソッドで OutputCollector を受け取れないため、 map メソッドで保持しておきます
+		private OutputCollector<Text, IntWritable> collector;
+		private WordCountBuffer.Output bufferOutput = new WordCountBuffer.Output() {
+			@Override
+			public void write(Text word, IntWritable count) throws IOException {
+				collector.collect(word, count);
+			}
+		};
+
+		@Override
+		public void configure(JobConf job) {
+			tokenizer = ByteTokenizer.newInstance(job);
+			buffer = WordCountBuffer.newInstance(job);
+		}
 
 		@Override
 		public void map(Object key, Text value, OutputCollector<Text, IntWritable> output,
 				Reporter reporter) throws IOException {
-			StringTokenizer itr = new StringTokenizer(value.toString());
-			while (itr.hasMoreTokens()) {
-				word.set(itr.nextToken());
-				output.collect(word, one);
+			collector = output;
+			tokenizer.reset(value);
+			while (tokenizer.next(word)) {
+				if (buffer != null) {
+					add(word);
+				} else {
+					output.collect(word, one);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (buffer != null && collector != null) {
+				try {
+					buffer.flush(bufferOutput);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+
+		private void add(Text word) throws IOException {
+			try {
+				buffer.add(word.getBytes(), 0, word.getLength(), bufferOutput);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
 			}
 		}
 	}
@@ -77,7 +114,7 @@ public class WordCountOld extends Configured implements Tool {
 		conf.setOutputValueClass(IntWritable.class);
 		FileInputFormat.addInputPath(conf, new Path(args[0]));
 		FileOutputFormat.setOutputPath(conf, new Path(args[1]));
-		JobClient.runJob(conf);
+		ParallelJobRunner.runJob(conf);
 		return 0;
 	}
 
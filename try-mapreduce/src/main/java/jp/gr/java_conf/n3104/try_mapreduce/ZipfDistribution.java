@@ -0,0 +1,61 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 1から {@code n} までの順位を Zipf 分布に従って返します。
+ * <p>
+ * 順位 {@code k} の出現確率は {@code 1 / k^exponent} に比例します。 {@code exponent} が0の場合は一様分布となり、
+ * 大きくするほど上位の順位に偏ります。累積分布を事前に計算しておき、二分探索で順位を求めます。
+ * </p>
+ * 
+ * @author n3104
+ */
+public class ZipfDistribution {
+
+	private final double[] cumulative;
+
+	/**
+	 * @param n 順位の数
+	 * @param exponent 偏りの大きさ（0以上）
+	 */
+	public ZipfDistribution(int n, double exponent) {
+		if (n < 1) {
+			throw new IllegalArgumentException("n が不正です。n=" + n);
+		}
+		if (exponent < 0) {
+			throw new IllegalArgumentException("exponent が不正です。exponent=" + exponent);
+		}
+		cumulative = new double[n];
+		double sum = 0;
+		for (int k = 1; k <= n; k++) {
+			sum += 1.0 / Math.pow(k, exponent);
+			cumulative[k - 1] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cumulative[i] /= sum;
+		}
+	}
+
+	/**
+	 * @param random 乱数
+	 * @return 1から {@code n} までの順位
+	 */
+	public int sample(Random random) {
+		int index = Arrays.binarySearch(cumulative, random.nextDouble());
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return Math.min(index, cumulative.length - 1) + 1;
+	}
+
+	/**
+	 * @param k 順位
+	 * @return 順位 {@code k} の出現確率
+	 */
+	public double probability(int k) {
+		return cumulative[k - 1] - (k == 1 ? 0 : cumulative[k - 2]);
+	}
+
+}
@@ -0,0 +1,73 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+public class AgeStatsWritableTest {
+
+	@Test
+	public void meanAndStandardDeviation() throws Exception {
+		AgeStatsWritable stats = new AgeStatsWritable();
+		for (int age : new int[] { 2, 4, 4, 4, 5, 5, 7, 9 }) {
+			stats.add(age);
+		}
+		assertThat(stats.getCount(), is(8L));
+		assertThat(stats.getSum(), is(40L));
+		assertThat(stats.getMin(), is(2));
+		assertThat(stats.getMax(), is(9));
+		assertThat(stats.getMean(), is(5.0));
+		assertThat(stats.getStandardDeviation(), is(2.0));
+		assertThat(stats.toString(), is("5.0,2,9,2.0"));
+	}
+
+	@Test
+	public void merge() throws Exception {
+		AgeStatsWritable all = new AgeStatsWritable();
+		AgeStatsWritable left = new AgeStatsWritable();
+		AgeStatsWritable right = new AgeStatsWritable();
+		for (int age = 20; age < 60; age++) {
+			all.add(age);
+			(age % 3 == 0 ? left : right).add(age);
+		}
+		// 空の値との併合は結果を変えないこと
+		AgeStatsWritable merged = new AgeStatsWritable();
+		merged.merge(new AgeStatsWritable());
+		merged.merge(left);
+		merged.merge(right);
+		assertThat(merged.getCount(), is(all.getCount()));
+		assertThat(merged.getSum(), is(all.getSum()));
+		assertThat(merged.getSumOfSquares(), is(all.getSumOfSquares()));
+		assertThat(merged.getMin(), is(20));
+		assertThat(merged.getMax(), is(59));
+		assertThat(merged.toString(), is(all.toString()));
+
+		merged.set(30);
+		assertThat(merged.toString(), is("30.0,30,30,0.0"));
+	}
+
+	@Test
+	public void writeAndReadFields() throws Exception {
+		AgeStatsWritable stats = new AgeStatsWritable();
+		stats.add(27);
+		stats.add(45);
+		DataOutputBuffer out = new DataOutputBuffer();
+		stats.write(out);
+		assertThat(out.getLength(), is(32));
+
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		AgeStatsWritable actual = new AgeStatsWritable();
+		actual.add(99);
+		actual.readFields(in);
+		assertThat(actual.getSum(), is(72L));
+		assertThat(actual.getCount(), is(2L));
+		assertThat(actual.getMin(), is(27));
+		assertThat(actual.getMax(), is(45));
+		assertThat(actual.getSumOfSquares(), is(27L * 27 + 45 * 45));
+	}
+
+}
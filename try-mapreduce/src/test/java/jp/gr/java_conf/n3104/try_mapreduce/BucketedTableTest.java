@@ -0,0 +1,165 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BucketedTableTest {
+
+	private File dir;
+	private File input;
+	private JobConf conf;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(BucketedTableTest.class));
+		input = new File(dir, "input");
+		FileUtils.writeStringToFile(new File(input, "Employee"), "1,佐藤,27,270000,1\n", "UTF-8");
+		conf = new JobConf();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void reuse() throws Exception {
+		Path path = bucketed("table", 2);
+		assertThat(BucketedTable.open(conf, path), is(nullValue()));
+		BucketedTable created = BucketedTable.create(conf, path, "departmentId", inputPath());
+		assertThat(created.getBuckets(), is(2));
+
+		BucketedTable table = BucketedTable.open(conf, path);
+		assertThat(table.getKey(), is("departmentId"));
+		assertThat(table.getBuckets(), is(2));
+		assertThat(table.isUpToDate(conf, inputPath(), "departmentId"), is(true));
+		assertThat(table.isCompatibleWith(created), is(true));
+		// 異なる key でソートされたデータセットは再利用しないこと
+		assertThat(table.isUpToDate(conf, inputPath(), "employeeId"), is(false));
+		// メタデータファイルや隠しファイルはフィンガープリントに含めないこと
+		String fingerprint = BucketedTable.fingerprint(conf, inputPath());
+		FileUtils.writeStringToFile(new File(input, "_SUCCESS"), "", "UTF-8");
+		FileUtils.writeStringToFile(new File(input, ".Employee.crc"), "", "UTF-8");
+		assertThat(BucketedTable.fingerprint(conf, inputPath()), is(fingerprint));
+	}
+
+	@Test
+	public void invalidate() throws Exception {
+		File employee = new File(input, "Employee");
+		Path path = bucketed("table", 1);
+		BucketedTable.create(conf, path, "departmentId", inputPath());
+		BucketedTable table = BucketedTable.open(conf, path);
+
+		// 名前の変更
+		File renamed = new File(input, "Employee2");
+		assertThat(employee.renameTo(renamed), is(true));
+		assertThat(table.isUpToDate(conf, inputPath(), "departmentId"), is(false));
+		assertThat(renamed.renameTo(employee), is(true));
+		assertThat(table.isUpToDate(conf, inputPath(), "departmentId"), is(true));
+
+		// サイズの変更（更新日時は元に戻します）
+		long modified = employee.lastModified();
+		FileUtils.writeStringToFile(employee, "1,佐藤,28,270000,1\n2,鈴木,30,300000,2\n", "UTF-8");
+		assertThat(employee.setLastModified(modified), is(true));
+		assertThat(table.isUpToDate(conf, inputPath(), "departmentId"), is(false));
+
+		// 更新日時の変更（サイズは変えません）
+		BucketedTable.create(conf, path, "departmentId", inputPath());
+		table = BucketedTable.open(conf, path);
+		assertThat(table.isUpToDate(conf, inputPath(), "departmentId"), is(true));
+		assertThat(employee.setLastModified(modified - 60 * 1000), is(true));
+		assertThat(table.isUpToDate(conf, inputPath(), "departmentId"), is(false));
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void inputNotFound() throws Exception {
+		BucketedTable.fingerprint(conf, new Path(dir.getPath(), "NotFound"));
+	}
+
+	@Test
+	public void bucketMismatch() throws Exception {
+		BucketedTable two = BucketedTable.create(conf, bucketed("two", 2), "departmentId",
+				inputPath());
+		BucketedTable three = BucketedTable.create(conf, bucketed("three", 3), "departmentId",
+				inputPath());
+		assertThat(two.isCompatibleWith(three), is(false));
+		assertThat(three.isCompatibleWith(two), is(false));
+		BucketedTable otherKey = BucketedTable.create(conf, bucketed("otherKey", 2), "employeeId",
+				inputPath());
+		assertThat(two.isCompatibleWith(otherKey), is(false));
+
+		// 出力ファイルの存在しないデータセットは再利用しないこと
+		BucketedTable empty = BucketedTable.create(conf, bucketed("empty", 0), "departmentId",
+				inputPath());
+		assertThat(empty.getBuckets(), is(0));
+		assertThat(empty.isUpToDate(conf, inputPath(), "departmentId"), is(false));
+	}
+
+	@Test
+	public void mapSideJoinReusesTable() throws Exception {
+		File department = new File(dir, "Department");
+		FileUtils.writeStringToFile(department, "1,総務部\n2,営業部\n", "UTF-8");
+		File bucketedDir = new File(dir, "bucketed");
+		File sorted = new File(new File(bucketedDir, "Employee"), "part-00000");
+
+		join("first", department, bucketedDir, 2);
+		long modified = sorted.lastModified();
+		assertThat(BucketedTable.open(conf, new Path(bucketedDir.getPath(), "Employee"))
+				.getBuckets(), is(2));
+		// 1秒以上経過しないと更新日時が変わらない場合があるため、再作成を検知できるよう戻しておきます
+		assertThat(sorted.setLastModified(modified - 60 * 1000), is(true));
+		modified = sorted.lastModified();
+
+		// 入力ファイルとバケット数が同じ場合はソートしたファイルを再利用すること
+		join("second", department, bucketedDir, 2);
+		assertThat(sorted.lastModified(), is(modified));
+		assertThat(FileUtils.readFileToString(new File(new File(dir, "second/Result"),
+				"part-00000"), "UTF-8"), is(FileUtils.readFileToString(new File(new File(dir,
+				"first/Result"), "part-00000"), "UTF-8")));
+
+		// バケット数が異なる場合は再作成すること
+		join("third", department, bucketedDir, 3);
+		assertThat(sorted.lastModified() == modified, is(false));
+		assertThat(BucketedTable.open(conf, new Path(bucketedDir.getPath(), "Employee"))
+				.getBuckets(), is(3));
+	}
+
+	private void join(String name, File department, File bucketedDir, int buckets)
+			throws Exception {
+		JobConf job = new JobConf();
+		job.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		job.setInt(BucketedTable.BUCKETS, buckets);
+		job.set(JoinWithDeptNameUsingMapSideJoin.BUCKETED_DIR, bucketedDir.getPath());
+		int res = ToolRunner.run(job, new JoinWithDeptNameUsingMapSideJoin(), new String[] {
+				inputPath().toString(), department.getPath(), new File(dir, name).getPath() });
+		assertThat(res, is(0));
+	}
+
+	/**
+	 * 指定した数の出力ファイルを持つデータセットのディレクトリを作成します。
+	 */
+	private Path bucketed(String name, int buckets) throws Exception {
+		File table = new File(dir, name);
+		assertThat(table.mkdirs(), is(true));
+		for (int i = 0; i < buckets; i++) {
+			FileUtils.writeStringToFile(new File(table, "part-0000" + i), "", "UTF-8");
+		}
+		return new Path(table.getPath());
+	}
+
+	private Path inputPath() {
+		return new Path(input.getPath());
+	}
+
+}
@@ -0,0 +1,72 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class ByteTokenizerTest {
+
+	@Test
+	public void sameAsStringTokenizer() throws Exception {
+		ByteTokenizer tokenizer = new ByteTokenizer(ByteTokenizer.ASCII_WHITESPACE);
+		String[] lines = { "", " ", "hello world", "  leading", "trailing  ", "a   b\t\tc",
+				"tab\tand\rcr\r\n", "\f form feed", "日本語 の テキスト", "ü é\tñ" };
+		for (String line : lines) {
+			List<String> expected = new ArrayList<String>();
+			StringTokenizer itr = new StringTokenizer(line);
+			while (itr.hasMoreTokens()) {
+				expected.add(itr.nextToken());
+			}
+			assertThat("[" + line + "]", tokenize(tokenizer, new Text(line)), is(expected));
+		}
+	}
+
+	@Test
+	public void ideographicSpace() throws Exception {
+		ByteTokenizer tokenizer = new ByteTokenizer(ByteTokenizer.ASCII_WHITESPACE
+				+ ByteTokenizer.IDEOGRAPHIC_SPACE);
+		// 「あ」は全角スペースと先頭バイトが同じですが、区切り文字ではありません
+		assertThat(tokenize(tokenizer, new Text("　あい　　う え　")), is(Arrays
+				.asList("あい", "う", "え")));
+		// 末尾が全角スペースの先頭バイトのみの場合も範囲外を読まないこと
+		byte[] bytes = "あ　".getBytes("UTF-8");
+		tokenizer.reset(bytes, 0, 4);
+		assertThat(tokenizer.next(), is(true));
+		assertThat(tokenizer.getTokenLength(), is(4));
+		assertThat(tokenizer.next(), is(false));
+	}
+
+	@Test
+	public void range() throws Exception {
+		ByteTokenizer tokenizer = ByteTokenizer.newInstance(new Configuration());
+		byte[] bytes = "xx ab cd yy".getBytes("UTF-8");
+		tokenizer.reset(bytes, 2, 7);
+		assertThat(tokenizer.next(), is(true));
+		assertThat(tokenizer.getTokenStart(), is(3));
+		assertThat(tokenizer.getTokenLength(), is(2));
+		assertThat(tokenizer.next(), is(true));
+		assertThat(tokenizer.getTokenStart(), is(6));
+		assertThat(tokenizer.getTokenLength(), is(2));
+		assertThat(tokenizer.next(), is(false));
+		assertThat(tokenizer.next(), is(false));
+	}
+
+	private static List<String> tokenize(ByteTokenizer tokenizer, Text text) {
+		List<String> tokens = new ArrayList<String>();
+		Text word = new Text();
+		tokenizer.reset(text);
+		while (tokenizer.next(word)) {
+			tokens.add(word.toString());
+		}
+		return tokens;
+	}
+
+}
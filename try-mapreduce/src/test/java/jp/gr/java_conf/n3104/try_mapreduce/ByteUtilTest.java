@@ -0,0 +1,77 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ByteUtilTest {
+
+	@Test
+	public void tryParseInt() throws Exception {
+		assertThat(tryParseInt("0"), is(0L));
+		assertThat(tryParseInt("27"), is(27L));
+		assertThat(tryParseInt("+27"), is(27L));
+		assertThat(tryParseInt("-27"), is(-27L));
+		assertThat(tryParseInt("007"), is(7L));
+		assertThat(tryParseInt("2147483647"), is((long) Integer.MAX_VALUE));
+		assertThat(tryParseInt("-2147483648"), is((long) Integer.MIN_VALUE));
+
+		// 空文字列、符号のみ、数字以外の文字
+		assertThat(tryParseInt(""), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("-"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("+"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("1-"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt(" 1"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("1a"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("不明"), is(ByteUtil.INVALID_INT));
+		// int の範囲外
+		assertThat(tryParseInt("2147483648"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("-2147483649"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("21474836470"), is(ByteUtil.INVALID_INT));
+		assertThat(tryParseInt("99999999999999999999"), is(ByteUtil.INVALID_INT));
+	}
+
+	@Test
+	public void tryParseIntRange() throws Exception {
+		byte[] bytes = "1,-23,456".getBytes("UTF-8");
+		assertThat(ByteUtil.tryParseInt(bytes, 0, 1), is(1L));
+		assertThat(ByteUtil.tryParseInt(bytes, 2, 5), is(-23L));
+		assertThat(ByteUtil.tryParseInt(bytes, 6, 8), is(45L));
+		assertThat(ByteUtil.tryParseInt(bytes, 1, 1), is(ByteUtil.INVALID_INT));
+		assertThat(ByteUtil.tryParseInt(bytes, 0, 5), is(ByteUtil.INVALID_INT));
+	}
+
+	@Test
+	public void parseInt() throws Exception {
+		byte[] bytes = "-2147483648".getBytes("UTF-8");
+		assertThat(ByteUtil.parseInt(bytes, 0, bytes.length), is(Integer.MIN_VALUE));
+		bytes = "2147483648".getBytes("UTF-8");
+		try {
+			ByteUtil.parseInt(bytes, 0, bytes.length);
+			fail();
+		} catch (NumberFormatException e) {
+			assertThat(e.getMessage(), is("整数として解析できません。value=2147483648"));
+		}
+	}
+
+	@Test
+	public void split() throws Exception {
+		byte[] bytes = "a,,bc,".getBytes("UTF-8");
+		int[] bounds = new int[4];
+		// 末尾の空要素は無視します
+		assertThat(ByteUtil.split(bytes, 0, bytes.length, (byte) ',', bounds), is(3));
+		assertThat(bounds[0], is(0));
+		assertThat(bounds[1], is(2));
+		assertThat(bounds[2], is(3));
+		assertThat(bounds[3], is(6));
+		// 要素数が上限を超える場合は打ち切ります
+		assertThat(ByteUtil.split(bytes, 0, bytes.length, (byte) ',', new int[3]), is(3));
+	}
+
+	private static long tryParseInt(String value) throws Exception {
+		byte[] bytes = value.getBytes("UTF-8");
+		return ByteUtil.tryParseInt(bytes, 0, bytes.length);
+	}
+
+}
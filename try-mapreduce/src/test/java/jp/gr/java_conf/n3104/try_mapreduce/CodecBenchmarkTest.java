@@ -0,0 +1,32 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+public class CodecBenchmarkTest {
+
+	@Test
+	public void run() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			sb.append(i).append(",佐藤,").append(20 + i % 40).append(",270000,").append(i % 10)
+					.append('\n');
+		}
+		List<CodecBenchmark.Result> results = CodecBenchmark.run(new JobConf(), sb.toString()
+				.getBytes("UTF-8"));
+		assertThat(results.size(), is(3));
+		for (CodecBenchmark.Result result : results) {
+			assertThat(result.getCodec(), result.getRatio() > 1, is(true));
+		}
+	}
+
+	@Test
+	public void runEmpty() throws Exception {
+		assertThat(CodecBenchmark.run(new JobConf(), new byte[0]).isEmpty(), is(true));
+	}
+}
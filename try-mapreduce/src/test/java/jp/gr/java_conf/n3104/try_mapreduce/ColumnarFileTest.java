@@ -0,0 +1,123 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ColumnarFileTest {
+
+	private static final String[] NAMES = { "佐藤", "鈴木", "高橋", "田中" };
+
+	private File dir;
+	private FileSystem fs;
+	private Path file;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(ColumnarFileTest.class));
+		fs = FileSystem.getLocal(new JobConf());
+		file = new Path(dir.getPath(), "employee");
+		// 部門でソートした 1000 件を 100 件ずつの行グループに格納します
+		ColumnarFile.Writer<EmployeeWritable> writer = new ColumnarFile.Writer<EmployeeWritable>(
+				fs.create(file), ColumnarFile.EMPLOYEE, 100);
+		EmployeeWritable employee = new EmployeeWritable();
+		for (int i = 0; i < 1000; i++) {
+			employee.set(i, NAMES[i % NAMES.length], 20 + i % 40, 200000 + i * 37, i / 100);
+			writer.append(employee);
+		}
+		writer.close();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void readAll() throws Exception {
+		assertThat(ColumnarFile.isColumnarFile(fs, file), is(true));
+		ColumnarFile.Reader reader = new ColumnarFile.Reader(fs, file);
+		EmployeeWritable employee = new EmployeeWritable();
+		int count = 0;
+		while (reader.next(employee)) {
+			assertThat(employee.getEmployeeId(), is(count));
+			assertThat(employee.getEmployeeName(), is(NAMES[count % NAMES.length]));
+			assertThat(employee.getEmployeeAge(), is(20 + count % 40));
+			assertThat(employee.getEmployeeSalary(), is(200000 + count * 37));
+			assertThat(employee.getDepartmentId(), is(count / 100));
+			count++;
+		}
+		assertThat(count, is(1000));
+		assertThat(reader.getRowGroupsRead(), is(10L));
+		assertThat(reader.getEncoding(0), is(ColumnarFile.Encoding.DELTA));
+		assertThat(reader.getEncoding(1), is(ColumnarFile.Encoding.DICTIONARY));
+		assertThat(reader.getEncoding(4), is(ColumnarFile.Encoding.RLE));
+		reader.close();
+	}
+
+	@Test
+	public void projection() throws Exception {
+		ColumnarFile.Reader reader = new ColumnarFile.Reader(fs, file);
+		reader.setColumns("employeeAge");
+		EmployeeWritable employee = new EmployeeWritable();
+		assertThat(reader.next(employee), is(true));
+		assertThat(employee.getEmployeeAge(), is(20));
+		assertThat(employee.getEmployeeName(), is(""));
+		assertThat(employee.getDepartmentId(), is(0));
+		while (reader.next(employee)) {
+		}
+		assertThat(reader.getBytesSkipped() > reader.getBytesRead(), is(true));
+		reader.close();
+	}
+
+	@Test
+	public void predicate() throws Exception {
+		ColumnarFile.Reader reader = new ColumnarFile.Reader(fs, file);
+		reader.setColumns("employeeId");
+		reader.setPredicate(ColumnarFile.Predicate.parse(ColumnarFile.EMPLOYEE,
+				"departmentId = 2, employeeAge > 30"));
+		EmployeeWritable employee = new EmployeeWritable();
+		int count = 0;
+		while (reader.next(employee)) {
+			assertThat(employee.getEmployeeId() / 100, is(2));
+			assertThat(20 + employee.getEmployeeId() % 40 > 30, is(true));
+			count++;
+		}
+		assertThat(count, is(67));
+		assertThat(reader.getRowGroupsRead(), is(1L));
+		assertThat(reader.getRowGroupsSkipped(), is(9L));
+		assertThat(reader.getRowsFiltered(), is(33L));
+		reader.close();
+	}
+
+	@Test
+	public void split() throws Exception {
+		long length = fs.getFileStatus(file).getLen();
+		int count = 0;
+		for (long start = 0; start < length; start += 500) {
+			ColumnarFile.Reader reader = new ColumnarFile.Reader(fs, file);
+			reader.setRange(start, Math.min(start + 500, length));
+			EmployeeWritable employee = new EmployeeWritable();
+			while (reader.next(employee)) {
+				assertThat(employee.getEmployeeId(), is(count));
+				count++;
+			}
+			reader.close();
+		}
+		assertThat(count, is(1000));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void predicateUnknownColumn() throws Exception {
+		ColumnarFile.Predicate.parse(ColumnarFile.EMPLOYEE, "age > 30");
+	}
+}
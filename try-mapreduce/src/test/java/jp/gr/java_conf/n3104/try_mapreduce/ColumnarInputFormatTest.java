@@ -0,0 +1,155 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ColumnarInputFormatTest {
+
+	private File dir;
+	private JobConf conf;
+	private Counters counters;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(ColumnarInputFormatTest.class));
+		conf = new JobConf();
+		counters = new Counters();
+		FileSystem fs = FileSystem.getLocal(conf);
+		Path file = new Path(new File(dir, "employee").getPath(), "part-00000");
+		// 部門でソートした 1000 件を 100 件ずつの行グループに格納します
+		ColumnarFile.Writer<EmployeeWritable> writer = new ColumnarFile.Writer<EmployeeWritable>(
+				fs.create(file), ColumnarFile.EMPLOYEE, 100);
+		EmployeeWritable employee = new EmployeeWritable();
+		for (int i = 0; i < 1000; i++) {
+			employee.set(i, "佐藤", 20 + i % 40, 200000 + i * 37, i / 100);
+			writer.append(employee);
+		}
+		writer.close();
+		FileInputFormat.setInputPaths(conf, new Path(file.getParent().toString()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void readSplits() throws Exception {
+		ColumnarInputFormat.setColumns(conf, "employeeId", "employeeAge");
+		// 各行グループはいずれか1つのスプリットから読み込まれること
+		assertThat(read(4), is(1000));
+		assertThat(getCounter(ColumnarInputFormat.Counter.ROW_GROUPS_READ), is(10L));
+		assertThat(getCounter(ColumnarInputFormat.Counter.ROW_GROUPS_SKIPPED), is(0L));
+		assertThat(getCounter(ColumnarInputFormat.Counter.ROWS_FILTERED), is(0L));
+		// 読み込まない列のバイト数は読み飛ばしたバイト数に記録されること
+		assertThat(getCounter(ColumnarInputFormat.Counter.BYTES_READ) > 0, is(true));
+		assertThat(getCounter(ColumnarInputFormat.Counter.BYTES_SKIPPED) > 0, is(true));
+	}
+
+	@Test
+	public void predicate() throws Exception {
+		ColumnarInputFormat.setColumns(conf, "employeeId", "employeeAge");
+		conf.set(ColumnarInputFormat.PREDICATE, "departmentId = 2, employeeAge > 30");
+		assertThat(read(4), is(67));
+		assertThat(getCounter(ColumnarInputFormat.Counter.ROW_GROUPS_READ), is(1L));
+		assertThat(getCounter(ColumnarInputFormat.Counter.ROW_GROUPS_SKIPPED), is(9L));
+		assertThat(getCounter(ColumnarInputFormat.Counter.ROWS_FILTERED), is(33L));
+	}
+
+	@Test
+	public void isColumnar() throws Exception {
+		assertThat(ColumnarInputFormat.isColumnar(conf), is(true));
+		File text = new File(dir, "text");
+		FileUtils.writeStringToFile(text, "1,佐藤,27,270000,1\n", "UTF-8");
+		FileInputFormat.setInputPaths(conf, new Path(text.getPath()));
+		assertThat(ColumnarInputFormat.isColumnar(conf), is(false));
+	}
+
+	@Test
+	public void mapperCounters() throws Exception {
+		final List<String> events = new ArrayList<String>();
+		ParallelJobRunner.JobListener listener = new ParallelJobRunner.JobListener() {
+			@Override
+			public void jobCompleted(Configuration conf, String jobName, Counters counters) {
+				events.add(counters.findCounter(TaskMetrics.Counter.RECORDS_EMITTED).getValue()
+						+ "," + counters.findCounter(TaskMetrics.RECORDS_EMITTED_GROUP,
+								"ColumnarAverageAgeMapper").getValue());
+			}
+		};
+		ParallelJobRunner.addJobListener(listener);
+		try {
+			// Mapper ごとに1件を出力します
+			run(new AverageAgeOfEmployee(), "employeeAge");
+			// 部門ごとに1件ずつ出力します
+			run(new AverageAgeOfDepartment(), "departmentAge");
+		} finally {
+			ParallelJobRunner.removeJobListener(listener);
+		}
+		assertThat(events, is(Arrays.asList("1,1", "1000,1000")));
+	}
+
+	private void run(Tool tool, String name) throws Exception {
+		JobConf job = new JobConf();
+		job.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		job.setNumMapTasks(1);
+		String[] args = { FileInputFormat.getInputPaths(conf)[0].toString(),
+				new File(dir, name).getPath() };
+		assertThat(ToolRunner.run(job, tool, args), is(0));
+	}
+
+	/**
+	 * 全てのスプリットを読み込み、レコードが元の順で返されることを確認します。
+	 *
+	 * @return 読み込んだ件数
+	 */
+	private int read(int numSplits) throws Exception {
+		ColumnarInputFormat format = new ColumnarInputFormat();
+		InputSplit[] splits = format.getSplits(conf, numSplits);
+		assertThat(splits.length > 1, is(true));
+		CountersReporter reporter = new CountersReporter(counters);
+		int count = 0;
+		int previous = -1;
+		for (InputSplit split : splits) {
+			RecordReader<NullWritable, Writable> reader = format.getRecordReader(split, conf,
+					reporter);
+			NullWritable key = reader.createKey();
+			EmployeeWritable value = (EmployeeWritable) reader.createValue();
+			while (reader.next(key, value)) {
+				assertThat(value.getEmployeeId() > previous, is(true));
+				assertThat(value.getEmployeeAge(), is(20 + value.getEmployeeId() % 40));
+				previous = value.getEmployeeId();
+				count++;
+			}
+			reader.close();
+		}
+		return count;
+	}
+
+	private long getCounter(ColumnarInputFormat.Counter counter) {
+		return counters.findCounter(counter).getValue();
+	}
+
+}
@@ -0,0 +1,87 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+public class CompositeKeyTest {
+
+	private static final int[] VALUES = { Integer.MIN_VALUE, -100, -1, 0, 1, 27, 100,
+			Integer.MAX_VALUE };
+
+	@Test
+	public void roundTrip() throws Exception {
+		CompositeKey key = SortSpec.parse("a asc, b desc, c").newKey();
+		key.set(0, -5);
+		key.set(1, 27);
+		key.set(2, Integer.MIN_VALUE);
+		DataOutputBuffer out = new DataOutputBuffer();
+		key.write(out);
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		CompositeKey actual = new CompositeKey();
+		actual.readFields(in);
+		assertThat(actual, is(key));
+		assertThat(actual.isDescending(1), is(true));
+		assertThat(actual.toString(), is("-5,27,-2147483648"));
+	}
+
+	@Test
+	public void rawComparatorIsConsistentWithCompareTo() throws Exception {
+		SortSpec spec = SortSpec.parse("a asc, b desc");
+		RawComparator<?> comparator = WritableComparator.get(CompositeKey.class);
+		for (int a1 : VALUES) {
+			for (int b1 : VALUES) {
+				for (int a2 : VALUES) {
+					for (int b2 : VALUES) {
+						CompositeKey k1 = newKey(spec, a1, b1);
+						CompositeKey k2 = newKey(spec, a2, b2);
+						int expected = a1 != a2 ? Integer.signum(Integer.valueOf(a1).compareTo(a2))
+								: -Integer.signum(Integer.valueOf(b1).compareTo(b2));
+						assertThat(Integer.signum(k1.compareTo(k2)), is(expected));
+						assertThat(Integer.signum(compare(comparator, k1, k2)), is(expected));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void groupingComparatorComparesPrefix() throws Exception {
+		SortSpec spec = SortSpec.parse("a asc, b desc");
+		JobConf conf = new JobConf();
+		spec.configure(conf, 1);
+		RawComparator<?> comparator = conf.getOutputValueGroupingComparator();
+		assertThat(compare(comparator, newKey(spec, 1, 2), newKey(spec, 1, 3)), is(0));
+		assertThat(compare(comparator, newKey(spec, 1, 2), newKey(spec, 2, 2)) < 0, is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidOrder() throws Exception {
+		SortSpec.parse("a asc, b up");
+	}
+
+	private static CompositeKey newKey(SortSpec spec, int a, int b) {
+		CompositeKey key = spec.newKey();
+		key.set(0, a);
+		key.set(1, b);
+		return key;
+	}
+
+	private static int compare(RawComparator<?> comparator, CompositeKey k1, CompositeKey k2)
+			throws Exception {
+		DataOutputBuffer out1 = new DataOutputBuffer();
+		k1.write(out1);
+		DataOutputBuffer out2 = new DataOutputBuffer();
+		k2.write(out2);
+		return comparator.compare(out1.getData(), 0, out1.getLength(), out2.getData(), 0,
+				out2.getLength());
+	}
+
+}
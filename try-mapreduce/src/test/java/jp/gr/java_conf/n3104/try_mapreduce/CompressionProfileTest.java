@@ -0,0 +1,60 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+public class CompressionProfileTest {
+
+	@Test
+	public void applyNone() throws Exception {
+		JobConf conf = new JobConf();
+		CompressionProfile.apply(conf);
+		assertThat(conf.getCompressMapOutput(), is(false));
+		assertThat(conf.getBoolean("mapred.output.compress", false), is(false));
+	}
+
+	@Test
+	public void applyFastAndArchival() throws Exception {
+		JobConf conf = new JobConf();
+		conf.set(CompressionProfile.PROFILES, "fast,archival");
+		CompressionProfile.apply(conf);
+		assertThat(conf.getCompressMapOutput(), is(true));
+		assertThat(conf.getMapOutputCompressorClass(null).getName(), is(DefaultCodec.class.getName()));
+		assertThat(conf.getBoolean("mapred.output.compress", false), is(true));
+		assertThat(conf.get("mapred.output.compression.codec"), is(BZip2Codec.class.getName()));
+		assertThat(conf.get("mapred.output.compression.type"), is("BLOCK"));
+	}
+
+	@Test
+	public void applyIntermediate() throws Exception {
+		JobConf conf = new JobConf();
+		conf.set(CompressionProfile.PROFILES, "archival,intermediate");
+		conf.setBoolean(CompressionProfile.INTERMEDIATE_OUTPUT, true);
+		conf.set(CompressionProfile.getCodecKey(CompressionProfile.INTERMEDIATE), GzipCodec.class
+				.getName());
+		CompressionProfile.apply(conf);
+		assertThat(conf.getCompressMapOutput(), is(false));
+		assertThat(conf.get("mapred.output.compression.codec"), is(GzipCodec.class.getName()));
+
+		// 中間出力のプロファイルを指定しない場合は圧縮しない
+		conf = new JobConf();
+		conf.set(CompressionProfile.PROFILES, "archival");
+		conf.setBoolean(CompressionProfile.INTERMEDIATE_OUTPUT, true);
+		CompressionProfile.apply(conf);
+		assertThat(conf.getBoolean("mapred.output.compress", false), is(false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void applyUnknown() throws Exception {
+		JobConf conf = new JobConf();
+		conf.set(CompressionProfile.PROFILES, "fast,snappy");
+		CompressionProfile.apply(conf);
+	}
+
+}
\ No newline at end of file
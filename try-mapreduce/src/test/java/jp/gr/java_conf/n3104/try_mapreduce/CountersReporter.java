@@ -0,0 +1,50 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * {@link Counters} に直接カウンタを反映する {@link Reporter} です。
+ */
+class CountersReporter implements Reporter {
+
+	private final Counters counters;
+
+	CountersReporter(Counters counters) {
+		this.counters = counters;
+	}
+
+	@Override
+	public void progress() {
+	}
+
+	@Override
+	public void setStatus(String status) {
+	}
+
+	@Override
+	public Counters.Counter getCounter(Enum<?> name) {
+		return counters.findCounter(name);
+	}
+
+	@Override
+	public Counters.Counter getCounter(String group, String name) {
+		return counters.findCounter(group, name);
+	}
+
+	@Override
+	public void incrCounter(Enum<?> key, long amount) {
+		counters.incrCounter(key, amount);
+	}
+
+	@Override
+	public void incrCounter(String group, String counter, long amount) {
+		counters.incrCounter(group, counter, amount);
+	}
+
+	@Override
+	public InputSplit getInputSplit() {
+		throw new UnsupportedOperationException();
+	}
+}
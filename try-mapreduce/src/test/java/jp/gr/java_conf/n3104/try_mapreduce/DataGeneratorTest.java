@@ -0,0 +1,113 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataGeneratorTest {
+
+	private JobConf conf;
+
+	@Before
+	public void setUp() throws Exception {
+		conf = new JobConf();
+		conf.set(DataGenerator.EMPLOYEE_SIZE, "64k");
+		conf.setInt(DataGenerator.PARTS, 2);
+		conf.setLong(DataGenerator.SEED, 1);
+	}
+
+	@Test
+	public void testGenerateEmployees() throws Exception {
+		List<String> records = generate(0);
+		long bytes = 0;
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		for (String record : records) {
+			bytes += new Text(record).getLength() + 1;
+			parser.parse(record);
+			assertThat(record, parser.isValid(), is(true));
+			assertThat(parser.getEmployeeId() % 2, is(1));
+			assertThat(parser.getEmployeeAge() >= DataGenerator.MIN_AGE
+					&& parser.getEmployeeAge() <= DataGenerator.MAX_AGE, is(true));
+			assertThat(parser.getDepartmentId() >= 1 && parser.getDepartmentId() <= 100, is(true));
+		}
+		// 1ファイル分の大きさ（合計の半分）を超えた時点で生成を終了します
+		assertThat(bytes >= 32 * 1024, is(true));
+		assertThat(bytes - (new Text(records.get(records.size() - 1)).getLength() + 1) < 32 * 1024,
+				is(true));
+	}
+
+	@Test
+	public void testDeterministic() throws Exception {
+		assertThat(generate(1), is(generate(1)));
+		assertThat(generate(1).equals(generate(0)), is(false));
+		conf.setLong(DataGenerator.SEED, 2);
+		List<String> other = generate(1);
+		conf.setLong(DataGenerator.SEED, 1);
+		assertThat(other.equals(generate(1)), is(false));
+	}
+
+	@Test
+	public void testSkew() throws Exception {
+		conf.setFloat(DataGenerator.DEPARTMENT_SKEW, 1.5f);
+		int[] counts = new int[101];
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		List<String> records = generate(0);
+		for (String record : records) {
+			parser.parse(record);
+			counts[parser.getDepartmentId()]++;
+		}
+		// 指数1.5では部門1が約4割を占めます
+		assertThat(counts[1] > records.size() / 3, is(true));
+		assertThat(counts[1] > counts[2], is(true));
+		assertThat(counts[2] > counts[10], is(true));
+	}
+
+	@Test
+	public void testBadRecordRatio() throws Exception {
+		conf.setFloat(DataGenerator.BAD_RECORD_RATIO, 0.1f);
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		List<String> records = generate(0);
+		int invalid = 0;
+		for (String record : records) {
+			parser.parse(record);
+			if (!parser.isValid()) {
+				invalid++;
+			}
+		}
+		double ratio = (double) invalid / records.size();
+		assertThat(String.valueOf(ratio), ratio > 0.07 && ratio < 0.13, is(true));
+	}
+
+	@Test
+	public void testZipfDistribution() throws Exception {
+		ZipfDistribution uniform = new ZipfDistribution(4, 0);
+		assertThat(uniform.probability(1), is(0.25));
+		assertThat(uniform.probability(4), is(0.25));
+		ZipfDistribution zipf = new ZipfDistribution(2, 1);
+		assertThat(Math.abs(zipf.probability(1) - 2.0 / 3) < 1e-9, is(true));
+		assertThat(Math.abs(zipf.probability(2) - 1.0 / 3) < 1e-9, is(true));
+	}
+
+	private List<String> generate(int part) throws IOException {
+		final List<String> records = new ArrayList<String>();
+		DataGenerator.generateEmployees(conf, part, new OutputCollector<NullWritable, Text>() {
+			@Override
+			public void collect(NullWritable key, Text value) {
+				records.add(value.toString());
+			}
+		}, Reporter.NULL);
+		return records;
+	}
+
+}
@@ -0,0 +1,83 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DepartmentBloomFilterTest {
+
+	private File dir;
+	private JobConf conf;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(DepartmentBloomFilterTest.class));
+		conf = new JobConf();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void optimalVectorSize() throws Exception {
+		// -1000 ln 0.01 / (ln 2)^2 = 9585.06
+		assertThat(DepartmentBloomFilter.optimalVectorSize(1000, 0.01f), is(9586));
+		// 要素数が0の場合は1件として計算します
+		assertThat(DepartmentBloomFilter.optimalVectorSize(0, 0.01f), is(10));
+		// 1バイトを下限とします
+		assertThat(DepartmentBloomFilter.optimalVectorSize(1, 0.5f), is(8));
+	}
+
+	@Test
+	public void optimalNbHash() throws Exception {
+		// 9586 / 1000 ln 2 = 6.64
+		assertThat(DepartmentBloomFilter.optimalNbHash(9586, 1000), is(7));
+		assertThat(DepartmentBloomFilter.optimalNbHash(8, 100), is(1));
+		assertThat(DepartmentBloomFilter.optimalNbHash(10, 0), is(7));
+	}
+
+	@Test
+	public void mightContain() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append(i * 7).append(",部門").append(i).append('\n');
+		}
+		// 不正なレコードは登録しないこと
+		sb.append("abc,部門\n");
+		File department = new File(dir, "Department");
+		FileUtils.writeStringToFile(department, sb.toString(), "UTF-8");
+		Path filterFile = new Path(dir.getPath(), "department.bloom");
+
+		assertThat(DepartmentBloomFilter.configure(conf, new Path(department.getPath()),
+				filterFile), is(false));
+		assertThat(DepartmentBloomFilter.load(conf), is(nullValue()));
+
+		conf.setBoolean(DepartmentBloomFilter.ENABLED, true);
+		assertThat(DepartmentBloomFilter.configure(conf, new Path(department.getPath()),
+				filterFile), is(true));
+		DepartmentBloomFilter filter = DepartmentBloomFilter.load(conf);
+		for (int i = 0; i < 1000; i++) {
+			assertThat(filter.mightContain(i * 7), is(true));
+		}
+		// 偽陽性率は設定値の 1% 程度に収まること
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain(7000 + i * 7 + 3)) {
+				falsePositives++;
+			}
+		}
+		assertThat("falsePositives=" + falsePositives, falsePositives < 200, is(true));
+	}
+
+}
@@ -0,0 +1,39 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class DepartmentDictionaryTest {
+
+	@Test
+	public void putAndFind() throws Exception {
+		DepartmentDictionary dictionary = new DepartmentDictionary();
+		for (int i = -500; i < 500; i++) {
+			byte[] name = new Text("部門" + i).getBytes();
+			dictionary.put(i * 16, name, 0, new Text("部門" + i).getLength());
+		}
+		assertThat(dictionary.size(), is(1000));
+		assertThat(dictionary.getDepartmentName(-8000), is("部門-500"));
+		assertThat(dictionary.getDepartmentName(0), is("部門0"));
+		assertThat(dictionary.getDepartmentName(7984), is("部門499"));
+		assertThat(dictionary.find(1), is(-1));
+		assertThat(dictionary.getDepartmentName(1), is(nullValue()));
+	}
+
+	@Test
+	public void overwriteAndAppend() throws Exception {
+		DepartmentDictionary dictionary = new DepartmentDictionary();
+		Text name = new Text("営業");
+		dictionary.put(1, name.getBytes(), 0, name.getLength());
+		name.set("開発");
+		dictionary.put(1, name.getBytes(), 0, name.getLength());
+		assertThat(dictionary.size(), is(1));
+		Text target = new Text("部門:");
+		dictionary.appendDepartmentName(dictionary.find(1), target);
+		assertThat(target.toString(), is("部門:開発"));
+	}
+
+}
@@ -0,0 +1,72 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DepartmentIndexTest {
+
+	private File dir;
+	private JobConf conf;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(DepartmentIndexTest.class));
+		conf = new JobConf();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void directIndex() throws Exception {
+		DepartmentIndex index = build("3,総務\n1,営業\n\n2,開発\n1,人事\n5,経理\n");
+		assertThat(index.size(), is(5));
+		assertThat(index.getDepartmentName(1), is("人事"));
+		assertThat(index.getDepartmentName(2), is("開発"));
+		assertThat(index.getDepartmentName(5), is("経理"));
+		assertThat(index.find(4), is(-1));
+		assertThat(index.find(0), is(-1));
+		assertThat(index.find(6), is(-1));
+		Text target = new Text("部門:");
+		index.appendDepartmentName(index.find(3), target);
+		assertThat(target.toString(), is("部門:総務"));
+	}
+
+	@Test
+	public void sortedIndex() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 499; i >= -500; i--) {
+			sb.append(i * 16).append(",部門").append(i).append("\r\n");
+		}
+		DepartmentIndex index = build(sb.toString());
+		assertThat(index.size(), is(1000));
+		assertThat(index.getDepartmentName(-8000), is("部門-500"));
+		assertThat(index.getDepartmentName(0), is("部門0"));
+		assertThat(index.getDepartmentName(7984), is("部門499"));
+		assertThat(index.find(1), is(-1));
+		assertThat(index.getDepartmentName(1), is(nullValue()));
+	}
+
+	private DepartmentIndex build(String departments) throws Exception {
+		File input = new File(dir, "Department.txt");
+		FileUtils.writeStringToFile(input, departments, "UTF-8");
+		File indexFile = new File(dir, "department.index");
+		DepartmentIndex.build(conf, new Path(input.getAbsolutePath()),
+				new Path(indexFile.getAbsolutePath()));
+		return DepartmentIndex.open(indexFile);
+	}
+
+}
@@ -0,0 +1,88 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmployeeAgeInputFormatTest {
+
+	private File dir;
+	private JobConf conf;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(EmployeeAgeInputFormatTest.class));
+		conf = new JobConf();
+		Path file = new Path(dir.getPath(), "Employee");
+		OutputStream out = FileSystem.getLocal(conf).create(file);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			sb.append(i).append(",佐藤,").append(20 + i % 40).append(",270000,").append(i % 5)
+					.append('\n');
+			if (i % 50 == 0) {
+				// 要素数の不正、数値の不正、空行
+				sb.append(i).append(",佐藤,27\n");
+				sb.append(i).append(",佐藤,abc,270000,1\n");
+				sb.append('\n');
+			}
+		}
+		out.write(sb.toString().getBytes("UTF-8"));
+		out.close();
+		FileInputFormat.setInputPaths(conf, file);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void readSplits() throws Exception {
+		EmployeeAgeInputFormat inputFormat = new EmployeeAgeInputFormat();
+		inputFormat.configure(conf);
+		// 行の途中で分割した場合も各行を1度だけ読み込むこと
+		InputSplit[] splits = inputFormat.getSplits(conf, 3);
+		assertThat(splits.length >= 3, is(true));
+		Counters counters = new Counters();
+		List<Integer> ids = new ArrayList<Integer>();
+		for (InputSplit split : splits) {
+			RecordReader<IntWritable, EmployeeWritable> reader = inputFormat.getRecordReader(split,
+					conf, new CountersReporter(counters));
+			IntWritable key = reader.createKey();
+			EmployeeWritable value = reader.createValue();
+			while (reader.next(key, value)) {
+				assertThat(key.get(), is(value.getEmployeeAge()));
+				assertThat(value.getEmployeeAge(), is(20 + value.getEmployeeId() % 40));
+				assertThat(value.getEmployeeName(), is("佐藤"));
+				ids.add(value.getEmployeeId());
+			}
+			reader.close();
+		}
+		assertThat(ids.size(), is(200));
+		for (int i = 0; i < ids.size(); i++) {
+			assertThat(ids.get(i), is(i));
+		}
+		assertThat(counters.getCounter(TaskMetrics.Counter.VALID_RECORDS), is(200L));
+		assertThat(counters.getCounter(TaskMetrics.Counter.INVALID_RECORDS), is(12L));
+		assertThat(counters.getCounter(TaskMetrics.InvalidReason.FIELD_COUNT), is(8L));
+		assertThat(counters.getCounter(TaskMetrics.InvalidReason.NUMBER_FORMAT), is(4L));
+	}
+
+}
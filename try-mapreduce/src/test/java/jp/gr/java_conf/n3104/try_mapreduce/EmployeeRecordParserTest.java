@@ -0,0 +1,68 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class EmployeeRecordParserTest {
+
+	@Test
+	public void parse() throws Exception {
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		parser.parse(new Text("1,佐藤,27,270000,1"));
+		assertThat(parser.isValid(), is(true));
+		assertThat(parser.getEmployeeId(), is(1));
+		assertThat(parser.getEmployeeName(), is("佐藤"));
+		assertThat(parser.getEmployeeAge(), is(27));
+		assertThat(parser.getEmployeeSalary(), is(270000));
+		assertThat(parser.getDepartmentId(), is(1));
+		assertThat(parser.getInvalidReason(), is(nullValue()));
+
+		Text name = new Text();
+		parser.copyEmployeeNameTo(name);
+		assertThat(name, is(new Text("佐藤")));
+	}
+
+	@Test
+	public void parseString() throws Exception {
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		parser.parse("-2,田中,+30,320000,2,");
+		assertThat(parser.isValid(), is(true));
+		assertThat(parser.getEmployeeId(), is(-2));
+		assertThat(parser.getEmployeeName(), is("田中"));
+		assertThat(parser.getEmployeeAge(), is(30));
+	}
+
+	@Test
+	public void parseInvalid() throws Exception {
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		parser.parse(new Text("1,佐藤,27,270000"));
+		assertThat(parser.isValid(), is(false));
+		assertThat(parser.getInvalidReason(), is(TaskMetrics.InvalidReason.FIELD_COUNT));
+		parser.parse(new Text("1,佐藤,27,270000,1,1"));
+		assertThat(parser.isValid(), is(false));
+		parser.parse(new Text("1,佐藤,2a,270000,1"));
+		assertThat(parser.isValid(), is(false));
+		assertThat(parser.getInvalidReason(), is(TaskMetrics.InvalidReason.NUMBER_FORMAT));
+		parser.parse(new Text("1,佐藤,27,2147483648,1"));
+		assertThat(parser.isValid(), is(false));
+		parser.parse(new Text(""));
+		assertThat(parser.isValid(), is(false));
+		assertThat(parser.getEmployeeName(), is(nullValue()));
+	}
+
+	@Test
+	public void parseReusedText() throws Exception {
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		Text text = new Text("1,佐藤,27,270000,1");
+		parser.parse(text);
+		assertThat(parser.getEmployeeName(), is("佐藤"));
+		text.set("3,鈴木,27,260000,2");
+		parser.parse(text);
+		assertThat(parser.getEmployeeName(), is("鈴木"));
+		assertThat(parser.getDepartmentId(), is(2));
+	}
+
+}
@@ -0,0 +1,62 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+public class EmployeeWritableTest {
+
+	@Test
+	public void writeAndReadFields() throws Exception {
+		EmployeeWritable employee = new EmployeeWritable();
+		employee.set(1, "佐藤", 27, 270000, 1);
+		DataOutputBuffer out = new DataOutputBuffer();
+		employee.write(out);
+
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		EmployeeWritable actual = new EmployeeWritable();
+		actual.readFields(in);
+		assertThat(actual, is(employee));
+		assertThat(actual.toString(), is("1,佐藤,27,270000,1"));
+	}
+
+	@Test
+	public void rawComparator() throws Exception {
+		// WritableComparator#get はクラスを初期化しないため、先に static 初期化子で比較器を登録させます
+		Class.forName(EmployeeWritable.class.getName());
+		WritableComparator comparator = WritableComparator.get(EmployeeWritable.class);
+		assertThat(comparator, is(instanceOf(EmployeeWritable.Comparator.class)));
+
+		EmployeeWritable[] employees = new EmployeeWritable[] { new EmployeeWritable(),
+				new EmployeeWritable(), new EmployeeWritable(), new EmployeeWritable(),
+				new EmployeeWritable(), new EmployeeWritable() };
+		employees[0].set(1, "佐藤", 27, 270000, 1);
+		employees[1].set(1, "田中", 27, 270000, 1);
+		employees[2].set(1, "佐藤", 300, 270000, 1);
+		employees[3].set(1, "佐藤", 27, 270000, 2);
+		employees[4].set(200, "佐藤", 27, 270000, 1);
+		employees[5].set(-1, "佐藤", 27, 270000, 1);
+		for (EmployeeWritable a : employees) {
+			for (EmployeeWritable b : employees) {
+				assertThat(a + " " + b, Integer.signum(compareRaw(comparator, a, b)),
+						is(Integer.signum(a.compareTo(b))));
+			}
+		}
+	}
+
+	private static int compareRaw(WritableComparator comparator, EmployeeWritable a,
+			EmployeeWritable b) throws Exception {
+		DataOutputBuffer out1 = new DataOutputBuffer();
+		a.write(out1);
+		DataOutputBuffer out2 = new DataOutputBuffer();
+		b.write(out2);
+		return comparator.compare(out1.getData(), 0, out1.getLength(), out2.getData(), 0,
+				out2.getLength());
+	}
+
+}
@@ -0,0 +1,72 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExternalSortBufferTest {
+
+	private File localDir;
+	private Configuration conf;
+
+	@Before
+	public void setUp() throws Exception {
+		localDir = new File(Util.getJobOutputDirPath(ExternalSortBufferTest.class));
+		conf = new Configuration();
+		conf.set("mapred.local.dir", localDir.getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(localDir);
+	}
+
+	@Test
+	public void sortInMemory() throws Exception {
+		assertSorted(new ExternalSortBuffer<IntWritable>(conf), 1000);
+	}
+
+	@Test
+	public void sortWithSpill() throws Exception {
+		// 数百件ごとにディスクに書き出すように上限を小さくしています
+		assertSorted(new ExternalSortBuffer<IntWritable>(conf, 4096), 5000);
+	}
+
+	private void assertSorted(ExternalSortBuffer<IntWritable> buffer, int count) throws Exception {
+		Random random = new Random(0);
+		IntWritable value = new IntWritable();
+		for (int n = 0; n < 2; n++) {
+			// clear 後に再利用出来ることを確認するため2回繰り返します
+			for (int i = 0; i < count; i++) {
+				value.set(i);
+				buffer.add(random.nextInt(50) - 25, value);
+			}
+			buffer.sort();
+			int previousKey = Integer.MIN_VALUE;
+			int previousValue = -1;
+			int actual = 0;
+			while (buffer.next(value)) {
+				assertThat(buffer.getKey() >= previousKey, is(true));
+				if (buffer.getKey() == previousKey) {
+					// 同じキーは追加した順
+					assertThat(value.get() > previousValue, is(true));
+				}
+				previousKey = buffer.getKey();
+				previousValue = value.get();
+				actual++;
+			}
+			assertThat(actual, is(count));
+			buffer.clear();
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+public class HistogramPartitionerTest {
+
+	@Test
+	public void balancedRanges() throws Exception {
+		SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+		histogram.put(20, 10L);
+		histogram.put(25, 10L);
+		histogram.put(30, 10L);
+		histogram.put(35, 10L);
+		HistogramPartitioner<Text> partitioner = newPartitioner(histogram, 2, false);
+		assertThat(getPartition(partitioner, 20, 2), is(0));
+		assertThat(getPartition(partitioner, 25, 2), is(0));
+		assertThat(getPartition(partitioner, 30, 2), is(1));
+		assertThat(getPartition(partitioner, 35, 2), is(1));
+		// ヒストグラムに存在しない key
+		assertThat(getPartition(partitioner, 0, 2), is(0));
+		assertThat(getPartition(partitioner, 27, 2), is(0));
+		assertThat(getPartition(partitioner, 100, 2), is(1));
+	}
+
+	@Test
+	public void splitHeavyKey() throws Exception {
+		SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+		histogram.put(20, 1L);
+		histogram.put(27, 100L);
+		histogram.put(28, 1L);
+		HistogramPartitioner<Text> partitioner = newPartitioner(histogram, 4, true);
+		assertThat(getPartition(partitioner, 20, 4), is(0));
+		assertThat(getPartition(partitioner, 28, 4), is(3));
+		boolean[] used = new boolean[4];
+		for (int i = 0; i < 100; i++) {
+			used[partitioner.getPartition(new IntWritable(27), new Text("value" + i), 4)] = true;
+		}
+		assertThat(used[0] && used[1] && used[2] && used[3], is(true));
+	}
+
+	@Test
+	public void withoutSplit() throws Exception {
+		SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+		histogram.put(20, 1L);
+		histogram.put(27, 100L);
+		histogram.put(28, 1L);
+		HistogramPartitioner<Text> partitioner = newPartitioner(histogram, 4, false);
+		int partition = getPartition(partitioner, 27, 4);
+		for (int i = 0; i < 100; i++) {
+			assertThat(partitioner.getPartition(new IntWritable(27), new Text("value" + i), 4),
+					is(partition));
+		}
+		assertThat(getPartition(partitioner, 20, 4) <= partition, is(true));
+		assertThat(getPartition(partitioner, 28, 4) >= partition, is(true));
+	}
+
+	private static HistogramPartitioner<Text> newPartitioner(SortedMap<Integer, Long> histogram,
+			int numPartitions, boolean splitKeys) {
+		JobConf conf = new JobConf();
+		HistogramPartitioner.setSplitKeys(conf, splitKeys);
+		HistogramPartitioner.configure(conf, histogram, numPartitions);
+		HistogramPartitioner<Text> partitioner = new HistogramPartitioner<Text>();
+		partitioner.configure(conf);
+		return partitioner;
+	}
+
+	private static int getPartition(HistogramPartitioner<Text> partitioner, int key,
+			int numPartitions) {
+		return partitioner.getPartition(new IntWritable(key), new Text(), numPartitions);
+	}
+
+}
@@ -0,0 +1,65 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.junit.Test;
+
+public class HotKeyPartitionerTest {
+
+	@Test
+	public void selectHotKeys() throws Exception {
+		SortedMap<Integer, Long> histogram = new TreeMap<Integer, Long>();
+		histogram.put(1, 700L);
+		histogram.put(2, 200L);
+		histogram.put(3, 100L);
+		Map<Integer, Integer> hotKeys = HotKeyPartitioner.selectHotKeys(histogram, 4);
+		// 1つのReducerの平均は250件
+		assertThat(hotKeys.size(), is(1));
+		assertThat(hotKeys.get(1), is(3));
+	}
+
+	@Test
+	public void spreadHotKeys() throws Exception {
+		JobConf conf = new JobConf();
+		conf.set(HotKeyPartitioner.HOT_KEYS, "1:3");
+		HotKeyPartitioner.IntKey<Text> partitioner = new HotKeyPartitioner.IntKey<Text>();
+		partitioner.configure(conf);
+		HashPartitioner<IntWritable, Text> hashPartitioner = new HashPartitioner<IntWritable, Text>();
+		int[] counts = new int[8];
+		for (int i = 0; i < 3000; i++) {
+			counts[partitioner.getPartition(new IntWritable(1), new Text("従業員" + i), 8)]++;
+		}
+		int first = hashPartitioner.getPartition(new IntWritable(1), new Text(), 8);
+		int total = 0;
+		for (int i = 0; i < 3; i++) {
+			assertThat(counts[(first + i) % 8] > 800, is(true));
+			total += counts[(first + i) % 8];
+		}
+		assertThat(total, is(3000));
+
+		// 振り分け先はレコードのみで決まり、Mapperや処理順に依存しないこと
+		conf.setInt("mapred.task.partition", 5);
+		HotKeyPartitioner.IntKey<Text> other = new HotKeyPartitioner.IntKey<Text>();
+		other.configure(conf);
+		for (int i = 2999; i >= 0; i--) {
+			Text value = new Text("従業員" + i);
+			assertThat(other.getPartition(new IntWritable(1), value, 8), is(partitioner
+					.getPartition(new IntWritable(1), value, 8)));
+		}
+		// ホットキー以外はHashPartitionerと同じ
+		for (int key = 2; key < 100; key++) {
+			assertThat(partitioner.getPartition(new IntWritable(key), new Text(), 8),
+					is(hashPartitioner.getPartition(new IntWritable(key), new Text(), 8)));
+		}
+	}
+
+}
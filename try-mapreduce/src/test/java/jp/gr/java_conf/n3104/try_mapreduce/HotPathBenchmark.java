@@ -0,0 +1,557 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * パーサー、トークナイザー、各サンプルの Mapper と Reducer、 key の比較処理のスループットとアロケーション量を計測します。
+ * <p>
+ * Mapper と Reducer は、件数を数えるだけの {@link OutputCollector} や {@link RecordWriter}
+ * を渡して直接呼び出します。入力は乱数で生成した従業員、部門、単語のレコードです。
+ * シャッフルやファイルの入出力は含まないため、ジョブ全体ではなく各処理の性能の変化を確認する目的で利用してください。
+ * Java アプリケーションとして実行し、引数には計測する処理の名前に含まれる正規表現を指定出来ます。
+ * 計測条件は {@link MicroBenchmark} を参照してください。
+ * </p>
+ *
+ * @author n3104
+ */
+public class HotPathBenchmark {
+
+	private static final int RECORDS = 10000;
+	private static final int DEPARTMENTS = 100;
+	private static final int WORDS_PER_LINE = 10;
+	private static final String[] NAMES = { "佐藤", "鈴木", "高橋", "田中", "伊藤", "渡辺", "山本",
+			"中村", "小林", "加藤", "吉田", "山田" };
+	private static final String[] DEPARTMENT_NAMES = { "営業", "開発", "総務", "人事", "経理" };
+
+	private final JobConf conf = new JobConf();
+	private final Text[] employees;
+	private final Text[] invalidEmployees;
+	private final Text[] departments;
+	private final Text[] lines;
+	private final CountingCollector collector = new CountingCollector();
+
+	public static void main(String[] args) throws Exception {
+		MicroBenchmark benchmark = new MicroBenchmark();
+		new HotPathBenchmark(new Random(0)).addTo(benchmark);
+		benchmark.run(args);
+	}
+
+	HotPathBenchmark(Random random) {
+		employees = createEmployees(random, RECORDS);
+		invalidEmployees = createInvalidEmployees(employees);
+		departments = createDepartments(DEPARTMENTS);
+		lines = createLines(random, RECORDS);
+	}
+
+	static Text[] createEmployees(Random random, int count) {
+		Text[] records = new Text[count];
+		for (int i = 0; i < count; i++) {
+			records[i] = new Text((i + 1) + "," + NAMES[random.nextInt(NAMES.length)] + ","
+					+ (20 + random.nextInt(45)) + "," + (200000 + random.nextInt(40) * 10000) + ","
+					+ (1 + random.nextInt(DEPARTMENTS)));
+		}
+		return records;
+	}
+
+	/**
+	 * 年齢を数値以外に置き換えた、 {@code NUMBER_FORMAT} となるレコードを作成します。
+	 */
+	static Text[] createInvalidEmployees(Text[] employees) {
+		Text[] records = new Text[employees.length];
+		for (int i = 0; i < employees.length; i++) {
+			String[] values = employees[i].toString().split(",");
+			values[2] = "不明";
+			StringBuilder sb = new StringBuilder(values[0]);
+			for (int j = 1; j < values.length; j++) {
+				sb.append(',').append(values[j]);
+			}
+			records[i] = new Text(sb.toString());
+		}
+		return records;
+	}
+
+	static Text[] createDepartments(int count) {
+		Text[] records = new Text[count];
+		for (int i = 0; i < count; i++) {
+			records[i] = new Text((i + 1) + "," + DEPARTMENT_NAMES[i % DEPARTMENT_NAMES.length]
+					+ (i / DEPARTMENT_NAMES.length + 1));
+		}
+		return records;
+	}
+
+	static Text[] createLines(Random random, int count) {
+		Text[] records = new Text[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < WORDS_PER_LINE; j++) {
+				if (j > 0) {
+					sb.append(' ');
+				}
+				sb.append(random.nextBoolean() ? NAMES[random.nextInt(NAMES.length)] : "word"
+						+ random.nextInt(1000));
+			}
+			records[i] = new Text(sb.toString());
+		}
+		return records;
+	}
+
+	void addTo(MicroBenchmark benchmark) throws Exception {
+		addParsers(benchmark);
+		addTokenizers(benchmark);
+		addMappers(benchmark);
+		addReducers(benchmark);
+		addComparators(benchmark);
+	}
+
+	private void addParsers(MicroBenchmark benchmark) {
+		final EmployeeRecordParser employeeParser = new EmployeeRecordParser();
+		benchmark.add("EmployeeRecordParser.parse", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long sum = 0;
+				for (Text record : employees) {
+					employeeParser.parse(record);
+					sum += employeeParser.getEmployeeAge();
+				}
+				MicroBenchmark.sink = sum;
+				return employees.length;
+			}
+		});
+		benchmark.add("EmployeeRecordParser.parseInvalid", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long sum = 0;
+				for (Text record : invalidEmployees) {
+					employeeParser.parse(record);
+					sum += employeeParser.getInvalidReason().ordinal();
+				}
+				MicroBenchmark.sink = sum;
+				return invalidEmployees.length;
+			}
+		});
+		final DepartmentRecordParser departmentParser = new DepartmentRecordParser();
+		benchmark.add("DepartmentRecordParser.parse", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long sum = 0;
+				for (Text record : departments) {
+					departmentParser.parse(record);
+					sum += departmentParser.getDepartmentId();
+				}
+				MicroBenchmark.sink = sum;
+				return departments.length;
+			}
+		});
+	}
+
+	/**
+	 * TokenizerMapper と同じく、1行分の {@link Text} から単語を取り出して {@link Text} に設定するまでを計測します。
+	 */
+	private void addTokenizers(MicroBenchmark benchmark) {
+		final Text word = new Text();
+		benchmark.add("StringTokenizer.nextToken", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long tokens = 0;
+				for (Text line : lines) {
+					StringTokenizer itr = new StringTokenizer(line.toString());
+					while (itr.hasMoreTokens()) {
+						word.set(itr.nextToken());
+						tokens++;
+					}
+				}
+				MicroBenchmark.sink = tokens;
+				return lines.length;
+			}
+		});
+		final ByteTokenizer tokenizer = new ByteTokenizer(ByteTokenizer.ASCII_WHITESPACE
+				+ ByteTokenizer.IDEOGRAPHIC_SPACE);
+		benchmark.add("ByteTokenizer.next", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long tokens = 0;
+				for (Text line : lines) {
+					tokenizer.reset(line);
+					while (tokenizer.next(word)) {
+						tokens++;
+					}
+				}
+				MicroBenchmark.sink = tokens;
+				return lines.length;
+			}
+		});
+	}
+
+	private void addMappers(MicroBenchmark benchmark) throws Exception {
+		addMapper(benchmark, "WordCountOld.TokenizerMapper", new WordCountOld.TokenizerMapper(),
+				conf, lines);
+		addNewMapper(benchmark, "WordCountNew.TokenizerMapper", new WordCountNew.TokenizerMapper(),
+				lines);
+		addMapper(benchmark, "AverageAgeOfEmployee.AverageAgeMapper",
+				new AverageAgeOfEmployee.AverageAgeMapper(), conf, employees);
+		addMapper(benchmark, "AverageAgeOfDepartment.AverageAgeMapper",
+				new AverageAgeOfDepartment.AverageAgeMapper(), conf, employees);
+		addMapper(benchmark, "SortByAgeUsingHashPartitioner.SortByAgeMapper",
+				new SortByAgeUsingHashPartitioner.SortByAgeMapper(), conf, employees);
+		addMapper(benchmark, "SortByDeptAndAgeUsingComparator.Mapper",
+				new SortByDeptAndAgeUsingComparator.SortByDepartmentAndAgeMapper(), conf, employees);
+		JobConf secondarySort = new JobConf(conf);
+		SortSpec.parse(SortByDeptAndAgeUsingSecondarySort.SORT_SPEC).configure(secondarySort, 1);
+		addMapper(benchmark, "SortByDeptAndAgeUsingSecondarySort.Mapper",
+				new SortByDeptAndAgeUsingSecondarySort.SortByDepartmentAndAgeMapper(), secondarySort,
+				employees);
+		addMapper(benchmark, "MergeByDepartmentUsingMultipleInputs.EmployeeMapper",
+				new MergeByDepartmentUsingMultipleInputs.EmployeeMapper(), conf, employees);
+		JobConf join = new JobConf(conf);
+		SortSpec.parse(JoinWithDeptNameUsingReduceSideJoin.SORT_SPEC).configure(join, 1);
+		addMapper(benchmark, "JoinWithDeptNameUsingReduceSideJoin.EmployeeMapper",
+				new JoinWithDeptNameUsingReduceSideJoin.EmployeeMapper(), join, employees);
+		addMapper(benchmark, "JoinWithDeptNameUsingReduceSideJoin.DepartmentMapper",
+				new JoinWithDeptNameUsingReduceSideJoin.DepartmentMapper(), join, departments);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void addMapper(MicroBenchmark benchmark, String name, final Mapper mapper, JobConf job,
+			final Text[] records) {
+		mapper.configure(job);
+		final LongWritable offset = new LongWritable();
+		benchmark.add(name + ".map", new MicroBenchmark.Operation() {
+			@Override
+			public long run() throws IOException {
+				for (Text record : records) {
+					mapper.map(offset, record, collector, Reporter.NULL);
+				}
+				return records.length;
+			}
+		});
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void addNewMapper(MicroBenchmark benchmark, String name,
+			final org.apache.hadoop.mapreduce.Mapper mapper, Text[] records) throws Exception {
+		final ArrayRecordReader reader = new ArrayRecordReader(records);
+		final org.apache.hadoop.mapreduce.Mapper.Context context = mapper.new Context(conf,
+				new TaskAttemptID(), reader, new CountingWriter(collector), null,
+				new NullStatusReporter(), null);
+		benchmark.add(name + ".map", new MicroBenchmark.Operation() {
+			@Override
+			public long run() throws Exception {
+				reader.reset();
+				// setup と cleanup を含めて Mapper を実行します
+				mapper.run(context);
+				return reader.records.length;
+			}
+		});
+	}
+
+	private void addReducers(MicroBenchmark benchmark) throws Exception {
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+
+		Text[] words = new Text[1000];
+		IntWritable[][] counts = new IntWritable[words.length][];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = new Text("word" + i);
+			counts[i] = new IntWritable[10];
+			for (int j = 0; j < counts[i].length; j++) {
+				counts[i][j] = new IntWritable(1);
+			}
+		}
+		addReducer(benchmark, "WordCountOld.IntSumReducer", new WordCountOld.IntSumReducer(), conf,
+				words, counts);
+
+		IntWritable[] departmentIds = new IntWritable[DEPARTMENTS];
+		AgeStatsWritable[][] stats = new AgeStatsWritable[DEPARTMENTS][];
+		IntWritable[] ages = new IntWritable[45];
+		EmployeeWritable[][] employeesByAge = new EmployeeWritable[ages.length][];
+		for (int i = 0; i < DEPARTMENTS; i++) {
+			departmentIds[i] = new IntWritable(i + 1);
+			stats[i] = new AgeStatsWritable[employees.length / DEPARTMENTS];
+		}
+		for (int i = 0; i < ages.length; i++) {
+			ages[i] = new IntWritable(20 + i);
+			employeesByAge[i] = new EmployeeWritable[employees.length / ages.length];
+		}
+		for (int i = 0; i < employees.length; i++) {
+			parser.parse(employees[i]);
+			AgeStatsWritable[] values = stats[i % DEPARTMENTS];
+			if (i / DEPARTMENTS < values.length) {
+				values[i / DEPARTMENTS] = new AgeStatsWritable();
+				values[i / DEPARTMENTS].set(parser.getEmployeeAge());
+			}
+			EmployeeWritable[] employeeValues = employeesByAge[i % ages.length];
+			if (i / ages.length < employeeValues.length) {
+				employeeValues[i / ages.length] = new EmployeeWritable();
+				employeeValues[i / ages.length].set(parser);
+			}
+		}
+		addReducer(benchmark, "AverageAgeOfDepartment.AverageAgeReducer",
+				new AverageAgeOfDepartment.AverageAgeReducer(), conf, departmentIds, stats);
+		addReducer(benchmark, "SortByAgeUsingHashPartitioner.SortByAgeReducer",
+				new SortByAgeUsingHashPartitioner.SortByAgeReducer(), conf, ages, employeesByAge);
+
+		JobConf join = new JobConf(conf);
+		SortSpec spec = SortSpec.parse(JoinWithDeptNameUsingReduceSideJoin.SORT_SPEC);
+		spec.configure(join, 1);
+		DepartmentRecordParser departmentParser = new DepartmentRecordParser();
+		CompositeKey[] keys = new CompositeKey[DEPARTMENTS];
+		EmployeeOrDepartmentWritable[][] records = new EmployeeOrDepartmentWritable[DEPARTMENTS][];
+		for (int i = 0; i < DEPARTMENTS; i++) {
+			keys[i] = spec.newKey();
+			keys[i].set(0, i + 1);
+			records[i] = new EmployeeOrDepartmentWritable[1 + employees.length / DEPARTMENTS];
+			departmentParser.parse(departments[i]);
+			records[i][0] = new EmployeeOrDepartmentWritable();
+			records[i][0].set(departmentParser);
+			for (int j = 1; j < records[i].length; j++) {
+				parser.parse(employees[(j - 1) * DEPARTMENTS + i]);
+				records[i][j] = new EmployeeOrDepartmentWritable();
+				records[i][j].set(parser);
+			}
+		}
+		addReducer(benchmark, "JoinWithDeptNameUsingReduceSideJoin.Reducer",
+				new JoinWithDeptNameUsingReduceSideJoin.JoinWithDepartmentNameReducer(), join, keys,
+				records);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void addReducer(MicroBenchmark benchmark, String name, final Reducer reducer,
+			JobConf job, final Object[] keys, final Object[][] values) {
+		reducer.configure(job);
+		final ArrayIterator iterator = new ArrayIterator();
+		long count = 0;
+		for (Object[] group : values) {
+			count += group.length;
+		}
+		final long records = count;
+		benchmark.add(name + ".reduce", new MicroBenchmark.Operation() {
+			@Override
+			public long run() throws IOException {
+				for (int i = 0; i < keys.length; i++) {
+					iterator.reset(values[i]);
+					reducer.reduce(keys[i], iterator, collector, Reporter.NULL);
+				}
+				return records;
+			}
+		});
+	}
+
+	private void addComparators(MicroBenchmark benchmark) throws IOException {
+		Random random = new Random(0);
+		IntWritable[] ages = new IntWritable[RECORDS];
+		for (int i = 0; i < ages.length; i++) {
+			ages[i] = new IntWritable(20 + random.nextInt(45));
+		}
+		addComparator(benchmark, "DescendingKeyComparator",
+				new SortByAgeUsingHashPartitioner.DescendingKeyComparator(), ages);
+		addComparator(benchmark, "DescendingKeyRawComparator",
+				new SortByAgeUsingHashPartitioner.DescendingKeyRawComparator(), ages);
+
+		JobConf secondarySort = new JobConf(conf);
+		SortSpec spec = SortSpec.parse(SortByDeptAndAgeUsingSecondarySort.SORT_SPEC);
+		spec.configure(secondarySort, 1);
+		final CompositeKey[] keys = new CompositeKey[RECORDS];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = spec.newKey();
+			keys[i].set(0, 1 + random.nextInt(DEPARTMENTS));
+			keys[i].set(1, 20 + random.nextInt(45));
+		}
+		benchmark.add("CompositeKey.compareTo", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long sum = 0;
+				for (int i = 1; i < keys.length; i++) {
+					sum += keys[i - 1].compareTo(keys[i]);
+				}
+				MicroBenchmark.sink = sum;
+				return keys.length - 1;
+			}
+		});
+		addComparator(benchmark, "CompositeKey.Comparator", new CompositeKey.Comparator(), keys);
+		addComparator(benchmark, "SortSpec.GroupingComparator", ReflectionUtils.newInstance(
+				SortSpec.GroupingComparator.class, secondarySort), keys);
+	}
+
+	/**
+	 * 隣り合う key をシリアライズしたバイト列のまま比較します。
+	 */
+	private void addComparator(MicroBenchmark benchmark, String name,
+			final RawComparator<?> comparator, Writable[] keys) throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		final int[] starts = new int[keys.length + 1];
+		for (int i = 0; i < keys.length; i++) {
+			starts[i] = out.getLength();
+			keys[i].write(out);
+		}
+		starts[keys.length] = out.getLength();
+		final byte[] bytes = out.getData();
+		benchmark.add(name + ".compare", new MicroBenchmark.Operation() {
+			@Override
+			public long run() {
+				long sum = 0;
+				for (int i = 1; i < starts.length - 1; i++) {
+					sum += comparator.compare(bytes, starts[i - 1], starts[i] - starts[i - 1], bytes,
+							starts[i], starts[i + 1] - starts[i]);
+				}
+				MicroBenchmark.sink = sum;
+				return starts.length - 2;
+			}
+		});
+	}
+
+	/**
+	 * 出力された件数を数えるだけの {@link OutputCollector} です。
+	 */
+	private static class CountingCollector implements OutputCollector<Object, Object> {
+
+		private long count;
+
+		@Override
+		public void collect(Object key, Object value) {
+			count++;
+			MicroBenchmark.sink = count;
+		}
+	}
+
+	private static class CountingWriter extends RecordWriter<Object, Object> {
+
+		private final CountingCollector collector;
+
+		CountingWriter(CountingCollector collector) {
+			this.collector = collector;
+		}
+
+		@Override
+		public void write(Object key, Object value) {
+			collector.collect(key, value);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) {
+		}
+	}
+
+	/**
+	 * 配列の値を順番に返す {@link Iterator} です。 Reduce の呼び出しごとに生成しないよう、再利用します。
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class ArrayIterator implements Iterator {
+
+		private Object[] values;
+		private int index;
+
+		void reset(Object[] values) {
+			this.values = values;
+			this.index = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < values.length;
+		}
+
+		@Override
+		public Object next() {
+			return values[index++];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class ArrayRecordReader extends RecordReader<LongWritable, Text> {
+
+		private final Text[] records;
+		private final LongWritable key = new LongWritable();
+		private int index;
+
+		ArrayRecordReader(Text[] records) {
+			this.records = records;
+		}
+
+		void reset() {
+			index = 0;
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) {
+		}
+
+		@Override
+		public boolean nextKeyValue() {
+			if (index >= records.length) {
+				return false;
+			}
+			key.set(index++);
+			return true;
+		}
+
+		@Override
+		public LongWritable getCurrentKey() {
+			return key;
+		}
+
+		@Override
+		public Text getCurrentValue() {
+			return records[index - 1];
+		}
+
+		@Override
+		public float getProgress() {
+			return (float) index / records.length;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class NullStatusReporter extends StatusReporter {
+
+		private final Counters counters = new Counters();
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+
+}
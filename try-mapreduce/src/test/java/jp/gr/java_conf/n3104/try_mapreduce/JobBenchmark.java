@@ -0,0 +1,507 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * 13個のサンプルを {@link DataGenerator} で生成したデータセットに対して実行し、処理時間などを比較します。
+ * <p>
+ * データセットは {@link #SIZES} で指定した大きさごとに1回だけ生成し、全てのサンプルで同じ入力を利用します。
+ * サンプルごとに {@link #WARMUP} 回実行した後、 {@link #REPETITIONS} 回計測します。 {@link DataGenerator}
+ * の設定（偏りや不正なレコードの割合など）と {@link ParallelJobRunner#RUNNER} は {@code -D} オプションで指定出来ます。
+ * </p>
+ * <p>
+ * 計測値は1回の実行ごとに {@link #DIR} の {@code results.tsv} に出力します。
+ * 処理時間（ミリ秒）、従業員レコードの処理件数（件/秒）と、 {@link ParallelJobRunner.JobListener}
+ * で受け取ったカウンタの合計（Map output bytes、 Spilled Records）、 GC の時間（ミリ秒）です。
+ * サンプルは同じ JVM 内で実行されるため、 GC の時間は JVM 全体の値の差分です。
+ * </p>
+ * <p>
+ * 集計結果は {@code report.txt} に出力します。 {@link #BASELINE} に以前の {@code results.tsv}
+ * を指定すると、処理時間の中央値の変化率も出力します。また、3つのジョインの方法は大きさごとに並べて比較します。
+ * Java アプリケーションとして実行してください。
+ * </p>
+ *
+ * @author n3104
+ */
+public class JobBenchmark extends Configured implements Tool {
+
+	/**
+	 * 実行するサンプルのクラス名（パッケージ名なし）をカンマ区切りで指定する設定名です。デフォルトは全てのサンプルです。
+	 */
+	public static final String JOBS = "jobbenchmark.jobs";
+
+	/**
+	 * データセットの大きさ（ {@link DataGenerator#EMPLOYEE_SIZE} ）をカンマ区切りで指定する設定名です。デフォルトは
+	 * {@code 1m,10m} です。
+	 */
+	public static final String SIZES = "jobbenchmark.sizes";
+
+	public static final String WARMUP = "jobbenchmark.warmup";
+	public static final String REPETITIONS = "jobbenchmark.repetitions";
+
+	/**
+	 * データセット、出力、計測結果を出力するディレクトリの設定名です。
+	 */
+	public static final String DIR = "jobbenchmark.dir";
+
+	/**
+	 * 比較する以前の {@code results.tsv} の設定名です。
+	 */
+	public static final String BASELINE = "jobbenchmark.baseline";
+
+	private static final String[] JOINS = { "JoinWithDeptNameUsingReduceSideJoin",
+			"JoinWithDeptNameUsingMapSideJoin", "JoinWithDeptNameUsingDistributedCacheFile" };
+
+	private static final String HEADER = "size\tjob\trepetition\twallMillis\trecords\trecordsPerSecond"
+			+ "\tmapOutputBytes\tspilledRecords\tgcMillis\tjobs";
+
+	/**
+	 * 計測するサンプルです。
+	 */
+	private abstract static class Sample {
+
+		final String name;
+
+		Sample(Class<?> clazz) {
+			this.name = clazz.getSimpleName();
+		}
+
+		abstract void run(Configuration conf, Dataset dataset, String out) throws Exception;
+	}
+
+	/**
+	 * 従業員ディレクトリを入力とする {@link Tool} です。
+	 */
+	private static class EmployeeTool extends Sample {
+
+		private final Class<? extends Tool> toolClass;
+
+		EmployeeTool(Class<? extends Tool> toolClass) {
+			super(toolClass);
+			this.toolClass = toolClass;
+		}
+
+		@Override
+		void run(Configuration conf, Dataset dataset, String out) throws Exception {
+			ToolRunner.run(conf, toolClass.newInstance(), args(dataset, out));
+		}
+
+		String[] args(Dataset dataset, String out) {
+			return new String[] { dataset.employee.toString(), out };
+		}
+	}
+
+	/**
+	 * 従業員ディレクトリと部門ディレクトリを入力とする {@link Tool} です。
+	 */
+	private static class EmployeeAndDepartmentTool extends EmployeeTool {
+
+		EmployeeAndDepartmentTool(Class<? extends Tool> toolClass) {
+			super(toolClass);
+		}
+
+		@Override
+		String[] args(Dataset dataset, String out) {
+			return new String[] { dataset.employee.toString(), dataset.department.toString(), out };
+		}
+	}
+
+	private static List<Sample> createSamples() {
+		List<Sample> samples = new ArrayList<Sample>();
+		// WordCount は Tool ではないため、ジョブを直接実行します。入力は従業員ファイルです
+		samples.add(new Sample(WordCount.class) {
+			@Override
+			void run(Configuration conf, Dataset dataset, String out) throws Exception {
+				ParallelJobRunner.waitForCompletion(WordCount.createJob(conf, dataset.employee
+						.toString(), out));
+			}
+		});
+		samples.add(new EmployeeTool(WordCountNew.class));
+		samples.add(new EmployeeTool(WordCountOld.class));
+		samples.add(new EmployeeTool(AverageAgeOfEmployee.class));
+		samples.add(new EmployeeTool(AverageAgeOfDepartment.class));
+		samples.add(new EmployeeTool(SortByAgeUsingHashPartitioner.class));
+		samples.add(new EmployeeTool(SortByAgeUsingTotalOrderPartitioner.class));
+		samples.add(new EmployeeTool(SortByDeptAndAgeUsingComparator.class));
+		samples.add(new EmployeeTool(SortByDeptAndAgeUsingSecondarySort.class));
+		samples.add(new EmployeeAndDepartmentTool(MergeByDepartmentUsingMultipleInputs.class));
+		samples.add(new EmployeeAndDepartmentTool(JoinWithDeptNameUsingReduceSideJoin.class));
+		samples.add(new EmployeeAndDepartmentTool(JoinWithDeptNameUsingMapSideJoin.class));
+		samples.add(new Sample(JoinWithDeptNameUsingDistributedCacheFile.class) {
+			@Override
+			void run(Configuration conf, Dataset dataset, String out) throws Exception {
+				File departmentFile = new File(dataset.department.toString(),
+						JoinWithDeptNameUsingDistributedCacheFile.DEPARTMENT_FILE);
+				// main メソッドと同じく、 LocalJobRunner のため作業ディレクトリに部門ファイルをコピーしています
+				File pseudoSymLink = new File(departmentFile.getName());
+				FileUtils.copyFile(departmentFile, pseudoSymLink);
+				try {
+					ToolRunner.run(conf, new JoinWithDeptNameUsingDistributedCacheFile(),
+							new String[] { "-files", departmentFile.getPath(),
+									dataset.employee.toString(), out });
+				} finally {
+					pseudoSymLink.delete();
+				}
+			}
+		});
+		return samples;
+	}
+
+	/**
+	 * 生成したデータセットです。
+	 */
+	private static class Dataset {
+
+		final String size;
+		final Path employee;
+		final Path department;
+		long records;
+
+		Dataset(String size, Path dir) {
+			this.size = size;
+			this.employee = new Path(dir, "Employee");
+			this.department = new Path(dir, "Department");
+		}
+	}
+
+	/**
+	 * 1回の実行の計測値です。
+	 */
+	private static class Result {
+
+		String size;
+		String job;
+		int repetition;
+		long wallMillis;
+		long records;
+		long mapOutputBytes;
+		long spilledRecords;
+		long gcMillis;
+		int jobs;
+
+		double getRecordsPerSecond() {
+			return wallMillis == 0 ? 0 : records * 1000.0 / wallMillis;
+		}
+
+		String toLine() {
+			return String.format("%s\t%s\t%d\t%d\t%d\t%.1f\t%d\t%d\t%d\t%d", size, job, repetition,
+					wallMillis, records, getRecordsPerSecond(), mapOutputBytes, spilledRecords,
+					gcMillis, jobs);
+		}
+
+		static Result parse(String line) {
+			String[] values = line.split("\t");
+			Result result = new Result();
+			result.size = values[0];
+			result.job = values[1];
+			result.repetition = Integer.parseInt(values[2]);
+			result.wallMillis = Long.parseLong(values[3]);
+			result.records = Long.parseLong(values[4]);
+			result.mapOutputBytes = Long.parseLong(values[6]);
+			result.spilledRecords = Long.parseLong(values[7]);
+			result.gcMillis = Long.parseLong(values[8]);
+			result.jobs = Integer.parseInt(values[9]);
+			return result;
+		}
+	}
+
+	/**
+	 * 実行したジョブのカウンタを合計します。
+	 */
+	private static class CounterCollector implements ParallelJobRunner.JobListener {
+
+		private long mapOutputBytes;
+		private long spilledRecords;
+		private int jobs;
+
+		@Override
+		public synchronized void jobCompleted(Configuration conf, String jobName,
+				Counters counters) {
+			// Counters.Group#getCounter(String) は表示名で検索するため、 findCounter を利用しています
+			mapOutputBytes += counters.findCounter(ParallelJobRunner.TASK_COUNTER_GROUP,
+					"MAP_OUTPUT_BYTES").getCounter();
+			spilledRecords += counters.findCounter(ParallelJobRunner.TASK_COUNTER_GROUP,
+					"SPILLED_RECORDS").getCounter();
+			jobs++;
+		}
+
+		synchronized void reset() {
+			mapOutputBytes = 0;
+			spilledRecords = 0;
+			jobs = 0;
+		}
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		Configuration conf = getConf();
+		File dir = new File(conf.get(DIR, Util.getJobOutputDirPath(JobBenchmark.class)));
+		List<String> jobs = Arrays.asList(conf.getStrings(JOBS, new String[0]));
+		List<Sample> samples = new ArrayList<Sample>();
+		for (Sample sample : createSamples()) {
+			if (jobs.isEmpty() || jobs.contains(sample.name)) {
+				samples.add(sample);
+			}
+		}
+		int warmup = conf.getInt(WARMUP, 1);
+		int repetitions = conf.getInt(REPETITIONS, 3);
+		FileUtil.fullyDelete(dir);
+		dir.mkdirs();
+		List<Result> results = new ArrayList<Result>();
+		CounterCollector collector = new CounterCollector();
+		ParallelJobRunner.addJobListener(collector);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(dir,
+				"results.tsv")), "UTF-8"));
+		try {
+			out.println(HEADER);
+			for (String size : conf.getStrings(SIZES, "1m", "10m")) {
+				Dataset dataset = generate(conf, size, new File(dir, "data/" + size));
+				for (Sample sample : samples) {
+					String output = new File(dir, "output/" + size + "/" + sample.name).getPath();
+					for (int i = -warmup; i < repetitions; i++) {
+						Result result = measure(conf, sample, dataset, output, collector);
+						if (i >= 0) {
+							result.repetition = i;
+							results.add(result);
+							out.println(result.toLine());
+							out.flush();
+						}
+					}
+				}
+			}
+		} finally {
+			out.close();
+			ParallelJobRunner.removeJobListener(collector);
+		}
+		String baseline = conf.get(BASELINE);
+		String report = report(results, baseline == null ? null : load(new File(baseline)));
+		FileUtils.writeStringToFile(new File(dir, "report.txt"), report, "UTF-8");
+		System.out.print(report);
+		return 0;
+	}
+
+	private Dataset generate(Configuration conf, String size, File dir) throws Exception {
+		Dataset dataset = new Dataset(size, new Path(dir.getPath()));
+		Configuration generatorConf = new Configuration(conf);
+		generatorConf.set(DataGenerator.EMPLOYEE_SIZE, size);
+		generatorConf.set(DataGenerator.MODE, DataGenerator.LOCAL);
+		ToolRunner.run(generatorConf, new DataGenerator(), new String[] {
+				dataset.employee.toString(), dataset.department.toString() });
+		dataset.records = countLines(conf, dataset.employee);
+		return dataset;
+	}
+
+	private static long countLines(Configuration conf, Path dir) throws IOException {
+		FileSystem fs = dir.getFileSystem(conf);
+		long lines = 0;
+		byte[] buffer = new byte[64 * 1024];
+		for (FileStatus file : fs.listStatus(dir)) {
+			if (file.isDir() || file.getPath().getName().startsWith(".")) {
+				continue;
+			}
+			InputStream in = fs.open(file.getPath());
+			try {
+				int length;
+				while ((length = in.read(buffer)) > 0) {
+					for (int i = 0; i < length; i++) {
+						if (buffer[i] == '\n') {
+							lines++;
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return lines;
+	}
+
+	private Result measure(Configuration conf, Sample sample, Dataset dataset, String output,
+			CounterCollector collector) throws Exception {
+		FileUtil.fullyDelete(new File(output));
+		System.gc();
+		collector.reset();
+		long gc = getGcMillis();
+		long start = System.currentTimeMillis();
+		sample.run(new Configuration(conf), dataset, output);
+		Result result = new Result();
+		result.wallMillis = System.currentTimeMillis() - start;
+		result.gcMillis = getGcMillis() - gc;
+		result.size = dataset.size;
+		result.job = sample.name;
+		result.records = dataset.records;
+		synchronized (collector) {
+			result.mapOutputBytes = collector.mapOutputBytes;
+			result.spilledRecords = collector.spilledRecords;
+			result.jobs = collector.jobs;
+		}
+		return result;
+	}
+
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, bean.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static List<Result> load(File file) throws IOException {
+		List<Result> results = new ArrayList<Result>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				"UTF-8"));
+		try {
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0) {
+					results.add(Result.parse(line));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	/**
+	 * 大きさとサンプルごとに計測値をまとめます。
+	 */
+	private static Map<String, List<Result>> group(List<Result> results) {
+		Map<String, List<Result>> groups = new LinkedHashMap<String, List<Result>>();
+		for (Result result : results) {
+			String key = result.size + "\t" + result.job;
+			List<Result> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Result>();
+				groups.put(key, group);
+			}
+			group.add(result);
+		}
+		return groups;
+	}
+
+	private static long median(List<Result> results) {
+		List<Long> values = new ArrayList<Long>();
+		for (Result result : results) {
+			values.add(result.wallMillis);
+		}
+		Collections.sort(values);
+		int n = values.size();
+		return n % 2 == 1 ? values.get(n / 2) : (values.get(n / 2 - 1) + values.get(n / 2)) / 2;
+	}
+
+	private static String report(List<Result> results, List<Result> baseline) {
+		Map<String, List<Result>> groups = group(results);
+		Map<String, List<Result>> baselineGroups = baseline == null ? null : group(baseline);
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-6s %-42s %10s %10s %12s %14s %14s %8s %6s", "size", "job",
+				"median(ms)", "min(ms)", "records/s", "mapOutBytes", "spilled", "gc(ms)", "jobs"));
+		if (baselineGroups != null) {
+			sb.append(String.format(" %12s %8s", "baseline(ms)", "change"));
+		}
+		sb.append('\n');
+		for (Map.Entry<String, List<Result>> entry : groups.entrySet()) {
+			List<Result> group = entry.getValue();
+			Result first = group.get(0);
+			long median = median(group);
+			long min = Long.MAX_VALUE;
+			long gc = 0;
+			for (Result result : group) {
+				min = Math.min(min, result.wallMillis);
+				gc += result.gcMillis;
+			}
+			sb.append(String.format("%-6s %-42s %10d %10d %12.0f %14d %14d %8d %6d", first.size,
+					first.job, median, min, median == 0 ? 0.0 : first.records * 1000.0 / median,
+					first.mapOutputBytes, first.spilledRecords, gc / group.size(), first.jobs));
+			if (baselineGroups != null) {
+				List<Result> before = baselineGroups.get(entry.getKey());
+				if (before == null) {
+					sb.append(String.format(" %12s %8s", "-", "-"));
+				} else {
+					long baselineMedian = median(before);
+					sb.append(String.format(" %12d %+7.1f%%", baselineMedian, baselineMedian == 0 ? 0.0
+							: (median - baselineMedian) * 100.0 / baselineMedian));
+				}
+			}
+			sb.append('\n');
+		}
+		appendJoinComparison(sb, groups);
+		return sb.toString();
+	}
+
+	/**
+	 * 3つのジョインの方法を大きさごとに並べ、最も速い方法に対する比率を出力します。
+	 */
+	private static void appendJoinComparison(StringBuilder sb, Map<String, List<Result>> groups) {
+		Map<String, long[]> medians = new LinkedHashMap<String, long[]>();
+		for (List<Result> group : groups.values()) {
+			int index = Arrays.asList(JOINS).indexOf(group.get(0).job);
+			if (index < 0) {
+				continue;
+			}
+			long[] values = medians.get(group.get(0).size);
+			if (values == null) {
+				values = new long[JOINS.length];
+				Arrays.fill(values, -1);
+				medians.put(group.get(0).size, values);
+			}
+			values[index] = median(group);
+		}
+		if (medians.isEmpty()) {
+			return;
+		}
+		sb.append("\nJoin strategies (median ms, ratio to the fastest)\n");
+		sb.append(String.format("%-6s", "size"));
+		for (String join : JOINS) {
+			sb.append(String.format(" %28s", join.substring("JoinWithDeptNameUsing".length())));
+		}
+		sb.append('\n');
+		for (Map.Entry<String, long[]> entry : medians.entrySet()) {
+			long fastest = Long.MAX_VALUE;
+			for (long value : entry.getValue()) {
+				if (value >= 0) {
+					fastest = Math.min(fastest, value);
+				}
+			}
+			sb.append(String.format("%-6s", entry.getKey()));
+			for (long value : entry.getValue()) {
+				sb.append(value < 0 ? String.format(" %28s", "-") : String.format(" %18d (x%5.2f)",
+						value, fastest == 0 ? 1.0 : (double) value / fastest));
+			}
+			sb.append('\n');
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new JobBenchmark(), args);
+		System.exit(res);
+	}
+
+}
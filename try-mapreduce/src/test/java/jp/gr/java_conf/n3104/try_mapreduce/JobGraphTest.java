@@ -0,0 +1,162 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobStatus;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobGraphTest {
+
+	private File dir;
+	private File input;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(JobGraphTest.class));
+		input = new File(dir, "input");
+		FileUtils.writeStringToFile(input, "1\n2\n3\n", "UTF-8");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void inferDependencies() throws Exception {
+		JobGraph graph = new JobGraph("graph");
+		JobConf aConf = conf(null, "a");
+		JobConf bConf = conf("a", "b");
+		JobConf dConf = conf("ab", "d");
+		JobGraph.Stage a = graph.add("A", aConf);
+		JobGraph.Stage b = graph.add("B", bConf);
+		JobGraph.Stage c = graph.add("C", conf("a/part-00000", null));
+		// 出力ディレクトリと前方一致するだけの別ディレクトリには依存しないこと
+		JobGraph.Stage d = graph.add("D", dConf);
+		JobGraph.Stage e = graph.add("E", conf("c", null), b);
+
+		assertThat(a.getDependencies().isEmpty(), is(true));
+		assertThat(b.getDependencies(), is(Collections.singletonList(a)));
+		assertThat(c.getDependencies(), is(Collections.singletonList(a)));
+		assertThat(d.getDependencies().isEmpty(), is(true));
+		assertThat(e.getDependencies(), is(Collections.singletonList(b)));
+		// 明示的に指定した依存関係と重複して登録しないこと
+		JobGraph.Stage f = graph.add("F", conf("b", null), b);
+		assertThat(f.getDependencies(), is(Collections.singletonList(b)));
+		JobGraph.Stage g = graph.add("G", conf(null, null, "a", "b"));
+		assertThat(g.getDependencies(), is(Arrays.asList(a, b)));
+
+		// 他のステージの入力となる出力のみ中間出力とすること
+		assertThat(aConf.getBoolean(CompressionProfile.INTERMEDIATE_OUTPUT, false), is(true));
+		assertThat(bConf.getBoolean(CompressionProfile.INTERMEDIATE_OUTPUT, false), is(true));
+		assertThat(dConf.getBoolean(CompressionProfile.INTERMEDIATE_OUTPUT, false), is(false));
+		assertThat(aConf.getJobName(), is("graph.A"));
+	}
+
+	@Test
+	public void unresolvableDependency() throws Exception {
+		JobGraph graph = new JobGraph("graph");
+		// グラフに登録されていないステージは完了しないため、依存するステージは投入できません
+		JobGraph.Stage missing = new JobGraph.Stage("Missing", conf(null, "missing"));
+		JobGraph.Stage stage = graph.add("A", conf(null, null), missing);
+		try {
+			graph.run();
+			fail();
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is("依存関係を解決できないステージがあります。stages=[A]"));
+		}
+		assertThat(stage.getRunningJob(), is(nullValue()));
+	}
+
+	@Test
+	public void killOnFailure() throws Exception {
+		JobGraph graph = new JobGraph("graph");
+		JobConf failing = conf(null, "failing");
+		failing.setMapperClass(FailingMapper.class);
+		JobGraph.Stage failed = graph.add("Failing", failing);
+		JobConf slow = conf(null, "slow");
+		slow.setMapperClass(SlowMapper.class);
+		JobGraph.Stage killed = graph.add("Slow", slow);
+		JobGraph.Stage downstream = graph.add("Downstream", conf("failing", "downstream"));
+		try {
+			graph.run();
+			fail();
+		} catch (IOException e) {
+			assertThat(e.getMessage().startsWith("ステージが失敗しました。stage=Failing"), is(true));
+		}
+		assertThat(failed.getRunningJob().getJobState(), is(JobStatus.FAILED));
+		// 実行中の他のステージは中断し、失敗したステージに依存するステージは投入しないこと
+		assertThat(killed.getRunningJob().getJobState(), is(JobStatus.KILLED));
+		assertThat(downstream.getRunningJob(), is(nullValue()));
+	}
+
+	/**
+	 * {@link ParallelJobRunner} で実行するジョブの設定を返します。
+	 *
+	 * @param in 入力ディレクトリ。 {@code null} の場合は共通の入力ファイル
+	 * @param out 出力ディレクトリ。 {@code null} の場合は出力しません
+	 * @param additionalInputs 追加の入力ディレクトリ
+	 */
+	private JobConf conf(String in, String out, String... additionalInputs) {
+		JobConf conf = new JobConf();
+		conf.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		conf.setLong(JobGraph.POLL_INTERVAL, 50);
+		conf.setNumReduceTasks(0);
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(Text.class);
+		FileInputFormat.setInputPaths(conf, in == null ? new Path(input.getPath()) : new Path(dir
+				.getPath(), in));
+		for (String additional : additionalInputs) {
+			FileInputFormat.addInputPath(conf, new Path(dir.getPath(), additional));
+		}
+		if (out != null) {
+			FileOutputFormat.setOutputPath(conf, new Path(dir.getPath(), out));
+		}
+		return conf;
+	}
+
+	public static class FailingMapper extends MapReduceBase implements
+			Mapper<LongWritable, Text, LongWritable, Text> {
+
+		@Override
+		public void map(LongWritable key, Text value, OutputCollector<LongWritable, Text> output,
+				Reporter reporter) throws IOException {
+			throw new IOException("失敗しました。");
+		}
+	}
+
+	public static class SlowMapper extends MapReduceBase implements
+			Mapper<LongWritable, Text, LongWritable, Text> {
+
+		@Override
+		public void map(LongWritable key, Text value, OutputCollector<LongWritable, Text> output,
+				Reporter reporter) throws IOException {
+			try {
+				Thread.sleep(60 * 1000);
+			} catch (InterruptedException e) {
+				throw new IOException("中断されました。");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JoinWithDeptNameUsingReduceSideJoinTest {
+
+	private File dir;
+	private File employee;
+	private File department;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(JoinWithDeptNameUsingReduceSideJoinTest.class));
+		employee = new File(dir, "Employee");
+		department = new File(dir, "Department");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 600; i++) {
+			// 部門1に半数の従業員が集中し、部門9は部門ファイルに存在しません
+			int departmentId = i % 2 == 0 ? 1 : i % 10;
+			sb.append(i).append(",従業員").append(i).append(',').append(20 + i % 40).append(
+					",270000,").append(departmentId).append('\n');
+		}
+		FileUtils.writeStringToFile(employee, sb.toString(), "UTF-8");
+		sb.setLength(0);
+		for (int i = 1; i <= 8; i++) {
+			sb.append(i).append(",部門").append(i).append('\n');
+		}
+		FileUtils.writeStringToFile(department, sb.toString(), "UTF-8");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void saltedJoinEqualsUnsaltedJoin() throws Exception {
+		List<String> unsalted = join("unsalted", null);
+		List<String> salted = join("salted", "1:3");
+		assertThat(salted.size(), is(600 - 60));
+		assertThat(salted, is(unsalted));
+
+		// 部門1の従業員は salt ごとに異なる3つの Reducer に出力されること
+		int reducers = 0;
+		for (File part : new File(dir, "salted").listFiles()) {
+			if (part.getName().startsWith("part-")
+					&& FileUtils.readFileToString(part, "UTF-8").contains("\t部門1,")) {
+				reducers++;
+			}
+		}
+		assertThat(reducers, is(3));
+	}
+
+	@Test
+	public void countMissingDepartments() throws Exception {
+		final List<String> events = new ArrayList<String>();
+		ParallelJobRunner.JobListener listener = new ParallelJobRunner.JobListener() {
+			@Override
+			public void jobCompleted(Configuration conf, String jobName, Counters counters) {
+				events.add(counters.findCounter(TaskMetrics.Counter.JOIN_MATCHES).getValue() + ","
+						+ counters.findCounter(TaskMetrics.Counter.JOIN_MISSES).getValue());
+			}
+		};
+		ParallelJobRunner.addJobListener(listener);
+		try {
+			// 部門9の従業員は出力せずに JOIN_MISSES に記録されること
+			assertThat(join("counters", null).size(), is(600 - 60));
+		} finally {
+			ParallelJobRunner.removeJobListener(listener);
+		}
+		assertThat(events, is(Arrays.asList("540,60")));
+	}
+
+	@Test
+	public void semiJoinFilterIsDeletedOnFailure() throws Exception {
+		JobConf conf = new JobConf();
+		conf.setBoolean(DepartmentBloomFilter.ENABLED, true);
+		File out = new File(dir, "failed");
+		try {
+			// 従業員ファイルが存在しないためジョブは失敗します
+			ToolRunner.run(conf, new JoinWithDeptNameUsingReduceSideJoin(), new String[] {
+					new File(dir, "NotFound").getPath(), department.getPath(), out.getPath() });
+			fail();
+		} catch (IOException e) {
+			assertThat(new File(out.getPath() + "_semijoin").exists(), is(false));
+		}
+	}
+
+	/**
+	 * ジョインを実行し、全ての Reducer の出力をソートして返します。
+	 */
+	private List<String> join(String name, String hotKeys) throws Exception {
+		JobConf conf = new JobConf();
+		conf.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		conf.setNumReduceTasks(4);
+		if (hotKeys != null) {
+			conf.set(HotKeyPartitioner.HOT_KEYS, hotKeys);
+		}
+		File out = new File(dir, name);
+		int res = ToolRunner.run(conf, new JoinWithDeptNameUsingReduceSideJoin(), new String[] {
+				employee.getPath(), department.getPath(), out.getPath() });
+		assertThat(res, is(0));
+		List<String> lines = new ArrayList<String>();
+		for (File part : out.listFiles()) {
+			if (part.getName().startsWith("part-")) {
+				lines.addAll(FileUtils.readLines(part, "UTF-8"));
+			}
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+}
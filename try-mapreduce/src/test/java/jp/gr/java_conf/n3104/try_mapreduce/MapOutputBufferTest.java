@@ -0,0 +1,174 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MapOutputBufferTest {
+
+	private File dir;
+	private JobConf conf;
+	private Counters counters;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(MapOutputBufferTest.class));
+		conf = new JobConf();
+		conf.set("mapred.local.dir", dir.getPath());
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(IntWritable.class);
+		counters = new Counters();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void spill() throws Exception {
+		// 1件あたり key と value の8バイトと管理領域の20バイトのため、8件ごとにスピルを書き出します
+		MapOutputBuffer buffer = newBuffer(null, 200);
+		for (int i = 0; i < 20; i++) {
+			buffer.collect(new IntWritable(i % 4), new IntWritable(i));
+		}
+		List<MapOutputBuffer.Spill> spills = buffer.flush();
+		assertThat(spills.size(), is(3));
+		assertThat(buffer.getSpills(), is(spills));
+		// 各スピルはパーティションと key の順に並び、同じ key は出力された順となること
+		assertThat(read(spills.get(0), 0), is(Arrays.asList("0\t0", "0\t4", "2\t2", "2\t6")));
+		assertThat(read(spills.get(0), 1), is(Arrays.asList("1\t1", "1\t5", "3\t3", "3\t7")));
+		assertThat(read(spills.get(1), 0), is(Arrays.asList("0\t8", "0\t12", "2\t10", "2\t14")));
+		assertThat(read(spills.get(2), 1), is(Arrays.asList("1\t17", "3\t19")));
+		assertThat(getCounter("MAP_OUTPUT_RECORDS"), is(20L));
+		assertThat(getCounter("SPILLED_RECORDS"), is(20L));
+
+		// 出力がない場合も空のスピルを1つ書き出すこと
+		MapOutputBuffer empty = newBuffer(null, 200);
+		spills = empty.flush();
+		assertThat(spills.size(), is(1));
+		assertThat(read(spills.get(0), 0).isEmpty(), is(true));
+		assertThat(read(spills.get(0), 1).isEmpty(), is(true));
+	}
+
+	@Test
+	public void partition() throws Exception {
+		MapOutputBuffer buffer = newBuffer(null, 1024 * 1024);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 99; i >= 0; i--) {
+			buffer.collect(new IntWritable(i), new IntWritable(-i));
+			if (i % 2 == 1) {
+				expected.add(i + "\t" + -i);
+			}
+		}
+		Collections.reverse(expected);
+		List<MapOutputBuffer.Spill> spills = buffer.flush();
+		assertThat(spills.size(), is(1));
+		assertThat(read(spills.get(0), 1), is(expected));
+		assertThat(read(spills.get(0), 0).size(), is(50));
+	}
+
+	@Test(expected = IOException.class)
+	public void illegalPartition() throws Exception {
+		MapOutputBuffer buffer = newBuffer(null, 1024 * 1024);
+		buffer.collect(new IntWritable(-1), new IntWritable(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void typeMismatch() throws Exception {
+		MapOutputBuffer buffer = newBuffer(null, 1024 * 1024);
+		buffer.collect(new IntWritable(1), new Text("1"));
+	}
+
+	@Test
+	public void combiner() throws Exception {
+		MapOutputBuffer buffer = newBuffer(new SumCombiner(), 200);
+		for (int i = 0; i < 20; i++) {
+			buffer.collect(new IntWritable(i % 4), new IntWritable(1));
+		}
+		List<MapOutputBuffer.Spill> spills = buffer.flush();
+		// Combiner はスピルごとに適用されること
+		assertThat(spills.size(), is(3));
+		assertThat(read(spills.get(0), 0), is(Arrays.asList("0\t2", "2\t2")));
+		assertThat(read(spills.get(0), 1), is(Arrays.asList("1\t2", "3\t2")));
+		assertThat(read(spills.get(2), 0), is(Arrays.asList("0\t1", "2\t1")));
+		assertThat(getCounter("COMBINE_OUTPUT_RECORDS"), is(12L));
+		assertThat(getCounter("SPILLED_RECORDS"), is(12L));
+	}
+
+	private long getCounter(String name) {
+		return counters.findCounter(ParallelJobRunner.TASK_COUNTER_GROUP, name).getValue();
+	}
+
+	private MapOutputBuffer newBuffer(MapOutputBuffer.Combiner combiner, long memoryLimit)
+			throws IOException {
+		return new MapOutputBuffer(conf, new CountersReporter(counters), 2,
+				new MapOutputBuffer.Partitioner() {
+					@Override
+					public int getPartition(Object key, Object value, int numPartitions) {
+						return ((IntWritable) key).get() % numPartitions;
+					}
+				}, combiner, memoryLimit);
+	}
+
+	private List<String> read(MapOutputBuffer.Spill spill, int partition) throws IOException {
+		SpillMerger merger = new SpillMerger(conf, Collections.singletonList(spill), partition,
+				conf.getOutputKeyComparator());
+		List<String> result = new ArrayList<String>();
+		IntWritable key = new IntWritable();
+		IntWritable value = new IntWritable();
+		while (merger.next()) {
+			key.readFields(merger.getKey());
+			value.readFields(merger.getValue());
+			result.add(key + "\t" + value);
+		}
+		merger.close();
+		return result;
+	}
+
+	/**
+	 * key ごとに value を合計します。
+	 */
+	private static class SumCombiner implements MapOutputBuffer.Combiner {
+
+		@Override
+		public void combine(RawKeyValueIterator input, OutputCollector<Object, Object> output)
+				throws IOException {
+			IntWritable key = new IntWritable();
+			IntWritable value = new IntWritable();
+			Integer current = null;
+			int sum = 0;
+			while (input.next()) {
+				key.readFields(input.getKey());
+				value.readFields(input.getValue());
+				if (current != null && current != key.get()) {
+					output.collect(new IntWritable(current), new IntWritable(sum));
+					sum = 0;
+				}
+				current = key.get();
+				sum += value.get();
+			}
+			if (current != null) {
+				output.collect(new IntWritable(current), new IntWritable(sum));
+			}
+		}
+	}
+
+}
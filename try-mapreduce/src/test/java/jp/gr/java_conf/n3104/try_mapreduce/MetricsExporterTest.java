@@ -0,0 +1,119 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsExporterTest {
+
+	private File dir = new File(Util.getJobOutputDirPath(MetricsExporterTest.class));
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void export() throws Exception {
+		Counters counters = new Counters();
+		counters.incrCounter(TaskMetrics.Counter.VALID_RECORDS, 3);
+		JobConf conf = new JobConf();
+		conf.set(MetricsExporter.EXPORT_DIR, dir.getPath());
+		MetricsExporter.export(conf, "a b", counters);
+		// 一時ファイルは残らないこと
+		assertThat(dir.list().length, is(1));
+		assertContains(FileUtils.readFileToString(new File(dir, "a_b.prom"), "UTF-8"),
+				"mapreduce_valid_records_total{job=\"a b\"} 3\n");
+	}
+
+	@Test
+	public void exportDisabled() throws Exception {
+		String property = System.getProperty(MetricsExporter.EXPORT_DIR);
+		System.clearProperty(MetricsExporter.EXPORT_DIR);
+		try {
+			// 出力先を設定しない場合は出力しないこと
+			File file = new File("target/metrics/MetricsExporterTest_exportDisabled.prom");
+			MetricsExporter.export(new JobConf(), file.getName().replace(".prom", ""),
+					new Counters());
+			assertThat(file.exists(), is(false));
+			System.setProperty(MetricsExporter.EXPORT_DIR, dir.getPath());
+			MetricsExporter.export(new JobConf(), "enabled", new Counters());
+			assertThat(new File(dir, "enabled.prom").exists(), is(true));
+		} finally {
+			if (property == null) {
+				System.clearProperty(MetricsExporter.EXPORT_DIR);
+			} else {
+				System.setProperty(MetricsExporter.EXPORT_DIR, property);
+			}
+		}
+	}
+
+	@Test
+	public void write() throws Exception {
+		Counters counters = new Counters();
+		EmployeeRecordParser parser = new EmployeeRecordParser();
+		TaskMetrics map = new TaskMetrics(newJob(true, 0), getClass());
+		for (String record : new String[] { "1,佐藤,27,270000,1", "2,鈴木", "3,田中,3a,320000,2" }) {
+			Text value = new Text(record);
+			parser.parse(value);
+			if (map.parsed(new CountersReporter(counters), parser, value.getLength())) {
+				map.emitted();
+			}
+		}
+		map.joined(false);
+		// Combiner として呼び出された場合は記録しません
+		map.group(new CountersReporter(counters), 10);
+		map.flush();
+		// Reduce タスクごとの最大値のうち、最も大きい値がゲージとなります
+		TaskMetrics reduce0 = new TaskMetrics(newJob(false, 0), getClass());
+		reduce0.group(new CountersReporter(counters), 3);
+		reduce0.group(new CountersReporter(counters), 5);
+		reduce0.flush();
+		reduce0.flush();
+		TaskMetrics reduce1 = new TaskMetrics(newJob(false, 1), getClass());
+		reduce1.group(new CountersReporter(counters), 4);
+		reduce1.flush();
+
+		StringWriter writer = new StringWriter();
+		MetricsExporter.write(writer, "a\"b", counters, 1000000);
+		String metrics = writer.toString();
+		assertContains(metrics, "# TYPE mapreduce_valid_records_total counter\n"
+				+ "mapreduce_valid_records_total{job=\"a\\\"b\"} 1\n");
+		assertContains(metrics, "mapreduce_invalid_records_total{job=\"a\\\"b\"} 2\n");
+		assertContains(metrics, "mapreduce_bytes_parsed_total{job=\"a\\\"b\"} 48\n");
+		assertContains(metrics, "mapreduce_invalid_records_by_reason_total{job=\"a\\\"b\","
+				+ "reason=\"field_count\"} 1\n");
+		assertContains(metrics, "mapreduce_invalid_records_by_reason_total{job=\"a\\\"b\","
+				+ "reason=\"number_format\"} 1\n");
+		assertContains(metrics, "mapreduce_records_emitted_by_mapper_total{job=\"a\\\"b\","
+				+ "mapper=\"MetricsExporterTest\"} 1\n");
+		assertContains(metrics, "mapreduce_join_misses_total{job=\"a\\\"b\"} 1\n");
+		assertContains(metrics, "mapreduce_reduce_groups_total{job=\"a\\\"b\"} 3\n");
+		assertContains(metrics, "mapreduce_reduce_values_total{job=\"a\\\"b\"} 12\n");
+		assertContains(metrics, "# TYPE mapreduce_max_group_size gauge\n"
+				+ "mapreduce_max_group_size{job=\"a\\\"b\"} 5\n");
+		assertContains(metrics, "mapreduce_job_completion_time_seconds{job=\"a\\\"b\"} 1000\n");
+	}
+
+	private static void assertContains(String metrics, String expected) {
+		assertThat(metrics, metrics.contains(expected), is(true));
+	}
+
+	private static JobConf newJob(boolean isMap, int partition) {
+		JobConf job = new JobConf(false);
+		job.setBoolean("mapred.task.is.map", isMap);
+		job.setInt("mapred.task.partition", partition);
+		return job;
+	}
+
+}
@@ -0,0 +1,160 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 小さな処理のスループットとアロケーション量を計測する、ベンチマークの実行環境です。
+ * <p>
+ * {@link #add(String, Operation)} で登録した処理を、ウォームアップの後に一定時間ずつ繰り返し呼び出し、
+ * 1秒あたりの処理件数（ops/s）と1件あたりのアロケーション量（B/op）、アロケーションレート（MB/s）を出力します。
+ * アロケーション量は {@code com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}
+ * で計測するため、対応していない JVM では出力しません。
+ * </p>
+ * <p>
+ * 計測条件はシステムプロパティで指定します。
+ * </p>
+ * <ul>
+ * <li>{@link #WARMUP} ウォームアップの回数。デフォルトは3回</li>
+ * <li>{@link #ITERATIONS} 計測の回数。デフォルトは5回</li>
+ * <li>{@link #TIME} 1回あたりの時間（ミリ秒）。デフォルトは1000ミリ秒</li>
+ * </ul>
+ *
+ * @author n3104
+ */
+public class MicroBenchmark {
+
+	public static final String WARMUP = "benchmark.warmup";
+	public static final String ITERATIONS = "benchmark.iterations";
+	public static final String TIME = "benchmark.time";
+
+	/**
+	 * 計測する処理です。
+	 */
+	public interface Operation {
+
+		/**
+		 * @return 処理した件数
+		 */
+		long run() throws Exception;
+	}
+
+	/**
+	 * JIT コンパイラによる処理の除去を防ぐため、処理の結果を書き込みます。
+	 */
+	public static volatile long sink;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<Operation> operations = new ArrayList<Operation>();
+	private final int warmup = Integer.getInteger(WARMUP, 3);
+	private final int iterations = Integer.getInteger(ITERATIONS, 5);
+	private final long time = Long.getLong(TIME, 1000);
+	private final com.sun.management.ThreadMXBean threadMXBean;
+
+	public MicroBenchmark() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadMXBean = (com.sun.management.ThreadMXBean) bean;
+			threadMXBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			threadMXBean = null;
+		}
+	}
+
+	public void add(String name, Operation operation) {
+		names.add(name);
+		operations.add(operation);
+	}
+
+	/**
+	 * 登録した処理を順番に計測します。
+	 *
+	 * @param filters 計測する処理の名前に含まれる正規表現。指定しない場合は全ての処理を計測します
+	 */
+	public void run(String... filters) throws Exception {
+		System.out.println(String.format("# warmup=%d, iterations=%d, time=%dms", warmup,
+				iterations, time));
+		System.out.println(String.format("%-56s %14s %10s %10s %10s", "Benchmark", "ops/s",
+				"error", "B/op", "MB/s"));
+		for (int i = 0; i < operations.size(); i++) {
+			if (matches(names.get(i), filters)) {
+				measure(names.get(i), operations.get(i));
+			}
+		}
+	}
+
+	private static boolean matches(String name, String[] filters) {
+		if (filters.length == 0) {
+			return true;
+		}
+		for (String filter : filters) {
+			if (Pattern.compile(filter).matcher(name).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void measure(String name, Operation operation) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			iterate(operation);
+		}
+		double[] throughputs = new double[iterations];
+		long totalOps = 0;
+		long totalNanos = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			long[] result = iterate(operation);
+			throughputs[i] = result[0] * 1e9 / result[1];
+			totalOps += result[0];
+			totalNanos += result[1];
+			totalBytes += result[2];
+		}
+		double mean = totalOps * 1e9 / totalNanos;
+		double variance = 0;
+		for (double throughput : throughputs) {
+			variance += (throughput - mean) * (throughput - mean);
+		}
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : Double.NaN;
+		if (threadMXBean == null) {
+			System.out.println(String.format("%-56s %14.0f %10.0f %10s %10s", name, mean, error,
+					"-", "-"));
+		} else {
+			System.out.println(String.format("%-56s %14.0f %10.0f %10.1f %10.1f", name, mean,
+					error, (double) totalBytes / totalOps, totalBytes * 1e9 / totalNanos / 1024
+							/ 1024));
+		}
+	}
+
+	/**
+	 * {@link #TIME} が経過するまで処理を繰り返し呼び出します。
+	 *
+	 * @return 処理件数、経過時間（ナノ秒）、アロケーション量（バイト）
+	 */
+	private long[] iterate(Operation operation) throws Exception {
+		long threadId = Thread.currentThread().getId();
+		long deadline = System.nanoTime() + time * 1000000L;
+		long ops = 0;
+		long result = 0;
+		long allocated = allocatedBytes(threadId);
+		long start = System.nanoTime();
+		long now;
+		do {
+			ops += operation.run();
+			result += ops;
+			now = System.nanoTime();
+		} while (now < deadline);
+		long bytes = allocatedBytes(threadId) - allocated;
+		sink = result;
+		return new long[] { ops, now - start, bytes };
+	}
+
+	private long allocatedBytes(long threadId) {
+		return threadMXBean == null ? 0 : threadMXBean.getThreadAllocatedBytes(threadId);
+	}
+
+}
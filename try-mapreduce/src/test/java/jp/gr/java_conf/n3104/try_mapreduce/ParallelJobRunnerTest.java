@@ -0,0 +1,239 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelJobRunnerTest {
+
+	private File dir;
+	private File localDir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(ParallelJobRunnerTest.class));
+		localDir = new File(dir, "local");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void deleteSpillsOnMapFailure() throws Exception {
+		File input = new File(dir, "input");
+		FileUtils.writeStringToFile(input, "a\nb\nc\nd\ne\nf\ng\nfail\n", "UTF-8");
+		JobConf conf = new JobConf();
+		conf.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		// 1つ目の Map タスクがスピルを書き出した後に、2つ目の Map タスクが失敗します。
+		// 3つ目の Map タスク（末尾の1バイト）は、2つ目の失敗時に既に実行中の場合があります
+		conf.setNumMapTasks(2);
+		conf.setInt(ParallelJobRunner.MAP_THREADS, 1);
+		conf.set("mapred.local.dir", localDir.getPath());
+		conf.setMapperClass(FailingMapper.class);
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(Text.class);
+		FileInputFormat.setInputPaths(conf, new Path(input.getPath()));
+		FileOutputFormat.setOutputPath(conf, new Path(dir.getPath(), "out"));
+		try {
+			ParallelJobRunner.runJob(conf);
+			fail();
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is("Job failed!"));
+		}
+		assertThat(localDir.exists(), is(true));
+		assertThat(listFiles(localDir).toString(), listFiles(localDir).isEmpty(), is(true));
+	}
+
+	@Test
+	public void waitForInterruptedTasks() throws Exception {
+		File input = new File(dir, "input");
+		FileUtils.writeStringToFile(input, "fail\nslow\n", "UTF-8");
+		JobConf conf = new JobConf();
+		conf.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		// 1つ目の Map タスクが失敗した時点で、2つ目の Map タスクは割り込みを無視して実行中です
+		conf.setNumMapTasks(2);
+		conf.setInt(ParallelJobRunner.MAP_THREADS, 2);
+		conf.set("mapred.local.dir", localDir.getPath());
+		conf.setMapperClass(SlowMapper.class);
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(Text.class);
+		FileInputFormat.setInputPaths(conf, new Path(input.getPath()));
+		FileOutputFormat.setOutputPath(conf, new Path(dir.getPath(), "out"));
+		SlowMapper.started = new CountDownLatch(1);
+		SlowMapper.finished = new CountDownLatch(1);
+		try {
+			ParallelJobRunner.runJob(conf);
+			fail();
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is("Job failed!"));
+		}
+		// 中断した Map タスクの終了を待ってからジョブが完了し、そのスピルも削除されること
+		assertThat(SlowMapper.finished.getCount(), is(0L));
+		assertThat(listFiles(localDir).toString(), listFiles(localDir).isEmpty(), is(true));
+	}
+
+	@Test
+	public void sameAsJobClient() throws Exception {
+		File input = new File(dir, "input");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			sb.append("word").append(i % 97).append(" word").append(i % 13).append(" 単語")
+					.append(i % 5).append('\n');
+		}
+		FileUtils.writeStringToFile(input, sb.toString(), "UTF-8");
+		for (Tool tool : new Tool[] { new WordCountOld(), new WordCountNew() }) {
+			String name = tool.getClass().getSimpleName();
+			String expected = wordCount(tool, input, name + "_local", false);
+			String actual = wordCount(tool, input, name + "_parallel", true);
+			assertThat(expected.length() > 0, is(true));
+			assertThat(name, actual, is(expected));
+		}
+	}
+
+	@Test
+	public void jobListener() throws Exception {
+		File input = new File(dir, "input");
+		FileUtils.writeStringToFile(input, "a b\na\n", "UTF-8");
+		final List<String> events = new ArrayList<String>();
+		ParallelJobRunner.JobListener listener = new ParallelJobRunner.JobListener() {
+			@Override
+			public void jobCompleted(Configuration conf, String jobName, Counters counters) {
+				events.add(jobName + "," + new Path(conf.get("mapred.output.dir")).getName() + ","
+						+ counters.findCounter(ParallelJobRunner.TASK_COUNTER_GROUP,
+								"REDUCE_OUTPUT_RECORDS").getValue());
+			}
+		};
+		ParallelJobRunner.addJobListener(listener);
+		try {
+			wordCount(new WordCountOld(), input, "listener", true);
+		} finally {
+			ParallelJobRunner.removeJobListener(listener);
+		}
+		wordCount(new WordCountOld(), input, "removed", true);
+		assertThat(events, is(Arrays.asList("word count,listener,2")));
+	}
+
+	@Test
+	public void sortMemoryLimit() throws Exception {
+		JobConf conf = new JobConf();
+		conf.setInt(ParallelJobRunner.MAP_THREADS, 4);
+		conf.setInt("io.sort.mb", 100);
+		long mb = 1024L * 1024L;
+		// io.sort.mb を同時に実行する Map タスクで分割します
+		assertThat(ParallelJobRunner.getSortMemoryLimit(conf, 10, 1024 * mb), is(25 * mb));
+		assertThat(ParallelJobRunner.getSortMemoryLimit(conf, 2, 1024 * mb), is(50 * mb));
+		assertThat(ParallelJobRunner.getSortMemoryLimit(conf, 0, 1024 * mb), is(100 * mb));
+		// 合計はヒープの半分を超えないこと
+		assertThat(ParallelJobRunner.getSortMemoryLimit(conf, 10, 64 * mb), is(8 * mb));
+	}
+
+	/**
+	 * WordCount を実行し、出力ファイルの内容を返します。
+	 */
+	private String wordCount(Tool tool, File input, String name, boolean parallel)
+			throws Exception {
+		JobConf conf = new JobConf();
+		if (parallel) {
+			// 4つの Map タスクのスピルを2つずつマージします
+			conf.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+			conf.set("mapred.local.dir", localDir.getPath());
+			conf.setNumMapTasks(4);
+			conf.setInt("io.sort.factor", 2);
+			conf.setInt(ParallelJobRunner.MAP_THREADS, 2);
+		}
+		File out = new File(dir, name);
+		assertThat(ToolRunner.run(conf, tool, new String[] { input.getPath(), out.getPath() }),
+				is(0));
+		return FileUtils.readFileToString(new File(out, "part-r-00000").exists() ? new File(out,
+				"part-r-00000") : new File(out, "part-00000"), "UTF-8");
+	}
+
+	private static List<File> listFiles(File dir) {
+		List<File> files = new ArrayList<File>();
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				files.addAll(listFiles(file));
+			} else {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	public static class FailingMapper extends MapReduceBase implements
+			Mapper<LongWritable, Text, LongWritable, Text> {
+
+		@Override
+		public void map(LongWritable key, Text value, OutputCollector<LongWritable, Text> output,
+				Reporter reporter) throws IOException {
+			if (value.toString().equals("fail")) {
+				throw new IOException("失敗しました。");
+			}
+			output.collect(key, value);
+		}
+	}
+
+	/**
+	 * {@code slow} の行では割り込みを無視して待機し、 {@code fail} の行では {@code slow} の待機の開始後に失敗します。
+	 */
+	public static class SlowMapper extends MapReduceBase implements
+			Mapper<LongWritable, Text, LongWritable, Text> {
+
+		static volatile CountDownLatch started;
+		static volatile CountDownLatch finished;
+
+		@Override
+		public void map(LongWritable key, Text value, OutputCollector<LongWritable, Text> output,
+				Reporter reporter) throws IOException {
+			if (value.toString().equals("fail")) {
+				try {
+					started.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IOException("失敗しました。");
+			}
+			started.countDown();
+			long end = System.currentTimeMillis() + 500;
+			while (System.currentTimeMillis() < end) {
+				try {
+					Thread.sleep(Math.max(1, end - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					// 割り込みに応答しないタスクを模倣します
+				}
+			}
+			output.collect(key, value);
+			finished.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuarantineTest {
+
+	private File dir;
+	private File input;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(QuarantineTest.class));
+		input = new File(dir, "Employee");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append(i).append(",佐藤,").append(20 + i % 40).append(",270000,").append(i % 3 + 1)
+					.append('\n');
+		}
+		sb.append("100,鈴木,不明,270000,1\n");
+		sb.append("101,鈴木,27\n");
+		FileUtils.writeStringToFile(input, sb.toString(), "UTF-8");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void disabled() throws Exception {
+		File out = run("disabled", new JobConf());
+		assertThat(new File(out, Quarantine.DIR_NAME).exists(), is(false));
+		assertThat(quarantineFiles(out).isEmpty(), is(true));
+	}
+
+	@Test
+	public void commit() throws Exception {
+		JobConf conf = new JobConf();
+		conf.setBoolean(Quarantine.ENABLED, true);
+		File out = run("enabled", conf);
+		// 不正なレコードのファイルは出力ディレクトリの直下から移動されること
+		assertThat(quarantineFiles(out).isEmpty(), is(true));
+		assertThat(readQuarantine(out), is(Arrays.asList("FIELD_COUNT\t101,鈴木,27",
+				"NUMBER_FORMAT\t100,鈴木,不明,270000,1")));
+		assertThat(FileUtils.readLines(new File(out, "part-00000"), "UTF-8").size(), is(3));
+	}
+
+	@Test
+	public void commitWithHotKeys() throws Exception {
+		JobConf conf = new JobConf();
+		conf.setBoolean(Quarantine.ENABLED, true);
+		conf.set(ParallelJobRunner.RUNNER, ParallelJobRunner.PARALLEL);
+		conf.setNumReduceTasks(2);
+		conf.set(HotKeyPartitioner.HOT_KEYS, "1:2");
+		File out = run("hotKeys", conf);
+		// 集計途中の値のディレクトリから最終的な出力先に移動されること
+		assertThat(new File(dir, "hotKeys_partial").exists(), is(false));
+		assertThat(readQuarantine(out), is(Arrays.asList("FIELD_COUNT\t101,鈴木,27",
+				"NUMBER_FORMAT\t100,鈴木,不明,270000,1")));
+	}
+
+	private File run(String name, JobConf conf) throws Exception {
+		File out = new File(dir, name);
+		int res = ToolRunner.run(conf, new AverageAgeOfDepartment(), new String[] {
+				input.getPath(), out.getPath() });
+		assertThat(res, is(0));
+		return out;
+	}
+
+	private static List<File> quarantineFiles(File out) {
+		List<File> files = new ArrayList<File>();
+		for (File file : out.listFiles()) {
+			if (file.getName().startsWith(Quarantine.NAMED_OUTPUT + "-")) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static List<String> readQuarantine(File out) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		for (File file : new File(out, Quarantine.DIR_NAME).listFiles()) {
+			if (file.getName().startsWith(Quarantine.NAMED_OUTPUT + "-")) {
+				lines.addAll(FileUtils.readLines(file, "UTF-8"));
+			}
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+}
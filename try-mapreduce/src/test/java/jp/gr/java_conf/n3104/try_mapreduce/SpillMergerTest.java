@@ -0,0 +1,141 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillMergerTest {
+
+	private static final int PARTITIONS = 2;
+
+	private File dir;
+	private JobConf conf;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(Util.getJobOutputDirPath(SpillMergerTest.class));
+		conf = new JobConf();
+		conf.set("mapred.local.dir", dir.getPath());
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(Text.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtil.fullyDelete(dir);
+	}
+
+	@Test
+	public void mergeOrder() throws Exception {
+		List<MapOutputBuffer.Spill> spills = createSpills(4, 50);
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			assertThat(read(spills, partition), is(expected(4, 50, partition)));
+		}
+	}
+
+	@Test
+	public void multiPassMerge() throws Exception {
+		// 3個ずつ中間ファイルにマージします（11 -> 4 -> 2）
+		conf.setInt("io.sort.factor", 3);
+		List<MapOutputBuffer.Spill> spills = createSpills(11, 30);
+		int files = dir.listFiles().length;
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			assertThat(read(spills, partition), is(expected(11, 30, partition)));
+		}
+		// 中間ファイルは削除されること
+		assertThat(dir.listFiles().length, is(files));
+	}
+
+	@Test
+	public void compressed() throws Exception {
+		conf.setCompressMapOutput(true);
+		conf.setInt("io.sort.factor", 2);
+		List<MapOutputBuffer.Spill> spills = createSpills(5, 30);
+		assertThat(spills.get(0).getCodec() == null, is(false));
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			assertThat(read(spills, partition), is(expected(5, 30, partition)));
+		}
+	}
+
+	/**
+	 * 同じ key を含む Map タスクごとのスピルを作成します。値は {@code スピルの番号-レコードの番号} です。
+	 */
+	private List<MapOutputBuffer.Spill> createSpills(int count, int records) throws Exception {
+		List<MapOutputBuffer.Spill> spills = new ArrayList<MapOutputBuffer.Spill>();
+		for (int spill = 0; spill < count; spill++) {
+			MapOutputBuffer buffer = new MapOutputBuffer(conf,
+					new CountersReporter(new Counters()), PARTITIONS,
+					new MapOutputBuffer.Partitioner() {
+						@Override
+						public int getPartition(Object key, Object value, int numPartitions) {
+							return ((IntWritable) key).get() % numPartitions;
+						}
+					}, null, 1024 * 1024);
+			for (int i = 0; i < records; i++) {
+				buffer.collect(new IntWritable(key(spill, i)), new Text(spill + "-" + i));
+			}
+			spills.addAll(buffer.flush());
+		}
+		return spills;
+	}
+
+	private static int key(int spill, int record) {
+		return (record * 7 + spill * 3) % 20;
+	}
+
+	/**
+	 * @return key の順。同じ key の場合はスピルの順、スピル内の出力順
+	 */
+	private static List<String> expected(int count, int records, int partition) {
+		List<int[]> list = new ArrayList<int[]>();
+		for (int spill = 0; spill < count; spill++) {
+			for (int i = 0; i < records; i++) {
+				if (key(spill, i) % PARTITIONS == partition) {
+					list.add(new int[] { key(spill, i), spill, i });
+				}
+			}
+		}
+		Collections.sort(list, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] o1, int[] o2) {
+				return o1[0] - o2[0];
+			}
+		});
+		List<String> result = new ArrayList<String>();
+		for (int[] record : list) {
+			result.add(record[0] + "\t" + record[1] + "-" + record[2]);
+		}
+		return result;
+	}
+
+	private List<String> read(List<MapOutputBuffer.Spill> spills, int partition)
+			throws Exception {
+		SpillMerger merger = new SpillMerger(conf, spills, partition, conf
+				.getOutputKeyComparator());
+		List<String> result = new ArrayList<String>();
+		IntWritable key = new IntWritable();
+		Text value = new Text();
+		while (merger.next()) {
+			key.readFields(merger.getKey());
+			value.readFields(merger.getValue());
+			result.add(key + "\t" + value);
+		}
+		merger.close();
+		return result;
+	}
+
+}
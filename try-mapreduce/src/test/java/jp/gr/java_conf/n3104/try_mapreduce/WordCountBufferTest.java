@@ -0,0 +1,98 @@
+package jp.gr.java_conf.n3104.try_mapreduce;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class WordCountBufferTest {
+
+	/**
+	 * 出力された件数を単語ごとに合計します。
+	 */
+	private static class CountingOutput implements WordCountBuffer.Output {
+
+		private final Map<String, Integer> counts = new HashMap<String, Integer>();
+		private int records;
+
+		@Override
+		public void write(Text word, IntWritable count) throws IOException, InterruptedException {
+			Integer current = counts.get(word.toString());
+			counts.put(word.toString(), (current == null ? 0 : current) + count.get());
+			records++;
+		}
+	}
+
+	@Test
+	public void newInstance() throws Exception {
+		Configuration conf = new Configuration();
+		assertThat(WordCountBuffer.newInstance(conf), is(nullValue()));
+		conf.setBoolean(WordCountBuffer.ENABLED, true);
+		assertThat(WordCountBuffer.newInstance(conf).size(), is(0));
+	}
+
+	@Test
+	public void flush() throws Exception {
+		WordCountBuffer buffer = new WordCountBuffer(WordCountBuffer.DEFAULT_MEMORY_LIMIT);
+		CountingOutput output = new CountingOutput();
+		// 単語の一部のみを指定した場合も同じ単語として集計されること
+		add(buffer, "りんご", output);
+		add(buffer, "みかん", output);
+		add(buffer, "りんご", output);
+		byte[] bytes = "xxりんごxx".getBytes("UTF-8");
+		buffer.add(bytes, 2, bytes.length - 4, output);
+		assertThat(output.records, is(0));
+		assertThat(buffer.size(), is(2));
+
+		buffer.flush(output);
+		assertThat(output.records, is(2));
+		assertThat(output.counts.get("りんご"), is(3));
+		assertThat(output.counts.get("みかん"), is(1));
+		assertThat(buffer.size(), is(0));
+		assertThat(buffer.getMemoryUsage(), is(0L));
+
+		// flush 後も再利用出来ること
+		add(buffer, "みかん", output);
+		buffer.flush(output);
+		assertThat(output.counts.get("みかん"), is(2));
+	}
+
+	@Test
+	public void evict() throws Exception {
+		WordCountBuffer buffer = new WordCountBuffer(1000);
+		CountingOutput output = new CountingOutput();
+		int total = 0;
+		for (int i = 0; i < 2000; i++) {
+			add(buffer, "hot", output);
+			add(buffer, "w" + i, output);
+			total += 2;
+			assertThat(buffer.getMemoryUsage() <= 1000, is(true));
+		}
+		// 出現回数の多い単語はバッファに残り、出現回数の少ない単語から出力されること
+		assertThat(output.records > 0, is(true));
+		assertThat(output.counts.get("hot"), is(nullValue()));
+
+		buffer.flush(output);
+		assertThat(output.counts.get("hot"), is(2000));
+		int sum = 0;
+		for (int count : output.counts.values()) {
+			sum += count;
+		}
+		assertThat(sum, is(total));
+		assertThat(output.counts.size(), is(2001));
+	}
+
+	private static void add(WordCountBuffer buffer, String word, CountingOutput output)
+			throws Exception {
+		byte[] bytes = word.getBytes("UTF-8");
+		buffer.add(bytes, 0, bytes.length, output);
+	}
+
+}